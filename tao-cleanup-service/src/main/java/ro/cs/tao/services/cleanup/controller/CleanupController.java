@@ -23,11 +23,13 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.bind.annotation.RequestParam;
+import ro.cs.tao.services.cleanup.impl.CleanupServiceImpl;
+import ro.cs.tao.services.cleanup.model.CleanupSummary;
 import ro.cs.tao.services.commons.BaseController;
 import ro.cs.tao.services.commons.ResponseStatus;
 import ro.cs.tao.services.commons.RoleRequired;
 import ro.cs.tao.services.commons.ServiceResponse;
-import ro.cs.tao.services.interfaces.CleanupService;
 
 /**
  * @author Lucian Barbulescu
@@ -39,7 +41,7 @@ public class CleanupController extends BaseController {
 
 	/**	Cleanup service. */
 	@Autowired
-	private CleanupService cleanupService;
+	private CleanupServiceImpl cleanupService;
 	
     /**
      * Perform the cleanup operation.
@@ -55,4 +57,34 @@ public class CleanupController extends BaseController {
 //            return prepareResult("Not authorized", ResponseStatus.FAILED, HttpStatus.FORBIDDEN);
 //        }
     }
+
+    /**
+     * Starts a cleanup in background, regardless of the configuration.
+     * The progress can be followed with the <code>/database/status</code> endpoint.
+     *
+     * @param dryRun    If <code>true</code> (default), the invalid products are only reported, not deleted
+     */
+    @RequestMapping(value = "/database/start", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+    @RoleRequired(roles = "admin")
+    public ResponseEntity<ServiceResponse<?>> startCleanup(@RequestParam(name = "dryRun", required = false, defaultValue = "true") boolean dryRun) {
+        final CleanupSummary current = cleanupService.getSummary();
+        if (current != null && current.getFinished() == null) {
+            return prepareResult("A database cleanup is already in progress", ResponseStatus.FAILED, HttpStatus.CONFLICT);
+        }
+        asyncExecute(() -> cleanupService.cleanupDatabase(dryRun));
+        return prepareResult("Database cleanup started" + (dryRun ? " (dry run)" : ""), ResponseStatus.SUCCEEDED, HttpStatus.ACCEPTED);
+    }
+
+    /**
+     * Returns the progress of the current cleanup or, if none is in progress, the outcome of the last one.
+     */
+    @RequestMapping(value = "/database/status", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    @RoleRequired(roles = "admin")
+    public ResponseEntity<ServiceResponse<?>> getCleanupStatus() {
+        final CleanupSummary summary = cleanupService.getSummary();
+        if (summary == null) {
+            return prepareResult("No database cleanup was performed", ResponseStatus.SUCCEEDED, HttpStatus.OK);
+        }
+        return prepareResult(summary);
+    }
 }
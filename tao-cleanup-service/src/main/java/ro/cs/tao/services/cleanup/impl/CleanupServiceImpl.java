@@ -15,28 +15,67 @@
  */
 package ro.cs.tao.services.cleanup.impl;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import ro.cs.tao.component.SystemVariable;
 import ro.cs.tao.configuration.ConfigurationManager;
-import ro.cs.tao.eodata.EOProduct;
+import ro.cs.tao.datasource.db.DatabaseSource;
+import ro.cs.tao.messaging.Message;
+import ro.cs.tao.messaging.Notifiable;
 import ro.cs.tao.persistence.PersistenceException;
 import ro.cs.tao.persistence.PersistenceManager;
+import ro.cs.tao.services.cleanup.model.CleanupSummary;
+import ro.cs.tao.services.commons.WorkspaceEvents;
 import ro.cs.tao.services.interfaces.CleanupService;
 import ro.cs.tao.utils.FileUtilities;
+import ro.cs.tao.utils.executors.NamedThreadPoolExecutor;
 
 /**
+ * Removes from the database the products whose files no longer exist.
+ * The products are read in pages (ordered by identifier), the locations of a page are checked in parallel
+ * and the invalid products of a page are deleted in a single batch (together with the rows referencing them).
+ * After each page, the last identifier is saved, so that an interrupted run is resumed from there.
+ * Besides, the paths deleted from the workspaces (published by the workspace watcher) are queued as suspects and,
+ * every few seconds, the products located at (or below) them are checked and removed if invalid. Hence the
+ * complete check of the products is only a periodic consistency check.
+ *
  * Lucian Barbulescu
  */
 @Service("cleanupService")
@@ -44,86 +83,509 @@ public class CleanupServiceImpl implements CleanupService {
 
 	/**	Logger. */
 	private static final Logger logger = Logger.getLogger(CleanupServiceImpl.class.getName());;
-	
+
 	/**	Configuration key for deleting invalid products. */
 	private static final String DELETE_INVALID_PRODUCTS = "tao.remove.invalid.products";
-	
+
+	/**	Configuration key for the number of products read at once. */
+	private static final String PAGE_SIZE = "tao.cleanup.page.size";
+
+	/**	Configuration key for the number of locations checked in parallel. */
+	private static final String IO_THREADS = "tao.cleanup.io.threads";
+
+	/**	Configuration key for the interval (in seconds) at which the suspect paths are checked. */
+	private static final String SUSPECTS_INTERVAL = "tao.cleanup.suspects.seconds";
+
+	/**	Configuration key for the interval (in days) between two complete checks of the products. */
+	private static final String FULL_SCAN_INTERVAL = "tao.cleanup.full.scan.days";
+
+	/**	Script creating the index on the product locations (run at startup if the index is missing). */
+	private static final String LOCATION_INDEX_SCRIPT = "/db/raster_data_product_location.sql";
+	private static final String CHECK_LOCATION_INDEX =
+			"SELECT indisvalid FROM pg_index WHERE indexrelid = to_regclass('product.ix_raster_data_product_location')";
+	private static final String DROP_LOCATION_INDEX =
+			"DROP INDEX CONCURRENTLY IF EXISTS product.ix_raster_data_product_location";
+	private static final String SELECT_LOCATED =
+			"SELECT id, name, location FROM product.raster_data_product " +
+			"WHERE location = ? OR location = ? OR location LIKE ? ESCAPE '\\' OR location LIKE ? ESCAPE '\\'";
+	private static final String SELECT_PAGE =
+			"SELECT id, name, location FROM product.raster_data_product WHERE id > ? ORDER BY id LIMIT ?";
+	private static final String DELETE_PRODUCT = "DELETE FROM product.raster_data_product WHERE id = ?";
+	// the single-column foreign keys referencing the products that are not removed (or nulled) by the database itself
+	private static final String SELECT_REFERENCES =
+			"SELECT c.conrelid::regclass::text, a.attname FROM pg_constraint c " +
+			"JOIN pg_attribute a ON a.attrelid = c.conrelid AND a.attnum = c.conkey[1] " +
+			"WHERE c.contype = 'f' AND c.confrelid = 'product.raster_data_product'::regclass " +
+			"AND array_length(c.conkey, 1) = 1 AND c.confdeltype IN ('a', 'r')";
+
 	/**	Database access. */
 	@Autowired
 	private PersistenceManager persistenceManager;
-	
+
+	private final DatabaseSource source = new DatabaseSource();
+	private final AtomicBoolean running = new AtomicBoolean();
+	private final Counter checkedCounter = Metrics.counter("cleanup.products.checked");
+	private final Counter invalidCounter = Metrics.counter("cleanup.products.invalid");
+	private final Counter deletedCounter = Metrics.counter("cleanup.products.deleted");
+	private final Set<String> suspects = ConcurrentHashMap.newKeySet();
+	private volatile CleanupSummary summary;
+	// statements deleting the rows that reference a product, read once from the database catalog
+	private volatile List<String> deleteReferences;
+	// the suspects are kept queued while the location index is being built
+	private volatile boolean indexing = true;
+	private DeletionReceiver receiver;
+	private Timer timer;
+
+	@PostConstruct
+	public void initialize() {
+		final long interval = Long.parseLong(ConfigurationManager.getInstance().getValue(SUSPECTS_INTERVAL, "5")) * 1000L;
+		this.receiver = new DeletionReceiver();
+		final Thread indexer = new Thread(this::ensureLocationIndex, "cleanup-location-index");
+		indexer.setDaemon(true);
+		indexer.start();
+		this.timer = new Timer("cleanup-suspects", true);
+		this.timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				checkSuspects();
+			}
+		}, interval, interval);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		this.timer.cancel();
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
 	public long cleanupDatabase() {
-		return cleanupDatabaseAction();
+		if (!ConfigurationManager.getInstance().getBooleanValue(DELETE_INVALID_PRODUCTS)) {
+			// return without executing
+			return 0;
+		}
+		final CleanupSummary result = run(false);
+		return result != null ? result.getDeleted() : 0;
 	}
-	
+
 	/**
-	 * Periodic action to be executed once a day.
-	 * 
+	 * Runs the cleanup, regardless of the configuration.
+	 *
+	 * @param dryRun	If <code>true</code>, the invalid products are only reported
+	 * @return the summary of the run, or <code>null</code> if a run is already in progress
+	 */
+	public CleanupSummary cleanupDatabase(boolean dryRun) {
+		return run(dryRun);
+	}
+
+	/**
+	 * Returns the summary of the current run or, if none is in progress, of the last one.
+	 */
+	public CleanupSummary getSummary() {
+		return summary;
+	}
+
+	/**
+	 * Periodic action checked once a day. The products are completely checked only if the last complete
+	 * check is older than the configured interval, or if the last complete check was interrupted.
+	 *
 	 * @return the number of deleted products
 	 */
 	@Scheduled(fixedRate = 1, timeUnit = TimeUnit.DAYS)
 	private long cleanupDatabaseAction() {
+		final long days = Long.parseLong(ConfigurationManager.getInstance().getValue(FULL_SCAN_INTERVAL, "7"));
+		final Path marker = lastScanFile();
+		try {
+			if (readCheckpoint() == null && Files.exists(marker) &&
+				Files.getLastModifiedTime(marker).toMillis() > System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days)) {
+				return 0;
+			}
+		} catch (IOException e) {
+			logger.warning("Cannot read the date of the last cleanup: " + e.getMessage());
+		}
+		return cleanupDatabase();
+	}
+
+	/**
+	 * Checks the products located at (or below) the paths deleted since the last invocation.
+	 */
+	private void checkSuspects() {
+		if (suspects.isEmpty() || indexing) {
+			return;
+		}
+		final List<String> paths = new ArrayList<>();
+		for (String path : suspects) {
+			if (suspects.remove(path)) {
+				paths.add(path);
+			}
+		}
 		if (!ConfigurationManager.getInstance().getBooleanValue(DELETE_INVALID_PRODUCTS)) {
-			// return without executing
-			return 0;
+			return;
 		}
-		logger.fine("Starting Database cleanup task!");
-		final long startTime = System.currentTimeMillis();
-		// get all products from the database
-		final List<EOProduct> products = persistenceManager.rasterData().list();
-		final List<EOProduct> invalidProducts = new ArrayList<>();
-		
-		for (EOProduct product : products) {
-			
-			try {
-				
-				if (FileUtilities.isURI(product.getLocation())) {
-					// check if the URI points to a local file
-					final URI locationURI = new URI(product.getLocation());
-					if (!"file".equalsIgnoreCase(locationURI.getScheme())) {
-						// ignore the current product as it points to an external URI
-						continue;
+		final CleanupSummary current = new CleanupSummary(false, null);
+		ExecutorService checkers = null;
+		try (Connection connection = source.getConnection()) {
+			final List<ProductLocation> products = readLocated(connection, paths);
+			if (products.isEmpty()) {
+				return;
+			}
+			checkers = new NamedThreadPoolExecutor("cleanup-io",
+												   Integer.parseInt(ConfigurationManager.getInstance().getValue(IO_THREADS, "8")));
+			final List<ProductLocation> invalidProducts = findInvalid(products, checkers, current);
+			if (!invalidProducts.isEmpty()) {
+				delete(connection, invalidProducts, current);
+				logger.info(String.format("Removed %d products whose files were deleted", current.getDeleted()));
+			}
+		} catch (SQLException | RuntimeException e) {
+			// the products will be checked at the next complete check
+			logger.warning("Cannot check the products of the deleted paths: " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (checkers != null) {
+				checkers.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * Creates the index on the product locations if it does not exist, by running
+	 * <code>db/raster_data_product_location.sql</code>. The index is built concurrently, hence outside a transaction
+	 * (the connection is in auto-commit mode). An invalid index, left by an interrupted build, is dropped and rebuilt.
+	 */
+	private void ensureLocationIndex() {
+		try (Connection connection = source.getConnection();
+			 Statement statement = connection.createStatement()) {
+			Boolean valid = null;
+			try (ResultSet resultSet = statement.executeQuery(CHECK_LOCATION_INDEX)) {
+				if (resultSet.next()) {
+					valid = resultSet.getBoolean(1);
+				}
+			}
+			if (Boolean.TRUE.equals(valid)) {
+				return;
+			}
+			if (valid != null) {
+				statement.execute(DROP_LOCATION_INDEX);
+			}
+			final String script;
+			try (InputStream stream = CleanupServiceImpl.class.getResourceAsStream(LOCATION_INDEX_SCRIPT)) {
+				if (stream == null) {
+					throw new IOException(LOCATION_INDEX_SCRIPT + " not found");
+				}
+				script = new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+			}
+			connection.setAutoCommit(true);
+			logger.info("Creating the index on the product locations");
+			statement.execute(script);
+			logger.info("Index on the product locations created");
+		} catch (SQLException | IOException e) {
+			logger.warning("Cannot create the index on the product locations, the deleted paths will be checked without it: "
+							   + e.getMessage());
+		} finally {
+			indexing = false;
+		}
+	}
+
+	/**
+	 * Reads the products located at (or below) the given paths. The locations are stored either as paths or as URIs,
+	 * they are matched through the index created by {@link #ensureLocationIndex()}.
+	 */
+	private List<ProductLocation> readLocated(Connection connection, List<String> paths) throws SQLException {
+		final Map<String, ProductLocation> products = new LinkedHashMap<>();
+		try (PreparedStatement statement = connection.prepareStatement(SELECT_LOCATED)) {
+			for (String path : paths) {
+				final String uri = Paths.get(path).toUri().toString();
+				final String uriFolder = uri.endsWith("/") ? uri : uri + "/";
+				statement.setString(1, path);
+				statement.setString(2, uri);
+				statement.setString(3, escapeLike(path + "/") + "%");
+				statement.setString(4, escapeLike(uriFolder) + "%");
+				try (ResultSet resultSet = statement.executeQuery()) {
+					while (resultSet.next()) {
+						products.putIfAbsent(resultSet.getString(1),
+											 new ProductLocation(resultSet.getString(1), resultSet.getString(2), resultSet.getString(3)));
 					}
 				}
-				
-				// get the declared location as a Path object
-				final Path path = FileUtilities.toPath(product.getLocation());
-				if (Files.notExists(path)) {
-					//the declared path is invalid
-					logger.fine("The declared location (" + product.getLocation() + ") for product " + product.getName() + " is not valid.");
+			}
+		}
+		return new ArrayList<>(products.values());
+	}
+
+	private static String escapeLike(String value) {
+		return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+	}
+
+	private CleanupSummary run(boolean dryRun) {
+		if (!running.compareAndSet(false, true)) {
+			logger.warning("A database cleanup is already in progress");
+			return null;
+		}
+		final ConfigurationManager configurationManager = ConfigurationManager.getInstance();
+		final int pageSize = Integer.parseInt(configurationManager.getValue(PAGE_SIZE, "1000"));
+		final int threads = Integer.parseInt(configurationManager.getValue(IO_THREADS, "8"));
+		// a dry run neither uses nor moves the checkpoint
+		final String resumeFrom = dryRun ? null : readCheckpoint();
+		final CleanupSummary current = new CleanupSummary(dryRun, resumeFrom);
+		this.summary = current;
+		logger.fine("Starting Database cleanup task" + (dryRun ? " (dry run)" : "") +
+					(resumeFrom != null ? ", resuming after product " + resumeFrom : ""));
+		final ExecutorService checkers = new NamedThreadPoolExecutor("cleanup-io", threads);
+		boolean interrupted = false;
+		try (Connection connection = source.getConnection()) {
+			String lastId = resumeFrom != null ? resumeFrom : "";
+			List<ProductLocation> page;
+			do {
+				page = readPage(connection, lastId, pageSize);
+				if (page.isEmpty()) {
+					break;
+				}
+				final List<ProductLocation> invalidProducts = findInvalid(page, checkers, current);
+				if (!dryRun && !invalidProducts.isEmpty()) {
+					delete(connection, invalidProducts, current);
+				}
+				lastId = page.get(page.size() - 1).id;
+				if (!dryRun) {
+					writeCheckpoint(lastId);
+				}
+			} while (page.size() == pageSize);
+			if (!dryRun) {
+				writeCheckpoint(null);
+				writeLastScan(current);
+			}
+		} catch (SQLException e) {
+			interrupted = true;
+			logger.severe("Database cleanup interrupted: " + e.getMessage());
+		} catch (InterruptedException e) {
+			interrupted = true;
+			Thread.currentThread().interrupt();
+		} finally {
+			checkers.shutdownNow();
+			current.finish(interrupted);
+			running.set(false);
+		}
+		logger.info(String.format("Database cleanup %s in %d seconds (%.1f products/s). Products checked: %d, invalid: %d, deleted: %d",
+								  interrupted ? "interrupted" : "finished",
+								  Duration.between(current.getStarted(), current.getFinished()).getSeconds(),
+								  current.getThroughput(), current.getChecked(), current.getInvalid(), current.getDeleted()));
+		return current;
+	}
+
+	private List<ProductLocation> readPage(Connection connection, String lastId, int pageSize) throws SQLException {
+		final List<ProductLocation> page = new ArrayList<>(pageSize);
+		try (PreparedStatement statement = connection.prepareStatement(SELECT_PAGE)) {
+			statement.setString(1, lastId);
+			statement.setInt(2, pageSize);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				while (resultSet.next()) {
+					page.add(new ProductLocation(resultSet.getString(1), resultSet.getString(2), resultSet.getString(3)));
+				}
+			}
+		}
+		return page;
+	}
+
+	private List<ProductLocation> findInvalid(List<ProductLocation> page, ExecutorService checkers,
+											  CleanupSummary current) throws InterruptedException {
+		final List<Future<Boolean>> checks = new ArrayList<>(page.size());
+		for (ProductLocation product : page) {
+			checks.add(checkers.submit(() -> isInvalid(product, current)));
+		}
+		final List<ProductLocation> invalidProducts = new ArrayList<>();
+		for (int i = 0; i < checks.size(); i++) {
+			try {
+				if (checks.get(i).get()) {
+					final ProductLocation product = page.get(i);
+					current.addInvalid(product.location);
 					invalidProducts.add(product);
 				}
-			} catch (URISyntaxException e) {
-				//the declared path is invalid
-				logger.fine("The declared location (" + product.getLocation() + ") for product " + product.getName() + " follows the general URI sintax, but is not a valid URI. Exception message: " + e.getMessage());
-				
-			} catch(InvalidPathException e) {
+			} catch (ExecutionException e) {
+				current.addError();
+			}
+		}
+		current.addChecked(page.size());
+		checkedCounter.increment(page.size());
+		invalidCounter.increment(invalidProducts.size());
+		return invalidProducts;
+	}
+
+	private boolean isInvalid(ProductLocation product, CleanupSummary current) {
+		try {
+			if (FileUtilities.isURI(product.location)) {
+				// check if the URI points to a local file
+				final URI locationURI = new URI(product.location);
+				if (!"file".equalsIgnoreCase(locationURI.getScheme())) {
+					// ignore the current product as it points to an external URI
+					current.addExternal();
+					return false;
+				}
+			}
+
+			// get the declared location as a Path object
+			final Path path = FileUtilities.toPath(product.location);
+			if (Files.notExists(path)) {
 				//the declared path is invalid
-				logger.fine("The declared location (" + product.getLocation() + ") for product " + product.getName() + " is not a Path. Exception message: " + e.getMessage());
-			} catch (Exception e) {
-				// general exception
-				logger.fine("The declared location (" + product.getLocation() + ") for product " + product.getName() + " is not valid. Exception message: " + e.getMessage());
+				logger.fine("The declared location (" + product.location + ") for product " + product.name + " is not valid.");
+				return true;
 			}
+		} catch (URISyntaxException e) {
+			//the declared path is invalid
+			logger.fine("The declared location (" + product.location + ") for product " + product.name + " follows the general URI sintax, but is not a valid URI. Exception message: " + e.getMessage());
+			current.addError();
+		} catch(InvalidPathException e) {
+			//the declared path is invalid
+			logger.fine("The declared location (" + product.location + ") for product " + product.name + " is not a Path. Exception message: " + e.getMessage());
+			current.addError();
+		} catch (Exception e) {
+			// general exception
+			logger.fine("The declared location (" + product.location + ") for product " + product.name + " is not valid. Exception message: " + e.getMessage());
+			current.addError();
 		}
-		
-		// delete invalid products
-		invalidProducts.stream().forEach(p -> {
-			try {
-				logger.fine("Deleting product " + p.getName());
-				persistenceManager.rasterData().delete(p);
-			} catch (PersistenceException e) {
-				logger.severe("Cannot delete product from the database: " + e.getMessage());
+		return false;
+	}
+
+	/**
+	 * Deletes the given products in a single transaction: first the rows referencing them (the tables being found
+	 * from the foreign keys of the product table), then the products, each with one batch. If the batch is rejected
+	 * (for example, because of an indirect reference), the products are deleted one by one through the persistence
+	 * layer.
+	 */
+	private void delete(Connection connection, List<ProductLocation> products, CleanupSummary current) throws SQLException {
+		final List<String> statements = new ArrayList<>(referenceDeletes(connection));
+		statements.add(DELETE_PRODUCT);
+		final boolean autoCommit = connection.getAutoCommit();
+		connection.setAutoCommit(false);
+		try {
+			for (String sql : statements) {
+				try (PreparedStatement statement = connection.prepareStatement(sql)) {
+					for (ProductLocation product : products) {
+						statement.setString(1, product.id);
+						statement.addBatch();
+					}
+					statement.executeBatch();
+				}
+			}
+			connection.commit();
+			current.addDeleted(products.size());
+			deletedCounter.increment(products.size());
+			logger.fine("Deleted " + products.size() + " products");
+		} catch (SQLException e) {
+			connection.rollback();
+			logger.warning("Batch deletion failed (" + e.getMessage() + "), deleting the products one by one");
+			for (ProductLocation product : products) {
+				try {
+					logger.fine("Deleting product " + product.name);
+					persistenceManager.rasterData().delete(product.id);
+					current.addDeleted(1);
+					deletedCounter.increment();
+				} catch (PersistenceException pe) {
+					current.addError();
+					logger.severe("Cannot delete product from the database: " + pe.getMessage());
+				}
 			}
-		});
-		
-		final long endTime = System.currentTimeMillis();
-		logger.info("Database cleanup finished in " + ((endTime - startTime) / 1000) + " seconds. Prducts deleted: " + invalidProducts.size());
-		
-		return invalidProducts.size();
+		} finally {
+			connection.setAutoCommit(autoCommit);
+		}
 	}
 
+	private List<String> referenceDeletes(Connection connection) throws SQLException {
+		List<String> statements = deleteReferences;
+		if (statements == null) {
+			statements = new ArrayList<>();
+			try (PreparedStatement statement = connection.prepareStatement(SELECT_REFERENCES);
+				 ResultSet resultSet = statement.executeQuery()) {
+				while (resultSet.next()) {
+					// the table name (from regclass) is already quoted if needed, the column name is quoted here
+					statements.add("DELETE FROM " + resultSet.getString(1) +
+								   " WHERE \"" + resultSet.getString(2).replace("\"", "\"\"") + "\" = ?");
+				}
+			}
+			deleteReferences = statements;
+		}
+		return statements;
+	}
+
+	private Path checkpointFile() {
+		return Paths.get(SystemVariable.ROOT.value()).resolve("cleanup").resolve("products.checkpoint");
+	}
+
+	private Path lastScanFile() {
+		return checkpointFile().resolveSibling("products.lastscan");
+	}
+
+	private void writeLastScan(CleanupSummary current) {
+		final Path file = lastScanFile();
+		try {
+			FileUtilities.createDirectories(file.getParent());
+			Files.writeString(file, current.getStarted().toString());
+		} catch (IOException e) {
+			logger.warning("Cannot save the date of the cleanup: " + e.getMessage());
+		}
+	}
+
+	private String readCheckpoint() {
+		final Path file = checkpointFile();
+		try {
+			if (Files.exists(file)) {
+				final String lastId = Files.readString(file).trim();
+				return lastId.isEmpty() ? null : lastId;
+			}
+		} catch (IOException e) {
+			logger.warning("Cannot read the cleanup checkpoint: " + e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * Saves the identifier of the last processed product, or removes the checkpoint if <code>null</code>.
+	 */
+	private void writeCheckpoint(String lastId) {
+		final Path file = checkpointFile();
+		try {
+			if (lastId == null) {
+				Files.deleteIfExists(file);
+			} else {
+				FileUtilities.createDirectories(file.getParent());
+				Files.writeString(file, lastId);
+			}
+		} catch (IOException e) {
+			logger.warning("Cannot save the cleanup checkpoint: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Receives the paths deleted from the workspaces.
+	 */
+	private class DeletionReceiver extends Notifiable {
+
+		DeletionReceiver() {
+			subscribe(WorkspaceEvents.DELETED_TOPIC);
+		}
+
+		@Override
+		protected void onMessageReceived(Message message) {
+			final String paths = message.getItem(WorkspaceEvents.PATHS_KEY);
+			if (paths != null) {
+				for (String path : paths.split("\n")) {
+					if (!path.isBlank()) {
+						suspects.add(path);
+					}
+				}
+			}
+		}
+	}
+
+	private static final class ProductLocation {
+		private final String id;
+		private final String name;
+		private final String location;
+
+		private ProductLocation(String id, String name, String location) {
+			this.id = id;
+			this.name = name;
+			this.location = location;
+		}
+	}
 }
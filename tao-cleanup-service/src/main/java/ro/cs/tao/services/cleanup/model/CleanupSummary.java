@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2018 CS ROMANIA
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package ro.cs.tao.services.cleanup.model;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress and outcome of a database cleanup run.
+ */
+public class CleanupSummary {
+
+	/** Maximum number of invalid locations kept as sample. */
+	private static final int MAX_SAMPLES = 100;
+
+	private final boolean dryRun;
+	private final LocalDateTime started;
+	private final String resumedFrom;
+	private final AtomicLong checked = new AtomicLong();
+	private final AtomicLong external = new AtomicLong();
+	private final AtomicLong invalid = new AtomicLong();
+	private final AtomicLong deleted = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final List<String> invalidSamples = new ArrayList<>();
+	private volatile LocalDateTime finished;
+	private volatile boolean interrupted;
+
+	public CleanupSummary(boolean dryRun, String resumedFrom) {
+		this.dryRun = dryRun;
+		this.resumedFrom = resumedFrom;
+		this.started = LocalDateTime.now();
+	}
+
+	public boolean isDryRun() { return dryRun; }
+
+	public LocalDateTime getStarted() { return started; }
+
+	public LocalDateTime getFinished() { return finished; }
+
+	/**
+	 * The product identifier after which the run was resumed, if the run continued an interrupted one.
+	 */
+	public String getResumedFrom() { return resumedFrom; }
+
+	public long getChecked() { return checked.get(); }
+
+	/**
+	 * The products pointing to external (non-file) locations, which were not checked.
+	 */
+	public long getExternal() { return external.get(); }
+
+	public long getInvalid() { return invalid.get(); }
+
+	public long getDeleted() { return deleted.get(); }
+
+	public long getErrors() { return errors.get(); }
+
+	public boolean isInterrupted() { return interrupted; }
+
+	/**
+	 * The checked products per second.
+	 */
+	public double getThroughput() {
+		final LocalDateTime end = finished != null ? finished : LocalDateTime.now();
+		final double seconds = Duration.between(started, end).toMillis() / 1000.0;
+		return seconds > 0 ? checked.get() / seconds : 0;
+	}
+
+	/**
+	 * Some of the invalid locations (all of them, up to a limit).
+	 */
+	public List<String> getInvalidSamples() {
+		synchronized (invalidSamples) {
+			return new ArrayList<>(invalidSamples);
+		}
+	}
+
+	public void addChecked(long count) { checked.addAndGet(count); }
+
+	public void addExternal() { external.incrementAndGet(); }
+
+	public void addInvalid(String location) {
+		invalid.incrementAndGet();
+		synchronized (invalidSamples) {
+			if (invalidSamples.size() < MAX_SAMPLES) {
+				invalidSamples.add(location);
+			}
+		}
+	}
+
+	public void addDeleted(long count) { deleted.addAndGet(count); }
+
+	public void addError() { errors.incrementAndGet(); }
+
+	public void finish(boolean interrupted) {
+		this.interrupted = interrupted;
+		this.finished = LocalDateTime.now();
+	}
+}
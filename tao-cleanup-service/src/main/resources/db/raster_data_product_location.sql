@@ -0,0 +1,5 @@
+-- Index used by the cleanup service to find the products located at (or below) the paths deleted from the workspaces.
+-- The cleanup service runs this script at startup when the index is missing (or invalid).
+-- CONCURRENTLY does not block the writes to the table while the index is built (it cannot run inside a transaction).
+CREATE INDEX CONCURRENTLY IF NOT EXISTS ix_raster_data_product_location
+    ON product.raster_data_product (location text_pattern_ops);
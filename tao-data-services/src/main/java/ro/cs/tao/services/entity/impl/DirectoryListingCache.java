@@ -0,0 +1,160 @@
+package ro.cs.tao.services.entity.impl;
+
+import ro.cs.tao.configuration.ConfigurationManager;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Short-lived cache of the local directory listings.
+ * A listing holds, for each entry, the attributes read during the walk, sorted by path.
+ * A listing is dropped when it expires, or when a change is reported (see {@link #invalidate(Path)}) in the listed
+ * directory or below it.
+ */
+public final class DirectoryListingCache {
+    private static final DirectoryListingCache instance = new DirectoryListingCache();
+    private final Logger logger = Logger.getLogger(DirectoryListingCache.class.getName());
+    private final Map<Key, Listing> listings;
+    // incremented at each invalidation, so that a walk concurrent with a change is not cached
+    private final AtomicLong generation;
+    private final long ttlMillis;
+    private final int maxListings;
+
+    public static DirectoryListingCache getInstance() {
+        return instance;
+    }
+
+    private DirectoryListingCache() {
+        final ConfigurationManager configurationManager = ConfigurationManager.getInstance();
+        this.listings = new ConcurrentHashMap<>();
+        this.generation = new AtomicLong();
+        this.ttlMillis = Long.parseLong(configurationManager.getValue("workspace.listing.cache.seconds", "10")) * 1000;
+        this.maxListings = Integer.parseInt(configurationManager.getValue("workspace.listing.cache.size", "256"));
+    }
+
+    /**
+     * Returns the entries (excluding the directory itself) found up to the given depth below a directory.
+     */
+    List<Entry> list(Path directory, int depth) throws IOException {
+        final Key key = new Key(normalize(directory), depth);
+        final long now = System.currentTimeMillis();
+        final Listing cached = this.listings.get(key);
+        if (cached != null && cached.expires > now) {
+            return cached.entries;
+        }
+        final long current = this.generation.get();
+        final List<Entry> entries = Collections.unmodifiableList(walk(key.directory, depth));
+        if (this.ttlMillis > 0 && this.generation.get() == current) {
+            if (this.listings.size() >= this.maxListings) {
+                this.listings.values().removeIf(l -> l.expires <= now);
+                if (this.listings.size() >= this.maxListings) {
+                    this.listings.clear();
+                }
+            }
+            this.listings.put(key, new Listing(entries, now + this.ttlMillis));
+        }
+        return entries;
+    }
+
+    /**
+     * Drops the listings affected by a change of the given path (file or directory).
+     */
+    public void invalidate(Path path) {
+        if (path == null) {
+            return;
+        }
+        this.generation.incrementAndGet();
+        if (!this.listings.isEmpty()) {
+            final Path changed = normalize(path);
+            this.listings.keySet().removeIf(k -> changed.startsWith(k.directory) || k.directory.startsWith(changed));
+        }
+    }
+
+    private List<Entry> walk(Path directory, int depth) throws IOException {
+        final List<Entry> results = new ArrayList<>();
+        Files.walkFileTree(directory, EnumSet.of(FileVisitOption.FOLLOW_LINKS), depth, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (!dir.equals(directory)) {
+                    results.add(new Entry(dir, attrs));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!file.toString().endsWith(".aux.xml")) {
+                    results.add(new Entry(file, attrs));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                logger.warning(exc.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        results.sort(Comparator.comparing(e -> e.path));
+        return results;
+    }
+
+    private static Path normalize(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    /**
+     * An entry of a listing.
+     */
+    static final class Entry {
+        final Path path;
+        final boolean directory;
+        final long size;
+        final long lastModified;
+
+        private Entry(Path path, BasicFileAttributes attributes) {
+            this.path = path;
+            this.directory = attributes.isDirectory();
+            this.size = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+        }
+    }
+
+    private static final class Key {
+        private final Path directory;
+        private final int depth;
+
+        private Key(Path directory, int depth) {
+            this.directory = directory;
+            this.depth = depth;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return depth == key.depth && directory.equals(key.directory);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(directory, depth);
+        }
+    }
+
+    private static final class Listing {
+        private final List<Entry> entries;
+        private final long expires;
+
+        private Listing(List<Entry> entries, long expires) {
+            this.entries = entries;
+            this.expires = expires;
+        }
+    }
+}
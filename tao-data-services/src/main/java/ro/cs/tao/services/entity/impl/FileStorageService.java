@@ -18,10 +18,10 @@ package ro.cs.tao.services.entity.impl;
 
 import org.apache.commons.lang3.SystemUtils;
 import org.springframework.core.io.FileSystemResource;
-import org.springframework.util.StreamUtils;
 import org.springframework.util.StringUtils;
 import org.springframework.web.multipart.MultipartFile;
 import ro.cs.tao.component.SystemVariable;
+import ro.cs.tao.configuration.ConfigurationManager;
 import ro.cs.tao.eodata.AuxiliaryData;
 import ro.cs.tao.eodata.EOProduct;
 import ro.cs.tao.eodata.VectorData;
@@ -39,7 +39,6 @@ import ro.cs.tao.utils.FileUtilities;
 import ro.cs.tao.utils.StringUtilities;
 import ro.cs.tao.workspaces.Repository;
 
-import javax.validation.constraints.NotNull;
 import java.io.*;
 import java.net.URISyntaxException;
 import java.nio.file.*;
@@ -89,7 +88,9 @@ public class FileStorageService extends BaseStorageService<MultipartFile, FileSy
     @Override
     public Path createFolder(String folderRelativePath, boolean userOnly) throws IOException {
         String cleanPath = StringUtils.cleanPath(folderRelativePath);
-        return FileUtilities.createDirectories(Paths.get(repository().resolve(cleanPath)));
+        final Path folder = FileUtilities.createDirectories(Paths.get(repository().resolve(cleanPath)));
+        DirectoryListingCache.getInstance().invalidate(folder);
+        return folder;
     }
 
     @Override
@@ -176,6 +177,7 @@ public class FileStorageService extends BaseStorageService<MultipartFile, FileSy
                 Files.delete(filePath);
             }
         }
+        DirectoryListingCache.getInstance().invalidate(filePath);
         try {
 			// update user's processing quota
 			UserQuotaManager.getInstance().updateUserProcessingQuota(SessionStore.currentContext().getPrincipal());
@@ -186,6 +188,23 @@ public class FileStorageService extends BaseStorageService<MultipartFile, FileSy
 
     @Override
     public void move(String source, String destination) throws  IOException {
+        try {
+            moveItem(source, destination);
+        } finally {
+            invalidateListings(source, destination);
+        }
+    }
+
+    @Override
+    public void rename(String source, String newName) throws IOException {
+        try {
+            renameItem(source, newName);
+        } finally {
+            invalidateListings(source, null);
+        }
+    }
+
+    private void moveItem(String source, String destination) throws  IOException {
         if (source == null || source.isEmpty() || destination == null || destination.isEmpty()) {
             throw new IOException("Invalid argument (empty)");
         }
@@ -256,8 +275,7 @@ public class FileStorageService extends BaseStorageService<MultipartFile, FileSy
         }
     }
 
-    @Override
-    public void rename(String source, String newName) throws IOException {
+    private void renameItem(String source, String newName) throws IOException {
         if (StringUtilities.isNullOrEmpty(source) || StringUtilities.isNullOrEmpty(newName)) {
             throw new IOException("Invalid argument (empty)");
         }
@@ -326,235 +344,22 @@ public class FileStorageService extends BaseStorageService<MultipartFile, FileSy
 
     @Override
     public List<FileObject> listUserWorkspace() throws IOException {
-        return listFiles("/", null, null, 1);
+        return listFiles("/", null, null, 1, null, 0);
     }
 
     @Override
     public List<FileObject> listTree(String fromPath) throws IOException {
-        return listFiles(fromPath, null, null, 10);
+        return listFiles(fromPath, null, null, 10, null, 0);
     }
 
     @Override
     public List<FileObject> listFiles(String fromPath, Set<String> exclusions, String lastItem, int depth) throws IOException {
-        Repository repository = repository();
-        final Path workspaceRoot = Paths.get(repository.root());
-        final Path root = Paths.get(repository.resolve(fromPath));
-        //final int depth = 10;//root.getNameCount() - workspaceRoot.getNameCount() == 1 ? 1 : 10;
-        final List<Path> list = list(root, depth);
-        if (exclusions != null) {
-            ListIterator<Path> iterator = list.listIterator();
-            int nc;
-            while (iterator.hasNext()) {
-                Path current = iterator.next();
-                for (String exc : exclusions) {
-                    Path excPath = Paths.get(exc);
-                    nc = excPath.getNameCount();
-                    if (current.getNameCount() < nc) {
-                        continue;
-                    }
-                    if (current.startsWith(exc)) {
-                        iterator.remove();
-                    }
-                }
-            }
-        }
-        list.removeIf(p -> p.endsWith(".aux.xml"));
-        final String[] pathArray = list.stream().map(p -> p.toUri().toString()).toArray(String[]::new);
-        final Map<Path, Map<String, String>> auxAttributes = new HashMap<>();
-        final List<AuxiliaryData> auxData = auxiliaryDataProvider.list(repository.getUserId(), pathArray);
-        for (AuxiliaryData auxiliaryData : auxData) {
-            auxAttributes.put(FileUtilities.toPath(auxiliaryData.getLocation()),
-                              auxiliaryData.toAttributeMap());
-        }
-        final List<EOProduct> productList = productProvider.getByLocation(pathArray);
-        final Map<Path, Map<String, String>> productAttributes = new HashMap<>();
-        for (EOProduct product : productList) {
-            String entryPoint = product.getEntryPoint();
-            if (entryPoint != null) {
-                int idx = entryPoint.lastIndexOf('.');
-                if (idx > 0 && SIMPLE_PRODUCT_EXTENSIONS.contains(entryPoint.substring(idx))) {
-                    productAttributes.put(FileUtilities.toPath(product.getLocation()).resolve(entryPoint),
-                                          product.toAttributeMap());
-                } else {
-                    productAttributes.put(FileUtilities.toPath(product.getLocation()),
-                                          product.toAttributeMap());
-                }
-            } else {
-                productAttributes.put(FileUtilities.toPath(product.getLocation()),
-                                      product.toAttributeMap());
-            }
-        }
-        final List<VectorData> vectors = vectorDataProvider.getByLocation(pathArray);
-        final Map<Path, Map<String, String>> vectorAttributes = new HashMap<>();
-        for (VectorData vectorData : vectors) {
-            vectorAttributes.put(FileUtilities.toPath(vectorData.getLocation()),
-                                 vectorData.toAttributeMap());
-        }
-        final List<FileObject> fileObjects = new ArrayList<>();
-        final FileObject rootNode = repositoryRootNode(repository);
-        if (repository.isRoot(fromPath)) {
-            fileObjects.add(rootNode);
-        }
-        final int filesNameIndex = root.getNameCount() + 1;
-        long size;
-        LocalDateTime lastModified;
-        Map<String, String> currentAttributeMap = null;
-        for (Path realPath : list) {
-            //Path realPath = realRoot.resolve(path);
-            try {
-                BasicFileAttributes attributes = Files.readAttributes(realPath, BasicFileAttributes.class);
-                size = attributes.size();
-                lastModified = LocalDateTime.ofInstant(Instant.ofEpochMilli(attributes.lastModifiedTime().toMillis()),
-                                                       ZoneId.systemDefault());
-            } catch (IOException e) {
-                size = -1;
-                lastModified = null;
-            }
-            final boolean isInFiles = realPath.getNameCount() > filesNameIndex && realPath.getName(filesNameIndex).toString().equals("files");
-            final Path path = workspaceRoot.relativize(realPath);
-            String pathToRecord = path.toString().replace("\\", "/");
-            if (Files.isDirectory(realPath)) {
-                pathToRecord += "/";
-            }
-            final FileObject fileObject = new FileObject(PROTOCOL, pathToRecord, Files.isDirectory(realPath), size);
-            fileObject.setLastModified(lastModified);
-            // if (isInFiles) {
-                if (auxAttributes.containsKey(realPath)) {
-                    fileObject.setAttributes(auxAttributes.get(realPath));
-            //    }
-            } else {
-                final Path absPath = realPath.toAbsolutePath();
-                if (productAttributes.containsKey(absPath)) {
-                    currentAttributeMap = productAttributes.get(absPath);
-                    fileObject.setProductName(currentAttributeMap.get("name"));
-                    currentAttributeMap.remove("name");
-                    //currentAttributeMap.remove("formatType");
-                    currentAttributeMap.remove("width");
-                    currentAttributeMap.remove("height");
-                    currentAttributeMap.remove("pixelType");
-                    currentAttributeMap.remove("sensorType");
-                    currentAttributeMap.remove("size");
-                    fileObject.setAttributes(currentAttributeMap);
-                } else if (productAttributes.containsKey(absPath.getParent()) && currentAttributeMap != null) {
-                    fileObject.setAttributes(currentAttributeMap);
-                } else if (vectorAttributes.containsKey(absPath)) {
-                    fileObject.setAttributes(vectorAttributes.get(absPath));
-                }
-            }
-            fileObjects.add(fileObject);
-        }
-        return fileObjects;
+        return listFiles(fromPath, exclusions, lastItem, depth, null, pageSize());
     }
 
     @Override
     public List<FileObject> listFiles(String fromPath, Set<String> exclusions, String lastItem, int depth, Set<Path> excludedPaths) throws IOException {
-        Repository repository = repository();
-        final Path workspaceRoot = Paths.get(repository.root());
-        final Path root = Paths.get(repository.resolve(fromPath));
-        //final int depth = 10;//root.getNameCount() - workspaceRoot.getNameCount() == 1 ? 1 : 10;
-        final List<Path> list = list(root, depth, excludedPaths);
-        if (exclusions != null) {
-            ListIterator<Path> iterator = list.listIterator();
-            int nc;
-            while (iterator.hasNext()) {
-                Path current = iterator.next();
-                for (String exc : exclusions) {
-                    Path excPath = Paths.get(exc);
-                    nc = excPath.getNameCount();
-                    if (current.getNameCount() < nc) {
-                        continue;
-                    }
-                    if (current.startsWith(exc)) {
-                        iterator.remove();
-                    }
-                }
-            }
-        }
-        list.removeIf(p -> p.endsWith(".aux.xml"));
-        final String[] pathArray = list.stream().map(p -> p.toUri().toString()).toArray(String[]::new);
-        final Map<Path, Map<String, String>> auxAttributes = new HashMap<>();
-        final List<AuxiliaryData> auxData = auxiliaryDataProvider.list(repository.getUserId(), pathArray);
-        for (AuxiliaryData auxiliaryData : auxData) {
-            auxAttributes.put(FileUtilities.toPath(auxiliaryData.getLocation()),
-                              auxiliaryData.toAttributeMap());
-        }
-        final List<EOProduct> productList = productProvider.getByLocation(pathArray);
-        final Map<Path, Map<String, String>> productAttributes = new HashMap<>();
-        for (EOProduct product : productList) {
-            String entryPoint = product.getEntryPoint();
-            if (entryPoint != null) {
-                int idx = entryPoint.lastIndexOf('.');
-                if (idx > 0 && SIMPLE_PRODUCT_EXTENSIONS.contains(entryPoint.substring(idx))) {
-                    productAttributes.put(FileUtilities.toPath(product.getLocation()).resolve(entryPoint),
-                                          product.toAttributeMap());
-                } else {
-                    productAttributes.put(FileUtilities.toPath(product.getLocation()),
-                                          product.toAttributeMap());
-                }
-            } else {
-                productAttributes.put(FileUtilities.toPath(product.getLocation()),
-                                      product.toAttributeMap());
-            }
-        }
-        final List<VectorData> vectors = vectorDataProvider.getByLocation(pathArray);
-        final Map<Path, Map<String, String>> vectorAttributes = new HashMap<>();
-        for (VectorData vectorData : vectors) {
-            vectorAttributes.put(FileUtilities.toPath(vectorData.getLocation()),
-                                 vectorData.toAttributeMap());
-        }
-        final List<FileObject> fileObjects = new ArrayList<>();
-        if (repository.isRoot(fromPath)) {
-            fileObjects.add(repositoryRootNode(repository));
-        }
-        final int filesNameIndex = root.getNameCount() + 1;
-        long size;
-        LocalDateTime lastModified;
-        Map<String, String> currentAttributeMap = null;
-        for (Path realPath : list) {
-            //Path realPath = realRoot.resolve(path);
-            try {
-                BasicFileAttributes attributes = Files.readAttributes(realPath, BasicFileAttributes.class);
-                size = attributes.size();
-                lastModified = LocalDateTime.ofInstant(Instant.ofEpochMilli(attributes.lastModifiedTime().toMillis()),
-                                                       ZoneId.systemDefault());
-            } catch (IOException e) {
-                size = -1;
-                lastModified = null;
-            }
-            final boolean isInFiles = realPath.getNameCount() > filesNameIndex && realPath.getName(filesNameIndex).toString().equals("files");
-            final Path path = workspaceRoot.relativize(realPath);
-            String pathToRecord = path.toString().replace("\\", "/");
-            if (Files.isDirectory(realPath)) {
-                pathToRecord += "/";
-            }
-            final FileObject fileObject = new FileObject(PROTOCOL, pathToRecord, Files.isDirectory(realPath), size);
-            fileObject.setLastModified(lastModified);
-            //if (isInFiles) {
-                if (auxAttributes.containsKey(realPath)) {
-                    fileObject.setAttributes(auxAttributes.get(realPath));
-            //    }
-            } else {
-                final Path absPath = realPath.toAbsolutePath();
-                if (productAttributes.containsKey(absPath)) {
-                    currentAttributeMap = productAttributes.get(absPath);
-                    fileObject.setProductName(currentAttributeMap.get("name"));
-                    currentAttributeMap.remove("name");
-                    //currentAttributeMap.remove("formatType");
-                    currentAttributeMap.remove("width");
-                    currentAttributeMap.remove("height");
-                    currentAttributeMap.remove("pixelType");
-                    currentAttributeMap.remove("sensorType");
-                    currentAttributeMap.remove("size");
-                    fileObject.setAttributes(currentAttributeMap);
-                } else if (productAttributes.containsKey(absPath.getParent()) && currentAttributeMap != null) {
-                    fileObject.setAttributes(currentAttributeMap);
-                } else if (vectorAttributes.containsKey(absPath)) {
-                    fileObject.setAttributes(vectorAttributes.get(absPath));
-                }
-            }
-            fileObjects.add(fileObject);
-        }
-        return fileObjects;
+        return listFiles(fromPath, exclusions, lastItem, depth, excludedPaths, pageSize());
     }
 
     @Override
@@ -581,27 +386,31 @@ public class FileStorageService extends BaseStorageService<MultipartFile, FileSy
     public void streamToZip(String rootPath, ZipOutputStream stream) throws IOException {
         Path root = Paths.get(rootPath);
         if (Files.exists(root) && Files.isDirectory(root)) {
-        List<Path> paths = FileUtilities.listTree(root);
-            for (Path current : paths) {
-                if (Files.isRegularFile(current)) {
-                    String zipPath = root.relativize(current).toString();
-                    ZipEntry entry = new ZipEntry(zipPath);
-                    entry.setSize(Files.size(current));
-                    entry.setTime(System.currentTimeMillis());
-                    stream.putNextEntry(entry);
-                    try (InputStream inputStream = Files.newInputStream(current)) {
-                        StreamUtils.copy(inputStream, stream);
+            // entries are written while walking, so that the download starts without listing the whole folder
+            Files.walkFileTree(root, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    if (!dir.equals(root)) {
+                        ZipEntry entry = new ZipEntry(root.relativize(dir).toString().replace('\\', '/') + "/");
+                        entry.setLastModifiedTime(attrs.lastModifiedTime());
+                        stream.putNextEntry(entry);
+                        stream.closeEntry();
                     }
-                    stream.closeEntry();
-                } else {
-                    if (!current.equals(root)) {
-                        String zipPath = root.relativize(current) + File.separator;
-                        ZipEntry entry = new ZipEntry(zipPath);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (attrs.isRegularFile()) {
+                        ZipEntry entry = new ZipEntry(root.relativize(file).toString().replace('\\', '/'));
+                        entry.setLastModifiedTime(attrs.lastModifiedTime());
                         stream.putNextEntry(entry);
+                        Files.copy(file, stream);
                         stream.closeEntry();
                     }
+                    return FileVisitResult.CONTINUE;
                 }
-            }
+            });
         } else {
             throw new IOException("Not a folder");
         }
@@ -684,6 +493,7 @@ public class FileStorageService extends BaseStorageService<MultipartFile, FileSy
             filePath = uploadPath.resolve(Paths.get(file.getOriginalFilename()).getFileName());
             Files.copy(stream, filePath, StandardCopyOption.REPLACE_EXISTING);
         }
+        DirectoryListingCache.getInstance().invalidate(filePath);
         String userId = principal.getName();
         String location = filePath.toUri().toString(); //workspacePath.relativize(filePath).toString();
         List<AuxiliaryData> listData = auxiliaryDataProvider.list(userId, location);
@@ -713,47 +523,160 @@ public class FileStorageService extends BaseStorageService<MultipartFile, FileSy
         try (InputStream inputStream = wrapStream(stream)) {
             Files.copy(inputStream, uploadPath, StandardCopyOption.REPLACE_EXISTING);
         }
+        DirectoryListingCache.getInstance().invalidate(uploadPath);
     }
 
-    private List<Path> list(Path path, int depth) throws IOException {
-        return list(path, depth, Collections.emptySet());
-    }
-
-    private List<Path> list(Path path, int depth, @NotNull Set<Path> exclusions) throws IOException {
-        final List<Path> results = new ArrayList<>();
-        Files.walkFileTree(path, EnumSet.of(FileVisitOption.FOLLOW_LINKS), depth, new SimpleFileVisitor<>() {
-            @Override
-            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                if (exclusions.contains(dir)) {
-                    return FileVisitResult.SKIP_SUBTREE;
+    /**
+     * Lists the entries below a folder, sorted by path.
+     *
+     * @param fromPath      The folder, relative to the repository root
+     * @param exclusions    [Optional] Paths (absolute) to be excluded together with their descendants
+     * @param lastItem      [Optional] The last item of the previous page (as returned), the listing continues after it
+     * @param depth         The depth of the listing
+     * @param excludedPaths [Optional] Paths (absolute or relative to the repository root) to be excluded together
+     *                      with their descendants
+     * @param pageSize      The maximum number of entries returned (0 for all)
+     */
+    private List<FileObject> listFiles(String fromPath, Set<String> exclusions, String lastItem, int depth,
+                                       Set<?> excludedPaths, int pageSize) throws IOException {
+        Repository repository = repository();
+        final Path workspaceRoot = Paths.get(repository.root()).toAbsolutePath().normalize();
+        final Path root = Paths.get(repository.resolve(fromPath)).toAbsolutePath().normalize();
+        final List<DirectoryListingCache.Entry> entries = DirectoryListingCache.getInstance().list(root, depth);
+        final PathPrefixTree excluded = new PathPrefixTree(null);
+        if (exclusions != null) {
+            for (String exc : exclusions) {
+                excluded.add(Paths.get(exc).toAbsolutePath().normalize());
+            }
+        }
+        if (excludedPaths != null) {
+            for (Object exc : excludedPaths) {
+                // callers may pass the paths as strings
+                excluded.add((exc instanceof Path ? (Path) exc : Paths.get(repository.resolve(exc.toString())))
+                                     .toAbsolutePath().normalize());
+            }
+        }
+        int index = 0;
+        if (!StringUtilities.isNullOrEmpty(lastItem)) {
+            String last = lastItem.replace("\\", "/");
+            while (last.endsWith("/")) {
+                last = last.substring(0, last.length() - 1);
+            }
+            index = firstAfter(entries, workspaceRoot.resolve(last).normalize());
+        }
+        final List<DirectoryListingCache.Entry> list = new ArrayList<>();
+        for (int i = index; i < entries.size() && (pageSize <= 0 || list.size() < pageSize); i++) {
+            final DirectoryListingCache.Entry entry = entries.get(i);
+            if (!excluded.covers(entry.path)) {
+                list.add(entry);
+            }
+        }
+        final List<FileObject> fileObjects = new ArrayList<>();
+        if (repository.isRoot(fromPath) && StringUtilities.isNullOrEmpty(lastItem)) {
+            fileObjects.add(repositoryRootNode(repository));
+        }
+        if (list.isEmpty()) {
+            return fileObjects;
+        }
+        final String[] pathArray = list.stream().map(e -> e.path.toUri().toString()).toArray(String[]::new);
+        final Map<Path, Map<String, String>> auxAttributes = new HashMap<>();
+        final List<AuxiliaryData> auxData = auxiliaryDataProvider.list(repository.getUserId(), pathArray);
+        for (AuxiliaryData auxiliaryData : auxData) {
+            auxAttributes.put(FileUtilities.toPath(auxiliaryData.getLocation()),
+                              auxiliaryData.toAttributeMap());
+        }
+        final List<EOProduct> productList = productProvider.getByLocation(pathArray);
+        final Map<Path, Map<String, String>> productAttributes = new HashMap<>();
+        for (EOProduct product : productList) {
+            String entryPoint = product.getEntryPoint();
+            if (entryPoint != null) {
+                int idx = entryPoint.lastIndexOf('.');
+                if (idx > 0 && SIMPLE_PRODUCT_EXTENSIONS.contains(entryPoint.substring(idx))) {
+                    productAttributes.put(FileUtilities.toPath(product.getLocation()).resolve(entryPoint),
+                                          product.toAttributeMap());
                 } else {
-                    if (!dir.equals(path)) {
-                        results.add(dir);
-                    }
+                    productAttributes.put(FileUtilities.toPath(product.getLocation()),
+                                          product.toAttributeMap());
                 }
-                return FileVisitResult.CONTINUE;
+            } else {
+                productAttributes.put(FileUtilities.toPath(product.getLocation()),
+                                      product.toAttributeMap());
             }
-
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                if (exclusions.contains(file)) {
-                    return FileVisitResult.CONTINUE;
-                } else {
-                    if (!file.toString().endsWith(".aux.xml")) {
-                        results.add(file);
-                    }
+        }
+        final List<VectorData> vectors = vectorDataProvider.getByLocation(pathArray);
+        final Map<Path, Map<String, String>> vectorAttributes = new HashMap<>();
+        for (VectorData vectorData : vectors) {
+            vectorAttributes.put(FileUtilities.toPath(vectorData.getLocation()),
+                                 vectorData.toAttributeMap());
+        }
+        Map<String, String> currentAttributeMap = null;
+        for (DirectoryListingCache.Entry entry : list) {
+            final Path realPath = entry.path;
+            final Path path = workspaceRoot.relativize(realPath);
+            String pathToRecord = path.toString().replace("\\", "/");
+            if (entry.directory) {
+                pathToRecord += "/";
+            }
+            final FileObject fileObject = new FileObject(PROTOCOL, pathToRecord, entry.directory, entry.size);
+            fileObject.setLastModified(LocalDateTime.ofInstant(Instant.ofEpochMilli(entry.lastModified),
+                                                               ZoneId.systemDefault()));
+            if (auxAttributes.containsKey(realPath)) {
+                fileObject.setAttributes(auxAttributes.get(realPath));
+            } else {
+                if (productAttributes.containsKey(realPath)) {
+                    // copied, since the attribute maps are shared with the entries below the product
+                    currentAttributeMap = new HashMap<>(productAttributes.get(realPath));
+                    fileObject.setProductName(currentAttributeMap.get("name"));
+                    currentAttributeMap.remove("name");
+                    //currentAttributeMap.remove("formatType");
+                    currentAttributeMap.remove("width");
+                    currentAttributeMap.remove("height");
+                    currentAttributeMap.remove("pixelType");
+                    currentAttributeMap.remove("sensorType");
+                    currentAttributeMap.remove("size");
+                    fileObject.setAttributes(currentAttributeMap);
+                } else if (productAttributes.containsKey(realPath.getParent()) && currentAttributeMap != null) {
+                    fileObject.setAttributes(currentAttributeMap);
+                } else if (vectorAttributes.containsKey(realPath)) {
+                    fileObject.setAttributes(vectorAttributes.get(realPath));
                 }
-                return FileVisitResult.CONTINUE;
             }
+            fileObjects.add(fileObject);
+        }
+        return fileObjects;
+    }
 
-            @Override
-            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
-                logger.warning(exc.getMessage());
-                return FileVisitResult.CONTINUE;
+    /**
+     * Returns the index of the first entry (of a sorted listing) that comes after the given path.
+     */
+    private static int firstAfter(List<DirectoryListingCache.Entry> entries, Path path) {
+        int low = 0, high = entries.size();
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (entries.get(middle).path.compareTo(path) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
             }
-        });
-        results.sort(Comparator.naturalOrder());
-        return results;
+        }
+        return low;
+    }
+
+    private static int pageSize() {
+        return Integer.parseInt(ConfigurationManager.getInstance().getValue("workspace.listing.page.size", "0"));
+    }
+
+    private void invalidateListings(String source, String destination) {
+        if (source == null) {
+            return;
+        }
+        final Repository repository = repository();
+        final DirectoryListingCache listings = DirectoryListingCache.getInstance();
+        // the parent holds the source entry (or the renamed one)
+        listings.invalidate(Paths.get(repository.resolve(source)).getParent());
+        if (destination != null) {
+            listings.invalidate(Paths.get(repository.resolve(destination)));
+        }
     }
 
     private void deleteFolder(Path folder) throws IOException {
@@ -0,0 +1,77 @@
+package ro.cs.tao.services.entity.impl;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Set of paths, organized by their name elements, that tells if a path is one of them or is below one of them.
+ * The check costs one lookup per name element of the tested path, whatever the number of paths in the set.
+ */
+final class PathPrefixTree {
+    private final Node root = new Node();
+    private boolean empty = true;
+
+    PathPrefixTree(Collection<Path> paths) {
+        if (paths != null) {
+            paths.forEach(this::add);
+        }
+    }
+
+    void add(Path path) {
+        Node node = this.root.child(rootKey(path), true);
+        for (Path name : path) {
+            node = node.child(name.toString(), true);
+        }
+        node.terminal = true;
+        this.empty = false;
+    }
+
+    boolean isEmpty() {
+        return this.empty;
+    }
+
+    /**
+     * Checks if the given path is one of the paths of the tree, or is below one of them.
+     */
+    boolean covers(Path path) {
+        if (this.empty) {
+            return false;
+        }
+        Node node = this.root.child(rootKey(path), false);
+        if (node == null) {
+            return false;
+        }
+        for (Path name : path) {
+            if (node.terminal) {
+                return true;
+            }
+            node = node.child(name.toString(), false);
+            if (node == null) {
+                return false;
+            }
+        }
+        return node.terminal;
+    }
+
+    private static String rootKey(Path path) {
+        final Path root = path.getRoot();
+        return root != null ? root.toString() : "";
+    }
+
+    private static final class Node {
+        private Map<String, Node> children;
+        private boolean terminal;
+
+        private Node child(String name, boolean create) {
+            if (this.children == null) {
+                if (!create) {
+                    return null;
+                }
+                this.children = new HashMap<>();
+            }
+            return create ? this.children.computeIfAbsent(name, n -> new Node()) : this.children.get(name);
+        }
+    }
+}
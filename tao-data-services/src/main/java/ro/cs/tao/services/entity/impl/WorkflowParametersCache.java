@@ -0,0 +1,189 @@
+package ro.cs.tao.services.entity.impl;
+
+import ro.cs.tao.configuration.ConfigurationManager;
+import ro.cs.tao.datasource.beans.Parameter;
+import ro.cs.tao.persistence.PersistenceException;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the parameter descriptors of the workflows, i.e. the part of the workflow parameters that does not depend
+ * on the user (the parameters of the node components, with their default and custom values). The products of a product
+ * set are not cached, since a product set is changed independently of the workflows using it.
+ * A workflow entry is dropped when it expires, or when the workflow (or one of its nodes) is changed
+ * (see {@link #invalidate(long)}). Each invalidated workflow has a version, incremented at each invalidation, and the
+ * cache has an epoch, incremented when all the entries (or the versions) are dropped, so that descriptors computed while
+ * the workflow was changing are not cached. The versions are kept only for as many workflows as there can be entries.
+ */
+final class WorkflowParametersCache {
+    private final Map<Long, Descriptors> entries;
+    private final Map<Long, Long> versions;
+    private final AtomicLong epoch;
+    private final long ttlMillis;
+    private final int maxEntries;
+
+    /**
+     * Computes the parameter descriptors of a workflow.
+     */
+    interface Loader {
+        List<NodeParameters> load() throws PersistenceException;
+    }
+
+    WorkflowParametersCache() {
+        this(Long.parseLong(ConfigurationManager.getInstance().getValue("workflow.parameters.cache.seconds", "300")) * 1000,
+             Integer.parseInt(ConfigurationManager.getInstance().getValue("workflow.parameters.cache.size", "256")));
+    }
+
+    WorkflowParametersCache(long ttlMillis, int maxEntries) {
+        this.entries = new ConcurrentHashMap<>();
+        this.versions = new ConcurrentHashMap<>();
+        this.epoch = new AtomicLong();
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the parameter descriptors of a workflow, computing them if they are not cached.
+     */
+    List<NodeParameters> get(long workflowId, Loader loader) throws PersistenceException {
+        final long now = System.currentTimeMillis();
+        final Descriptors cached = this.entries.get(workflowId);
+        if (cached != null && cached.expires > now) {
+            return cached.nodes;
+        }
+        if (this.versions.size() > this.maxEntries) {
+            // before reading the epoch, so that this load is not discarded by its own pruning
+            pruneVersions();
+        }
+        final long startEpoch = this.epoch.get();
+        final Long version = this.versions.get(workflowId);
+        final List<NodeParameters> nodes = Collections.unmodifiableList(loader.load());
+        if (this.ttlMillis > 0 && isCurrent(workflowId, startEpoch, version)) {
+            if (this.entries.size() >= this.maxEntries) {
+                this.entries.values().removeIf(d -> d.expires <= now);
+                if (this.entries.size() >= this.maxEntries) {
+                    this.entries.clear();
+                }
+            }
+            final Descriptors descriptors = new Descriptors(nodes, now + this.ttlMillis);
+            this.entries.put(workflowId, descriptors);
+            // an invalidation may have happened between the check and the insertion
+            if (!isCurrent(workflowId, startEpoch, version)) {
+                this.entries.remove(workflowId, descriptors);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Drops the parameter descriptors of a workflow.
+     */
+    void invalidate(long workflowId) {
+        this.versions.merge(workflowId, 1L, Long::sum);
+        this.entries.remove(workflowId);
+    }
+
+    /**
+     * Drops the parameter descriptors of all the workflows (used when the changed workflow is not known).
+     */
+    void invalidateAll() {
+        // the epoch also covers the workflows being loaded, which have no entry yet
+        this.epoch.incrementAndGet();
+        this.entries.clear();
+        this.versions.clear();
+    }
+
+    private boolean isCurrent(long workflowId, long startEpoch, Long version) {
+        return this.epoch.get() == startEpoch && Objects.equals(version, this.versions.get(workflowId));
+    }
+
+    /**
+     * Drops the versions of the workflows that are not cached. The epoch is incremented first, since a load in progress
+     * would not notice that the version it read was dropped.
+     */
+    private void pruneVersions() {
+        this.epoch.incrementAndGet();
+        this.versions.keySet().retainAll(this.entries.keySet());
+    }
+
+    /**
+     * The parameter descriptors of a workflow node.
+     */
+    static final class NodeParameters {
+        final long nodeId;
+        final String key;
+        final List<ParameterTemplate> parameters;
+        // for the data source nodes whose query of the user supplies values, the sensor and the data source names
+        final String sensorName;
+        final String dataSourceName;
+        // for the product set nodes, the identifier of the product set component, whose products are read on each request
+        final String productSetId;
+        final Map<String, String> customValues;
+
+        NodeParameters(long nodeId, String key, List<ParameterTemplate> parameters,
+                       String sensorName, String dataSourceName, String productSetId, Map<String, String> customValues) {
+            this.nodeId = nodeId;
+            this.key = key;
+            this.parameters = Collections.unmodifiableList(parameters);
+            this.sensorName = sensorName;
+            this.dataSourceName = dataSourceName;
+            this.productSetId = productSetId;
+            this.customValues = Collections.unmodifiableMap(customValues);
+        }
+
+        boolean hasUserQuery() {
+            return this.dataSourceName != null;
+        }
+
+        boolean isProductSet() {
+            return this.productSetId != null;
+        }
+    }
+
+    /**
+     * Immutable definition of a parameter, from which a new (mutable) parameter is created for each request.
+     */
+    static final class ParameterTemplate {
+        private final String name;
+        private final String type;
+        private final String value;
+        private final String[] valueSet;
+        // null for the parameters that are created without value set and required flag
+        private final Boolean required;
+
+        ParameterTemplate(String name, String type, String value, String[] valueSet, boolean required) {
+            this.name = name;
+            this.type = type;
+            this.value = value;
+            this.valueSet = valueSet != null ? valueSet.clone() : null;
+            this.required = required;
+        }
+
+        ParameterTemplate(String name, String type, String value) {
+            this.name = name;
+            this.type = type;
+            this.value = value;
+            this.valueSet = null;
+            this.required = null;
+        }
+
+        Parameter create() {
+            return this.required != null
+                   ? new Parameter(this.name, this.type, this.value,
+                                   this.valueSet != null ? this.valueSet.clone() : null, this.required)
+                   : new Parameter(this.name, this.type, this.value);
+        }
+    }
+
+    private static final class Descriptors {
+        private final List<NodeParameters> nodes;
+        private final long expires;
+
+        private Descriptors(List<NodeParameters> nodes, long expires) {
+            this.nodes = nodes;
+            this.expires = expires;
+        }
+    }
+}
@@ -49,11 +49,15 @@ import ro.cs.tao.execution.util.TaskUtilities;
 import ro.cs.tao.persistence.*;
 import ro.cs.tao.persistence.repository.SourceDescriptorRepository;
 import ro.cs.tao.persistence.repository.TargetDescriptorRepository;
+import ro.cs.tao.messaging.Message;
+import ro.cs.tao.messaging.Messaging;
 import ro.cs.tao.security.SessionStore;
+import ro.cs.tao.security.SystemPrincipal;
 import ro.cs.tao.serialization.BaseSerializer;
 import ro.cs.tao.serialization.MediaType;
 import ro.cs.tao.serialization.SerializationException;
 import ro.cs.tao.serialization.SerializerFactory;
+import ro.cs.tao.services.commons.WorkflowEvents;
 import ro.cs.tao.services.commons.dev.MockData;
 import ro.cs.tao.services.entity.util.ServiceTransformUtils;
 import ro.cs.tao.services.interfaces.ComponentService;
@@ -122,6 +126,8 @@ public class WorkflowServiceImpl
     @Autowired
     private WorkflowSubscriptionProvider workflowSubscriptionProvider;
 
+    private final WorkflowParametersCache parametersCache = new WorkflowParametersCache();
+
     private Logger logger = Logger.getLogger(WorkflowService.class.getName());
     //region Workflow
     @Override
@@ -289,7 +295,9 @@ public class WorkflowServiceImpl
         existing.setActive(object.isActive());
         existing.setDescription(object.getDescription());
         //addTagsIfNew(object);
-        return workflowProvider.update(existing);
+        final WorkflowDescriptor updated = workflowProvider.update(existing);
+        workflowChanged(existing.getId());
+        return updated;
     }
 
     @Override
@@ -361,7 +369,9 @@ public class WorkflowServiceImpl
             throw new PersistenceException(String.format("Node contains errors: [%s]",
                                                          String.join(",", validationErrors)));
         }
-        return workflowNodeProvider.save(nodeDescriptor, workflow);
+        final WorkflowNodeDescriptor saved = workflowNodeProvider.save(nodeDescriptor, workflow);
+        parametersCache.invalidate(workflowId);
+        return saved;
     }
 
     @Override
@@ -385,7 +395,9 @@ public class WorkflowServiceImpl
             throw new PersistenceException(String.format("Node contains errors: [%s]",
                                                          String.join(",", validationErrors)));
         }
-        return workflowNodeProvider.update(nodeDescriptor);
+        final WorkflowNodeDescriptor updated = workflowNodeProvider.update(nodeDescriptor);
+        parametersCache.invalidate(workflowId);
+        return updated;
     }
 
     @Override
@@ -481,6 +493,7 @@ public class WorkflowServiceImpl
 
         workflow.removeNode(nodeDescriptor);
         workflowProvider.update(workflow);
+        parametersCache.invalidate(workflowId);
     }
     //endregion
     //region Links
@@ -517,10 +530,14 @@ public class WorkflowServiceImpl
         WorkflowNodeGroupDescriptor targetGroupNode = workflowNodeProvider.getGroupNode(targetNodeId);
         if (sourceGroupNode != null && targetGroupNode == null) {
             // link from a node inside a group to a node outside the group
-            return addLinkToOutsideNode(targetNodeId, linkInput, linkOutput, sourceGroupNode, sourceNode);
+            final WorkflowNodeDescriptor updated = addLinkToOutsideNode(targetNodeId, linkInput, linkOutput, sourceGroupNode, sourceNode);
+            invalidateParameters(targetNode);
+            return updated;
         } else if (sourceGroupNode == null && targetGroupNode != null) {
             // link to a node inside a group from a node outside the group
-            return addLinkFromOutsideNode(sourceNodeId, linkInput, linkOutput, targetGroupNode, targetNode);
+            final WorkflowNodeDescriptor updated = addLinkFromOutsideNode(sourceNodeId, linkInput, linkOutput, targetGroupNode, targetNode);
+            invalidateParameters(targetNode);
+            return updated;
         } else {
             try {
                 ComponentLink link = new ComponentLink(sourceNodeId, linkInput, linkOutput);
@@ -559,7 +576,9 @@ public class WorkflowServiceImpl
             throw new PersistenceException("Parent node does not exist");
         }
         node.getIncomingLinks().removeIf(l -> l.equals(link));
-        return workflowNodeProvider.update(node);
+        final WorkflowNodeDescriptor updated = workflowNodeProvider.update(node);
+        invalidateParameters(node);
+        return updated;
     }
     //endregion
     //region Groups
@@ -590,7 +609,7 @@ public class WorkflowServiceImpl
         if (nodes == null || nodes.size() == 0) {
             throw new PersistenceException("Empty node group");
         }
-        return TransactionalMethod.withExceptionType(PersistenceException.class).execute(() -> {
+        final WorkflowNodeDescriptor group = TransactionalMethod.withExceptionType(PersistenceException.class).execute(() -> {
             // Step 1: determine nodes that don't have incoming links or have links only from nodes outside the node list
             final List<WorkflowNodeDescriptor> firstLevelNodes = WorkflowUtilities.findFirstLevel(nodes);
             final List<SourceDescriptor> sources = new ArrayList<>();
@@ -649,11 +668,15 @@ public class WorkflowServiceImpl
             }
             return updated;
         });
+        parametersCache.invalidate(workflowId);
+        return group;
     }
 
     @Override
     public WorkflowNodeDescriptor updateGroup(WorkflowNodeGroupDescriptor groupDescriptor) throws PersistenceException {
-        return workflowNodeProvider.update(groupDescriptor);
+        final WorkflowNodeDescriptor updated = workflowNodeProvider.update(groupDescriptor);
+        invalidateParameters(groupDescriptor);
+        return updated;
     }
 
     @Override
@@ -742,6 +765,7 @@ public class WorkflowServiceImpl
             }
             return null;
         });
+        invalidateParameters(groupDescriptor);
     }
     //endregion
     //region Clone and import
@@ -765,6 +789,27 @@ public class WorkflowServiceImpl
             // key: old id, value: new node
             final Map<Long, WorkflowNodeDescriptor> cloneMap = new HashMap<>();
             final List<WorkflowNodeDescriptor> workflowNodeDescriptors = workflow.orderNodes(workflow.getNodes(), null);
+            // The link descriptors of all the nodes are read with one query per descriptor type
+            final Set<String> inputIds = new HashSet<>();
+            final Set<String> outputIds = new HashSet<>();
+            for (WorkflowNodeDescriptor node : workflowNodeDescriptors) {
+                final Set<ComponentLink> links = node.getIncomingLinks();
+                if (links != null) {
+                    for (ComponentLink link : links) {
+                        inputIds.add(link.getInput().getId());
+                        outputIds.add(link.getOutput().getId());
+                    }
+                }
+            }
+            final Map<String, TargetDescriptor> inputs = new HashMap<>();
+            final Map<String, SourceDescriptor> outputs = new HashMap<>();
+            if (!inputIds.isEmpty()) {
+                targetDescriptorRepository.findAllById(inputIds).forEach(d -> inputs.put(d.getId(), d));
+                sourceDescriptorRepository.findAllById(outputIds).forEach(d -> outputs.put(d.getId(), d));
+            }
+            // The nodes of the source workflow are already validated, hence they are saved without the checks of
+            // addNode. All the nodes are inserted with a single update of the cloned workflow (the nodes are cascaded),
+            // then the links, which need the identifiers of the cloned nodes, and the groups with a second one.
             for (WorkflowNodeDescriptor node : workflowNodeDescriptors) {
                 WorkflowNodeDescriptor clonedNode = node instanceof WorkflowNodeGroupDescriptor
                                                     ? new WorkflowNodeGroupDescriptor()
@@ -785,41 +830,46 @@ public class WorkflowServiceImpl
                 if (customValues != null) {
                     clonedNode.setCustomValues(new ArrayList<>(customValues));
                 }
-                clonedNode = addNode(clone.getId(), clonedNode);
-                cloneMap.put(node.getId(), clonedNode);
-                //clonedNode = persistenceManager.updateWorkflowNodeDescriptor(clonedNode);
+                clone.addNode(clonedNode);
             }
-            for (WorkflowNodeDescriptor node : workflowNodeDescriptors) {
-                if (node instanceof WorkflowNodeGroupDescriptor) {
-                    WorkflowNodeGroupDescriptor clonedNode = (WorkflowNodeGroupDescriptor) cloneMap.get(node.getId());
-                    ((WorkflowNodeGroupDescriptor) node).getOrderedNodes()
-                                                        .forEach(n -> clonedNode.addNode(cloneMap.get(n.getId())));
-                    workflowNodeProvider.update(clonedNode);
-                }
+            clone = workflowProvider.update(clone);
+            for (WorkflowNodeDescriptor clonedNode : clone.getNodes()) {
+                cloneMap.put(clonedNode.getCreatedFromNodeId(), clonedNode);
             }
             for (WorkflowNodeDescriptor node : workflowNodeDescriptors) {
+                final WorkflowNodeDescriptor clonedNode = cloneMap.get(node.getId());
+                if (clonedNode == null) {
+                    throw new PersistenceException(String.format("Cannot clone the node %s", node.getId()));
+                }
                 final Set<ComponentLink> links = node.getIncomingLinks();
-                if (links != null) {
-                    WorkflowNodeDescriptor clonedNode = cloneMap.get(node.getId());
-                    for (ComponentLink link : links) {
-                        WorkflowNodeDescriptor clonedSource = cloneMap.get(link.getSourceNodeId());
-                        TargetDescriptor input = targetDescriptorRepository.findById(link.getInput().getId()).get(); //WorkflowUtilities.findTarget(link.getInput().getId(), clonedSource);
-                        SourceDescriptor output = sourceDescriptorRepository.findById(link.getOutput().getId()).get(); //WorkflowUtilities.findSource(link.getOutput().getId(), clonedNode);
-                        ComponentLink clonedLink = new ComponentLink(clonedSource.getId(), input, output);
-                        Set<ComponentLink> clonedLinks = clonedNode.getIncomingLinks();
-                        if (clonedLinks == null) {
-                            clonedLinks = new HashSet<>();
-                        }
-                        clonedLinks.add(clonedLink);
-                        clonedNode.setIncomingLinks(clonedLinks);
-                    }
-                    clonedNode = workflowNodeProvider.update(clonedNode);
+                if (links != null && !links.isEmpty()) {
+                    clonedNode.setIncomingLinks(cloneLinks(links, cloneMap, inputs, outputs));
+                }
+                if (node instanceof WorkflowNodeGroupDescriptor) {
+                    ((WorkflowNodeGroupDescriptor) node).getOrderedNodes()
+                                                        .forEach(n -> ((WorkflowNodeGroupDescriptor) clonedNode).addNode(cloneMap.get(n.getId())));
                 }
             }
+            workflowProvider.update(clone);
             return workflowProvider.get(clone.getId());
         });
     }
 
+    private Set<ComponentLink> cloneLinks(Set<ComponentLink> links, Map<Long, WorkflowNodeDescriptor> cloneMap,
+                                          Map<String, TargetDescriptor> inputs, Map<String, SourceDescriptor> outputs) throws PersistenceException {
+        final Set<ComponentLink> clonedLinks = new HashSet<>();
+        for (ComponentLink link : links) {
+            final WorkflowNodeDescriptor clonedSource = cloneMap.get(link.getSourceNodeId());
+            final TargetDescriptor input = inputs.get(link.getInput().getId());
+            final SourceDescriptor output = outputs.get(link.getOutput().getId());
+            if (clonedSource == null || input == null || output == null) {
+                throw new PersistenceException(String.format("Cannot clone the link from node %s", link.getSourceNodeId()));
+            }
+            clonedLinks.add(new ComponentLink(clonedSource.getId(), input, output));
+        }
+        return clonedLinks;
+    }
+
     @Override
     public WorkflowDescriptor createTemporaryWorkflow(long fromWorkflowId, String name, Map<Long, String> linksToAdd) throws PersistenceException {
         WorkflowDescriptor clone = null;
@@ -830,16 +880,29 @@ public class WorkflowServiceImpl
             clone = clone(workflow, true);
             clone.setName(name);
             final Set<Long> ids = new HashSet<>();
+            // The cloned nodes are looked up in the cloned workflow, by the original node and by component
+            final Map<Long, WorkflowNodeDescriptor> clonedNodes = new HashMap<>();
+            final Map<String, WorkflowNodeDescriptor> componentNodes = new HashMap<>();
+            for (WorkflowNodeDescriptor clonedNode : clone.getNodes()) {
+                if (clonedNode.getCreatedFromNodeId() != null) {
+                    clonedNodes.put(clonedNode.getCreatedFromNodeId(), clonedNode);
+                }
+                if (clonedNode.getComponentId() != null) {
+                    componentNodes.putIfAbsent(clonedNode.getComponentId(), clonedNode);
+                }
+            }
             for (Map.Entry<Long, String> entry : linksToAdd.entrySet()) {
                 // For each input create a node
                 final DataSourceComponent sourceComponent = dataSourceComponentProvider.get(entry.getValue());
                 final String sourceTargetId = sourceComponent.getTargets().get(0).getId();
-                final WorkflowNodeDescriptor targetNode = workflowNodeProvider.findClonedNode(clone.getId(), entry.getKey());
+                WorkflowNodeDescriptor targetNode = clonedNodes.get(entry.getKey());
+                if (targetNode == null) {
+                    targetNode = workflowNodeProvider.findClonedNode(clone.getId(), entry.getKey());
+                }
                 final TaoComponent targetComponent = TaskUtilities.getComponentFor(targetNode);
                 final String targetSourceId = targetComponent.getSources().get(0).getId();
-                WorkflowNodeDescriptor node;
-                final List<WorkflowNodeDescriptor> descriptors = workflowNodeProvider.listByComponentId(clone.getId(), entry.getValue());
-                if (descriptors == null || descriptors.isEmpty()) {
+                WorkflowNodeDescriptor node = componentNodes.get(entry.getValue());
+                if (node == null) {
                     node = new WorkflowNodeDescriptor();
                     node.setWorkflow(clone);
                     node.setName(sourceComponent.getDataSourceName());
@@ -849,8 +912,7 @@ public class WorkflowServiceImpl
                     node.setCreated(LocalDateTime.now());
                     node.setLevel(0);
                     node = addNode(clone.getId(), node);
-                } else {
-                    node = descriptors.get(0);
+                    componentNodes.put(entry.getValue(), node);
                 }
                 // and add a link from this new node to the given target source
                 addLink(node.getId(), sourceTargetId, targetNode.getId(), targetSourceId);
@@ -900,6 +962,7 @@ public class WorkflowServiceImpl
                 }
             }
             workflowProvider.delete(workflow);
+            workflowChanged(workflowId);
         }
     }
 
@@ -1009,7 +1072,78 @@ public class WorkflowServiceImpl
 
     @Override
     public Map<String, List<Parameter>> getWorkflowParameters(long workflowId) throws PersistenceException {
-        Map<String, List<Parameter>> parameters = new LinkedHashMap<>();
+        final Map<String, List<Parameter>> parameters = new LinkedHashMap<>();
+        final List<WorkflowParametersCache.NodeParameters> nodes =
+                parametersCache.get(workflowId, () -> loadParameterDescriptors(workflowId));
+        String user = null;
+        for (WorkflowParametersCache.NodeParameters node : nodes) {
+            final List<Parameter> componentParams = new ArrayList<>(node.parameters.size() + 3);
+            for (WorkflowParametersCache.ParameterTemplate template : node.parameters) {
+                componentParams.add(template.create());
+            }
+            if (node.isProductSet()) {
+                final Parameter products = productSetParameter(node.productSetId);
+                if (products != null) {
+                    componentParams.add(products);
+                }
+            }
+            if (node.hasUserQuery()) {
+                // The query of the user is applied over the cached descriptors
+                if (user == null) {
+                    user = SessionStore.currentContext().getPrincipal().getName();
+                }
+                Query query = queryProvider.get(user, node.sensorName, node.dataSourceName, node.nodeId);
+                if (query != null) {
+                    final Map<String, String> values = query.getValues();
+                    for (Parameter cp : componentParams) {
+                        if (values.containsKey(cp.getName())) {
+                            cp.setValue(values.get(cp.getName()));
+                        }
+                    }
+                    componentParams.add(new Parameter("pageSize", JavaType.INT.friendlyName(), String.valueOf(query.getPageSize())));
+                    componentParams.add(new Parameter("pageNumber", JavaType.INT.friendlyName(), String.valueOf(query.getPageNumber())));
+                    componentParams.add(new Parameter("limit", JavaType.INT.friendlyName(), String.valueOf(query.getLimit())));
+                } else {
+                    componentParams.add(new Parameter("pageSize", JavaType.INT.friendlyName(), "25"));
+                    componentParams.add(new Parameter("pageNumber", JavaType.INT.friendlyName(), "1"));
+                    componentParams.add(new Parameter("limit", JavaType.INT.friendlyName(), "25"));
+                }
+            }
+            if (!node.customValues.isEmpty()) {
+                for (Parameter cp : componentParams) {
+                    if (node.customValues.containsKey(cp.getName())) {
+                        cp.setValue(node.customValues.get(cp.getName()));
+                    }
+                }
+            }
+            parameters.put(node.key, componentParams);
+        }
+        return parameters;
+    }
+
+    /**
+     * Returns the parameter holding the products of a product set, or null if the product set has no products.
+     */
+    private Parameter productSetParameter(String productSetId) {
+        final DataSourceComponent productSet = dataSourceComponentProvider.get(productSetId);
+        if (productSet == null) {
+            return null;
+        }
+        final SourceDescriptor querySource = productSet.getSources()
+                                                       .stream()
+                                                       .filter(s -> s.getName().equals(DataSourceComponent.QUERY_PARAMETER))
+                                                       .findFirst().orElse(null);
+        final DataDescriptor dataDescriptor = querySource != null ? querySource.getDataDescriptor() : null;
+        return dataDescriptor != null
+               ? new Parameter(DataSourceComponent.QUERY_PARAMETER, JavaType.STRING_ARRAY.friendlyName(), dataDescriptor.getLocation())
+               : null;
+    }
+
+    /**
+     * Computes the parameter descriptors of a workflow, i.e. its parameters without the values of the user queries.
+     */
+    private List<WorkflowParametersCache.NodeParameters> loadParameterDescriptors(long workflowId) throws PersistenceException {
+        final List<WorkflowParametersCache.NodeParameters> parameters = new ArrayList<>();
         WorkflowDescriptor workflow = workflowProvider.get(workflowId);
         if (workflow == null) {
             throw new IllegalArgumentException(String.format("Non-existent workflow with id '%s'", workflowId));
@@ -1023,7 +1157,10 @@ public class WorkflowServiceImpl
             }
             ComponentType componentType = node.getComponentType();
             TaoComponent component = WorkflowUtilities.findComponent(node);
-            List<Parameter> componentParams = new ArrayList<>();
+            List<WorkflowParametersCache.ParameterTemplate> componentParams = new ArrayList<>();
+            String sensorName = null;
+            String dataSourceName = null;
+            String productSetId = null;
             Class<?> paramType;
             switch (componentType) {
                 case DATASOURCE:
@@ -1041,7 +1178,7 @@ public class WorkflowServiceImpl
                             paramType = descriptor.getType();
                             final String paramName = entry.getKey();
                             if (!(CommonParameterNames.PRODUCT.equals(paramName) && querySource != null)) {
-                                componentParams.add(new Parameter(paramName,
+                                componentParams.add(new WorkflowParametersCache.ParameterTemplate(paramName,
                                                                   descriptor.typeFriendlyName(),
                                                                   descriptor.getDefaultValue() != null ? String.valueOf(descriptor.getDefaultValue()) : null,
                                                                   paramType != null && paramType.isEnum() ?
@@ -1054,7 +1191,7 @@ public class WorkflowServiceImpl
                                 String values = location != null ?
                                                 location.startsWith("[") ?
                                                 location : "[" + location + "]" : null;
-                                componentParams.add(new Parameter(paramName,
+                                componentParams.add(new WorkflowParametersCache.ParameterTemplate(paramName,
                                                                   descriptor.typeFriendlyName(),
                                                                   values,
                                                                   paramType != null && paramType.isEnum() ?
@@ -1066,33 +1203,12 @@ public class WorkflowServiceImpl
                         }
                     }
                     if (dataSourceComponent.getId().startsWith("product-set")) {
-                        final SourceDescriptor querySource = dataSourceComponent.getSources()
-                                                                                .stream()
-                                                                                .filter(s -> s.getName().equals(DataSourceComponent.QUERY_PARAMETER))
-                                                                                .findFirst().orElse(null);
-                        DataDescriptor dataDescriptor = querySource.getDataDescriptor();
-                        if (dataDescriptor != null) {
-                            componentParams.add(new Parameter(DataSourceComponent.QUERY_PARAMETER, JavaType.STRING_ARRAY.friendlyName(), dataDescriptor.getLocation()));
-                        }
+                        // The products of the set are read on each request
+                        productSetId = dataSourceComponent.getId();
                     } else {
-                        Query query = queryProvider.get(SessionStore.currentContext().getPrincipal().getName(),
-                                                        dataSourceComponent.getSensorName(),
-                                                        dataSourceComponent.getDataSourceName(),
-                                                        node.getId());
-                        if (query != null) {
-                            for (Map.Entry<String, String> e : query.getValues().entrySet()) {
-                                componentParams.stream()
-                                               .filter(cp -> cp.getName().equals(e.getKey()))
-                                               .forEach(cp -> cp.setValue(e.getValue()));
-                            }
-                            componentParams.add(new Parameter("pageSize", JavaType.INT.friendlyName(), String.valueOf(query.getPageSize())));
-                            componentParams.add(new Parameter("pageNumber", JavaType.INT.friendlyName(), String.valueOf(query.getPageNumber())));
-                            componentParams.add(new Parameter("limit", JavaType.INT.friendlyName(), String.valueOf(query.getLimit())));
-                        } else {
-                            componentParams.add(new Parameter("pageSize", JavaType.INT.friendlyName(), "25"));
-                            componentParams.add(new Parameter("pageNumber", JavaType.INT.friendlyName(), "1"));
-                            componentParams.add(new Parameter("limit", JavaType.INT.friendlyName(), "25"));
-                        }
+                        // The values of the user query are applied on each request
+                        sensorName = dataSourceComponent.getSensorName();
+                        dataSourceName = dataSourceComponent.getDataSourceName();
                     }
                     break;
                 case PROCESSING:
@@ -1100,7 +1216,7 @@ public class WorkflowServiceImpl
                     Set<ParameterDescriptor> descriptors = processingComponent.getParameterDescriptors();
                     for (ParameterDescriptor descriptor : descriptors) {
                         paramType = descriptor.getDataType();
-                        componentParams.add(new Parameter(descriptor.getName(),
+                        componentParams.add(new WorkflowParametersCache.ParameterTemplate(descriptor.getName(),
                                                           //paramType.getName(),
                                                           descriptor.typeFriendlyName(),
                                                           !"null".equals(descriptor.getDefaultValue()) ? descriptor.getDefaultValue() : null,
@@ -1111,7 +1227,7 @@ public class WorkflowServiceImpl
                         if(descriptor instanceof TemplateParameterDescriptor){
                             for(ParameterDescriptor param : ((TemplateParameterDescriptor) descriptor).getParameters()){
                                 Class<?> descriptorParamType = param.getDataType();
-                                componentParams.add(new Parameter(descriptor.getName() + "~" + param.getName(),
+                                componentParams.add(new WorkflowParametersCache.ParameterTemplate(descriptor.getName() + "~" + param.getName(),
                                         param.typeFriendlyName(),
                                         !"null".equals(param.getDefaultValue()) ? param.getDefaultValue() : null,
                                         descriptorParamType.isEnum() ?
@@ -1125,14 +1241,17 @@ public class WorkflowServiceImpl
                 case GROUP:
                     continue;
             }
-            List<ParameterValue> customValues = node.getCustomValues();
-            if (customValues != null) {
-                for (ParameterValue value : customValues) {
-                    componentParams.stream().filter(cp -> cp.getName().equals(value.getParameterName()))
-                            .forEach(cp -> cp.setValue(value.getParameterValue()));
+            final Map<String, String> customValues = new LinkedHashMap<>();
+            final List<ParameterValue> nodeValues = node.getCustomValues();
+            if (nodeValues != null) {
+                for (ParameterValue value : nodeValues) {
+                    customValues.put(value.getParameterName(), value.getParameterValue());
                 }
             }
-            parameters.put((prefixWithId ? node.getId() + ":" : "") + node.getName(), componentParams);
+            parameters.add(new WorkflowParametersCache.NodeParameters(node.getId(),
+                                                                      (prefixWithId ? node.getId() + ":" : "") + node.getName(),
+                                                                      componentParams, sensorName, dataSourceName,
+                                                                      productSetId, customValues));
         }
         return parameters;
     }
@@ -1464,4 +1583,33 @@ public class WorkflowServiceImpl
             }
         }
     }
+
+    /**
+     * Drops the cached parameters of the workflow of a node (of all the workflows, if the workflow is not known).
+     */
+    private void invalidateParameters(WorkflowNodeDescriptor node) {
+        final WorkflowDescriptor workflow = node != null ? node.getWorkflow() : null;
+        if (workflow != null && workflow.getId() != null) {
+            parametersCache.invalidate(workflow.getId());
+        } else {
+            parametersCache.invalidateAll();
+        }
+    }
+
+    /**
+     * Drops the cached parameters of a workflow that was updated or deleted, and notifies the services that keep
+     * workflow information (such as names).
+     */
+    private void workflowChanged(long workflowId) {
+        parametersCache.invalidate(workflowId);
+        try {
+            final Message message = new Message();
+            message.setTopic(WorkflowEvents.CHANGED_TOPIC);
+            message.setPersistent(false);
+            message.addItem(WorkflowEvents.ID_KEY, String.valueOf(workflowId));
+            Messaging.send(SystemPrincipal.instance(), WorkflowEvents.CHANGED_TOPIC, message, false);
+        } catch (Exception e) {
+            logger.warning(String.format("Cannot notify the change of workflow %d. Reason: %s", workflowId, e.getMessage()));
+        }
+    }
 }
@@ -0,0 +1,63 @@
+package ro.cs.tao.services.entity.impl;
+
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PathPrefixTreeTest {
+
+    @Test
+    public void emptyTreeCoversNothing() {
+        final PathPrefixTree tree = new PathPrefixTree(Collections.emptyList());
+        assertTrue(tree.isEmpty());
+        assertFalse(tree.covers(Paths.get("/data/user")));
+        assertTrue(new PathPrefixTree(null).isEmpty());
+    }
+
+    @Test
+    public void coversThePathsAndTheirDescendants() {
+        final PathPrefixTree tree = new PathPrefixTree(Arrays.asList(Paths.get("/data/user1/jobs"),
+                                                                     Paths.get("/data/user2")));
+        assertFalse(tree.isEmpty());
+        assertTrue(tree.covers(Paths.get("/data/user1/jobs")));
+        assertTrue(tree.covers(Paths.get("/data/user1/jobs/1/output.tif")));
+        assertTrue(tree.covers(Paths.get("/data/user2")));
+        assertTrue(tree.covers(Paths.get("/data/user2/files/a.zip")));
+    }
+
+    @Test
+    public void doesNotCoverAncestorsOrSiblings() {
+        final PathPrefixTree tree = new PathPrefixTree(Collections.singletonList(Paths.get("/data/user1/jobs")));
+        assertFalse(tree.covers(Paths.get("/data")));
+        assertFalse(tree.covers(Paths.get("/data/user1")));
+        assertFalse(tree.covers(Paths.get("/data/user1/files")));
+        assertFalse(tree.covers(Paths.get("/data/user10/jobs")));
+        // the elements are compared as a whole, not as string prefixes
+        assertFalse(tree.covers(Paths.get("/data/user1/jobs2")));
+    }
+
+    @Test
+    public void absoluteAndRelativePathsAreDistinct() {
+        final PathPrefixTree tree = new PathPrefixTree(Collections.singletonList(Paths.get("/data/user1")));
+        assertFalse(tree.covers(Paths.get("data/user1")));
+        tree.add(Paths.get("data"));
+        assertTrue(tree.covers(Paths.get("data/user1")));
+        assertFalse(tree.covers(Paths.get("/data")));
+    }
+
+    @Test
+    public void addedPathShorterThanExistingOnesCoversThem() {
+        final PathPrefixTree tree = new PathPrefixTree(Collections.singletonList(Paths.get("/data/user1/jobs/1")));
+        final Path other = Paths.get("/data/user1/jobs/2");
+        assertFalse(tree.covers(other));
+        tree.add(Paths.get("/data/user1"));
+        assertTrue(tree.covers(other));
+        assertTrue(tree.covers(Paths.get("/data/user1/jobs/1/out")));
+    }
+}
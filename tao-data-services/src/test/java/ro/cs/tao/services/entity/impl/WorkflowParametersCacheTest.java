@@ -0,0 +1,151 @@
+package ro.cs.tao.services.entity.impl;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class WorkflowParametersCacheTest {
+
+    @Test
+    public void descriptorsAreCachedUntilInvalidated() throws Exception {
+        final WorkflowParametersCache cache = new WorkflowParametersCache(60000, 16);
+        final CountingLoader loader = new CountingLoader(1);
+        final List<WorkflowParametersCache.NodeParameters> first = cache.get(1, loader);
+        assertSame(first, cache.get(1, loader));
+        assertEquals(1, loader.calls.get());
+        cache.invalidate(1);
+        assertNotSame(first, cache.get(1, loader));
+        assertEquals(2, loader.calls.get());
+        // the other workflows are not affected
+        cache.get(2, loader);
+        cache.invalidate(1);
+        cache.get(2, loader);
+        assertEquals(3, loader.calls.get());
+    }
+
+    @Test
+    public void nothingIsCachedWithoutTimeToLive() throws Exception {
+        final WorkflowParametersCache cache = new WorkflowParametersCache(0, 16);
+        final CountingLoader loader = new CountingLoader(1);
+        cache.get(1, loader);
+        cache.get(1, loader);
+        assertEquals(2, loader.calls.get());
+    }
+
+    @Test
+    public void loadInvalidatedWhileRunningIsNotCached() throws Exception {
+        final WorkflowParametersCache cache = new WorkflowParametersCache(60000, 16);
+        final CountingLoader loader = new CountingLoader(1);
+        // the workflow changes while its descriptors are computed
+        cache.get(1, () -> {
+            cache.invalidate(1);
+            return loader.load();
+        });
+        cache.get(1, loader);
+        assertEquals(2, loader.calls.get());
+    }
+
+    @Test
+    public void loadRunningDuringInvalidateAllIsNotCached() throws Exception {
+        final WorkflowParametersCache cache = new WorkflowParametersCache(60000, 16);
+        final CountingLoader loader = new CountingLoader(1);
+        // the workflow has no entry nor version yet, only the epoch tells that something changed
+        cache.get(1, () -> {
+            cache.invalidateAll();
+            return loader.load();
+        });
+        cache.get(1, loader);
+        assertEquals(2, loader.calls.get());
+    }
+
+    @Test
+    public void concurrentInvalidationDiscardsTheLoad() throws Exception {
+        final WorkflowParametersCache cache = new WorkflowParametersCache(60000, 16);
+        final CountingLoader loader = new CountingLoader(1);
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch invalidated = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<List<WorkflowParametersCache.NodeParameters>> stale = executor.submit(() -> cache.get(1, () -> {
+                loading.countDown();
+                try {
+                    invalidated.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return loader.load();
+            }));
+            loading.await(5, TimeUnit.SECONDS);
+            cache.invalidate(1);
+            invalidated.countDown();
+            final List<WorkflowParametersCache.NodeParameters> result = stale.get(5, TimeUnit.SECONDS);
+            // the caller still gets its result, but the next request loads the descriptors again
+            assertNotSame(result, cache.get(1, loader));
+            assertEquals(2, loader.calls.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void loadPruningTheVersionsIsCached() throws Exception {
+        final WorkflowParametersCache cache = new WorkflowParametersCache(60000, 2);
+        final CountingLoader loader = new CountingLoader(1);
+        // more invalidated workflows than entries, hence the next load prunes the versions
+        cache.invalidate(10);
+        cache.invalidate(11);
+        cache.invalidate(12);
+        final List<WorkflowParametersCache.NodeParameters> first = cache.get(1, loader);
+        assertSame(first, cache.get(1, loader));
+        assertEquals(1, loader.calls.get());
+    }
+
+    @Test
+    public void entriesAreBoundedAndExpire() throws Exception {
+        final WorkflowParametersCache cache = new WorkflowParametersCache(60000, 2);
+        final CountingLoader loader = new CountingLoader(1);
+        cache.get(1, loader);
+        cache.get(2, loader);
+        cache.get(3, loader);
+        cache.get(3, loader);
+        assertEquals(3, loader.calls.get());
+        final WorkflowParametersCache expiring = new WorkflowParametersCache(1, 16);
+        final CountingLoader other = new CountingLoader(1);
+        expiring.get(1, other);
+        Thread.sleep(5);
+        expiring.get(1, other);
+        assertEquals(2, other.calls.get());
+    }
+
+    private static final class CountingLoader implements WorkflowParametersCache.Loader {
+        private final AtomicInteger calls = new AtomicInteger();
+        private final int nodes;
+
+        private CountingLoader(int nodes) {
+            this.nodes = nodes;
+        }
+
+        @Override
+        public List<WorkflowParametersCache.NodeParameters> load() {
+            calls.incrementAndGet();
+            final List<WorkflowParametersCache.NodeParameters> list = new ArrayList<>();
+            for (int i = 0; i < this.nodes; i++) {
+                list.add(new WorkflowParametersCache.NodeParameters(i, "node" + i, Collections.emptyList(),
+                                                                    null, null, null, Collections.emptyMap()));
+            }
+            return list;
+        }
+    }
+}
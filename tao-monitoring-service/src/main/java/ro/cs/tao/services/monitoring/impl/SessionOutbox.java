@@ -0,0 +1,183 @@
+package ro.cs.tao.services.monitoring.impl;
+
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Bounded queue of the frames to be sent to a websocket session.
+ * The frames are sent on a shared pool of threads, by at most one thread at a time per session, so that the thread
+ * queueing a frame never waits for a (possibly slow) client.
+ * A frame that has a coalescing key (e.g. a progress report) supersedes the queued frame having the same key, if any:
+ * the queued frame is removed and the new one is appended, so that the frames keep their order relative to the frames
+ * without key (e.g. the end of a task).
+ * When the queue is full, the oldest frame having a coalescing key is dropped, or the oldest frame if there is none.
+ */
+final class SessionOutbox {
+    private static final Logger logger = Logger.getLogger(SessionOutbox.class.getName());
+    private final WebSocketSession session;
+    private final int capacity;
+    private final Executor sender;
+    private final Listener listener;
+    private final Deque<Frame> frames;
+    private final AtomicBoolean draining;
+    private volatile boolean closed;
+
+    /**
+     * Receives the events of an outbox (used for metrics and for removing the closed sessions).
+     */
+    interface Listener {
+        void dropped(SessionOutbox outbox);
+
+        void coalesced(SessionOutbox outbox);
+
+        void closed(SessionOutbox outbox);
+    }
+
+    SessionOutbox(WebSocketSession session, int capacity, Executor sender, Listener listener) {
+        this.session = session;
+        this.capacity = Math.max(1, capacity);
+        this.sender = sender;
+        this.listener = listener;
+        this.frames = new ArrayDeque<>();
+        this.draining = new AtomicBoolean(false);
+    }
+
+    WebSocketSession getSession() {
+        return session;
+    }
+
+    String getId() {
+        return session.getId();
+    }
+
+    String getUser() {
+        return session.getPrincipal() != null ? session.getPrincipal().getName() : null;
+    }
+
+    synchronized int size() {
+        return this.frames.size();
+    }
+
+    /**
+     * Queues a frame for sending.
+     *
+     * @param message       The frame
+     * @param coalesceKey   If not null, the key by which a queued frame is replaced by this one
+     */
+    void offer(TextMessage message, String coalesceKey) {
+        if (this.closed) {
+            return;
+        }
+        boolean coalesced = false;
+        boolean dropped = false;
+        synchronized (this) {
+            if (coalesceKey != null) {
+                final Iterator<Frame> iterator = this.frames.iterator();
+                while (iterator.hasNext()) {
+                    final Frame frame = iterator.next();
+                    if (coalesceKey.equals(frame.coalesceKey)) {
+                        iterator.remove();
+                        coalesced = true;
+                        break;
+                    }
+                }
+            }
+            if (!coalesced && this.frames.size() >= this.capacity) {
+                dropOldest();
+                dropped = true;
+            }
+            this.frames.addLast(new Frame(message, coalesceKey));
+        }
+        if (coalesced) {
+            this.listener.coalesced(this);
+        } else if (dropped) {
+            this.listener.dropped(this);
+        }
+        schedule();
+    }
+
+    void close() {
+        this.closed = true;
+        synchronized (this) {
+            this.frames.clear();
+        }
+    }
+
+    private void schedule() {
+        if (this.draining.compareAndSet(false, true)) {
+            try {
+                this.sender.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                this.draining.set(false);
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            Frame frame;
+            while (!this.closed && (frame = poll()) != null) {
+                if (!this.session.isOpen()) {
+                    logger.warning(() -> String.format("Session %s [principal: %s] is closed and will be removed",
+                                                       getId(), getUser()));
+                    closeAndNotify();
+                    return;
+                }
+                try {
+                    this.session.sendMessage(frame.message);
+                } catch (IOException | IllegalStateException e) {
+                    logger.warning(() -> String.format("Cannot send to session %s [principal: %s]: %s. The session will be removed",
+                                                       getId(), getUser(), e.getMessage()));
+                    closeAndNotify();
+                    return;
+                }
+            }
+        } finally {
+            this.draining.set(false);
+        }
+        // a frame may have been queued after the last poll, while the flag was still set
+        if (!this.closed && size() > 0) {
+            schedule();
+        }
+    }
+
+    // the frames without coalescing key (transitions) are dropped only when the queue holds nothing else
+    private void dropOldest() {
+        final Iterator<Frame> iterator = this.frames.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().coalesceKey != null) {
+                iterator.remove();
+                return;
+            }
+        }
+        this.frames.pollFirst();
+    }
+
+    private synchronized Frame poll() {
+        return this.frames.pollFirst();
+    }
+
+    private void closeAndNotify() {
+        close();
+        this.listener.closed(this);
+    }
+
+    private static final class Frame {
+        private final String coalesceKey;
+        private final TextMessage message;
+
+        private Frame(TextMessage message, String coalesceKey) {
+            this.message = message;
+            this.coalesceKey = coalesceKey;
+        }
+    }
+}
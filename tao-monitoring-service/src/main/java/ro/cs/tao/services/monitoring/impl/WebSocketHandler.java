@@ -1,15 +1,20 @@
 package ro.cs.tao.services.monitoring.impl;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
+import ro.cs.tao.configuration.ConfigurationManager;
 import ro.cs.tao.datasource.DataSourceTopic;
 import ro.cs.tao.messaging.Message;
 import ro.cs.tao.messaging.Notifiable;
 import ro.cs.tao.messaging.Topic;
+import ro.cs.tao.messaging.progress.*;
 import ro.cs.tao.persistence.UserProvider;
 import ro.cs.tao.quota.QuotaTopic;
 import ro.cs.tao.services.bridge.spring.SpringContextBridge;
@@ -17,49 +22,97 @@ import ro.cs.tao.services.interfaces.AdministrationService;
 import ro.cs.tao.services.monitoring.beans.MessageConverter;
 import ro.cs.tao.services.monitoring.beans.WSNotification;
 import ro.cs.tao.user.User;
+import ro.cs.tao.utils.executors.NamedThreadPoolExecutor;
 
 import javax.inject.Singleton;
 import java.io.IOException;
 import java.security.Principal;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
+/**
+ * Pushes the notifications to the websocket sessions subscribed to the user (or administrator) queues.
+ * A notification is serialized once, and then queued in the outbox of each recipient session
+ * (see {@link SessionOutbox}), so that a slow client delays only its own notifications.
+ * The progress value notifications are coalesced: a queued progress frame is superseded by a newer one for the same task
+ * (or, for the usage notifications, for the same user). The transition notifications (the start or the end of a task
+ * or of a sub-task) are never coalesced.
+ */
 @Singleton
 @Component
 public class WebSocketHandler extends TextWebSocketHandler {
-    private static final List<WebSocketSession> sessions;
-    private static final Set<String> admins;
+    /**
+     * Maximum number of frames queued for a session
+     */
+    private static final String QUEUE_SIZE_KEY = "websocket.session.queue.size";
+    /**
+     * Number of threads sending the frames to the sessions
+     */
+    private static final String SEND_THREADS_KEY = "websocket.send.threads";
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final Map<String, SessionOutbox> outboxes;
+    private static volatile Set<String> admins;
     private static final Timer adminRefreshTimer;
-    private static final Map<String, List<WebSocketSession>> subscriptions;
+    private static final Map<String, Set<SessionOutbox>> subscriptions;
     private static final LinkedHashMap<Integer, Message> handledMessages;
+    private static final Set<String> usageTopics;
+    private static final ExecutorService sender;
+    private static final SessionOutbox.Listener outboxListener;
+    private static final Counter droppedFrames;
+    private static final Counter coalescedFrames;
+    private static final int queueSize;
+    private static MessageReceiver receiver;
     private static AdministrationService administrationService;
     private static UserProvider userProvider;
 
-    private static final Object lock;
-
-    private final Logger logger = Logger.getLogger(WebSocketHandler.class.getName());
+    private static final Logger logger = Logger.getLogger(WebSocketHandler.class.getName());
 
     static {
-        lock = new Object();
-        sessions = Collections.synchronizedList(new ArrayList<>());
-        admins = new HashSet<>();
-        subscriptions = new HashMap<>();
+        final ConfigurationManager configuration = ConfigurationManager.getInstance();
+        queueSize = Integer.parseInt(configuration.getValue(QUEUE_SIZE_KEY, "256"));
+        sender = new NamedThreadPoolExecutor("websocket-send", Integer.parseInt(configuration.getValue(SEND_THREADS_KEY, "4")));
+        outboxes = new ConcurrentHashMap<>();
+        admins = Collections.emptySet();
+        subscriptions = new ConcurrentHashMap<>();
         handledMessages = new LinkedHashMap<>() {
             @Override
             protected boolean removeEldestEntry(Map.Entry<Integer, Message> eldest) {
                 return this.size() > 10;
             }
         };
-        adminRefreshTimer = new Timer();
+        usageTopics = Set.of(QuotaTopic.USER_STORAGE_USAGE.value(), QuotaTopic.USER_CPU_USAGE.value());
+        droppedFrames = Metrics.counter("websocket.frames.dropped");
+        coalescedFrames = Metrics.counter("websocket.frames.coalesced");
+        Gauge.builder("websocket.sessions", outboxes, Map::size).register(Metrics.globalRegistry);
+        Gauge.builder("websocket.frames.queued", outboxes,
+                      o -> o.values().stream().mapToInt(SessionOutbox::size).sum()).register(Metrics.globalRegistry);
+        outboxListener = new SessionOutbox.Listener() {
+            @Override
+            public void dropped(SessionOutbox outbox) {
+                droppedFrames.increment();
+            }
+
+            @Override
+            public void coalesced(SessionOutbox outbox) {
+                coalescedFrames.increment();
+            }
+
+            @Override
+            public void closed(SessionOutbox outbox) {
+                removeSession(outbox.getId());
+            }
+        };
+        adminRefreshTimer = new Timer("websocket-admins", true);
         adminRefreshTimer.schedule(new TimerTask() {
             @Override
             public void run() {
-                synchronized (lock) {
+                synchronized (handledMessages) {
                     handledMessages.clear();
-                    admins.clear();
-                    admins.addAll(getAdminService().getAdministrators().stream().map(User::getId).collect(Collectors.toSet()));
                 }
+                refreshAdmins();
             }
         }, 30000, 30000);
     }
@@ -78,18 +131,27 @@ public class WebSocketHandler extends TextWebSocketHandler {
         return userProvider;
     }
 
+    private static void refreshAdmins() {
+        admins = getAdminService().getAdministrators().stream().map(User::getId).collect(Collectors.toUnmodifiableSet());
+    }
+
     public WebSocketHandler() {
-        MessageReceiver receiver = new MessageReceiver(this);
+        // the handler is instantiated both as a bean and by the websocket configuration, but the state is shared
+        synchronized (WebSocketHandler.class) {
+            if (receiver == null) {
+                receiver = new MessageReceiver(this);
+            }
+        }
     }
 
     @Override
     public void afterConnectionEstablished(WebSocketSession session) throws Exception {
         final Principal principal = validateSession(session);
         super.afterConnectionEstablished(session);
-        if (sessions.isEmpty()) {
-            admins.addAll(getAdminService().getAdministrators().stream().map(User::getId).collect(Collectors.toSet()));
+        if (outboxes.isEmpty()) {
+            refreshAdmins();
         }
-        sessions.add(session);
+        outboxes.put(session.getId(), new SessionOutbox(session, queueSize, sender, outboxListener));
         logger.fine(() -> String.format("Websocket connection %s established for principal [%s]",
                                         session.getId(),
                                         principal.getName()));
@@ -98,10 +160,9 @@ public class WebSocketHandler extends TextWebSocketHandler {
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
         super.afterConnectionClosed(session, status);
+        removeSession(session.getId());
         final Principal principal = session.getPrincipal();
         if (principal != null) {
-            final String topic = "/queue/" + principal.getName();
-            removeSession(session.getId(), topic);
             logger.fine(() -> String.format("Websocket connection %s closed for principal [%s]",
                                             session.getId(),
                                             principal.getName()));
@@ -121,10 +182,14 @@ public class WebSocketHandler extends TextWebSocketHandler {
                     throw new Exception("Destination not set");
                 }
                 topic = destination.split(":")[1].trim();
-                if (!subscriptions.containsKey(topic)) {
-                    subscriptions.put(topic, new ArrayList<>());
+                final SessionOutbox outbox = outboxes.get(session.getId());
+                if (outbox != null) {
+                    subscriptions.compute(topic, (t, recipients) -> {
+                        final Set<SessionOutbox> set = recipients != null ? recipients : ConcurrentHashMap.newKeySet();
+                        set.add(outbox);
+                        return set;
+                    });
                 }
-                subscriptions.get(topic).add(session);
                 logger.fine(() -> String.format("Websocket subscription created [principal: %s, topic: %s]",
                                                 principal.getName(), topic));
                 break;
@@ -134,7 +199,7 @@ public class WebSocketHandler extends TextWebSocketHandler {
                     throw new Exception("Destination not set");
                 }
                 topic = destination.split(":")[1].trim();
-                removeSession(session.getId(), topic);
+                unsubscribe(session.getId(), topic);
                 logger.fine(() -> String.format("Websocket subscription removed [principal: %s, topic: %s]",
                                                 principal.getName(), topic));
                 break;
@@ -144,53 +209,35 @@ public class WebSocketHandler extends TextWebSocketHandler {
         }
     }
 
-    void send(WSNotification message) {
+    /**
+     * Queues a notification for the sessions of its user and of the administrators.
+     *
+     * @param message       The notification
+     * @param coalesceKey   If not null, the key by which a queued notification is superseded by this one
+     */
+    void send(WSNotification message, String coalesceKey) {
         if (subscriptions.isEmpty()) {
             return;
         }
-        String user = message.getUser();
+        final String user = message.getUser();
+        final TextMessage txtMsg;
         try {
-            String topic = "/queue/" + user;
-            String strMessage = new ObjectMapper().writeValueAsString(message);
-            final TextMessage txtMsg = new TextMessage(strMessage);
-            List<WebSocketSession> userSessions = subscriptions.get(topic);
-            if (userSessions != null) {
-                final Iterator<WebSocketSession> iterator = userSessions.iterator();
-                while (iterator.hasNext()) {
-                    WebSocketSession session = iterator.next();
-                    if (session.isOpen()) {
-                        session.sendMessage(txtMsg);
-                    } else {
-                        logger.warning(() -> String.format("Session %s [principal: %s] is closed and will be removed.",
-                                                           session.getId(), user));
-                        iterator.remove();
-                    }
-                }
-            }
-            if (!Topic.TRANSFER_PROGRESS.value().equals(message.getTopic())) {
-                synchronized (admins) {
-                    for (String u : admins) {
-                        topic = "/queue/" + u;
-                        if ((userSessions = subscriptions.get(topic)) != null && !user.equals(u)) {
-                            final Iterator<WebSocketSession> iterator = userSessions.iterator();
-                            while (iterator.hasNext()) {
-                                WebSocketSession session = iterator.next();
-                                if (session.isOpen()) {
-                                    session.sendMessage(txtMsg);
-                                } else {
-                                    logger.warning(() -> String.format("Admin session %s [principal: %s] is closed and will be removed",
-                                                                       session.getId(), session.getPrincipal() != null
-                                                                                        ? session.getPrincipal().getName()
-                                                                                        : "null"));
-                                    iterator.remove();
-                                }
-                            }
-                        }
-                    }
+            txtMsg = new TextMessage(mapper.writeValueAsString(message));
+        } catch (IOException e) {
+            logger.warning(String.format("Cannot serialize notification [topic: %s, user: %s]: %s",
+                                         message.getTopic(), user, e.getMessage()));
+            return;
+        }
+        Set<SessionOutbox> recipients = subscriptions.get("/queue/" + user);
+        if (recipients != null) {
+            recipients.forEach(o -> o.offer(txtMsg, coalesceKey));
+        }
+        if (!Topic.TRANSFER_PROGRESS.value().equals(message.getTopic())) {
+            for (String u : admins) {
+                if (!u.equals(user) && (recipients = subscriptions.get("/queue/" + u)) != null) {
+                    recipients.forEach(o -> o.offer(txtMsg, coalesceKey));
                 }
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
         }
     }
 
@@ -207,16 +254,20 @@ public class WebSocketHandler extends TextWebSocketHandler {
         return principal;
     }
 
-    private void removeSession(String sessionId, String topic) {
-        final List<WebSocketSession> userSessions = subscriptions.get(topic);
-        if (userSessions != null) {
-            userSessions.removeIf(s -> s.getId().equals(sessionId));
-            if (userSessions.isEmpty()) {
-                subscriptions.remove(topic);
-            }
+    private static void unsubscribe(String sessionId, String topic) {
+        subscriptions.computeIfPresent(topic, (t, recipients) -> {
+            recipients.removeIf(o -> o.getId().equals(sessionId));
+            return recipients.isEmpty() ? null : recipients;
+        });
+    }
+
+    private static void removeSession(String sessionId) {
+        final SessionOutbox outbox = outboxes.remove(sessionId);
+        if (outbox != null) {
+            outbox.close();
         }
-        if (userSessions == null || userSessions.isEmpty()) {
-            subscriptions.remove(topic);
+        for (String topic : subscriptions.keySet()) {
+            unsubscribe(sessionId, topic);
         }
     }
 
@@ -241,16 +292,37 @@ public class WebSocketHandler extends TextWebSocketHandler {
 
         @Override
         protected void onMessageReceived(Message message) {
-            synchronized (lock) {
-                final int hash = Objects.hash(message);
-                if (!handledMessages.containsKey(hash)) {
-                    handledMessages.put(hash, message);
-                    /*if (message.getMessage() != null) {
-                        message.setMessage(message.getMessage().replace("\"", "\\\""));
-                    }*/
-                    this.handler.send(converter.to(message));
+            final int hash = Objects.hash(message);
+            synchronized (handledMessages) {
+                if (handledMessages.containsKey(hash)) {
+                    return;
                 }
+                handledMessages.put(hash, message);
+            }
+            /*if (message.getMessage() != null) {
+                message.setMessage(message.getMessage().replace("\"", "\\\""));
+            }*/
+            // the frames are only queued here, the sending is done by the outboxes
+            this.handler.send(converter.to(message), coalesceKey(message));
+        }
+
+        /**
+         * Only the frames carrying a progress value can be superseded. The start and end frames are always delivered,
+         * since the clients rely on them for tracking the tasks.
+         */
+        private static String coalesceKey(Message message) {
+            if (message instanceof ActivityStart || message instanceof ActivityEnd ||
+                    message instanceof SubActivityStart || message instanceof SubActivityEnd) {
+                return null;
+            }
+            if (message instanceof ActivityProgress) {
+                final String taskName = ((ActivityProgress) message).getTaskName();
+                return taskName != null ? message.getTopic() + "|" + taskName : null;
+            }
+            if (usageTopics.contains(message.getTopic())) {
+                return message.getTopic() + "|" + message.getUserId();
             }
+            return null;
         }
     }
 }
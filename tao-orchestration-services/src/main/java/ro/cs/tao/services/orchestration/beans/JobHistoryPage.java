@@ -0,0 +1,38 @@
+package ro.cs.tao.services.orchestration.beans;
+
+import ro.cs.tao.execution.model.ExecutionJobSummary;
+
+import java.util.List;
+
+/**
+ * A page of the job history. The next page is requested by passing back the cursor of this page.
+ */
+public class JobHistoryPage {
+    private List<ExecutionJobSummary> jobs;
+    private String next;
+
+    public JobHistoryPage() {
+    }
+
+    public JobHistoryPage(List<ExecutionJobSummary> jobs, String next) {
+        this.jobs = jobs;
+        this.next = next;
+    }
+
+    public List<ExecutionJobSummary> getJobs() {
+        return jobs;
+    }
+    public void setJobs(List<ExecutionJobSummary> jobs) {
+        this.jobs = jobs;
+    }
+
+    /**
+     * The cursor of the next page, or null if this is the last page.
+     */
+    public String getNext() {
+        return next;
+    }
+    public void setNext(String next) {
+        this.next = next;
+    }
+}
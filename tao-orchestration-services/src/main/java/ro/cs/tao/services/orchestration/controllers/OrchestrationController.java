@@ -22,9 +22,11 @@ import org.locationtech.jts.geom.Envelope;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import ro.cs.tao.EnumUtils;
+import ro.cs.tao.SortDirection;
 import ro.cs.tao.datasource.param.CommonParameterNames;
 import ro.cs.tao.drmaa.Environment;
 import ro.cs.tao.execution.ExecutionException;
@@ -44,12 +46,13 @@ import ro.cs.tao.services.commons.BaseController;
 import ro.cs.tao.services.commons.ResponseStatus;
 import ro.cs.tao.services.commons.RoleRequired;
 import ro.cs.tao.services.commons.ServiceResponse;
-import ro.cs.tao.services.interfaces.OrchestratorService;
 import ro.cs.tao.services.orchestration.beans.TaskOutput;
 import ro.cs.tao.services.orchestration.beans.TaskSummary;
 import ro.cs.tao.services.orchestration.beans.WebServiceExecutionRequest;
+import ro.cs.tao.services.orchestration.impl.OrchestrationServiceImpl;
 import ro.cs.tao.utils.StringUtilities;
 
+import java.time.LocalDateTime;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -59,7 +62,7 @@ import java.util.stream.Collectors;
 public class OrchestrationController extends BaseController {
 
     @Autowired
-    private OrchestratorService orchestrationService;
+    private OrchestrationServiceImpl orchestrationService;
     @Autowired
     private ExecutionJobProvider executionJobManager;
     @Autowired
@@ -235,10 +238,16 @@ public class OrchestrationController extends BaseController {
     /**
      * Returns the running jobs of the current user.
      * If the user is in the admin group, returns all the running jobs.
+     * @param pageNumber    (optional) The page number (starting from 1)
+     * @param pageSize      (optional) Items per page
      */
     @RequestMapping(value = "/running/jobs", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<ServiceResponse<?>> getRunningJobs() {
-        List<ExecutionJobSummary> summaries = orchestrationService.getRunningJobs(isCurrentUserAdmin() ? null : currentUser());
+    public ResponseEntity<ServiceResponse<?>> getRunningJobs(@RequestParam(name = "pageNumber", required = false) Optional<Integer> pageNumber,
+                                                             @RequestParam(name = "pageSize", required = false) Optional<Integer> pageSize) {
+        final String userId = isCurrentUserAdmin() ? null : currentUser();
+        List<ExecutionJobSummary> summaries = pageNumber.isPresent() || pageSize.isPresent()
+                                              ? orchestrationService.getRunningJobs(userId, pageNumber.orElse(1), pageSize.orElse(20))
+                                              : orchestrationService.getRunningJobs(userId);
         if (summaries == null) {
             summaries = new ArrayList<>();
         }
@@ -365,11 +374,27 @@ public class OrchestrationController extends BaseController {
      * If the user is not specified:
      *  - for an administrator it returns the summaries of all finished jobs
      *  - for a user it returns the summaries of all his/her finished jobs
-     * @param userId  The user account identifier
+     * If paging parameters are given, only the requested page is returned.
+     * @param userId        The user account identifier
+     * @param pageNumber    (optional) The page number (starting from 1)
+     * @param pageSize      (optional) Items per page
+     * @param sortByField   (optional) The sort field (jobEnd, jobStart, jobName, jobStatus or id). By default, jobEnd.
+     * @param sortDirection (optional) The sort direction (ASC or DESC). By default, DESC.
      */
     @RequestMapping(value = {"/history","/history/{userId}"}, method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<ServiceResponse<?>> getJobsHistory(@PathVariable("userId") String userId) {
-        List<ExecutionJobSummary> summaries = orchestrationService.getCompletedJobs(userId != null ? userId : (isCurrentUserAdmin() ? null : currentUser()));
+    public ResponseEntity<ServiceResponse<?>> getJobsHistory(@PathVariable("userId") String userId,
+                                                             @RequestParam(name = "pageNumber", required = false) Optional<Integer> pageNumber,
+                                                             @RequestParam(name = "pageSize", required = false) Optional<Integer> pageSize,
+                                                             @RequestParam(name = "sortBy", required = false) Optional<String> sortByField,
+                                                             @RequestParam(name = "sortDirection", required = false) Optional<SortDirection> sortDirection) {
+        final String user = userId != null ? userId : (isCurrentUserAdmin() ? null : currentUser());
+        List<ExecutionJobSummary> summaries;
+        if (pageNumber.isPresent() || pageSize.isPresent() || sortByField.isPresent() || sortDirection.isPresent()) {
+            summaries = orchestrationService.getCompletedJobs(user, pageNumber.orElse(1), pageSize.orElse(Integer.MAX_VALUE),
+                                                              sortByField.orElse(null), sortDirection.orElse(SortDirection.DESC));
+        } else {
+            summaries = orchestrationService.getCompletedJobs(user);
+        }
         if (summaries == null) {
             summaries = new ArrayList<>();
         }
@@ -377,18 +402,65 @@ public class OrchestrationController extends BaseController {
     }
 
     /**
-     * Clears the job history for a user.
+     * Returns a page of the finished jobs of a user, optionally filtered and sorted (by default, the newest first).
+     * If the user is not specified:
+     *  - for an administrator it returns the finished jobs of all users
+     *  - for a user it returns his/her finished jobs
+     * @param userId        (optional) The user account identifier
+     * @param statuses      (optional) The job statuses
+     * @param workflowId    (optional) The workflow of the jobs
+     * @param from          (optional) The jobs that ended at or after this (ISO) date-time
+     * @param to            (optional) The jobs that ended before this (ISO) date-time
+     * @param sortByField   (optional) The sort field (jobEnd, jobStart, jobName, jobStatus or id). By default, jobEnd.
+     * @param sortDirection (optional) The sort direction (ASC or DESC). By default, DESC.
+     * @param after         (optional) The cursor returned with the previous page (requested with the same sort)
+     * @param pageSize      (optional) Items per page. By default, 50.
+     */
+    @RequestMapping(value = "/history/search", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<ServiceResponse<?>> searchJobsHistory(@RequestParam(name = "userId", required = false) String userId,
+                                                                @RequestParam(name = "status", required = false) Set<String> statuses,
+                                                                @RequestParam(name = "workflowId", required = false) Long workflowId,
+                                                                @RequestParam(name = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+                                                                @RequestParam(name = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+                                                                @RequestParam(name = "sortBy", required = false) String sortByField,
+                                                                @RequestParam(name = "sortDirection", required = false) SortDirection sortDirection,
+                                                                @RequestParam(name = "after", required = false) String after,
+                                                                @RequestParam(name = "pageSize", required = false) Optional<Integer> pageSize) {
+        if (userId != null && !currentUser().equals(userId) && !isCurrentUserAdmin()) {
+            return prepareResult(null, HttpStatus.UNAUTHORIZED);
+        }
+        try {
+            return prepareResult(orchestrationService.getJobHistory(userId != null ? userId : (isCurrentUserAdmin() ? null : currentUser()),
+                                                                    toStatuses(statuses), workflowId, from, to,
+                                                                    sortByField, sortDirection, after,
+                                                                    pageSize.orElse(50)));
+        } catch (Exception e) {
+            return handleException(e);
+        }
+    }
+
+    /**
+     * Clears the job history for a user, optionally only the jobs matching the given criteria.
      * If the user is not specified it clears the jobs of the current user
-     * @param userId  The user identifier
+     * @param userId        The user identifier
+     * @param statuses      (optional) The job statuses
+     * @param workflowId    (optional) The workflow of the jobs
+     * @param from          (optional) The jobs that ended at or after this (ISO) date-time
+     * @param to            (optional) The jobs that ended before this (ISO) date-time
      */
     @RequestMapping(value = {"/history", "/history/{userId}"}, method = RequestMethod.DELETE, produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<ServiceResponse<?>> clearJobsHistory(@PathVariable("userId") String userId) {
+    public ResponseEntity<ServiceResponse<?>> clearJobsHistory(@PathVariable("userId") String userId,
+                                                               @RequestParam(name = "status", required = false) Set<String> statuses,
+                                                               @RequestParam(name = "workflowId", required = false) Long workflowId,
+                                                               @RequestParam(name = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+                                                               @RequestParam(name = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to) {
         if (!currentUser().equals(userId) && !isCurrentUserAdmin()) {
             return prepareResult(null, HttpStatus.UNAUTHORIZED);
         }
         try {
-            orchestrationService.clearJobHistory(userId != null ? userId : currentUser());
-            return prepareResult("Job history deleted", ResponseStatus.SUCCEEDED);
+            final int count = orchestrationService.deleteJobHistory(userId != null ? userId : currentUser(),
+                                                                    toStatuses(statuses), workflowId, from, to);
+            return prepareResult(count + " jobs deleted from history", ResponseStatus.SUCCEEDED);
         } catch (Exception e) {
             return handleException(e);
         }
@@ -581,4 +653,19 @@ public class OrchestrationController extends BaseController {
             return handleException(e);
         }
     }
+
+    private static Set<ExecutionStatus> toStatuses(Set<String> values) {
+        if (values == null || values.isEmpty()) {
+            return null;
+        }
+        final Set<ExecutionStatus> statuses = EnumSet.noneOf(ExecutionStatus.class);
+        for (String value : values) {
+            final ExecutionStatus status = EnumUtils.getEnumConstantByName(ExecutionStatus.class, value);
+            if (status == null) {
+                throw new IllegalArgumentException("Invalid status: " + value);
+            }
+            statuses.add(status);
+        }
+        return statuses;
+    }
 }
@@ -0,0 +1,831 @@
+/*
+ * Copyright (C) 2018 CS ROMANIA
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package ro.cs.tao.services.orchestration.impl;
+
+import ro.cs.tao.SortDirection;
+import ro.cs.tao.execution.model.*;
+import ro.cs.tao.execution.persistence.ExecutionJobProvider;
+import ro.cs.tao.execution.persistence.ExecutionTaskProvider;
+import ro.cs.tao.messaging.Message;
+import ro.cs.tao.messaging.Messaging;
+import ro.cs.tao.messaging.Notifiable;
+import ro.cs.tao.messaging.Topic;
+import ro.cs.tao.services.orchestration.beans.JobHistoryPage;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory read model of the job summaries, so that the summaries are not rebuilt from the entities at each request.
+ * The jobs of a user (or of all the users) are loaded with a single query at the first request, and the task
+ * summaries of a job are loaded when first needed. Afterwards, a job is reloaded only when an execution message
+ * concerns one of its tasks or, for an active job, when its summary is older than the refresh interval. The jobs listed
+ * together are reloaded with a single query, and the task summaries of an active job are updated from its loaded tasks
+ * (they are reloaded only when the job ends or has new tasks).
+ * The jobs that are not known yet (e.g. created by another node) are loaded by their identifiers when messages concern
+ * them.
+ * The jobs of a user are completely reloaded from time to time, to recover from missed messages.
+ */
+final class JobSummaryStore extends Notifiable {
+    static final Set<ExecutionStatus> ACTIVE = Collections.unmodifiableSet(EnumSet.of(ExecutionStatus.RUNNING,
+                                                                                     ExecutionStatus.QUEUED_ACTIVE));
+    static final Set<ExecutionStatus> COMPLETED = Collections.unmodifiableSet(EnumSet.of(ExecutionStatus.SUSPENDED,
+                                                                                        ExecutionStatus.DONE,
+                                                                                        ExecutionStatus.FAILED,
+                                                                                        ExecutionStatus.CANCELLED));
+    private static final Set<ExecutionStatus> TRACKED;
+    // the history order: the newest first (by end time, then by identifier)
+    private static final Comparator<Entry> HISTORY_ORDER =
+            Comparator.comparing((Entry e) -> e.end, Comparator.nullsFirst(Comparator.naturalOrder()))
+                      .thenComparingLong(e -> e.jobId).reversed();
+    private static final Set<String> SORT_FIELDS = Set.of("jobEnd", "jobStart", "jobName", "jobStatus", "id");
+    private static final String ALL_USERS = "";
+    // above this number of unresolved tasks, the jobs are reloaded instead of resolved by identifier
+    private static final int MAX_UNRESOLVED = 1000;
+    // the maximum number of identifiers of a query loading jobs or tasks by identifier
+    private static final int BATCH_SIZE = 500;
+    private final ExecutionJobProvider jobProvider;
+    private final ExecutionTaskProvider taskProvider;
+    private final Function<Long, String> workflowNames;
+    private final long activeRefreshMillis;
+    private final long resyncMillis;
+    private final Map<Long, Entry> jobs;
+    private final Map<Long, Long> taskJobs;
+    private final Map<String, Scope> scopes;
+    private final Map<String, SortedView> views;
+    // incremented when a job is added, removed or changes its status
+    private final AtomicLong version;
+    // the jobs, and the tasks of unknown jobs, concerned by messages and not yet loaded
+    private final Set<Long> unknownJobs;
+    private final Set<Long> unknownTasks;
+
+    static {
+        TRACKED = EnumSet.copyOf(ACTIVE);
+        TRACKED.addAll(COMPLETED);
+    }
+
+    JobSummaryStore(ExecutionJobProvider jobProvider, ExecutionTaskProvider taskProvider,
+                    Function<Long, String> workflowNames, long activeRefreshMillis, long resyncMillis) {
+        super();
+        this.jobProvider = jobProvider;
+        this.taskProvider = taskProvider;
+        this.workflowNames = workflowNames;
+        this.activeRefreshMillis = activeRefreshMillis;
+        this.resyncMillis = resyncMillis;
+        this.jobs = new ConcurrentHashMap<>();
+        this.taskJobs = new ConcurrentHashMap<>();
+        this.scopes = new ConcurrentHashMap<>();
+        this.views = new ConcurrentHashMap<>();
+        this.version = new AtomicLong();
+        this.unknownJobs = ConcurrentHashMap.newKeySet();
+        this.unknownTasks = ConcurrentHashMap.newKeySet();
+        Messaging.subscribe(this, Topic.getCategoryPattern(Topic.EXECUTION));
+    }
+
+    /**
+     * Returns the active jobs of a user (or of all the users, if null), the running ones first, then the ones having
+     * more running tasks, then the newest ones.
+     */
+    List<ExecutionJobSummary> getActiveJobs(String userId) {
+        final List<ExecutionJobSummary> summaries = new ArrayList<>();
+        final List<Entry> entries = entries(userId, ACTIVE);
+        reload(entries);
+        for (Entry entry : entries) {
+            final ExecutionJobSummary summary = materialize(entry);
+            if (summary != null && ACTIVE.contains(summary.getJobStatus())) {
+                summaries.add(summary);
+            }
+        }
+        summaries.sort(((Comparator<ExecutionJobSummary>) (o1, o2) -> o2.getJobStatus().value().compareTo(o1.getJobStatus().value()))
+                               .thenComparing((o1, o2) -> Long.compare(runningTasks(o2), runningTasks(o1)))
+                               .thenComparing(ExecutionJobSummary::getJobStart, Comparator.nullsLast(Comparator.reverseOrder())));
+        return summaries;
+    }
+
+    /**
+     * Returns a page of the active jobs of a user (or of all the users, if null), the running ones first, then the
+     * newest ones. Only the task summaries of the jobs of the page are loaded, hence (unlike {@link #getActiveJobs(String)})
+     * the number of running tasks is not used for ordering.
+     *
+     * @param pageNumber    The page number (starting from 1)
+     * @param pageSize      The number of jobs per page
+     */
+    List<ExecutionJobSummary> getActiveJobs(String userId, int pageNumber, int pageSize) {
+        final List<Entry> entries = entries(userId, ACTIVE);
+        // a stale entry may have changed its status in the meantime, which is needed for filtering
+        reload(entries.stream().filter(e -> e.stale).collect(Collectors.toList()));
+        final List<Entry> sorted = entries.stream().filter(e -> ACTIVE.contains(e.status))
+                                          .sorted(Comparator.comparing((Entry e) -> e.status.value(), Comparator.reverseOrder())
+                                                            .thenComparing(e -> e.start, Comparator.nullsLast(Comparator.reverseOrder()))
+                                                            .thenComparing(Comparator.comparingLong((Entry e) -> e.jobId).reversed()))
+                                          .collect(Collectors.toList());
+        final int from = (int) Math.min((long) Math.max(0, pageNumber - 1) * Math.max(1, pageSize), sorted.size());
+        final int to = (int) Math.min((long) from + Math.max(1, pageSize), sorted.size());
+        final List<ExecutionJobSummary> summaries = new ArrayList<>(to - from);
+        final List<Entry> page = sorted.subList(from, to);
+        reload(page);
+        for (Entry entry : page) {
+            final ExecutionJobSummary summary = materialize(entry);
+            if (summary != null) {
+                summaries.add(summary);
+            }
+        }
+        return summaries;
+    }
+
+    /**
+     * Returns the completed jobs of a user (or of all the users, if null), the newest first.
+     */
+    List<ExecutionJobSummary> getCompletedJobs(String userId) {
+        return getCompletedJobs(userId, 1, Integer.MAX_VALUE, null, SortDirection.DESC);
+    }
+
+    /**
+     * Returns a page of the completed jobs of a user (or of all the users, if null).
+     * Only the task summaries of the jobs of the page are loaded.
+     *
+     * @param pageNumber    The page number (starting from 1)
+     * @param pageSize      The number of jobs per page
+     * @param sortBy        The sort field (one of "jobEnd", "jobStart", "jobName", "jobStatus", "id"), by default
+     *                      the end time
+     * @param direction     The sort direction
+     */
+    List<ExecutionJobSummary> getCompletedJobs(String userId, int pageNumber, int pageSize, String sortBy, SortDirection direction) {
+        final List<Entry> sorted = sorted(userId, sortBy, direction);
+        final int from = (int) Math.min((long) Math.max(0, pageNumber - 1) * Math.max(1, pageSize), sorted.size());
+        final int to = (int) Math.min((long) from + Math.max(1, pageSize), sorted.size());
+        final List<ExecutionJobSummary> summaries = new ArrayList<>(to - from);
+        for (Entry entry : sorted.subList(from, to)) {
+            final ExecutionJobSummary summary = materialize(entry);
+            if (summary != null) {
+                summaries.add(summary);
+            }
+        }
+        return summaries;
+    }
+
+    /**
+     * Returns the number of completed jobs of a user (or of all the users, if null).
+     */
+    int countCompletedJobs(String userId) {
+        return sorted(userId, null, SortDirection.DESC).size();
+    }
+
+    /**
+     * Returns the completed jobs of a user (or of all the users, if null) matching the filter, in the given order,
+     * starting after the cursor (if any).
+     * The position of the cursor is found by binary search, so the cost of a page does not depend on its position.
+     *
+     * @param filter    The filter of the jobs
+     * @param sortBy    The sort field (see {@link #getCompletedJobs(String, int, int, String, SortDirection)}), which
+     *                  must be the same for all the pages
+     * @param direction The sort direction, which must be the same for all the pages
+     * @param after     The cursor returned with the previous page, or null for the first page
+     * @param pageSize  The number of jobs per page
+     */
+    JobHistoryPage getHistory(String userId, HistoryFilter filter, String sortBy, SortDirection direction,
+                              String after, int pageSize) {
+        final String field = sortField(sortBy);
+        final List<Entry> sorted = sorted(userId, field, direction);
+        int index = after != null && !after.isEmpty()
+                    ? firstAfter(sorted, decodeCursor(after, field), order(field, direction))
+                    : 0;
+        final int size = Math.max(1, pageSize);
+        final List<ExecutionJobSummary> summaries = new ArrayList<>();
+        Entry last = null;
+        boolean more = false;
+        for (; index < sorted.size(); index++) {
+            final Entry entry = sorted.get(index);
+            if (filter.matches(entry)) {
+                if (summaries.size() == size) {
+                    more = true;
+                    break;
+                }
+                final ExecutionJobSummary summary = materialize(entry);
+                if (summary != null) {
+                    summaries.add(summary);
+                    last = entry;
+                }
+            }
+        }
+        return new JobHistoryPage(summaries, more && last != null ? encodeCursor(last, field) : null);
+    }
+
+    /**
+     * Returns the identifiers of the completed jobs of a user (or of all the users, if null) matching the filter.
+     */
+    List<Long> findHistory(String userId, HistoryFilter filter) {
+        return sorted(userId, null, SortDirection.DESC).stream().filter(filter::matches)
+                                                       .map(e -> e.jobId).collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the summary of a job, or null if the job does not exist.
+     */
+    ExecutionJobSummary getJob(long jobId) {
+        Entry entry = this.jobs.get(jobId);
+        if (entry == null) {
+            final ExecutionJob job = this.jobProvider.get(jobId);
+            if (job == null) {
+                return null;
+            }
+            entry = new Entry(job);
+            if (TRACKED.contains(job.getExecutionStatus())) {
+                final Entry existing = this.jobs.putIfAbsent(jobId, entry);
+                if (existing != null) {
+                    entry = existing;
+                } else {
+                    this.version.incrementAndGet();
+                }
+            }
+        }
+        return materialize(entry);
+    }
+
+    /**
+     * Returns, for each active job, its first active task.
+     */
+    List<ExecutionTaskSummary> getActiveTasks(String userId) {
+        final List<ExecutionTaskSummary> tasks = new ArrayList<>();
+        for (ExecutionJobSummary summary : getActiveJobs(userId)) {
+            final List<ExecutionTaskSummary> taskSummaries = summary.getTaskSummaries();
+            if (taskSummaries != null) {
+                taskSummaries.stream().filter(t -> ACTIVE.contains(t.getTaskStatus())).findFirst().ifPresent(tasks::add);
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * Signals that a job was created or changed.
+     */
+    void jobChanged(long jobId) {
+        final Entry entry = this.jobs.get(jobId);
+        if (entry != null) {
+            entry.stale = true;
+        } else {
+            this.unknownJobs.add(jobId);
+        }
+    }
+
+    void jobRemoved(long jobId) {
+        final Entry entry = this.jobs.remove(jobId);
+        if (entry != null) {
+            final List<ExecutionTaskSummary> tasks = entry.tasks;
+            if (tasks != null) {
+                tasks.forEach(t -> this.taskJobs.remove(t.getTaskId()));
+            }
+            this.version.incrementAndGet();
+        }
+    }
+
+    /**
+     * Forgets everything about a user (or about all the users, if null), e.g. after jobs were purged.
+     */
+    void reset(String userId) {
+        if (userId == null) {
+            this.scopes.clear();
+        } else {
+            this.scopes.remove(userId);
+            this.scopes.remove(ALL_USERS);
+        }
+        this.jobs.values().removeIf(e -> userId == null || userId.equals(e.userId));
+        this.version.incrementAndGet();
+    }
+
+    @Override
+    protected void onMessageReceived(Message message) {
+        // the source of an execution message is the task identifier
+        final String source = message.getItem(Message.SOURCE_KEY);
+        Long taskId = null;
+        Long jobId = null;
+        if (source != null) {
+            try {
+                taskId = Long.parseLong(source.trim());
+                jobId = this.taskJobs.get(taskId);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        if (jobId != null) {
+            jobChanged(jobId);
+        } else if (taskId != null) {
+            this.unknownTasks.add(taskId);
+        }
+    }
+
+    private static String sortField(String sortBy) {
+        return sortBy != null && SORT_FIELDS.contains(sortBy) ? sortBy : "jobEnd";
+    }
+
+    /**
+     * Returns the order of the history for a sort field. The ties are broken by identifier (the newest first).
+     */
+    static Comparator<Entry> order(String sortBy, SortDirection direction) {
+        final String field = sortField(sortBy);
+        if ("jobEnd".equals(field) && direction != SortDirection.ASC) {
+            return HISTORY_ORDER;
+        }
+        Comparator<Entry> comparator;
+        switch (field) {
+            case "jobStart":
+                comparator = Comparator.comparing(e -> e.start, Comparator.nullsFirst(Comparator.naturalOrder()));
+                break;
+            case "jobName":
+                comparator = Comparator.comparing(e -> e.name, Comparator.nullsFirst(Comparator.naturalOrder()));
+                break;
+            case "jobStatus":
+                comparator = Comparator.comparing(e -> e.status, Comparator.nullsFirst(Comparator.naturalOrder()));
+                break;
+            case "id":
+                comparator = Comparator.comparingLong(e -> e.jobId);
+                break;
+            default:
+                comparator = Comparator.comparing(e -> e.end, Comparator.nullsFirst(Comparator.naturalOrder()));
+                break;
+        }
+        if (direction != SortDirection.ASC) {
+            comparator = comparator.reversed();
+        }
+        return comparator.thenComparing(Comparator.comparingLong((Entry e) -> e.jobId).reversed());
+    }
+
+    /**
+     * Encodes the position of an entry in the history sorted by the given field: the value of the field
+     * (prefixed by '=', or empty if null) and the identifier of the job.
+     */
+    static String encodeCursor(Entry entry, String sortBy) {
+        final Object key;
+        switch (sortField(sortBy)) {
+            case "jobStart":
+                key = entry.start;
+                break;
+            case "jobName":
+                key = entry.name;
+                break;
+            case "jobStatus":
+                key = entry.status != null ? entry.status.name() : null;
+                break;
+            case "id":
+                key = null;
+                break;
+            default:
+                key = entry.end;
+                break;
+        }
+        return (key != null ? "=" + key : "") + "_" + entry.jobId;
+    }
+
+    static Entry decodeCursor(String cursor, String sortBy) {
+        final int idx = cursor.lastIndexOf('_');
+        try {
+            final Entry entry = new Entry(Long.parseLong(cursor.substring(idx + 1)));
+            if (idx > 0) {
+                if (cursor.charAt(0) != '=') {
+                    throw new IllegalArgumentException();
+                }
+                final String key = cursor.substring(1, idx);
+                switch (sortField(sortBy)) {
+                    case "jobStart":
+                        entry.start = LocalDateTime.parse(key);
+                        break;
+                    case "jobName":
+                        entry.name = key;
+                        break;
+                    case "jobStatus":
+                        entry.status = ExecutionStatus.valueOf(key);
+                        break;
+                    case "id":
+                        break;
+                    default:
+                        entry.end = LocalDateTime.parse(key);
+                        break;
+                }
+            }
+            return entry;
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+    }
+
+    /**
+     * Returns the index of the first entry (of the sorted history) that comes after the given one.
+     */
+    static int firstAfter(List<Entry> sorted, Entry cursor, Comparator<Entry> order) {
+        int low = 0;
+        int high = sorted.size();
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (order.compare(sorted.get(middle), cursor) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static long runningTasks(ExecutionJobSummary summary) {
+        final List<ExecutionTaskSummary> tasks = summary.getTaskSummaries();
+        return tasks != null ? tasks.stream().filter(t -> t.getTaskStatus() == ExecutionStatus.RUNNING).count() : 0;
+    }
+
+    /**
+     * Returns the jobs of a user having one of the given statuses, and the jobs whose status may have changed.
+     */
+    private List<Entry> entries(String userId, Set<ExecutionStatus> statuses) {
+        ensureLoaded(userId);
+        final List<Entry> entries = new ArrayList<>();
+        for (Entry entry : this.jobs.values()) {
+            if ((userId == null || userId.equals(entry.userId)) &&
+                    (statuses.contains(entry.status) || entry.stale)) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    private List<Entry> sorted(String userId, String sortBy, SortDirection direction) {
+        final List<Entry> entries = entries(userId, COMPLETED);
+        // a stale entry may have changed its status in the meantime, which is needed for filtering and sorting
+        reload(entries.stream().filter(e -> e.stale).collect(Collectors.toList()));
+        final String field = sortField(sortBy);
+        final String key = (userId != null ? userId : ALL_USERS) + "|" + field + "|" + direction;
+        final long current = this.version.get();
+        final SortedView view = this.views.get(key);
+        if (view != null && view.version == current) {
+            return view.entries;
+        }
+        final List<Entry> sorted = entries.stream().filter(e -> COMPLETED.contains(e.status))
+                                          .sorted(order(field, direction))
+                                          .collect(Collectors.toUnmodifiableList());
+        if (this.views.size() > 1000) {
+            this.views.clear();
+        }
+        this.views.put(key, new SortedView(current, sorted));
+        return sorted;
+    }
+
+    /**
+     * Loads the jobs of a user at the first request, then periodically, and loads the jobs concerned by messages
+     * that were not known yet.
+     */
+    private void ensureLoaded(String userId) {
+        final String key = userId != null ? userId : ALL_USERS;
+        final Scope scope = this.scopes.computeIfAbsent(key, k -> new Scope());
+        final long now = System.currentTimeMillis();
+        if (this.unknownTasks.size() > MAX_UNRESOLVED) {
+            this.unknownTasks.clear();
+            this.scopes.values().forEach(s -> s.loadedAt = 0);
+        }
+        if (scope.loadedAt > 0 && now - scope.loadedAt < this.resyncMillis) {
+            resolveUnknown();
+            return;
+        }
+        synchronized (scope) {
+            if (scope.loadedAt == 0 || now - scope.loadedAt >= this.resyncMillis) {
+                final List<ExecutionJob> list = this.jobProvider.list(userId, TRACKED);
+                final Set<Long> ids = new HashSet<>();
+                for (ExecutionJob job : list) {
+                    ids.add(job.getId());
+                    merge(job);
+                }
+                // the jobs no longer found were deleted
+                for (Entry entry : this.jobs.values()) {
+                    if ((userId == null || userId.equals(entry.userId)) && !ids.contains(entry.jobId)) {
+                        jobRemoved(entry.jobId);
+                    }
+                }
+                scope.loadedAt = now;
+            }
+        }
+        resolveUnknown();
+    }
+
+    /**
+     * Loads, by identifier, the jobs concerned by messages that were not known yet.
+     * A job may be new in any tracked status (e.g. a job of another node that already ended).
+     */
+    private void resolveUnknown() {
+        if (this.unknownTasks.isEmpty() && this.unknownJobs.isEmpty()) {
+            return;
+        }
+        final List<Long> taskIds = new ArrayList<>();
+        for (Iterator<Long> iterator = this.unknownTasks.iterator(); iterator.hasNext(); ) {
+            final Long taskId = iterator.next();
+            iterator.remove();
+            final Long known = this.taskJobs.get(taskId);
+            if (known != null) {
+                jobChanged(known);
+            } else {
+                taskIds.add(taskId);
+            }
+        }
+        final Set<Long> jobIds = new HashSet<>();
+        for (int i = 0; i < taskIds.size(); i += BATCH_SIZE) {
+            for (ExecutionTask task : this.taskProvider.list(taskIds.subList(i, Math.min(i + BATCH_SIZE, taskIds.size())))) {
+                if (task.getJob() != null) {
+                    jobIds.add(task.getJob().getId());
+                }
+            }
+        }
+        for (Iterator<Long> iterator = this.unknownJobs.iterator(); iterator.hasNext(); ) {
+            jobIds.add(iterator.next());
+            iterator.remove();
+        }
+        final List<Long> newJobIds = new ArrayList<>();
+        for (Long jobId : jobIds) {
+            final Entry entry = this.jobs.get(jobId);
+            if (entry != null) {
+                entry.stale = true;
+            } else {
+                newJobIds.add(jobId);
+            }
+        }
+        for (int i = 0; i < newJobIds.size(); i += BATCH_SIZE) {
+            for (ExecutionJob job : this.jobProvider.list(newJobIds.subList(i, Math.min(i + BATCH_SIZE, newJobIds.size())))) {
+                if (TRACKED.contains(job.getExecutionStatus())) {
+                    merge(job);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reloads, with one query per batch of jobs, the jobs of the given entries that changed or that are active and
+     * due for a refresh, so that the jobs listed together are not reloaded one by one.
+     * The task summaries of an active job are updated from the loaded tasks. The ones of a job that ended, or that has
+     * tasks not summarized yet, are left to be reloaded by {@link #materialize(Entry)}.
+     */
+    private void reload(List<Entry> entries) {
+        final long now = System.currentTimeMillis();
+        final Map<Long, Entry> due = new LinkedHashMap<>();
+        for (Entry entry : entries) {
+            if (entry.stale || (entry.tasks != null && !entry.tasksStale && ACTIVE.contains(entry.status) &&
+                    now - entry.loadedAt >= this.activeRefreshMillis)) {
+                due.put(entry.jobId, entry);
+            }
+        }
+        final List<Long> ids = new ArrayList<>(due.keySet());
+        for (int i = 0; i < ids.size(); i += BATCH_SIZE) {
+            final List<Long> batch = ids.subList(i, Math.min(i + BATCH_SIZE, ids.size()));
+            // cleared before reading, so that a concurrent change triggers another reload
+            batch.forEach(id -> due.get(id).stale = false);
+            final Set<Long> found = new HashSet<>();
+            for (ExecutionJob job : this.jobProvider.list(batch)) {
+                final Entry entry = due.get(job.getId());
+                if (entry == null) {
+                    continue;
+                }
+                found.add(entry.jobId);
+                synchronized (entry) {
+                    if (entry.update(job)) {
+                        this.version.incrementAndGet();
+                    }
+                    if (entry.tasks != null) {
+                        if (ACTIVE.contains(entry.status) && updateTasks(entry.tasks, job)) {
+                            entry.loadedAt = now;
+                            entry.summary = entry.toSummary();
+                        } else {
+                            entry.tasksStale = true;
+                        }
+                    }
+                }
+            }
+            for (Long id : batch) {
+                if (!found.contains(id)) {
+                    jobRemoved(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates the task summaries of an active job from its loaded tasks.
+     *
+     * @return false if the job has tasks that are not summarized yet
+     */
+    private static boolean updateTasks(List<ExecutionTaskSummary> summaries, ExecutionJob job) {
+        final List<ExecutionTask> tasks = job.getTasks() != null ? job.getTasks() : Collections.emptyList();
+        final Map<Long, ExecutionTaskSummary> byId = summaries.stream()
+                .collect(Collectors.toMap(ExecutionTaskSummary::getTaskId, t -> t, (t1, t2) -> t1));
+        for (ExecutionTask task : tasks) {
+            if (!byId.containsKey(task.getId())) {
+                return false;
+            }
+        }
+        for (ExecutionTask task : tasks) {
+            final ExecutionTaskSummary summary = byId.get(task.getId());
+            summary.setTaskStatus(task.getExecutionStatus());
+            summary.setHost(task.getExecutionNodeHostName());
+            summary.setTaskStart(task.getStartTime());
+            summary.setUsedCPU(task.getUsedCPU());
+            summary.setUsedRAM(task.getUsedRAM());
+            summary.setCommand(task.getCommand());
+        }
+        return true;
+    }
+
+    private void merge(ExecutionJob job) {
+        final Entry existing = this.jobs.get(job.getId());
+        if (existing == null) {
+            if (this.jobs.putIfAbsent(job.getId(), new Entry(job)) == null) {
+                this.version.incrementAndGet();
+            }
+        } else if (existing.status != job.getExecutionStatus() || !Objects.equals(existing.end, job.getEndTime())) {
+            existing.stale = true;
+        }
+    }
+
+    /**
+     * Returns the summary of a job, reloading the job and its tasks if needed.
+     */
+    private ExecutionJobSummary materialize(Entry entry) {
+        final long now = System.currentTimeMillis();
+        if (!entry.needsReload(now, this.activeRefreshMillis)) {
+            return entry.summary;
+        }
+        synchronized (entry) {
+            if (!entry.needsReload(now, this.activeRefreshMillis)) {
+                return entry.summary;
+            }
+            // the job of an entry whose tasks are stale was just reloaded by reload(List)
+            final boolean reloadJob = entry.stale ||
+                    (entry.tasks != null && !entry.tasksStale && ACTIVE.contains(entry.status));
+            if (reloadJob) {
+                // cleared before reading, so that a concurrent change triggers another reload
+                entry.stale = false;
+                final ExecutionJob job = this.jobProvider.get(entry.jobId);
+                if (job == null) {
+                    jobRemoved(entry.jobId);
+                    return null;
+                }
+                if (entry.update(job)) {
+                    this.version.incrementAndGet();
+                }
+            }
+            entry.tasksStale = false;
+            final List<ExecutionTaskSummary> tasks = this.taskProvider.getTasksStatus(entry.jobId);
+            final ExecutionJob job = entry.job;
+            if (job != null && ACTIVE.contains(entry.status)) {
+                // the details needed by the running tasks view, resolved once per reload
+                final Map<Long, ExecutionTask> jobTasks = job.getTasks() != null
+                        ? job.getTasks().stream().collect(Collectors.toMap(ExecutionTask::getId, t -> t, (t1, t2) -> t1))
+                        : Collections.emptyMap();
+                for (ExecutionTaskSummary summary : tasks) {
+                    final ExecutionTask task = jobTasks.get(summary.getTaskId());
+                    if (task != null) {
+                        summary.setUserId(job.getUserId());
+                        summary.setComponentType(task instanceof DataSourceExecutionTask ? "ds" : "exec");
+                        summary.setJobName(job.getName());
+                        summary.setUsedCPU(task.getUsedCPU());
+                        summary.setUsedRAM(task.getUsedRAM());
+                        summary.setCommand(task.getCommand());
+                    }
+                }
+            }
+            for (ExecutionTaskSummary summary : tasks) {
+                this.taskJobs.put(summary.getTaskId(), entry.jobId);
+            }
+            if (entry.workflowName == null && entry.workflowId != null) {
+                entry.workflowName = !tasks.isEmpty() ? tasks.get(0).getWorkflowName() : this.workflowNames.apply(entry.workflowId);
+            }
+            entry.tasks = tasks;
+            entry.loadedAt = now;
+            entry.summary = entry.toSummary();
+            if (!ACTIVE.contains(entry.status)) {
+                // a completed job does not change anymore
+                entry.job = null;
+            }
+            return entry.summary;
+        }
+    }
+
+    static final class Entry {
+        private final long jobId;
+        private volatile String userId;
+        private volatile String name;
+        private volatile Long workflowId;
+        private volatile String workflowName;
+        private volatile ExecutionStatus status;
+        private volatile LocalDateTime start;
+        private volatile LocalDateTime end;
+        // kept only while the job is active
+        private volatile ExecutionJob job;
+        private volatile List<ExecutionTaskSummary> tasks;
+        private volatile ExecutionJobSummary summary;
+        private volatile long loadedAt;
+        private volatile boolean stale;
+        // the job is up to date, but the task summaries need to be reloaded
+        private volatile boolean tasksStale;
+
+        Entry(ExecutionJob job) {
+            this.jobId = job.getId();
+            update(job);
+        }
+
+        // the position of a cursor in the history
+        private Entry(long jobId) {
+            this.jobId = jobId;
+        }
+
+        /**
+         * Updates the job attributes and returns true if the status or the end time changed.
+         */
+        private boolean update(ExecutionJob job) {
+            final boolean changed = this.status != job.getExecutionStatus() || !Objects.equals(this.end, job.getEndTime());
+            this.userId = job.getUserId();
+            this.name = job.getName();
+            if (!Objects.equals(this.workflowId, job.getWorkflowId())) {
+                this.workflowName = null;
+            }
+            this.workflowId = job.getWorkflowId();
+            this.status = job.getExecutionStatus();
+            this.start = job.getStartTime();
+            this.end = job.getEndTime();
+            this.job = ACTIVE.contains(this.status) ? job : null;
+            return changed;
+        }
+
+        private boolean needsReload(long now, long activeRefreshMillis) {
+            return this.summary == null || this.stale || this.tasksStale ||
+                    (ACTIVE.contains(this.status) && now - this.loadedAt >= activeRefreshMillis);
+        }
+
+        private ExecutionJobSummary toSummary() {
+            final ExecutionJobSummary summary = new ExecutionJobSummary();
+            summary.setId(this.jobId);
+            summary.setJobName(this.name);
+            summary.setUserId(this.userId);
+            if (this.workflowId != null) {
+                summary.setWorkflowName(this.workflowName);
+            }
+            summary.setJobStatus(this.status);
+            summary.setJobStart(this.start);
+            summary.setJobEnd(this.end);
+            summary.setTaskSummaries(this.tasks);
+            return summary;
+        }
+    }
+
+    /**
+     * Filter of the job history. The null criteria are ignored.
+     */
+    static final class HistoryFilter {
+        private final Set<ExecutionStatus> statuses;
+        private final Long workflowId;
+        private final LocalDateTime from;
+        private final LocalDateTime to;
+
+        /**
+         * @param statuses      The job statuses
+         * @param workflowId    The workflow of the jobs
+         * @param from          The lower bound (inclusive) of the end time of the jobs
+         * @param to            The upper bound (exclusive) of the end time of the jobs
+         */
+        HistoryFilter(Set<ExecutionStatus> statuses, Long workflowId, LocalDateTime from, LocalDateTime to) {
+            this.statuses = statuses != null && !statuses.isEmpty() ? EnumSet.copyOf(statuses) : null;
+            this.workflowId = workflowId;
+            this.from = from;
+            this.to = to;
+        }
+
+        private boolean matches(Entry entry) {
+            return (this.statuses == null || this.statuses.contains(entry.status)) &&
+                    (this.workflowId == null || this.workflowId.equals(entry.workflowId)) &&
+                    (this.from == null || (entry.end != null && !entry.end.isBefore(this.from))) &&
+                    (this.to == null || (entry.end != null && entry.end.isBefore(this.to)));
+        }
+    }
+
+    private static final class Scope {
+        private volatile long loadedAt;
+    }
+
+    private static final class SortedView {
+        private final long version;
+        private final List<Entry> entries;
+
+        private SortedView(long version, List<Entry> entries) {
+            this.version = version;
+            this.entries = entries;
+        }
+    }
+}
@@ -23,7 +23,10 @@ import org.springframework.security.concurrent.DelegatingSecurityContextRunnable
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
 import ro.cs.tao.EnumUtils;
+import ro.cs.tao.SortDirection;
 import ro.cs.tao.component.TargetDescriptor;
+import ro.cs.tao.configuration.ConfigurationManager;
+import ro.cs.tao.configuration.ConfigurationProvider;
 import ro.cs.tao.datasource.beans.Parameter;
 import ro.cs.tao.docker.ExecutionConfiguration;
 import ro.cs.tao.execution.ExecutionException;
@@ -35,11 +38,13 @@ import ro.cs.tao.orchestration.Orchestrator;
 import ro.cs.tao.orchestration.RunnableContextFactory;
 import ro.cs.tao.orchestration.RunnableDelegateProvider;
 import ro.cs.tao.persistence.PersistenceException;
+import ro.cs.tao.persistence.TransactionalMethod;
 import ro.cs.tao.persistence.UserProvider;
 import ro.cs.tao.security.SessionStore;
 import ro.cs.tao.services.commons.dev.MockData;
 import ro.cs.tao.services.interfaces.OrchestratorService;
 import ro.cs.tao.services.interfaces.WorkflowService;
+import ro.cs.tao.services.orchestration.beans.JobHistoryPage;
 import ro.cs.tao.spi.ServiceRegistryManager;
 import ro.cs.tao.user.User;
 import ro.cs.tao.user.UserStatus;
@@ -56,6 +61,10 @@ import java.util.stream.Collectors;
 
 @Service("orchestrationService")
 public class OrchestrationServiceImpl implements OrchestratorService {
+    private static final String ACTIVE_JOBS_REFRESH = "orchestration.jobs.active.refresh.seconds";
+    private static final String JOBS_RESYNC = "orchestration.jobs.resync.minutes";
+    private static final String HISTORY_DELETE_BATCH = "orchestration.history.delete.batch";
+    private static final String WORKFLOW_NAMES_CACHE = "orchestration.workflow.names.cache.size";
 
     @Autowired
     private ExecutionJobProvider jobProvider;
@@ -69,6 +78,10 @@ public class OrchestrationServiceImpl implements OrchestratorService {
     @Autowired
     private UserProvider userProvider;
 
+    private WorkflowNameResolver workflowNames;
+
+    private JobSummaryStore jobSummaries;
+
     @Override
     public long startWorkflow(ExecutionRequest request) throws ExecutionException {
         ExecutionRequest modified = request;
@@ -79,7 +92,7 @@ public class OrchestrationServiceImpl implements OrchestratorService {
             modified.setWorkflowId(id);
         }
         final ExecutionJob job = Orchestrator.getInstance().startWorkflow(SessionStore.currentContext(), modified);
-        return job != null ? job.getId() : -1;
+        return jobStarted(job);
     }
 
     @Override
@@ -110,51 +123,41 @@ public class OrchestrationServiceImpl implements OrchestratorService {
             modified.setWorkflowId(id);
         }
         JobType type = EnumUtils.getEnumConstantByName(JobType.class, request.getJobType());
-        return Orchestrator.getInstance().createJob(SessionStore.currentContext(),
-                                                    modified.getWorkflowId(), modified.getName(),
-                                                    modified.getParameters(), type);
+        final ExecutionJob job = Orchestrator.getInstance().createJob(SessionStore.currentContext(),
+                                                                      modified.getWorkflowId(), modified.getName(),
+                                                                      modified.getParameters(), type);
+        jobStarted(job);
+        return job;
     }
 
     @Override
     public void stopJob(long jobId) throws ExecutionException {
         Orchestrator.getInstance().stopJob(jobId);
+        jobSummaries.jobChanged(jobId);
     }
 
     @Override
     public void pauseJob(long jobId) throws ExecutionException {
         Orchestrator.getInstance().pauseJob(jobId);
+        jobSummaries.jobChanged(jobId);
     }
 
     @Override
     public void resumeJob(long jobId) throws ExecutionException {
         Orchestrator.getInstance().resumeJob(jobId);
+        jobSummaries.jobChanged(jobId);
     }
 
     @Override
     public int purgeJobs(String userId) throws ExecutionException {
-        return Orchestrator.getInstance().purgeJobs(userId);
+        final int count = Orchestrator.getInstance().purgeJobs(userId);
+        jobSummaries.reset(userId);
+        return count;
     }
 
     @Override
     public List<ExecutionTaskSummary> getRunningTasks(String userId) {
-        final List<ExecutionTaskSummary> summaries = new ArrayList<>();
-        final Set<ExecutionStatus> statuses = EnumSet.of(ExecutionStatus.RUNNING, ExecutionStatus.QUEUED_ACTIVE);
-        final List<ExecutionJob> jobs = jobProvider.list(userId, statuses);
-        for (ExecutionJob job : jobs) {
-            List<ExecutionTaskSummary> taskList = getTasksStatus(job.getId());
-            List<ExecutionTaskSummary> runningTasks = taskList.stream().filter(e -> statuses.contains(e.getTaskStatus())).findAny().stream().collect(Collectors.toList());
-            for (ExecutionTaskSummary summary: runningTasks) {
-                ExecutionTask task = job.getTasks().stream().filter(t -> t.getId() == summary.getTaskId()).findFirst().get();
-                summary.setUserId(job.getUserId());
-                summary.setComponentType(task instanceof DataSourceExecutionTask ? "ds" : "exec");
-                summary.setJobName(task.getJob().getName());
-                summary.setUsedCPU(task.getUsedCPU());
-                summary.setUsedRAM(task.getUsedRAM());
-                summary.setCommand(task.getCommand());
-            }
-            summaries.addAll(runningTasks);
-        }
-        return summaries;
+        return jobSummaries.getActiveTasks(userId);
     }
 
     @Override
@@ -165,90 +168,49 @@ public class OrchestrationServiceImpl implements OrchestratorService {
 
     @Override
     public List<ExecutionJobSummary> getRunningJobs(String userId) {
-        final List<ExecutionJobSummary> summaries = new ArrayList<>();
-        final Set<ExecutionStatus> statuses = new HashSet<>();
-        Collections.addAll(statuses, ExecutionStatus.RUNNING, ExecutionStatus.QUEUED_ACTIVE);
-        final List<ExecutionJob> jobs = jobProvider.list(userId, statuses);
-        List<ExecutionTaskSummary> tasksStatus;
-        for (ExecutionJob job : jobs) {
-            tasksStatus = getTasksStatus(job.getId());
-            ExecutionJobSummary summary = new ExecutionJobSummary();
-            summary.setId(job.getId());
-            summary.setJobName(job.getName());
-            summary.setUserId(job.getUserId());
-            if (job.getWorkflowId() != null) {
-                final String workflowName = !tasksStatus.isEmpty() ?
-                                            tasksStatus.get(0).getWorkflowName() :
-                                            workflowService.getFullDescriptor(job.getWorkflowId()).getName();
-                summary.setWorkflowName(workflowName);
-            }
-            summary.setJobStatus(job.getExecutionStatus());
-            summary.setJobStart(job.getStartTime());
-            summary.setJobEnd(job.getEndTime());
-            summary.setTaskSummaries(tasksStatus);
-            summaries.add(summary);
-        }
-        // Sort by status (running first, pending next) and start timestamp descending (the newest first)
-        summaries.sort(((Comparator<ExecutionJobSummary>) (o1, o2) -> o2.getJobStatus().value().compareTo(o1.getJobStatus().value()))
-                               .thenComparing((o1, o2) -> Long.compare(o2.getTaskSummaries().stream().filter(t -> t.getTaskStatus() == ExecutionStatus.RUNNING).count(),
-                                                                       o1.getTaskSummaries().stream().filter(t -> t.getTaskStatus() == ExecutionStatus.RUNNING).count()))
-                               .thenComparing((o1, o2) -> o2.getJobStart().compareTo(o1.getJobStart())));
-        return summaries;
+        // Sorted by status (running first, pending next) and start timestamp descending (the newest first)
+        return jobSummaries.getActiveJobs(userId);
     }
 
     @Override
     public ExecutionJobSummary getJobInfo(long jobId) {
-        final ExecutionJob job = jobProvider.get(jobId);
-        ExecutionJobSummary summary = null;
-        if (job != null) {
-            List<ExecutionTaskSummary> tasksStatus = getTasksStatus(jobId);
-            summary = new ExecutionJobSummary();
-            summary.setId(job.getId());
-            summary.setJobName(job.getName());
-            summary.setUserId(job.getUserId());
-            if (job.getWorkflowId() != null) {
-                final String workflowName = !tasksStatus.isEmpty() ?
-                                            tasksStatus.get(0).getWorkflowName() :
-                                            workflowService.getFullDescriptor(job.getWorkflowId()).getName();
-                summary.setWorkflowName(workflowName);
-            }
-            summary.setJobStatus(job.getExecutionStatus());
-            summary.setJobStart(job.getStartTime());
-            summary.setJobEnd(job.getEndTime());
-            summary.setTaskSummaries(tasksStatus);
-        }
-        return summary;
+        return jobSummaries.getJob(jobId);
     }
 
     @Override
     public List<ExecutionJobSummary> getCompletedJobs(String userId) {
-        final List<ExecutionJobSummary> summaries = new ArrayList<>();
-        final Set<ExecutionStatus> statuses = new HashSet<>();
-        Collections.addAll(statuses, ExecutionStatus.SUSPENDED, ExecutionStatus.DONE,
-                                     ExecutionStatus.FAILED, ExecutionStatus.CANCELLED);
-        final List<ExecutionJob> jobs = jobProvider.list(userId, statuses);
-        List<ExecutionTaskSummary> tasksStatus;
-        for (ExecutionJob job : jobs) {
-            tasksStatus = getTasksStatus(job.getId());
-            ExecutionJobSummary summary = new ExecutionJobSummary();
-            if (job.getWorkflowId() != null) {
-                final String workflowName = !tasksStatus.isEmpty() ?
-                                            tasksStatus.get(0).getWorkflowName() :
-                                            workflowService.getFullDescriptor(job.getWorkflowId()).getName();
-                summary.setWorkflowName(workflowName);
-            }
-            summary.setId(job.getId());
-            summary.setJobName(job.getName());
-            summary.setUserId(job.getUserId());
-            summary.setJobStatus(job.getExecutionStatus());
-            summary.setJobStart(job.getStartTime());
-            summary.setJobEnd(job.getEndTime());
-            summary.setTaskSummaries(tasksStatus);
-            summaries.add(summary);
-        }
-        // Sort by end timestamp descending (newest first)
-        summaries.sort((o1, o2) -> o2.getJobEnd() != null && o1.getJobEnd() != null ? o2.getJobEnd().compareTo(o1.getJobEnd()) : -1);
-        return summaries;
+        // Sorted by end timestamp descending (newest first)
+        return jobSummaries.getCompletedJobs(userId);
+    }
+
+    /**
+     * Returns a page of the completed jobs of a user (or of all the users, if the user is null).
+     *
+     * @param userId        The user
+     * @param pageNumber    The page number (starting from 1)
+     * @param pageSize      The page size
+     * @param sortBy        The sort field (jobEnd, jobStart, jobName, jobStatus or id). By default, the end timestamp.
+     * @param direction     The sort direction. By default, descending.
+     */
+    public List<ExecutionJobSummary> getCompletedJobs(String userId, int pageNumber, int pageSize,
+                                                      String sortBy, SortDirection direction) {
+        return jobSummaries.getCompletedJobs(userId, pageNumber, pageSize, sortBy,
+                                             direction != null ? direction : SortDirection.DESC);
+    }
+
+    /**
+     * Returns the number of completed jobs of a user (or of all the users, if the user is null).
+     */
+    public int countCompletedJobs(String userId) {
+        return jobSummaries.countCompletedJobs(userId);
+    }
+
+    /**
+     * Returns a page of the running jobs of a user (or of all the users, if the user is null), the running ones first,
+     * then the newest ones. Only the tasks of the jobs of the page are loaded.
+     */
+    public List<ExecutionJobSummary> getRunningJobs(String userId, int pageNumber, int pageSize) {
+        return jobSummaries.getActiveJobs(userId, pageNumber, pageSize);
     }
 
     @Override
@@ -256,20 +218,18 @@ public class OrchestrationServiceImpl implements OrchestratorService {
         final Map<String, Queue<ExecutionJobSummary>> results = new LinkedHashMap<>();
         if (!ExecutionConfiguration.developmentModeEnabled()) {
             final Map<String, List<Long>> jobs = Orchestrator.getInstance().getQueuedJobs();
+            final List<Long> jobIds = new ArrayList<>();
+            jobs.values().forEach(jobIds::addAll);
+            final Map<Long, ExecutionJobSummary> summaries = getQueuedSummaries(jobIds);
             for (Map.Entry<String, List<Long>> entry : jobs.entrySet()) {
-                results.put(entry.getKey(), new ArrayDeque<>());
-                final List<ExecutionJob> list = jobProvider.list(entry.getValue());
-                for (ExecutionJob job : list) {
-                    ExecutionJobSummary summary = new ExecutionJobSummary();
-                    summary.setId(job.getId());
-                    summary.setWorkflowName(workflowService.findById(job.getWorkflowId()).getName());
-                    summary.setJobName(job.getName());
-                    summary.setUserId(job.getUserId());
-                    summary.setJobStatus(job.getExecutionStatus());
-                    summary.setJobStart(job.getStartTime());
-                    summary.setJobEnd(job.getEndTime());
-                    results.get(entry.getKey()).offer(summary);
+                final Queue<ExecutionJobSummary> queue = new ArrayDeque<>();
+                for (Long jobId : entry.getValue()) {
+                    final ExecutionJobSummary summary = summaries.get(jobId);
+                    if (summary != null) {
+                        queue.offer(summary);
+                    }
                 }
+                results.put(entry.getKey(), queue);
             }
         } else {
                 final List<User> users = userProvider.list(UserStatus.ACTIVE);
@@ -285,22 +245,14 @@ public class OrchestrationServiceImpl implements OrchestratorService {
         final Queue<ExecutionJobSummary> results = new ArrayDeque<>();
         if (!ExecutionConfiguration.developmentModeEnabled()) {
             final Queue<Tuple<Long, String>> jobs = Orchestrator.getInstance().getAllJobs();
+            final Map<Long, ExecutionJobSummary> summaries =
+                    getQueuedSummaries(jobs.stream().map(Tuple::getKeyOne).collect(Collectors.toList()));
             for (Tuple<Long, String> entry : jobs) {
-                final ExecutionJob job = jobProvider.get(entry.getKeyOne());
-                if (job == null) {
+                final ExecutionJobSummary summary = summaries.get(entry.getKeyOne());
+                if (summary == null) {
                     Orchestrator.getInstance().removeJob(entry.getKeyTwo(), entry.getKeyOne());
                     continue;
                 }
-                ExecutionJobSummary summary = new ExecutionJobSummary();
-                summary.setId(job.getId());
-                if (job.getWorkflowId() != null) {
-                    summary.setWorkflowName(workflowService.findById(job.getWorkflowId()).getName());
-                }
-                summary.setJobName(job.getName());
-                summary.setUserId(job.getUserId());
-                summary.setJobStatus(job.getExecutionStatus());
-                summary.setJobStart(job.getStartTime());
-                summary.setJobEnd(job.getEndTime());
                 results.offer(summary);
             }
         } else {
@@ -317,17 +269,12 @@ public class OrchestrationServiceImpl implements OrchestratorService {
         final Queue<ExecutionJobSummary> results = new ArrayDeque<>();
         if (!ExecutionConfiguration.developmentModeEnabled()) {
             final List<Long> jobs = Orchestrator.getInstance().getUserQueuedJobs(userId);
-            final List<ExecutionJob> list = jobProvider.list(jobs);
-            for (ExecutionJob job : list) {
-                ExecutionJobSummary summary = new ExecutionJobSummary();
-                summary.setId(job.getId());
-                summary.setWorkflowName(workflowService.findById(job.getWorkflowId()).getName());
-                summary.setJobName(job.getName());
-                summary.setUserId(job.getUserId());
-                summary.setJobStatus(job.getExecutionStatus());
-                summary.setJobStart(job.getStartTime());
-                summary.setJobEnd(job.getEndTime());
-                results.offer(summary);
+            final Map<Long, ExecutionJobSummary> summaries = getQueuedSummaries(jobs);
+            for (Long jobId : jobs) {
+                final ExecutionJobSummary summary = summaries.get(jobId);
+                if (summary != null) {
+                    results.offer(summary);
+                }
             }
         } else {
             results.addAll(createFakeJobs(userId, 5));
@@ -357,22 +304,73 @@ public class OrchestrationServiceImpl implements OrchestratorService {
     public void deleteJobFromQueue(String userId, long jobId) throws PersistenceException {
         Orchestrator.getInstance().removeJob(userId, jobId);
         jobProvider.delete(jobId);
+        jobSummaries.jobRemoved(jobId);
     }
 
     @Override
     public void clearJobHistory(String userId) throws PersistenceException {
-        final Set<ExecutionStatus> statuses = new HashSet<>();
-        Collections.addAll(statuses, ExecutionStatus.SUSPENDED, ExecutionStatus.DONE,
-                           ExecutionStatus.FAILED, ExecutionStatus.CANCELLED);
-        final List<ExecutionJob> jobs = jobProvider.list(userId, statuses);
-        for (ExecutionJob job : jobs) {
-            List<ExecutionTask> tasks = job.getTasks();
-            for (ExecutionTask task : tasks) {
-                taskProvider.delete(task);
-            }
-            job.setTasks(null);
-            jobProvider.delete(job);
+        deleteJobHistory(userId, null, null, null, null);
+    }
+
+    /**
+     * Returns a page of the job history of a user (or of all the users, if the user is null).
+     *
+     * @param userId        The user
+     * @param statuses      (optional) The statuses of the jobs
+     * @param workflowId    (optional) The workflow of the jobs
+     * @param from          (optional) The lower bound (inclusive) of the job end time
+     * @param to            (optional) The upper bound (exclusive) of the job end time
+     * @param sortBy        (optional) The sort field (jobEnd, jobStart, jobName, jobStatus or id). By default, the
+     *                      end timestamp.
+     * @param direction     (optional) The sort direction. By default, descending.
+     * @param after         (optional) The cursor returned with the previous page (requested with the same order)
+     * @param pageSize      The page size
+     */
+    public JobHistoryPage getJobHistory(String userId, Set<ExecutionStatus> statuses, Long workflowId,
+                                        LocalDateTime from, LocalDateTime to, String sortBy, SortDirection direction,
+                                        String after, int pageSize) {
+        return jobSummaries.getHistory(userId, new JobSummaryStore.HistoryFilter(statuses, workflowId, from, to),
+                                       sortBy, direction != null ? direction : SortDirection.DESC, after, pageSize);
+    }
+
+    /**
+     * Deletes the completed jobs (and their tasks) of a user (or of all the users, if the user is null) that
+     * match the given criteria (ignored if null). The jobs are deleted in batches: the jobs of a batch are read with
+     * one query and deleted (with their tasks) through the providers, in one transaction per batch, so that the
+     * entity mappings (and the provider caches) are honoured.
+     *
+     * @return The number of deleted jobs
+     */
+    public int deleteJobHistory(String userId, Set<ExecutionStatus> statuses, Long workflowId,
+                                LocalDateTime from, LocalDateTime to) throws PersistenceException {
+        final List<Long> ids = jobSummaries.findHistory(userId,
+                                                        new JobSummaryStore.HistoryFilter(statuses, workflowId, from, to));
+        final int batchSize = Math.max(1, Integer.parseInt(ConfigurationManager.getInstance().getValue(HISTORY_DELETE_BATCH, "500")));
+        int count = 0;
+        for (int i = 0; i < ids.size(); i += batchSize) {
+            final List<Long> batch = ids.subList(i, Math.min(i + batchSize, ids.size()));
+            final List<Long> deleted = new ArrayList<>();
+            TransactionalMethod.withExceptionType(PersistenceException.class).execute(() -> {
+                for (ExecutionJob job : jobProvider.list(batch)) {
+                    // the history may have changed since the identifiers were read
+                    if (!JobSummaryStore.COMPLETED.contains(job.getExecutionStatus())) {
+                        continue;
+                    }
+                    final List<ExecutionTask> tasks = job.getTasks();
+                    if (tasks != null) {
+                        for (ExecutionTask task : tasks) {
+                            taskProvider.delete(task);
+                        }
+                    }
+                    job.setTasks(null);
+                    jobProvider.delete(job);
+                    deleted.add(job.getId());
+                }
+            });
+            deleted.forEach(jobSummaries::jobRemoved);
+            count += deleted.size();
         }
+        return count;
     }
 
     @Override
@@ -395,7 +393,7 @@ public class OrchestrationServiceImpl implements OrchestratorService {
                                                                                       workflowDescriptor.getName(),
                                                                                       null,
                                                                                       callback);
-            return job != null ? job.getId() : -1;
+            return jobStarted(job);
         } catch (Exception e) {
             throw new ExecutionException(e);
         }
@@ -405,7 +403,7 @@ public class OrchestrationServiceImpl implements OrchestratorService {
     public long invokeWPS(String identifier, Map<String, Map<String, String>> inputs) throws ExecutionException {
         try {
             final ExecutionJob job = Orchestrator.getInstance().invokeWPS(SessionStore.currentContext(), identifier, inputs);
-            return job != null ? job.getId() : -1;
+            return jobStarted(job);
         } catch (Exception e) {
             throw new ExecutionException(e);
         }
@@ -415,7 +413,7 @@ public class OrchestrationServiceImpl implements OrchestratorService {
     public long invokeWMS(String identifier, Map<String, String> inputs) throws ExecutionException {
         try {
             final ExecutionJob job = Orchestrator.getInstance().invokeWMS(SessionStore.currentContext(), identifier, inputs);
-            return job != null ? job.getId() : -1;
+            return jobStarted(job);
         } catch (Exception e) {
             throw new ExecutionException(e);
         }
@@ -434,6 +432,49 @@ public class OrchestrationServiceImpl implements OrchestratorService {
                 return new DelegatingSecurityContextRunnable(runnable, SecurityContextHolder.getContext());
             }
         });
+        final ConfigurationProvider configuration = ConfigurationManager.getInstance();
+        workflowNames = new WorkflowNameResolver(workflowService,
+                                                 Integer.parseInt(configuration.getValue(WORKFLOW_NAMES_CACHE, "1000")));
+        jobSummaries = new JobSummaryStore(jobProvider, taskProvider, workflowNames::getName,
+                                           Long.parseLong(configuration.getValue(ACTIVE_JOBS_REFRESH, "5")) * 1000L,
+                                           Long.parseLong(configuration.getValue(JOBS_RESYNC, "15")) * 60000L);
+    }
+
+    private long jobStarted(ExecutionJob job) {
+        if (job == null) {
+            return -1;
+        }
+        jobSummaries.jobChanged(job.getId());
+        return job.getId();
+    }
+
+    /**
+     * Returns the summaries (without tasks) of the given jobs, indexed by job identifier, using one job query and
+     * at most one workflow query. The jobs that do not exist are not present in the result.
+     */
+    private Map<Long, ExecutionJobSummary> getQueuedSummaries(List<Long> jobIds) {
+        final Map<Long, ExecutionJobSummary> summaries = new HashMap<>();
+        if (jobIds == null || jobIds.isEmpty()) {
+            return summaries;
+        }
+        final List<ExecutionJob> jobs = jobProvider.list(jobIds);
+        final Map<Long, String> workflowNames = this.workflowNames.getNames(jobs.stream().map(ExecutionJob::getWorkflowId)
+                                                                                .filter(Objects::nonNull)
+                                                                                .collect(Collectors.toSet()));
+        for (ExecutionJob job : jobs) {
+            ExecutionJobSummary summary = new ExecutionJobSummary();
+            summary.setId(job.getId());
+            if (job.getWorkflowId() != null) {
+                summary.setWorkflowName(workflowNames.get(job.getWorkflowId()));
+            }
+            summary.setJobName(job.getName());
+            summary.setUserId(job.getUserId());
+            summary.setJobStatus(job.getExecutionStatus());
+            summary.setJobStart(job.getStartTime());
+            summary.setJobEnd(job.getEndTime());
+            summaries.put(job.getId(), summary);
+        }
+        return summaries;
     }
 
     private long tryCreateTemporaryWorkflow(ExecutionRequest request) {
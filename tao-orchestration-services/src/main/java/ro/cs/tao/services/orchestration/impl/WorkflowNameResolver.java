@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2018 CS ROMANIA
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package ro.cs.tao.services.orchestration.impl;
+
+import ro.cs.tao.messaging.Message;
+import ro.cs.tao.messaging.Notifiable;
+import ro.cs.tao.services.commons.WorkflowEvents;
+import ro.cs.tao.services.interfaces.WorkflowService;
+import ro.cs.tao.workflow.WorkflowDescriptor;
+
+import java.util.*;
+
+/**
+ * Resolves workflow names, keeping the most recently used ones.
+ * The names missing from the cache are resolved together, with a single workflow query.
+ * A name is dropped when its workflow is updated or deleted (see {@link WorkflowEvents#CHANGED_TOPIC}).
+ */
+final class WorkflowNameResolver extends Notifiable {
+    private final WorkflowService workflowService;
+    private final Map<Long, String> names;
+    // incremented when a name is dropped, so that a name read concurrently is not cached
+    private long generation;
+
+    WorkflowNameResolver(WorkflowService workflowService, int capacity) {
+        super();
+        this.workflowService = workflowService;
+        final int maxSize = Math.max(1, capacity);
+        this.names = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+                return size() > maxSize;
+            }
+        };
+        subscribe(WorkflowEvents.CHANGED_TOPIC);
+    }
+
+    /**
+     * Returns the name of a workflow, or null if the workflow does not exist.
+     */
+    String getName(Long workflowId) {
+        return workflowId != null ? getNames(Collections.singleton(workflowId)).get(workflowId) : null;
+    }
+
+    /**
+     * Returns the names of the given workflows. The workflows that do not exist are not present in the result.
+     */
+    Map<Long, String> getNames(Collection<Long> workflowIds) {
+        final Map<Long, String> results = new HashMap<>();
+        final Set<Long> missing = new HashSet<>();
+        final long readGeneration;
+        synchronized (this.names) {
+            readGeneration = this.generation;
+            for (Long id : workflowIds) {
+                if (id == null) {
+                    continue;
+                }
+                final String name = this.names.get(id);
+                if (name != null) {
+                    results.put(id, name);
+                } else {
+                    missing.add(id);
+                }
+            }
+        }
+        if (!missing.isEmpty()) {
+            final List<WorkflowDescriptor> workflows = this.workflowService.list(missing);
+            if (workflows != null) {
+                synchronized (this.names) {
+                    for (WorkflowDescriptor workflow : workflows) {
+                        results.put(workflow.getId(), workflow.getName());
+                        if (readGeneration == this.generation) {
+                            this.names.put(workflow.getId(), workflow.getName());
+                        }
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    @Override
+    protected void onMessageReceived(Message message) {
+        final String value = message.getItem(WorkflowEvents.ID_KEY);
+        if (value != null) {
+            try {
+                final Long id = Long.parseLong(value);
+                synchronized (this.names) {
+                    this.names.remove(id);
+                    this.generation++;
+                }
+            } catch (NumberFormatException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package ro.cs.tao.services.orchestration.impl;
+
+import org.junit.Test;
+import ro.cs.tao.SortDirection;
+import ro.cs.tao.execution.model.ExecutionJob;
+import ro.cs.tao.execution.model.ExecutionStatus;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class JobSummaryStoreCursorTest {
+    private static final List<String> FIELDS = Arrays.asList("jobEnd", "jobStart", "jobName", "jobStatus", "id");
+    private static final LocalDateTime NOW = LocalDateTime.of(2024, 3, 1, 12, 30, 15);
+
+    @Test
+    public void cursorRoundTripKeepsThePosition() {
+        for (String field : FIELDS) {
+            for (SortDirection direction : SortDirection.values()) {
+                final Comparator<JobSummaryStore.Entry> order = JobSummaryStore.order(field, direction);
+                for (JobSummaryStore.Entry entry : history()) {
+                    final String cursor = JobSummaryStore.encodeCursor(entry, field);
+                    assertEquals(field + " " + direction + " " + cursor,
+                                 0, order.compare(entry, JobSummaryStore.decodeCursor(cursor, field)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void pagesResumeAfterTheCursor() {
+        for (String field : FIELDS) {
+            for (SortDirection direction : SortDirection.values()) {
+                final Comparator<JobSummaryStore.Entry> order = JobSummaryStore.order(field, direction);
+                final List<JobSummaryStore.Entry> sorted = history().stream().sorted(order).collect(Collectors.toList());
+                final List<JobSummaryStore.Entry> paged = new ArrayList<>();
+                String cursor = null;
+                do {
+                    final int from = cursor != null
+                                     ? JobSummaryStore.firstAfter(sorted, JobSummaryStore.decodeCursor(cursor, field), order)
+                                     : 0;
+                    final int to = Math.min(from + 2, sorted.size());
+                    paged.addAll(sorted.subList(from, to));
+                    cursor = to < sorted.size() ? JobSummaryStore.encodeCursor(sorted.get(to - 1), field) : null;
+                } while (cursor != null);
+                assertEquals(field + " " + direction, sorted, paged);
+            }
+        }
+    }
+
+    @Test
+    public void cursorOfRemovedJobStillPositionsThePage() {
+        final Comparator<JobSummaryStore.Entry> order = JobSummaryStore.order("jobEnd", SortDirection.DESC);
+        final List<JobSummaryStore.Entry> sorted = history().stream().sorted(order).collect(Collectors.toList());
+        final String cursor = JobSummaryStore.encodeCursor(sorted.get(2), "jobEnd");
+        final JobSummaryStore.Entry next = sorted.get(3);
+        sorted.remove(2);
+        assertEquals(next, sorted.get(JobSummaryStore.firstAfter(sorted, JobSummaryStore.decodeCursor(cursor, "jobEnd"), order)));
+    }
+
+    @Test
+    public void invalidCursorsAreRejected() {
+        for (String cursor : Arrays.asList("", "abc", "x_12", "=notadate_12", "=2024-03-01T12:30_x")) {
+            try {
+                JobSummaryStore.decodeCursor(cursor, "jobEnd");
+                fail("Accepted " + cursor);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        try {
+            JobSummaryStore.decodeCursor("=UNKNOWN_3", "jobStatus");
+            fail("Accepted an unknown status");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * Completed jobs, some of them without end time, start time or name, and some sharing the same values.
+     */
+    private static List<JobSummaryStore.Entry> history() {
+        return Arrays.asList(entry(1, "ndvi", ExecutionStatus.DONE, NOW.minusHours(3), NOW.minusHours(2)),
+                             entry(2, "ndvi", ExecutionStatus.DONE, NOW.minusHours(3), NOW.minusHours(2)),
+                             entry(3, null, ExecutionStatus.FAILED, NOW.minusHours(1), null),
+                             entry(4, "with_underscore=and_equals", ExecutionStatus.CANCELLED, null, null),
+                             entry(5, "s2 mosaic", ExecutionStatus.SUSPENDED, NOW.minusMinutes(30), NOW.minusMinutes(10)),
+                             entry(6, "s2 mosaic", ExecutionStatus.DONE, NOW.minusMinutes(20), NOW),
+                             entry(7, "", ExecutionStatus.DONE, NOW.minusDays(1), NOW.minusDays(1).plusNanos(500)));
+    }
+
+    private static JobSummaryStore.Entry entry(long id, String name, ExecutionStatus status,
+                                               LocalDateTime start, LocalDateTime end) {
+        final ExecutionJob job = new ExecutionJob();
+        job.setId(id);
+        job.setName(name);
+        job.setUserId("user");
+        job.setExecutionStatus(status);
+        job.setStartTime(start);
+        job.setEndTime(end);
+        return new JobSummaryStore.Entry(job);
+    }
+}
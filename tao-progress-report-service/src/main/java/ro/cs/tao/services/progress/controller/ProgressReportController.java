@@ -23,22 +23,29 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 import ro.cs.tao.datasource.DownloadManager;
 import ro.cs.tao.services.commons.BaseController;
 import ro.cs.tao.services.commons.ServiceResponse;
-import ro.cs.tao.services.interfaces.ProgressReportService;
 import ro.cs.tao.services.progress.impl.Filter;
+import ro.cs.tao.services.progress.impl.ProgressReportServiceImpl;
 import ro.cs.tao.utils.StringUtilities;
 
 import java.util.Base64;
+import java.util.function.Supplier;
 
 @RestController
 @RequestMapping("/progress")
 @Tag(name = "Progress", description = "Reports the progress of lengthy operations")
 public class ProgressReportController extends BaseController {
 
+    /**
+     * Maximum time (in seconds) a request for changes waits for a change
+     */
+    private static final int MAX_WAIT_SECONDS = 60;
+
     @Autowired
-    private ProgressReportService progressReportService;
+    private ProgressReportServiceImpl progressReportService;
 
     /**
      * Returns details about running tasks.
@@ -50,6 +57,56 @@ public class ProgressReportController extends BaseController {
     public ResponseEntity<ServiceResponse<?>> getTasksInProgress(@RequestParam(name = "category", required = false) String category,
                                                                  @RequestParam(name = "userId", required = false) String userId,
                                                                  @RequestParam(name = "filter", required = false) String jsonFilter) {
+        return prepareResult(progressReportService.getRunningTasks(category, buildFilter(userId, jsonFilter)));
+    }
+
+    /**
+     * Returns the changes of the running tasks after a given version.
+     * If there are no changes yet, the response is sent when a change occurs, but after at most the given wait time.
+     * @param since     The version returned by the previous request (0 for all the running tasks)
+     * @param category  The task category
+     * @param userId  The user account name
+     * @param jsonFilter    Additional filter
+     * @param wait  How long (in seconds) to wait for changes
+     */
+    @RequestMapping(value = "/changes", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    public DeferredResult<ResponseEntity<ServiceResponse<?>>> getChanges(@RequestParam(name = "since", required = false, defaultValue = "0") long since,
+                                                                         @RequestParam(name = "category", required = false) String category,
+                                                                         @RequestParam(name = "userId", required = false) String userId,
+                                                                         @RequestParam(name = "filter", required = false) String jsonFilter,
+                                                                         @RequestParam(name = "wait", required = false, defaultValue = "0") int wait) {
+        // the filter depends on the current user, hence it is built before leaving the request thread
+        final String filter = buildFilter(userId, jsonFilter);
+        final Supplier<ResponseEntity<ServiceResponse<?>>> changes =
+                () -> prepareResult(progressReportService.getChanges(since, category, filter));
+        final int waitSeconds = Math.min(Math.max(wait, 0), MAX_WAIT_SECONDS);
+        if (waitSeconds == 0) {
+            final DeferredResult<ResponseEntity<ServiceResponse<?>>> result = new DeferredResult<>();
+            result.setResult(changes.get());
+            return result;
+        }
+        final DeferredResult<ResponseEntity<ServiceResponse<?>>> result = new DeferredResult<>(waitSeconds * 1000L, changes);
+        final Runnable cancel = progressReportService.awaitChanges(since, () -> result.setResult(changes.get()));
+        result.onCompletion(cancel);
+        return result;
+    }
+
+    /**
+     * Returns statistics about downloads
+     */
+    @RequestMapping(value = "/download/statistics", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<ServiceResponse<?>> getGlobalDownloadStatus() {
+        return prepareResult(DownloadManager.getOverallStatus());
+    }
+    /**
+     * Returns information about the current downloads
+     */
+    @RequestMapping(value = "/download/statistics/detail", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<ServiceResponse<?>> getDownloadStatus() {
+        return prepareResult(DownloadManager.getCurrentStatus());
+    }
+
+    private String buildFilter(String userId, String jsonFilter) {
         String filter = null;
         if (!StringUtilities.isNullOrEmpty(userId) && (currentUser().equals(userId) || isCurrentUserAdmin())) {
             if (StringUtilities.isNullOrEmpty(jsonFilter)) {
@@ -70,22 +127,6 @@ public class ProgressReportController extends BaseController {
                 filter = new String(Base64.getDecoder().decode(jsonFilter));
             }
         }
-        return prepareResult(progressReportService.getRunningTasks(category, filter));
-    }
-
-    /**
-     * Returns statistics about downloads
-     */
-    @RequestMapping(value = "/download/statistics", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<ServiceResponse<?>> getGlobalDownloadStatus() {
-        return prepareResult(DownloadManager.getOverallStatus());
+        return filter;
     }
-    /**
-     * Returns information about the current downloads
-     */
-    @RequestMapping(value = "/download/statistics/detail", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<ServiceResponse<?>> getDownloadStatus() {
-        return prepareResult(DownloadManager.getCurrentStatus());
-    }
-
 }
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2018 CS ROMANIA
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package ro.cs.tao.services.progress.impl;
+
+import ro.cs.tao.messaging.*;
+import ro.cs.tao.messaging.progress.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the progress of the running tasks.
+ * The progress messages only update the (mutable) slot of their task, without locking. The slots are published
+ * periodically into an immutable, versioned snapshot, so that any number of updates received between two
+ * publications results in a single update of the task. The snapshot is indexed by category and by the configured
+ * information attributes, and it keeps the tasks removed recently, so that the changes after a given version
+ * can be computed.
+ */
+final class ProgressAggregator {
+    private final Logger logger = Logger.getLogger(ProgressAggregator.class.getName());
+    private final Map<String, Slot> slots;
+    private final Queue<String> pendingRemovals;
+    private final Deque<Removal> removals;
+    private final AtomicBoolean dirty;
+    private final Set<String> indexedAttributes;
+    private final int retainedRemovals;
+    private final Set<Runnable> waiters;
+    private final Timer timer;
+    private volatile Snapshot snapshot;
+
+    ProgressAggregator(long publishIntervalMillis, Set<String> indexedAttributes, int retainedRemovals) {
+        this.slots = new ConcurrentHashMap<>();
+        this.pendingRemovals = new ConcurrentLinkedQueue<>();
+        this.removals = new ArrayDeque<>();
+        this.dirty = new AtomicBoolean(false);
+        this.indexedAttributes = indexedAttributes;
+        this.retainedRemovals = Math.max(0, retainedRemovals);
+        this.waiters = ConcurrentHashMap.newKeySet();
+        this.snapshot = new Snapshot(0, new LinkedHashMap<>(), Collections.emptyList(), 0, indexedAttributes);
+        this.timer = new Timer("progress-publisher", true);
+        this.timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    publish();
+                } catch (Exception e) {
+                    logger.warning(String.format("Cannot publish the progress of the tasks [%s]", e.getMessage()));
+                }
+            }
+        }, publishIntervalMillis, Math.max(1, publishIntervalMillis));
+    }
+
+    /**
+     * Starts (or restarts) tracking a task.
+     */
+    void start(String taskName, String category, Message message) {
+        final Slot slot = new Slot();
+        slot.update(category, 0, false, null, 0, message);
+        this.slots.put(taskName, slot);
+        this.dirty.set(true);
+    }
+
+    /**
+     * Returns the current progress of a tracked task, or a negative value if the task is not tracked.
+     */
+    double progress(String taskName) {
+        final Slot slot = this.slots.get(taskName);
+        return slot != null ? slot.progress : -1;
+    }
+
+    /**
+     * Updates the progress of a task.
+     *
+     * @param create    If the task is not tracked, whether to start tracking it
+     */
+    void update(String taskName, String category, double progress, boolean hasSubTask, String subTaskName,
+                double subTaskProgress, Message message, boolean create) {
+        final Slot slot = create ? this.slots.computeIfAbsent(taskName, n -> new Slot()) : this.slots.get(taskName);
+        if (slot != null) {
+            slot.update(category, progress, hasSubTask, subTaskName, subTaskProgress, message);
+            this.dirty.set(true);
+        }
+    }
+
+    void remove(String taskName) {
+        if (this.slots.remove(taskName) != null) {
+            this.pendingRemovals.add(taskName);
+            this.dirty.set(true);
+        }
+    }
+
+    Snapshot snapshot() {
+        return this.snapshot;
+    }
+
+    /**
+     * Invokes the callback when a snapshot more recent than the given version is published (immediately, if it is
+     * already the case).
+     *
+     * @return a handle for cancelling the wait
+     */
+    Runnable awaitChanges(long version, Runnable callback) {
+        final AtomicBoolean invoked = new AtomicBoolean(false);
+        final Runnable waiter = () -> {
+            if (invoked.compareAndSet(false, true)) {
+                callback.run();
+            }
+        };
+        this.waiters.add(waiter);
+        // a publication may have happened before the waiter was added
+        if (this.snapshot.version > version) {
+            this.waiters.remove(waiter);
+            waiter.run();
+        }
+        return () -> this.waiters.remove(waiter);
+    }
+
+    void stop() {
+        this.timer.cancel();
+    }
+
+    private void publish() {
+        if (!this.dirty.getAndSet(false)) {
+            return;
+        }
+        final Snapshot previous = this.snapshot;
+        final long version = previous.version + 1;
+        final LinkedHashMap<String, Versioned> tasks = new LinkedHashMap<>(previous.tasks);
+        String taskName;
+        while ((taskName = this.pendingRemovals.poll()) != null) {
+            if (!this.slots.containsKey(taskName)) {
+                final Versioned removed = tasks.remove(taskName);
+                if (removed != null) {
+                    this.removals.addLast(new Removal(taskName, removed.task, version));
+                }
+            }
+        }
+        long oldestComplete = previous.oldestComplete;
+        while (this.removals.size() > this.retainedRemovals) {
+            // the changes after this version can no longer be computed
+            oldestComplete = this.removals.pollFirst().version;
+        }
+        for (Map.Entry<String, Slot> entry : this.slots.entrySet()) {
+            final Slot slot = entry.getValue();
+            if (slot.changed) {
+                // cleared before reading, so that a concurrent update is published next time
+                slot.changed = false;
+                tasks.put(entry.getKey(), new Versioned(slot.toTaskProgress(entry.getKey()), version));
+            }
+        }
+        this.snapshot = new Snapshot(version, tasks, new ArrayList<>(this.removals), oldestComplete, this.indexedAttributes);
+        for (Runnable waiter : this.waiters) {
+            if (this.waiters.remove(waiter)) {
+                waiter.run();
+            }
+        }
+    }
+
+    /**
+     * The mutable progress of a task. The fields are written by the messaging threads and read by the publisher.
+     */
+    private static final class Slot {
+        private volatile String category;
+        private volatile double progress;
+        private volatile boolean hasSubTask;
+        private volatile String subTaskName;
+        private volatile double subTaskProgress;
+        // the last message, which holds the additional information of the task
+        private volatile Message message;
+        private volatile boolean changed;
+
+        private void update(String category, double progress, boolean hasSubTask, String subTaskName,
+                            double subTaskProgress, Message message) {
+            this.category = category;
+            this.progress = progress;
+            this.hasSubTask = hasSubTask;
+            this.subTaskName = subTaskName;
+            this.subTaskProgress = subTaskProgress;
+            this.message = message;
+            this.changed = true;
+        }
+
+        private TaskProgress toTaskProgress(String taskName) {
+            final Message message = this.message;
+            final TaskProgress taskProgress = this.hasSubTask
+                                              ? new TaskProgress(taskName, this.category, this.progress, this.subTaskName, this.subTaskProgress)
+                                              : new TaskProgress(taskName, this.category, this.progress);
+            taskProgress.setInfo(message.getItems());
+            if (message instanceof DownloadProgress) {
+                taskProgress.addInfo("speed", ((DownloadProgress) message).getTransferSpeedMB());
+                taskProgress.addInfo("remaining", String.valueOf(((DownloadProgress) message).getRemaining()));
+            }
+            return taskProgress;
+        }
+    }
+
+    private static final class Versioned {
+        private final TaskProgress task;
+        private final long version;
+
+        private Versioned(TaskProgress task, long version) {
+            this.task = task;
+            this.version = version;
+        }
+    }
+
+    private static final class Removal {
+        private final String taskName;
+        private final TaskProgress task;
+        private final long version;
+
+        private Removal(String taskName, TaskProgress task, long version) {
+            this.taskName = taskName;
+            this.task = task;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Immutable state of the tasks at a given version.
+     */
+    static final class Snapshot {
+        private final long version;
+        private final LinkedHashMap<String, Versioned> tasks;
+        private final List<Removal> removals;
+        // the oldest version after which the removed tasks are all known
+        private final long oldestComplete;
+        private final Map<String, List<TaskProgress>> byCategory;
+        private final Map<String, Map<String, List<TaskProgress>>> byAttribute;
+
+        private Snapshot(long version, LinkedHashMap<String, Versioned> tasks, List<Removal> removals,
+                         long oldestComplete, Set<String> indexedAttributes) {
+            this.version = version;
+            this.tasks = tasks;
+            this.removals = removals;
+            this.oldestComplete = oldestComplete;
+            this.byCategory = new HashMap<>();
+            this.byAttribute = new HashMap<>();
+            for (Versioned versioned : tasks.values()) {
+                final TaskProgress task = versioned.task;
+                this.byCategory.computeIfAbsent(task.getCategory(), c -> new ArrayList<>()).add(task);
+                for (String attribute : indexedAttributes) {
+                    final String value = task.getInfo(attribute);
+                    if (value != null) {
+                        this.byAttribute.computeIfAbsent(attribute, a -> new HashMap<>())
+                                        .computeIfAbsent(value, v -> new ArrayList<>()).add(task);
+                    }
+                }
+            }
+        }
+
+        long version() {
+            return version;
+        }
+
+        /**
+         * Returns the tasks of the given category (if not null) having the given attribute value (if the filter is
+         * not null). The indices are used when possible.
+         */
+        List<TaskProgress> find(String category, Filter filter) {
+            final Collection<TaskProgress> candidates;
+            if (filter != null && this.byAttribute.containsKey(filter.getName())) {
+                candidates = this.byAttribute.get(filter.getName()).getOrDefault(filter.getValue(), Collections.emptyList());
+            } else if (category != null) {
+                candidates = this.byCategory.getOrDefault(category, Collections.emptyList());
+            } else {
+                candidates = null;
+            }
+            final List<TaskProgress> results = new ArrayList<>();
+            if (candidates != null) {
+                for (TaskProgress task : candidates) {
+                    if (matches(task, category, filter)) {
+                        results.add(task);
+                    }
+                }
+            } else {
+                for (Versioned versioned : this.tasks.values()) {
+                    if (matches(versioned.task, category, filter)) {
+                        results.add(versioned.task);
+                    }
+                }
+            }
+            return results;
+        }
+
+        /**
+         * Returns the changes (of the tasks matching the category and the filter) after the given version.
+         * If the changes cannot be computed (the version is too old), all the tasks are returned.
+         */
+        ProgressChanges changesSince(long since, String category, Filter filter) {
+            if (since <= 0 || since < this.oldestComplete || since > this.version) {
+                return new ProgressChanges(this.version, true, find(category, filter), Collections.emptyList());
+            }
+            final List<TaskProgress> changed = new ArrayList<>();
+            for (Versioned versioned : this.tasks.values()) {
+                if (versioned.version > since && matches(versioned.task, category, filter)) {
+                    changed.add(versioned.task);
+                }
+            }
+            final List<String> removed = new ArrayList<>();
+            for (Removal removal : this.removals) {
+                if (removal.version > since && matches(removal.task, category, filter)) {
+                    removed.add(removal.taskName);
+                }
+            }
+            return new ProgressChanges(this.version, false, changed, removed);
+        }
+
+        private static boolean matches(TaskProgress task, String category, Filter filter) {
+            if (category != null && !category.equals(task.getCategory())) {
+                return false;
+            }
+            if (filter == null) {
+                return true;
+            }
+            final String value = task.getInfo(filter.getName());
+            return value != null && value.equals(filter.getValue());
+        }
+    }
+}
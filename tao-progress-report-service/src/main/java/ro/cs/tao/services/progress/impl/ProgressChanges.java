@@ -0,0 +1,39 @@
+package ro.cs.tao.services.progress.impl;
+
+import ro.cs.tao.messaging.progress.*;
+
+import java.util.List;
+
+/**
+ * The changes of the running tasks after a given version.
+ */
+public class ProgressChanges {
+    private final long version;
+    private final boolean complete;
+    private final List<TaskProgress> tasks;
+    private final List<String> removed;
+
+    public ProgressChanges(long version, boolean complete, List<TaskProgress> tasks, List<String> removed) {
+        this.version = version;
+        this.complete = complete;
+        this.tasks = tasks;
+        this.removed = removed;
+    }
+
+    /**
+     * The version to be used for the next request of changes
+     */
+    public long getVersion() { return version; }
+
+    /**
+     * If <code>true</code>, the tasks are all the running tasks (and not only the changed ones)
+     */
+    public boolean isComplete() { return complete; }
+
+    public List<TaskProgress> getTasks() { return tasks; }
+
+    /**
+     * The names of the tasks that ended after the requested version
+     */
+    public List<String> getRemoved() { return removed; }
+}
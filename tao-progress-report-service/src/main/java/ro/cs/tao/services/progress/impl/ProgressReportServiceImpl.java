@@ -16,118 +16,158 @@
 package ro.cs.tao.services.progress.impl;
 
 import org.springframework.stereotype.Service;
+import ro.cs.tao.configuration.ConfigurationManager;
 import ro.cs.tao.messaging.*;
 import ro.cs.tao.messaging.progress.*;
 import ro.cs.tao.serialization.JsonMapper;
 import ro.cs.tao.services.interfaces.ProgressReportService;
 
+import javax.annotation.PreDestroy;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
+/**
+ * Tracks the progress of the running tasks from the progress messages.
+ * The updates are coalesced and published at a configurable rate (see {@link ProgressAggregator}).
+ */
 @Service("progressReportService")
 public class ProgressReportServiceImpl extends Notifiable implements ProgressReportService {
     private static final Pattern DOWNLOAD_PATTERN = Topic.getCategoryPattern(Topic.PROGRESS);
     private static final Pattern TRANSFER_PATTERN = Topic.getCategoryPattern(Topic.TRANSFER_PROGRESS);
-    private static final Map<String, TaskProgress> tasksInProgress = Collections.synchronizedMap(new LinkedHashMap<>());
+    /**
+     * Interval (in milliseconds) at which the progress updates are published
+     */
+    private static final String PUBLISH_INTERVAL_KEY = "progress.publish.interval.ms";
+    /**
+     * Comma-separated names of the task information attributes by which the tasks are indexed for filtering
+     */
+    private static final String INDEXED_ATTRIBUTES_KEY = "progress.index.attributes";
+    /**
+     * Number of ended tasks remembered for computing the changes after a version
+     */
+    private static final String RETAINED_REMOVALS_KEY = "progress.removals.retained";
+    private static final int MAX_CACHED_FILTERS = 1000;
+    private final ProgressAggregator aggregator;
+    private final Map<String, Filter> filters;
     private String previousMessage;
 
     public ProgressReportServiceImpl() {
+        final ConfigurationManager configuration = ConfigurationManager.getInstance();
+        this.aggregator = new ProgressAggregator(Long.parseLong(configuration.getValue(PUBLISH_INTERVAL_KEY, "500")),
+                                                 Arrays.stream(configuration.getValue(INDEXED_ATTRIBUTES_KEY, "Principal").split(","))
+                                                       .map(String::trim).filter(a -> !a.isEmpty()).collect(Collectors.toSet()),
+                                                 Integer.parseInt(configuration.getValue(RETAINED_REMOVALS_KEY, "1000")));
+        this.filters = new ConcurrentHashMap<>();
         Messaging.subscribe(this, DOWNLOAD_PATTERN);
         Messaging.subscribe(this, TRANSFER_PATTERN);
     }
 
     @Override
     protected void onMessageReceived(Message message) {
-        final String contents = message.getData();
-        if (!Objects.equals(contents, this.previousMessage)) {
-            logger.finest(contents);
-            this.previousMessage = contents;
+        if (logger.isLoggable(Level.FINEST)) {
+            final String contents = message.getData();
+            if (!Objects.equals(contents, this.previousMessage)) {
+                logger.finest(contents);
+                this.previousMessage = contents;
+            }
         }
         String taskName;
         final String category = message.getTopic();
-        TaskProgress taskProgress;
         if (message instanceof ActivityStart) {
             taskName = ((ActivityStart) message).getTaskName();
-            taskProgress = new TaskProgress(taskName, category, 0);
-            taskProgress.setInfo(message.getItems());
-            tasksInProgress.put(taskName, taskProgress);
+            aggregator.start(taskName, category, message);
         } else if (message instanceof ActivityEnd) {
-            tasksInProgress.remove(((ActivityEnd) message).getTaskName());
+            aggregator.remove(((ActivityEnd) message).getTaskName());
         } else if (message instanceof SubActivityStart) {
             SubActivityStart casted = (SubActivityStart) message;
             taskName = casted.getTaskName();
-            if (tasksInProgress.containsKey(taskName)) {
-                double mainProgress = tasksInProgress.get(taskName).getProgress();
-                taskProgress = new TaskProgress(taskName, category, mainProgress, casted.getSubTaskName(), 0.0);
-                taskProgress.setInfo(message.getItems());
-                tasksInProgress.put(taskName, taskProgress);
+            final double mainProgress = aggregator.progress(taskName);
+            if (mainProgress >= 0) {
+                aggregator.update(taskName, category, mainProgress, true, casted.getSubTaskName(), 0.0, message, false);
             }
         } else if (message instanceof SubActivityEnd) {
             SubActivityEnd casted = (SubActivityEnd) message;
             taskName = casted.getTaskName();
-            final TaskProgress existingProgress = tasksInProgress.get(taskName);
-            if (existingProgress != null) {
-                double mainProgress = existingProgress.getProgress();
+            final double mainProgress = aggregator.progress(taskName);
+            if (mainProgress >= 0) {
                 if (1.0 - mainProgress < 0.001) {
-                    tasksInProgress.remove(taskName);
+                    aggregator.remove(taskName);
                 } else {
-                    taskProgress = new TaskProgress(taskName, category, mainProgress, casted.getSubTaskName(), 1.0);
-                    taskProgress.setInfo(message.getItems());
-                    tasksInProgress.put(taskName, taskProgress);
+                    aggregator.update(taskName, category, mainProgress, true, casted.getSubTaskName(), 1.0, message, false);
                 }
             }
         } else if (message instanceof SubActivityProgress) {
             SubActivityProgress casted = (SubActivityProgress) message;
             taskName = casted.getTaskName();
-            final TaskProgress existingProgress = tasksInProgress.get(taskName);
-            if (existingProgress != null) {
-                double mainProgress = existingProgress.getProgress();
+            final double mainProgress = aggregator.progress(taskName);
+            if (mainProgress >= 0) {
                 if (casted.getSubTaskProgress() == 1.0 && (1.0 - mainProgress < 0.001)) {
-                    tasksInProgress.remove(taskName);
+                    aggregator.remove(taskName);
                 } else {
-                    taskProgress = new TaskProgress(taskName, category, casted.getTaskProgress(), casted.getSubTaskName(), casted.getSubTaskProgress());
-                    taskProgress.setInfo(message.getItems());
-                    tasksInProgress.put(taskName, taskProgress);
+                    aggregator.update(taskName, category, casted.getTaskProgress(), true, casted.getSubTaskName(),
+                                      casted.getSubTaskProgress(), message, false);
                 }
             }
         } else if (message instanceof ActivityProgress) {
             ActivityProgress casted = (ActivityProgress) message;
-            taskName = casted.getTaskName();
-            taskProgress = new TaskProgress(taskName, category, casted.getProgress());
-            taskProgress.setInfo(casted.getItems());
-            if (message instanceof DownloadProgress) {
-                taskProgress.addInfo("speed", ((DownloadProgress) message).getTransferSpeedMB());
-                taskProgress.addInfo("remaining", String.valueOf(((DownloadProgress) message).getRemaining()));
-            }
-            tasksInProgress.put(taskName, taskProgress);
+            aggregator.update(casted.getTaskName(), category, casted.getProgress(), false, null, 0.0, message, true);
         }
     }
 
     @Override
     public List<TaskProgress> getRunningTasks(String category, String jsonFilter) {
-        Filter filter = null;
-        if (jsonFilter != null) {
+        return aggregator.snapshot().find(emptyToNull(category), parseFilter(jsonFilter));
+    }
+
+    /**
+     * Returns the changes of the running tasks after the given version.
+     *
+     * @param since         The version returned by the previous invocation (0 for all the running tasks)
+     * @param category      The task category
+     * @param jsonFilter    Additional filter
+     */
+    public ProgressChanges getChanges(long since, String category, String jsonFilter) {
+        return aggregator.snapshot().changesSince(since, emptyToNull(category), parseFilter(jsonFilter));
+    }
+
+    /**
+     * Invokes the callback as soon as there are changes after the given version.
+     *
+     * @return a handle for cancelling the wait
+     */
+    public Runnable awaitChanges(long since, Runnable callback) {
+        return aggregator.awaitChanges(since, callback);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        aggregator.stop();
+    }
+
+    private Filter parseFilter(String jsonFilter) {
+        if (jsonFilter == null) {
+            return null;
+        }
+        Filter filter = this.filters.get(jsonFilter);
+        if (filter == null) {
             try {
                 filter = JsonMapper.instance().readerFor(Filter.class).readValue(jsonFilter);
             } catch (Exception e) {
                 logger.warning(String.format("Invalid filter [%s]", e.getMessage()));
+                return null;
             }
+            if (this.filters.size() >= MAX_CACHED_FILTERS) {
+                this.filters.clear();
+            }
+            this.filters.put(jsonFilter, filter);
         }
-        Stream<TaskProgress> results;
-        if (category != null && !category.isEmpty()) {
-            results = tasksInProgress.values().stream().filter(p -> category.equals(p.getCategory()));
-        } else {
-            results = tasksInProgress.values().stream();
-        }
-        if (filter != null) {
-            final Filter f = filter;
-            results = results.filter(p -> {
-                String value = p.getInfo(f.getName());
-                return value != null && value.equals(f.getValue());
-            });
-        }
-        return results.collect(Collectors.toList());
+        return filter;
+    }
+
+    private static String emptyToNull(String value) {
+        return value != null && !value.isEmpty() ? value : null;
     }
 }
@@ -0,0 +1,17 @@
+package ro.cs.tao.services.commons;
+
+/**
+ * Messages sent by the workflow service to the services that keep information about workflows.
+ */
+public final class WorkflowEvents {
+    /**
+     * Topic of the messages sent when a workflow was updated or deleted
+     */
+    public static final String CHANGED_TOPIC = "workflow.changed";
+    /**
+     * Message item holding the identifier of the workflow
+     */
+    public static final String ID_KEY = "workflowId";
+
+    private WorkflowEvents() { }
+}
@@ -0,0 +1,18 @@
+package ro.cs.tao.services.commons;
+
+/**
+ * Messages exchanged between the workspace watcher and the services that keep entities referring workspace files.
+ */
+public final class WorkspaceEvents {
+    /**
+     * Topic of the messages listing the paths that were deleted from the workspaces (or whose events were lost).
+     * The entities located at one of these paths, or below one of them, may no longer be valid.
+     */
+    public static final String DELETED_TOPIC = "workspace.deleted";
+    /**
+     * Message item holding the paths, separated by new lines
+     */
+    public static final String PATHS_KEY = "paths";
+
+    private WorkspaceEvents() { }
+}
@@ -1,10 +1,10 @@
 package ro.cs.tao.services.indexing;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import org.json.simple.JSONObject;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.simplify.DouglasPeuckerSimplifier;
 import org.springframework.stereotype.Service;
+import ro.cs.tao.configuration.ConfigurationManager;
 import ro.cs.tao.datasource.*;
 import ro.cs.tao.datasource.db.DatabaseSource;
 import ro.cs.tao.datasource.param.CommonParameterNames;
@@ -16,6 +16,7 @@ import ro.cs.tao.eodata.Polygon2D;
 import ro.cs.tao.serialization.GeometryAdapter;
 import ro.cs.tao.serialization.JsonMapper;
 import ro.cs.tao.utils.DateUtils;
+import ro.cs.tao.utils.executors.NamedThreadPoolExecutor;
 
 import java.io.IOException;
 import java.net.URI;
@@ -27,7 +28,11 @@ import java.sql.*;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -35,7 +40,10 @@ import java.util.regex.Pattern;
 import static ro.cs.tao.serialization.JsonMapper.JSON_INDEXED_DATA_SOURCE_REFERENCE;
 
 /**
- * Used for indexing existing data sources. Starts with a delay of 1 minute (delayMinutes) and it will pe run once a day
+ * Used for indexing existing data sources. Starts with a delay of 1 minute (delayMinutes) and it will pe run once a day.
+ * The data sources are indexed in parallel, and so are the iterated parameter values of a data source, within the
+ * concurrency and query rate limits configured for each data source. The pages are stored in background while the
+ * next page is retrieved, and the progress is checkpointed after each stored page.
  *
  * @author dstefanescu
  */
@@ -51,7 +59,28 @@ public class DataSourceIndexingService {
     private static final Pattern acquisitionDatePattern = Pattern.compile("((?:[A-Za-z0-9_]*?(?=\\d{8}))((\\d{4})(\\d{2})(\\d{2}))?(?:[A-Za-z0-9_]*))\\.([A-Za-z.]+)");
     private static final int delayMinutes = 1;
     private static final int fixedDelayMinutes = 1440;
+    /**
+     * Number of parameter values indexed in parallel, per data source (can be overridden with a ".dataSourceId" suffix)
+     */
+    private static final String CONCURRENCY_KEY = "indexing.datasource.concurrency";
+    /**
+     * Minimum interval (in milliseconds) between two queries sent to a data source (can be overridden with a ".dataSourceId" suffix)
+     */
+    private static final String QUERY_INTERVAL_KEY = "indexing.datasource.query.interval";
+    /**
+     * Number of threads storing the retrieved pages
+     */
+    private static final String WRITER_THREADS_KEY = "indexing.writer.threads";
+    private static final String INSERT_DS_STATEMENT = "INSERT INTO product.data_sources_index (data_source_name, sensor_name, " +
+            "from_year, to_year, last_run)" +
+            " VALUES(?,?,?,?,?) ON CONFLICT(data_source_name, sensor_name)" +
+            " DO UPDATE SET to_year=EXCLUDED.to_year, last_run=EXCLUDED.last_run";
+    private static final String INSERT_INDEXED_DS_STATEMENT = "INSERT INTO product.data_sources_index_props (data_source_id, footprint, acquisition_date)" +
+            " VALUES(?,?,?) ON CONFLICT(data_source_id, footprint, acquisition_date)" +
+            " DO NOTHING";
     private final Logger logger = Logger.getLogger(getClass().getName());
+    private final DatabaseSource source = new DatabaseSource();
+    private final AtomicBoolean running = new AtomicBoolean(false);
 
     // TODO: remove comment marks for PostContruct and Scheduled annotations
     //@PostConstruct
@@ -62,233 +91,338 @@ public class DataSourceIndexingService {
 
     //@Scheduled(fixedDelay = fixedDelayMinutes, initialDelay = delayMinutes, timeUnit = TimeUnit.MINUTES)
     public void scheduleIndexingDataSources() {
-        logger.info("Indexing data sources");
-        DatabaseSource source = new DatabaseSource();
-        final DataSourceManager dataSourceManager = DataSourceManager.getInstance();
-        final Set<DataSource<?, ?>> dataSources = dataSourceManager.getRegisteredDataSources();
-        LocalDateTime today = LocalDateTime.now();
-        AtomicInteger dsKey = new AtomicInteger();
-        for (DataSource dataSource : dataSources) {
-            // ignore data sources that are not described in JSON file (local database and aws)
-            if (readParamDescriptors.containsKey(dataSource.getId())) {
-                String insertDsStatement = "INSERT INTO product.data_sources_index (data_source_name, sensor_name, " +
-                        "from_year, to_year, last_run)" +
-                        " VALUES(?,?,?,?,?) ON CONFLICT(data_source_name, sensor_name)" +
-                        " DO UPDATE SET to_year=EXCLUDED.to_year, last_run=EXCLUDED.last_run";
-                String insertIndexedDsStatement = "INSERT INTO product.data_sources_index_props (data_source_id, footprint, acquisition_date)" +
-                        " VALUES(?,?,?) ON CONFLICT(data_source_id, footprint, acquisition_date)" +
-                        " DO NOTHING";
-                String updateDsParamsStatement = "UPDATE product.data_sources_index SET params=?,last_run=? WHERE data_source_name=? AND sensor_name=?";
+        if (!running.compareAndSet(false, true)) {
+            logger.warning("The previous indexing of data sources is still running");
+            return;
+        }
+        try {
+            logger.info("Indexing data sources");
+            final ConfigurationManager configuration = ConfigurationManager.getInstance();
+            final DataSourceManager dataSourceManager = DataSourceManager.getInstance();
+            final Set<DataSource<?, ?>> dataSources = dataSourceManager.getRegisteredDataSources();
+            final LocalDateTime today = LocalDateTime.now();
+            final ExecutorService writer = new NamedThreadPoolExecutor("indexing-writer",
+                                                                       Integer.parseInt(configuration.getValue(WRITER_THREADS_KEY, "4")));
+            final List<ExecutorService> executors = new ArrayList<>();
+            for (DataSource dataSource : dataSources) {
+                // ignore data sources that are not described in JSON file (local database and aws)
+                if (readParamDescriptors.containsKey(dataSource.getId())) {
+                    // the concurrency and the query rate are limited per data source
+                    final ExecutorService executor = new NamedThreadPoolExecutor("indexing-" + dataSource.getId(),
+                                                                                 Integer.parseInt(dataSourceValue(configuration, CONCURRENCY_KEY, dataSource.getId(), "2")));
+                    final RateLimiter limiter = new RateLimiter(Long.parseLong(dataSourceValue(configuration, QUERY_INTERVAL_KEY, dataSource.getId(), "5000")));
+                    executors.add(executor);
+                    dataSource.getSensorTypes().forEach((key, value) ->
+                            indexSensor(dataSourceManager, dataSource, key.toString(), (CollectionDescription) value,
+                                        today, executor, limiter, writer));
+                }
+            }
+            for (ExecutorService executor : executors) {
+                executor.shutdown();
+            }
+            for (ExecutorService executor : executors) {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+            writer.shutdown();
+            logger.info("Indexing data sources completed");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warning("Indexing data sources interrupted");
+        } finally {
+            running.set(false);
+        }
+    }
 
-                dataSource.getSensorTypes().forEach((key, value) -> {
-                    List<IndexedDataSourceDescriptor> existingDataSources = new ArrayList<>();
-                    try (Connection sqlConnection = source.getConnection();
-                         PreparedStatement stmt = sqlConnection.prepareStatement("SELECT * FROM product.data_sources_index WHERE data_source_name='" + dataSource.getId() +
-                                 "' AND sensor_name='" + key.toString() + "'");
-                         ResultSet rs = stmt.executeQuery()) {
-                        ObjectMapper mapper = new ObjectMapper();
-                        while (rs.next()) {
-                            IndexedDataSourceDescriptor dsDescriptor = new IndexedDataSourceDescriptor();
-                            dsDescriptor.setDataSourceName(rs.getString("data_source_name"));
-                            dsDescriptor.setSensorName(rs.getString("sensor_name"));
-                            dsDescriptor.setToYear(rs.getInt("to_year"));
-                            dsDescriptor.setFromYear(rs.getInt("from_year"));
-                            if (rs.getTimestamp("last_run") != null) {
-                                dsDescriptor.setLastRun(rs.getTimestamp("last_run").toLocalDateTime());
-                            }
-                            if (rs.getString("params") != null) {
-                                dsDescriptor.setParameters(mapper.readValue(rs.getString("params"), LinkedHashMap.class));
-                            }
-                            existingDataSources.add(dsDescriptor);
-                        }
-                    } catch (Exception e) {
-                        logger.warning(String.format("Unable to retrieve %s - %s in data_sources_index table [%s]", dataSource.getId(), key.toString(), e.getMessage()));
+    /**
+     * Prepares the indexing of a sensor of a data source and submits one task per iterated parameter value.
+     */
+    private void indexSensor(DataSourceManager dataSourceManager, DataSource<?, ?> dataSource, String sensor,
+                             CollectionDescription description, LocalDateTime today,
+                             ExecutorService executor, RateLimiter limiter, ExecutorService writer) {
+        final List<IndexedDataSourceDescriptor> existingDataSources = new ArrayList<>();
+        try (Connection sqlConnection = source.getConnection();
+             PreparedStatement stmt = sqlConnection.prepareStatement("SELECT * FROM product.data_sources_index WHERE data_source_name=? AND sensor_name=?")) {
+            stmt.setString(1, dataSource.getId());
+            stmt.setString(2, sensor);
+            try (ResultSet rs = stmt.executeQuery()) {
+                ObjectMapper mapper = new ObjectMapper();
+                while (rs.next()) {
+                    IndexedDataSourceDescriptor dsDescriptor = new IndexedDataSourceDescriptor();
+                    dsDescriptor.setDataSourceName(rs.getString("data_source_name"));
+                    dsDescriptor.setSensorName(rs.getString("sensor_name"));
+                    dsDescriptor.setToYear(rs.getInt("to_year"));
+                    dsDescriptor.setFromYear(rs.getInt("from_year"));
+                    if (rs.getTimestamp("last_run") != null) {
+                        dsDescriptor.setLastRun(rs.getTimestamp("last_run").toLocalDateTime());
                     }
-                    boolean unfinised = existingDataSources.stream().filter(e -> e.getParameters() == null || e.getParameters().entrySet().stream().filter(p -> p.getValue() != null).count() > 0).count() > 0;
-                    if (existingDataSources.isEmpty() || existingDataSources.get(0).getToYear() >= today.getYear() || unfinised) {
-                        LinkedHashMap<String, String> parameters = (!existingDataSources.isEmpty() && existingDataSources.get(0).getParameters() != null) ? existingDataSources.get(0).getParameters() : new LinkedHashMap<>();
-                        JSONObject parametersJson = new JSONObject();
-                        parametersJson.putAll(parameters);
-                        Map<String, String> coveragePeriod = retrieveTemporalCoverageBounds(((CollectionDescription) value).getTemporalCoverage());
-                        if (coveragePeriod != null) {
-                            int fromYear = Integer.parseInt(coveragePeriod.get("from"));
-                            int toYear = coveragePeriod.get("to") != null ? Integer.parseInt(coveragePeriod.get("to")) : today.getYear();
-                            LocalDateTime beginDate;
-                            LocalDateTime endDate = LocalDateTime.of(toYear, 12, 31, 23, 59, 59);
-                            logger.info(String.format("Starting %s - %s", dataSource.getId(), key));
+                    if (rs.getString("params") != null) {
+                        dsDescriptor.setParameters(mapper.readValue(rs.getString("params"), LinkedHashMap.class));
+                    }
+                    existingDataSources.add(dsDescriptor);
+                }
+            }
+        } catch (Exception e) {
+            logger.warning(String.format("Unable to retrieve %s - %s in data_sources_index table [%s]", dataSource.getId(), sensor, e.getMessage()));
+        }
+        final IndexedDataSourceDescriptor existing = existingDataSources.isEmpty() ? null : existingDataSources.get(0);
+        boolean unfinised = existingDataSources.stream().filter(e -> e.getParameters() == null || e.getParameters().entrySet().stream().filter(p -> p.getValue() != null).count() > 0).count() > 0;
+        if (existing != null && existing.getToYear() < today.getYear() && !unfinised) {
+            return;
+        }
+        Map<String, String> coveragePeriod = retrieveTemporalCoverageBounds(description.getTemporalCoverage());
+        if (coveragePeriod == null) {
+            return;
+        }
+        final int fromYear = Integer.parseInt(coveragePeriod.get("from"));
+        final int toYear = coveragePeriod.get("to") != null ? Integer.parseInt(coveragePeriod.get("to")) : today.getYear();
+        logger.info(String.format("Starting %s - %s", dataSource.getId(), sensor));
 
-                            DataSource<?, ?> instance = dataSourceManager.createInstance(key.toString(), dataSource.getId());
-                            IndexedDataSourceParameter dataSourceDescr = readParamDescriptors.get(dataSource.getId());
+        DataSource<?, ?> instance = dataSourceManager.createInstance(sensor, dataSource.getId());
+        IndexedDataSourceParameter dataSourceDescr = readParamDescriptors.get(dataSource.getId());
 
-                            // set data source credentials
-                            Map<String, String> auth = dataSourceDescr.getAuthentication();
-                            instance.setCredentials(auth.get("user"), auth.get("password"));
+        // set data source credentials
+        Map<String, String> auth = dataSourceDescr.getAuthentication();
+        instance.setCredentials(auth.get("user"), auth.get("password"));
 
-                            // insert data source into table or update last run field and get the id
-                            try (Connection sqlConnection = source.getConnection();
-                                 PreparedStatement stmtDs = sqlConnection.prepareStatement(insertDsStatement, Statement.RETURN_GENERATED_KEYS)) {
-                                stmtDs.setString(1, dataSource.getId());
-                                stmtDs.setString(2, key.toString());
-                                stmtDs.setInt(3, fromYear);
-                                stmtDs.setInt(4, toYear);
-                                stmtDs.setObject(5, !existingDataSources.isEmpty() ? today : null);
-                                stmtDs.execute();
-                                ResultSet generatedKeys = stmtDs.getGeneratedKeys();
-                                if (generatedKeys.next()) {
-                                    dsKey.set(generatedKeys.getInt(1));
-                                }
-                            } catch (SQLException e) {
-                                logger.warning(String.format("Creating indexed data source failed, no ID obtained [%s]", e.getMessage()));
-                            }
-                            // if the id data source is returned
-                            if (dsKey.get() > 0) {
-                                Map<String, DataSourceParameter> supportedParams = instance.getSupportedParameters().get(key);
-                                final DataQuery query = instance.createQuery(key.toString());
-                                List<DataQuery> queryList;
-                                try {
-                                    queryList = addParamsToQuery(dataSourceDescr, key.toString(), query);
-                                    boolean skipBatch;
-                                    if (query.supportsPaging()) {
-                                        List<EOProduct> page;
-                                        for (DataQuery q : queryList) {
-                                            beginDate = LocalDateTime.of(fromYear, 1, 1, 0, 0, 0);
-                                            //used to determine what parameter will be iterated (is set in the JSON file)
-                                            String paramKey = q.getParameter(dataSourceDescr.getParamsPrefix()) != null ? q.getParameter(dataSourceDescr.getParamsPrefix()).getValue().toString() : q.getSensorName();
-                                            int pageNumber = 1;
+        // insert data source into table or update last run field and get the id
+        int dsKey = 0;
+        try (Connection sqlConnection = source.getConnection();
+             PreparedStatement stmtDs = sqlConnection.prepareStatement(INSERT_DS_STATEMENT, Statement.RETURN_GENERATED_KEYS)) {
+            stmtDs.setString(1, dataSource.getId());
+            stmtDs.setString(2, sensor);
+            stmtDs.setInt(3, fromYear);
+            stmtDs.setInt(4, toYear);
+            stmtDs.setObject(5, existing != null ? today : null);
+            stmtDs.execute();
+            try (ResultSet generatedKeys = stmtDs.getGeneratedKeys()) {
+                if (generatedKeys.next()) {
+                    dsKey = generatedKeys.getInt(1);
+                }
+            }
+        } catch (SQLException e) {
+            logger.warning(String.format("Creating indexed data source failed, no ID obtained [%s]", e.getMessage()));
+        }
+        // if the id data source is returned
+        if (dsKey <= 0) {
+            return;
+        }
+        final Map<String, DataSourceParameter> supportedParams = instance.getSupportedParameters().get(sensor);
+        final DataQuery query = instance.createQuery(sensor);
+        final IndexingCheckpoint checkpoint = new IndexingCheckpoint(dataSource.getId(), sensor, today,
+                                                                     existing != null ? existing.getParameters() : null);
+        final List<DataQuery> queryList;
+        try {
+            queryList = addParamsToQuery(dataSourceDescr, sensor, query);
+        } catch (Exception e) {
+            logger.warning(String.format("Invalid filter [%s]", e.getMessage()));
+            return;
+        }
+        final boolean paging = query.supportsPaging();
+        final int dataSourceKey = dsKey;
+        for (DataQuery q : queryList) {
+            //used to determine what parameter will be iterated (is set in the JSON file)
+            final String paramKey = q.getParameter(dataSourceDescr.getParamsPrefix()) != null ? q.getParameter(dataSourceDescr.getParamsPrefix()).getValue().toString() : q.getSensorName();
+            final PageWriter pageWriter = new PageWriter(dataSourceKey, fromYear, toYear, checkpoint, paramKey, writer);
+            executor.submit(() -> {
+                try {
+                    if (paging) {
+                        indexPaged(q, paramKey, existing, supportedParams, fromYear, toYear, limiter, pageWriter);
+                    } else {
+                        indexAll(q, paramKey, existing, supportedParams, fromYear, toYear, limiter, pageWriter);
+                    }
+                } finally {
+                    pageWriter.close();
+                }
+            });
+        }
+    }
+
+    private void indexPaged(DataQuery q, String paramKey, IndexedDataSourceDescriptor existing,
+                            Map<String, DataSourceParameter> supportedParams, int fromYear, int toYear,
+                            RateLimiter limiter, PageWriter pageWriter) {
+        LocalDateTime beginDate = LocalDateTime.of(fromYear, 1, 1, 0, 0, 0);
+        final LocalDateTime endDate = LocalDateTime.of(toYear, 12, 31, 23, 59, 59);
+        int pageNumber = 1;
+        try {
+            q.setPageSize(PAGE_SIZE);
+            q.setMaxResults(MAX_RECORDS);
+            if (existing != null && existing.getParameters() != null) {
+                if (existing.getParameters().get(paramKey) != null) {
+                    pageNumber = Integer.parseInt(existing.getParameters().get(paramKey));
+                } else if (existing.getParameters().containsKey(paramKey)) {
+                    beginDate = existing.getLastRun();
+                }
+            }
+            setQueryPeriod(q, supportedParams, beginDate, endDate);
+            logger.info(String.format("%s time period %s - %s", paramKey, beginDate, endDate));
+            q.setPageNumber(pageNumber);
+            List<EOProduct> page;
+            limiter.acquire();
+            while (!(page = q.execute()).isEmpty()) {
+                // the page is stored while the next one is retrieved
+                pageWriter.write(page, pageNumber);
+                pageNumber++;
+                q.setPageNumber(pageNumber);
+                limiter.acquire();
+            }
+            pageWriter.flush();
+            pageWriter.checkpoint(null);
+        } catch (Exception e) {
+            logger.severe(String.format("Error for %s - %s page %s [%s]", q.getSensorName(), paramKey, pageNumber, e.getMessage()));
+            // resume from the first page that was not stored
+            pageWriter.checkpoint(String.valueOf(pageWriter.lastStoredPage(pageNumber - 1) + 1));
+        }
+    }
 
-                                            try {
-                                                q.setPageSize(PAGE_SIZE);
-                                                q.setMaxResults(MAX_RECORDS);
-                                                if (!existingDataSources.isEmpty() && existingDataSources.get(0).getParameters() != null) {
-                                                    if (existingDataSources.get(0).getParameters().get(paramKey) != null) {
-                                                        pageNumber = Integer.parseInt(existingDataSources.get(0).getParameters().get(paramKey));
-                                                    } else if (existingDataSources.get(0).getParameters().containsKey(paramKey)) {
-                                                        beginDate = existingDataSources.get(0).getLastRun();
-                                                    }
-                                                }
-                                                setQueryPeriod(q, supportedParams, beginDate, endDate);
-                                                logger.info(String.format("%s time period %s - %s", paramKey, beginDate, endDate));
-                                                q.setPageNumber(pageNumber);
-                                                q.setQueryDelay(5000);
-                                                while (!(page = q.execute()).isEmpty()) {
-                                                    try (Connection sqlConnection = source.getConnection();
-                                                         PreparedStatement stmtDsProps = sqlConnection.prepareStatement(insertIndexedDsStatement);
-                                                         PreparedStatement stmtDsUpdate = sqlConnection.prepareStatement(updateDsParamsStatement)) {
-                                                        sqlConnection.setAutoCommit(false);
-                                                        //set data source id
-                                                        stmtDsProps.setInt(1, dsKey.get());
+    private void indexAll(DataQuery q, String paramKey, IndexedDataSourceDescriptor existing,
+                          Map<String, DataSourceParameter> supportedParams, int fromYear, int toYear,
+                          RateLimiter limiter, PageWriter pageWriter) {
+        LocalDateTime beginDate = LocalDateTime.of(fromYear, 1, 1, 0, 0, 0);
+        final LocalDateTime endDate = LocalDateTime.of(toYear, 12, 31, 23, 59, 59);
+        if (existing != null && existing.getParameters() != null && existing.getParameters().containsKey(paramKey)) {
+            beginDate = existing.getLastRun();
+        }
+        try {
+            setQueryPeriod(q, supportedParams, beginDate, endDate);
+            logger.info(String.format("%s time period %s - %s", paramKey, beginDate, endDate));
+            q.setMaxResults(2000);
+            limiter.acquire();
+            List<EOProduct> productList = q.execute();
+            if (!productList.isEmpty()) {
+                pageWriter.write(productList, 1);
+                pageWriter.flush();
+                pageWriter.checkpoint(null);
+            }
+        } catch (Exception ex) {
+            logger.warning(String.format("Unable to update database for %s [%s]", q.getSensorName(), ex.getMessage()));
+        }
+    }
 
-                                                        //set last run, data source name and sensor name
-                                                        stmtDsUpdate.setObject(2, today);
-                                                        stmtDsUpdate.setString(3, dataSource.getId());
-                                                        stmtDsUpdate.setString(4, key.toString());
-                                                        // add found products to batch
-                                                        skipBatch = addProductsBatch(stmtDsProps, page, fromYear, toYear);
-                                                        //execute batch if is not empty
-                                                        if (!skipBatch) {
-                                                            stmtDsProps.executeBatch();
-                                                        }
-                                                        //update parameters
-                                                        parameters.put(paramKey, String.valueOf(pageNumber));
-                                                        parametersJson.putAll(parameters);
-                                                        stmtDsUpdate.setObject(1, parametersJson.toJSONString());
-                                                        stmtDsUpdate.execute();
+    private static String dataSourceValue(ConfigurationManager configuration, String key, String dataSourceId, String defaultValue) {
+        return configuration.getValue(key + "." + dataSourceId, configuration.getValue(key, defaultValue));
+    }
 
-                                                        //execute transaction
-                                                        sqlConnection.commit();
+    /**
+     * Stores the pages retrieved for a parameter value, asynchronously with respect to the retrieval of the next page.
+     * At most one page is being stored at a time, and the connection is kept for all the pages.
+     * After a page is stored, its number is recorded as the checkpoint of the parameter value.
+     */
+    private final class PageWriter {
+        private final int dataSourceKey;
+        private final int fromYear;
+        private final int toYear;
+        private final IndexingCheckpoint checkpoint;
+        private final String paramKey;
+        private final ExecutorService writer;
+        private Future<?> pending;
+        private Connection connection;
+        private volatile int lastStoredPage;
 
-                                                        // good practice to set it back to default true
-                                                        sqlConnection.setAutoCommit(true);
-                                                        logger.info(String.format("%s Page %s completed", paramKey, pageNumber));
-                                                        pageNumber++;
-                                                        q.setPageNumber(pageNumber);
-                                                    } catch (Exception e) {
-                                                        logger.warning(String.format("Unable to index batch for %s page %s [%s]", q.getSensorName(), pageNumber, e.getMessage()));
-                                                    }
-                                                }
-                                                try (Connection sqlConnection = source.getConnection();
-                                                     PreparedStatement stmtDsUpdate = sqlConnection.prepareStatement(updateDsParamsStatement)) {
-                                                    parameters.put(paramKey, null);
-                                                    parametersJson.putAll(parameters);
-                                                    stmtDsUpdate.setObject(1, parametersJson.toJSONString());
-                                                    stmtDsUpdate.setObject(2, today);
-                                                    //set data source name and sensor name
-                                                    stmtDsUpdate.setString(3, dataSource.getId());
-                                                    stmtDsUpdate.setString(4, key.toString());
-                                                    stmtDsUpdate.execute();
-                                                    q.setPageNumber(1);
-                                                } catch (Exception e) {
-                                                    logger.warning(String.format("Unable to update data source parameters for %s [%s]", q.getSensorName(), e.getMessage()));
-                                                }
-                                            } catch (Exception e) {
-                                                logger.severe(String.format("Error for %s - %s page %s [%s]", q.getSensorName(), paramKey, pageNumber, e.getMessage()));
-                                                try (Connection sqlConnection = source.getConnection();
-                                                     PreparedStatement stmtDsUpdate = sqlConnection.prepareStatement(updateDsParamsStatement)) {
-                                                    parameters.put(paramKey, String.valueOf(pageNumber));
-                                                    parametersJson.putAll(parameters);
-                                                    stmtDsUpdate.setObject(1, parametersJson.toJSONString());
-                                                    stmtDsUpdate.setObject(2, today);
-                                                    stmtDsUpdate.setString(3, dataSource.getId());
-                                                    stmtDsUpdate.setString(4, key.toString());
+        private PageWriter(int dataSourceKey, int fromYear, int toYear, IndexingCheckpoint checkpoint,
+                           String paramKey, ExecutorService writer) {
+            this.dataSourceKey = dataSourceKey;
+            this.fromYear = fromYear;
+            this.toYear = toYear;
+            this.checkpoint = checkpoint;
+            this.paramKey = paramKey;
+            this.writer = writer;
+        }
 
-                                                    stmtDsUpdate.execute();
-                                                } catch (Exception ex) {
-                                                    logger.warning(String.format("Unable to update database for %s [%s]", q.getSensorName(), e.getMessage()));
-                                                }
-                                            }
-                                        }
-                                    } else {
-                                        for (DataQuery q : queryList) {
-                                            //used to determine what parameter will be iterated (is set in the JSON file)
-                                            String paramKey = q.getParameter(dataSourceDescr.getParamsPrefix()) != null ? q.getParameter(dataSourceDescr.getParamsPrefix()).getValue().toString() : q.getSensorName();
-                                            beginDate = LocalDateTime.of(fromYear, 1, 1, 0, 0, 0);
-                                            if (!existingDataSources.isEmpty() && existingDataSources.get(0).getParameters() != null) {
-                                                if (existingDataSources.get(0).getParameters().containsKey(paramKey)) {
-                                                    beginDate = existingDataSources.get(0).getLastRun();
-                                                }
-                                            }
-                                            setQueryPeriod(q, supportedParams, beginDate, endDate);
-                                            logger.info(String.format("%s time period %s - %s", paramKey, beginDate, endDate));
-                                            q.setMaxResults(2000);
-                                            List<EOProduct> productList = q.execute();
-                                            if (!productList.isEmpty()) {
-                                                try (Connection sqlConnection = source.getConnection();
-                                                     PreparedStatement stmtDsProps = sqlConnection.prepareStatement(insertIndexedDsStatement);
-                                                     PreparedStatement stmtDsUpdate = sqlConnection.prepareStatement(updateDsParamsStatement)) {
-                                                    sqlConnection.setAutoCommit(false);
-                                                    //set data source id
-                                                    stmtDsProps.setInt(1, dsKey.get());
-                                                    // add found products to batch
-                                                    skipBatch = addProductsBatch(stmtDsProps, productList, fromYear, toYear);
-                                                    //execute batch
-                                                    if (!skipBatch) {
-                                                        stmtDsProps.executeBatch();
-                                                    }
-                                                    parameters.put(paramKey, null);
-                                                    parametersJson.putAll(parameters);
-                                                    stmtDsUpdate.setObject(1, parametersJson.toJSONString());
-                                                    stmtDsUpdate.setObject(2, today);
-                                                    stmtDsUpdate.setString(3, dataSource.getId());
-                                                    stmtDsUpdate.setString(4, key.toString());
+        /**
+         * Waits for the previous page to be stored, then stores the given page in background.
+         */
+        void write(List<EOProduct> page, int pageNumber) throws Exception {
+            flush();
+            this.pending = this.writer.submit(() -> {
+                store(page);
+                this.checkpoint.save(connection(), this.paramKey, String.valueOf(pageNumber));
+                this.lastStoredPage = pageNumber;
+                logger.info(String.format("%s Page %s completed", this.paramKey, pageNumber));
+                return null;
+            });
+        }
 
-                                                    stmtDsUpdate.execute();
-                                                    //execute transaction
-                                                    sqlConnection.commit();
-                                                    // good practice to set it back to default true
-                                                    sqlConnection.setAutoCommit(true);
-                                                } catch (Exception ex) {
-                                                    logger.warning(String.format("Unable to update database for %s [%s]", q.getSensorName(), ex.getMessage()));
-                                                }
-                                            }
-                                        }
-                                    }
-                                } catch (Exception e) {
-                                    logger.warning(String.format("Invalid filter [%s]", e.getMessage()));
-                                }
-                            }
-                        }
-                    }
-                });
+        /**
+         * Waits for the pending page to be stored.
+         */
+        void flush() throws Exception {
+            if (this.pending != null) {
+                try {
+                    this.pending.get();
+                } catch (ExecutionException e) {
+                    closeConnection();
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                } finally {
+                    this.pending = null;
+                }
+            }
+        }
+
+        /**
+         * Returns the last page that was stored, or the given value if none was stored during this run.
+         */
+        int lastStoredPage(int defaultValue) {
+            try {
+                flush();
+            } catch (Exception ignored) {
+                // already reported
+            }
+            return this.lastStoredPage > 0 ? this.lastStoredPage : defaultValue;
+        }
+
+        void checkpoint(String page) {
+            try {
+                this.checkpoint.save(connection(), this.paramKey, page);
+            } catch (SQLException e) {
+                closeConnection();
+                logger.warning(String.format("Unable to update data source parameters for %s [%s]", this.paramKey, e.getMessage()));
+            }
+        }
+
+        void close() {
+            try {
+                flush();
+            } catch (Exception ignored) {
+                // already reported
+            }
+            closeConnection();
+        }
+
+        private void store(List<EOProduct> page) throws SQLException {
+            final Connection sqlConnection = connection();
+            try (PreparedStatement stmtDsProps = sqlConnection.prepareStatement(INSERT_INDEXED_DS_STATEMENT)) {
+                sqlConnection.setAutoCommit(false);
+                //set data source id
+                stmtDsProps.setInt(1, this.dataSourceKey);
+                // add found products to batch
+                if (!addProductsBatch(stmtDsProps, page, this.fromYear, this.toYear)) {
+                    stmtDsProps.executeBatch();
+                }
+                sqlConnection.commit();
+            } catch (SQLException e) {
+                sqlConnection.rollback();
+                throw e;
+            } finally {
+                // good practice to set it back to default true
+                sqlConnection.setAutoCommit(true);
+            }
+        }
+
+        private synchronized Connection connection() throws SQLException {
+            if (this.connection == null || this.connection.isClosed()) {
+                this.connection = source.getConnection();
+            }
+            return this.connection;
+        }
+
+        private synchronized void closeConnection() {
+            if (this.connection != null) {
+                try {
+                    this.connection.close();
+                } catch (SQLException ignored) {
+                    // the connection is discarded anyway
+                }
+                this.connection = null;
             }
         }
     }
@@ -0,0 +1,53 @@
+package ro.cs.tao.services.indexing;
+
+import org.json.simple.JSONObject;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+
+/**
+ * Progress of the indexing of a (data source, sensor) pair, persisted in the <code>params</code> column of
+ * <code>product.data_sources_index</code>.
+ * The column holds, for each iterated parameter value, the last page that was stored (the indexing resumes from it),
+ * or <code>null</code> if the parameter value was completely indexed.
+ * Since the parameter values are indexed in parallel, the updates are serialized, so that the column always
+ * reflects all the checkpoints.
+ */
+final class IndexingCheckpoint {
+    private static final String UPDATE_STATEMENT =
+            "UPDATE product.data_sources_index SET params=?,last_run=? WHERE data_source_name=? AND sensor_name=?";
+    private final String dataSourceName;
+    private final String sensorName;
+    private final LocalDateTime runTime;
+    private final LinkedHashMap<String, String> parameters;
+
+    IndexingCheckpoint(String dataSourceName, String sensorName, LocalDateTime runTime, LinkedHashMap<String, String> parameters) {
+        this.dataSourceName = dataSourceName;
+        this.sensorName = sensorName;
+        this.runTime = runTime;
+        this.parameters = parameters != null ? new LinkedHashMap<>(parameters) : new LinkedHashMap<>();
+    }
+
+    /**
+     * Records the progress of the given parameter value.
+     *
+     * @param connection    The connection to use (in auto-commit mode)
+     * @param paramKey      The parameter value
+     * @param page          The last stored page, or <code>null</code> if completed
+     */
+    synchronized void save(Connection connection, String paramKey, String page) throws SQLException {
+        this.parameters.put(paramKey, page);
+        final JSONObject json = new JSONObject();
+        json.putAll(this.parameters);
+        try (PreparedStatement statement = connection.prepareStatement(UPDATE_STATEMENT)) {
+            statement.setObject(1, json.toJSONString());
+            statement.setObject(2, this.runTime);
+            statement.setString(3, this.dataSourceName);
+            statement.setString(4, this.sensorName);
+            statement.execute();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package ro.cs.tao.services.indexing;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spaces the calls made to a remote data source, regardless of how many threads query it.
+ * Each caller reserves the next free slot and waits for it, so that two consecutive calls are
+ * at least <code>interval</code> milliseconds apart.
+ */
+final class RateLimiter {
+    private final long intervalNanos;
+    private long nextSlot;
+
+    RateLimiter(long intervalMillis) {
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, intervalMillis));
+        this.nextSlot = System.nanoTime();
+    }
+
+    void acquire() throws InterruptedException {
+        final long wait;
+        synchronized (this) {
+            final long now = System.nanoTime();
+            final long slot = Math.max(now, this.nextSlot);
+            this.nextSlot = slot + this.intervalNanos;
+            wait = slot - now;
+        }
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+}
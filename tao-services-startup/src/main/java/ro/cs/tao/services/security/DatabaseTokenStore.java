@@ -0,0 +1,160 @@
+package ro.cs.tao.services.security;
+
+import ro.cs.tao.datasource.db.DatabaseSource;
+import ro.cs.tao.security.Token;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.logging.Logger;
+
+/**
+ * Token store backed by the TAO database.
+ * The table <code>usr.user_token</code> is created, if it does not exist, when the store is initialized
+ * (see <code>db/user_token.sql</code>).
+ * Only the SHA-256 hashes of the access and refresh tokens are stored, hence a token can be looked up by its value,
+ * but the values cannot be read back from the database. A user may have several tokens (one per session).
+ */
+public class DatabaseTokenStore implements TokenStore {
+    private static final String TABLE_SCRIPT = "/db/user_token.sql";
+    private static final String CHECK_TABLE = "SELECT to_regclass('usr.user_token') IS NOT NULL";
+    private static final String UPSERT =
+            "INSERT INTO usr.user_token (token_hash, user_id, refresh_hash, expires_at) VALUES (?,?,?,?) " +
+            "ON CONFLICT (token_hash) DO UPDATE SET user_id=EXCLUDED.user_id, refresh_hash=EXCLUDED.refresh_hash, expires_at=EXCLUDED.expires_at";
+    private static final String SELECT_BY_TOKEN =
+            "SELECT user_id, expires_at FROM usr.user_token WHERE token_hash=? AND expires_at > ?";
+    private static final String SELECT_BY_REFRESH_TOKEN =
+            "SELECT user_id, expires_at FROM usr.user_token WHERE refresh_hash=? ORDER BY expires_at DESC LIMIT 1";
+    private static final String DELETE = "DELETE FROM usr.user_token WHERE user_id=?";
+    private static final String DELETE_EXPIRED = "DELETE FROM usr.user_token WHERE expires_at < ?";
+    private final Logger logger = Logger.getLogger(DatabaseTokenStore.class.getName());
+    private final DatabaseSource source;
+
+    public DatabaseTokenStore() {
+        this.source = new DatabaseSource();
+        createTable();
+    }
+
+    @Override
+    public void save(String user, Token token) {
+        try (Connection connection = this.source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(UPSERT)) {
+            statement.setString(1, hash(token.getToken()));
+            statement.setString(2, user);
+            statement.setString(3, token.getRefreshToken() != null ? hash(token.getRefreshToken()) : null);
+            statement.setTimestamp(4, new Timestamp(System.currentTimeMillis() + token.getExpiresInSeconds() * 1000L));
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            logger.warning(String.format("Cannot save the token of user %s [%s]", user, e.getMessage()));
+        }
+    }
+
+    @Override
+    public StoredToken findByToken(String token) {
+        final long now = System.currentTimeMillis();
+        try (Connection connection = this.source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(SELECT_BY_TOKEN)) {
+            statement.setString(1, hash(token));
+            statement.setTimestamp(2, new Timestamp(now));
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    return new StoredToken(resultSet.getString("user_id"),
+                                           new Token(token, null, remaining(resultSet, now)));
+                }
+            }
+        } catch (SQLException e) {
+            logger.warning(String.format("Cannot retrieve token [%s]", e.getMessage()));
+        }
+        return null;
+    }
+
+    @Override
+    public StoredToken findByRefreshToken(String refreshToken) {
+        final long now = System.currentTimeMillis();
+        try (Connection connection = this.source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(SELECT_BY_REFRESH_TOKEN)) {
+            statement.setString(1, hash(refreshToken));
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    return new StoredToken(resultSet.getString("user_id"),
+                                           new Token(null, refreshToken, remaining(resultSet, now)));
+                }
+            }
+        } catch (SQLException e) {
+            logger.warning(String.format("Cannot retrieve token [%s]", e.getMessage()));
+        }
+        return null;
+    }
+
+    @Override
+    public void delete(String user) {
+        try (Connection connection = this.source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(DELETE)) {
+            statement.setString(1, user);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            logger.warning(String.format("Cannot remove the tokens of user %s [%s]", user, e.getMessage()));
+        }
+    }
+
+    @Override
+    public void deleteExpired(int retentionSeconds) {
+        try (Connection connection = this.source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(DELETE_EXPIRED)) {
+            statement.setTimestamp(1, new Timestamp(System.currentTimeMillis() - retentionSeconds * 1000L));
+            final int count = statement.executeUpdate();
+            if (count > 0) {
+                logger.finest(String.format("%d expired tokens removed", count));
+            }
+        } catch (SQLException e) {
+            logger.warning(String.format("Cannot remove the expired tokens [%s]", e.getMessage()));
+        }
+    }
+
+    private void createTable() {
+        try (Connection connection = this.source.getConnection();
+             Statement statement = connection.createStatement()) {
+            try (ResultSet resultSet = statement.executeQuery(CHECK_TABLE)) {
+                if (resultSet.next() && resultSet.getBoolean(1)) {
+                    return;
+                }
+            }
+            try (InputStream stream = DatabaseTokenStore.class.getResourceAsStream(TABLE_SCRIPT)) {
+                if (stream == null) {
+                    throw new IOException(TABLE_SCRIPT + " not found");
+                }
+                statement.execute(new String(stream.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            logger.info("Table usr.user_token created");
+        } catch (SQLException | IOException e) {
+            logger.severe(String.format("Cannot create the table usr.user_token [%s]", e.getMessage()));
+        }
+    }
+
+    // the token keeps only its remaining lifetime
+    private static int remaining(ResultSet resultSet, long now) throws SQLException {
+        return (int) Math.max(0, (resultSet.getTimestamp("expires_at").getTime() - now) / 1000L);
+    }
+
+    private static String hash(String value) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder builder = new StringBuilder(2 * digest.length);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is required to be supported by every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package ro.cs.tao.services.security;
+
+import org.springframework.security.core.Authentication;
+import ro.cs.tao.security.Token;
+import ro.cs.tao.security.TokenCache;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory token cache holding several tokens (one per session) for a user, used as the near-cache of
+ * {@link SharedTokenCache}.
+ * Tokens are indexed by access token and by refresh token; the tokens of a user are only a secondary index, used for
+ * {@link #getToken(String)} (which returns the most recent token of the user) and for removing all the tokens of a user.
+ * As in {@link TokenCacheImpl}, the entries are kept in a queue in the order they were added and the eviction only
+ * inspects the head of the queue.
+ */
+class SessionTokenCache implements TokenCache {
+    private static final int STRIPES = 32;
+    private final Map<String, Entry> byToken = new ConcurrentHashMap<>();
+    private final Map<String, Entry> byRefreshToken = new ConcurrentHashMap<>();
+    private final Map<String, Set<Entry>> byUser = new ConcurrentHashMap<>();
+    private final Queue<Entry> expirationQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Object[] locks;
+    // Tokens expired during the last eviction cycle, by refresh token
+    private volatile Map<String, Entry> expiredTokens = Collections.emptyMap();
+
+    SessionTokenCache() {
+        this.locks = new Object[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            this.locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Whether the given access token is cached (regardless of its user).
+     */
+    boolean contains(String token) {
+        return token != null && byToken.containsKey(token);
+    }
+
+    @Override
+    public void evictExpired() {
+        // Keep expired tokens only for one eviction cycle
+        final Map<String, Entry> expired = new HashMap<>();
+        Entry head;
+        while ((head = expirationQueue.peek()) != null) {
+            if (byToken.get(head.token.getToken()) != head) {
+                // superseded or removed entry
+                expirationQueue.poll();
+                continue;
+            }
+            if (!head.token.isExpired()) {
+                break;
+            }
+            synchronized (lock(head.user)) {
+                if (unindex(head) && head.token.getRefreshToken() != null) {
+                    expired.put(head.token.getRefreshToken(), head);
+                }
+            }
+            expirationQueue.poll();
+        }
+        expiredTokens = expired;
+    }
+
+    @Override
+    public void put(Token token, Authentication authentication) {
+        if (authentication != null && authentication.getPrincipal() != null) {
+            store(new Entry(authentication.getPrincipal().toString(), token, authentication, sequence.incrementAndGet()));
+        }
+    }
+
+    @Override
+    public void put(Token token, String user) {
+        store(new Entry(user, token, null, sequence.incrementAndGet()));
+    }
+
+    @Override
+    public Token getToken(String user) {
+        final Set<Entry> entries = user != null ? byUser.get(user) : null;
+        Entry latest = null;
+        if (entries != null) {
+            for (Entry entry : entries) {
+                if (!entry.token.isExpired() && (latest == null || entry.sequence > latest.sequence)) {
+                    latest = entry;
+                }
+            }
+        }
+        return latest != null ? latest.token : null;
+    }
+
+    @Override
+    public String getUser(String token) {
+        final Entry entry = token != null ? byToken.get(token) : null;
+        return entry != null ? entry.user : null;
+    }
+
+    @Override
+    public Token getFromRefreshToken(String refreshToken) {
+        final Entry entry = refreshToken != null ? expiredTokens.get(refreshToken) : null;
+        return entry != null ? entry.token : null;
+    }
+
+    @Override
+    public Token getFullToken(String token) {
+        final Entry entry = token != null ? byToken.get(token) : null;
+        return entry != null && !entry.token.isExpired() ? entry.token : null;
+    }
+
+    @Override
+    public Authentication getAuthentication(String token) {
+        if (token == null) {
+            return null;
+        }
+        Entry entry = byRefreshToken.get(token);
+        if (entry != null) {
+            return entry.authentication;
+        }
+        entry = byToken.get(token);
+        return entry != null && !entry.token.isExpired() ? entry.authentication : null;
+    }
+
+    @Override
+    public Authentication getPreviousAuthentication(String token) {
+        if (token == null) {
+            return null;
+        }
+        Entry entry = byRefreshToken.get(token);
+        if (entry == null) {
+            // maybe it was a just expired token
+            entry = expiredTokens.get(token);
+        }
+        return entry != null ? entry.authentication : null;
+    }
+
+    @Override
+    public void remove(String user) {
+        if (user != null) {
+            synchronized (lock(user)) {
+                final Set<Entry> entries = byUser.remove(user);
+                if (entries != null) {
+                    for (Entry entry : entries) {
+                        byToken.remove(entry.token.getToken(), entry);
+                        if (entry.token.getRefreshToken() != null) {
+                            byRefreshToken.remove(entry.token.getRefreshToken(), entry);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void store(Entry entry) {
+        synchronized (lock(entry.user)) {
+            final Entry previous = byToken.get(entry.token.getToken());
+            if (previous != null) {
+                // a token belongs to a single user, hence the lock held is also the one of the previous entry
+                unindex(previous);
+            }
+            byToken.put(entry.token.getToken(), entry);
+            if (entry.token.getRefreshToken() != null) {
+                byRefreshToken.put(entry.token.getRefreshToken(), entry);
+            }
+            byUser.computeIfAbsent(entry.user, u -> ConcurrentHashMap.newKeySet()).add(entry);
+        }
+        expirationQueue.offer(entry);
+    }
+
+    /**
+     * Removes an entry from all the indices. Must be called holding the lock of the user of the entry.
+     *
+     * @return true if the entry was still cached
+     */
+    private boolean unindex(Entry entry) {
+        final boolean removed = byToken.remove(entry.token.getToken(), entry);
+        if (entry.token.getRefreshToken() != null) {
+            byRefreshToken.remove(entry.token.getRefreshToken(), entry);
+        }
+        final Set<Entry> entries = byUser.get(entry.user);
+        if (entries != null) {
+            entries.remove(entry);
+            if (entries.isEmpty()) {
+                byUser.remove(entry.user, entries);
+            }
+        }
+        return removed;
+    }
+
+    private Object lock(String user) {
+        return locks[(user.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    private static class Entry {
+        private final String user;
+        private final Token token;
+        private final Authentication authentication;
+        private final long sequence;
+
+        private Entry(String user, Token token, Authentication authentication, long sequence) {
+            this.user = user;
+            this.token = token;
+            this.authentication = authentication;
+            this.sequence = sequence;
+        }
+    }
+}
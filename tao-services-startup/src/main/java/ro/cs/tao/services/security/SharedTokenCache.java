@@ -0,0 +1,212 @@
+package ro.cs.tao.services.security;
+
+import org.springframework.security.authentication.jaas.JaasAuthenticationToken;
+import org.springframework.security.authentication.jaas.JaasGrantedAuthority;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import ro.cs.tao.messaging.Message;
+import ro.cs.tao.messaging.Messaging;
+import ro.cs.tao.messaging.Notifiable;
+import ro.cs.tao.persistence.UserProvider;
+import ro.cs.tao.security.SystemPrincipal;
+import ro.cs.tao.security.Token;
+import ro.cs.tao.security.TokenCache;
+import ro.cs.tao.security.UserPrincipal;
+import ro.cs.tao.user.Group;
+import ro.cs.tao.user.User;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * Token cache shared by several service nodes.
+ * The tokens are persisted in a {@link TokenStore} and kept in an in-memory near-cache (see {@link SessionTokenCache}),
+ * so that the validation of a known token does not leave the JVM. Like the store, the near-cache is keyed by token,
+ * hence the sessions of the same user do not evict each other. A token issued (or revoked) by another node is loaded from the store
+ * at its first use on this node.
+ * When the tokens of a user are removed, the other nodes are notified over the messaging bus to drop their
+ * local copy. The authentication objects are not persisted: on a node that did not issue the token, they are
+ * rebuilt from the stored user.
+ * Since the store keeps only hashes of the tokens, the token of a user ({@link #getToken(String)}) is known only
+ * by the nodes that issued or already validated it.
+ */
+public class SharedTokenCache implements TokenCache {
+    private static final String INVALIDATION_TOPIC = "token.invalidation";
+    private static final String NODE_KEY = "node";
+    private static final String USER_KEY = "user";
+    private static UserProvider userProvider;
+    private final SessionTokenCache nearCache;
+    private final TokenStore store;
+    private final int retentionSeconds;
+    private final String nodeId;
+    private final InvalidationReceiver receiver;
+
+    /**
+     * @param store             The shared store
+     * @param retentionSeconds  How long the expired tokens are kept in the store (so that they can be refreshed)
+     */
+    public SharedTokenCache(TokenStore store, int retentionSeconds) {
+        this.nearCache = new SessionTokenCache();
+        this.store = store;
+        this.retentionSeconds = retentionSeconds;
+        this.nodeId = UUID.randomUUID().toString();
+        this.receiver = new InvalidationReceiver();
+    }
+
+    public static void setUserProvider(UserProvider provider) { userProvider = provider; }
+
+    @Override
+    public void evictExpired() {
+        this.nearCache.evictExpired();
+        this.store.deleteExpired(this.retentionSeconds);
+    }
+
+    @Override
+    public void put(Token token, Authentication authentication) {
+        if (authentication == null || authentication.getPrincipal() == null) {
+            // the token would be valid on this node only, and could not be refreshed
+            throw new IllegalArgumentException(String.format("Token %s has no corresponding authentication",
+                                                             token.getToken()));
+        }
+        final String user = authentication.getPrincipal().toString();
+        final boolean known = this.nearCache.contains(token.getToken());
+        this.nearCache.put(token, authentication);
+        if (!known) {
+            this.store.save(user, token);
+        }
+    }
+
+    @Override
+    public void put(Token token, String user) {
+        final boolean known = this.nearCache.contains(token.getToken());
+        this.nearCache.put(token, user);
+        if (!known) {
+            this.store.save(user, token);
+        }
+    }
+
+    @Override
+    public Token getToken(String user) {
+        return this.nearCache.getToken(user);
+    }
+
+    @Override
+    public String getUser(String token) {
+        final String user = this.nearCache.getUser(token);
+        if (user != null || token == null) {
+            return user;
+        }
+        final TokenStore.StoredToken stored = load(token);
+        return stored != null ? stored.getUser() : null;
+    }
+
+    @Override
+    public Token getFromRefreshToken(String refreshToken) {
+        Token token = this.nearCache.getFromRefreshToken(refreshToken);
+        if (token == null && refreshToken != null) {
+            final TokenStore.StoredToken stored = this.store.findByRefreshToken(refreshToken);
+            if (stored != null) {
+                token = stored.getToken();
+            }
+        }
+        return token;
+    }
+
+    @Override
+    public Token getFullToken(String token) {
+        final Token fullToken = this.nearCache.getFullToken(token);
+        if (fullToken != null || token == null) {
+            return fullToken;
+        }
+        final TokenStore.StoredToken stored = load(token);
+        return stored != null ? stored.getToken() : null;
+    }
+
+    @Override
+    public Authentication getAuthentication(String token) {
+        Authentication authentication = this.nearCache.getAuthentication(token);
+        if (authentication == null && token != null) {
+            final TokenStore.StoredToken stored = this.store.findByToken(token);
+            if (stored != null) {
+                authentication = authenticate(stored);
+                if (authentication != null) {
+                    this.nearCache.put(stored.getToken(), authentication);
+                }
+            }
+        }
+        return authentication;
+    }
+
+    @Override
+    public Authentication getPreviousAuthentication(String token) {
+        Authentication authentication = this.nearCache.getPreviousAuthentication(token);
+        if (authentication == null && token != null) {
+            // the token may have been issued (or refreshed) by another node
+            final TokenStore.StoredToken stored = this.store.findByRefreshToken(token);
+            if (stored != null) {
+                authentication = authenticate(stored);
+            }
+        }
+        return authentication;
+    }
+
+    @Override
+    public void remove(String user) {
+        if (user != null) {
+            this.nearCache.remove(user);
+            this.store.delete(user);
+            broadcast(user);
+        }
+    }
+
+    private TokenStore.StoredToken load(String token) {
+        final TokenStore.StoredToken stored = this.store.findByToken(token);
+        if (stored != null) {
+            this.nearCache.put(stored.getToken(), stored.getUser());
+        }
+        return stored;
+    }
+
+    // Rebuilds the authentication of a token issued by another node
+    private Authentication authenticate(TokenStore.StoredToken stored) {
+        if (userProvider == null) {
+            return null;
+        }
+        final User user = userProvider.get(stored.getUser());
+        if (user == null || user.getGroups() == null || user.getGroups().isEmpty()) {
+            return null;
+        }
+        final UserPrincipal principal = new UserPrincipal(user.getId(),
+                                                          user.getGroups().stream().map(Group::getName).collect(Collectors.toSet()));
+        final List<GrantedAuthority> authorities =
+                Collections.singletonList(new JaasGrantedAuthority(user.getGroups().get(0).getName(), principal));
+        return new JaasAuthenticationToken(principal, stored.getToken().getToken(), authorities, null);
+    }
+
+    private void broadcast(String user) {
+        final Message message = new Message();
+        message.setTopic(INVALIDATION_TOPIC);
+        message.setPersistent(false);
+        message.addItem(NODE_KEY, this.nodeId);
+        message.addItem(USER_KEY, user);
+        Messaging.send(SystemPrincipal.instance(), INVALIDATION_TOPIC, message, false);
+    }
+
+    private class InvalidationReceiver extends Notifiable {
+
+        InvalidationReceiver() {
+            subscribe(INVALIDATION_TOPIC);
+        }
+
+        @Override
+        protected void onMessageReceived(Message message) {
+            final String user = message.getItem(USER_KEY);
+            if (user != null && !nodeId.equals(message.getItem(NODE_KEY))) {
+                // the token was changed by another node, it will be reloaded from the store at its next use
+                nearCache.remove(user);
+            }
+        }
+    }
+}
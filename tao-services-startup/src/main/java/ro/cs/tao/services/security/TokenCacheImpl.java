@@ -3,33 +3,69 @@ package ro.cs.tao.services.security;
 import org.springframework.security.core.Authentication;
 import ro.cs.tao.security.Token;
 import ro.cs.tao.security.TokenCache;
-import ro.cs.tao.utils.Tuple;
 
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Logger;
 
+/**
+ * In-memory token cache.
+ * Tokens are indexed by user, by access token and by refresh token, so that the lookups performed
+ * for every authenticated request do not depend on the number of active sessions. Reads are lock-free;
+ * writes for the same user are serialized on one of a fixed set of lock stripes, so that the three
+ * indices stay consistent.
+ * Since all the tokens are issued with the same lifetime, the entries are kept in a queue in the order
+ * they were added, and the eviction only inspects the head of the queue (until the first token that is
+ * not expired). Lookups check the expiration themselves, hence a token is never served past its expiration.
+ */
 public class TokenCacheImpl implements TokenCache {
-    private final Map<String, Tuple<Token, Authentication>> cache = new HashMap<>();
+    private static final int STRIPES = 32;
+    private final Map<String, Entry> byUser = new ConcurrentHashMap<>();
+    private final Map<String, Entry> byToken = new ConcurrentHashMap<>();
+    private final Map<String, Entry> byRefreshToken = new ConcurrentHashMap<>();
+    private final Queue<Entry> expirationQueue = new ConcurrentLinkedQueue<>();
+    private final Object[] locks;
     private final Logger logger = Logger.getLogger(TokenCache.class.getName());
-    private final Map<Token, Authentication> expiredTokens = new HashMap<>();
+    // Tokens expired during the last eviction cycle, by refresh token
+    private volatile Map<String, Entry> expiredTokens = Collections.emptyMap();
+
+    public TokenCacheImpl() {
+        this.locks = new Object[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            this.locks[i] = new Object();
+        }
+    }
 
     @Override
     public void evictExpired() {
         // Keep expired tokens only for one eviction cycle
-        synchronized (cache) {
-            expiredTokens.clear();
-            final Iterator<Map.Entry<String, Tuple<Token, Authentication>>> iterator = cache.entrySet().iterator();
-            while (iterator.hasNext()) {
-                final Map.Entry<String, Tuple<Token, Authentication>> next = iterator.next();
-                if (next.getValue().getKeyOne().isExpired()) {
-                    logger.finest(String.format("Token %s for user %s expired", next.getValue().getKeyOne().getToken(), next.getKey()));
-                    expiredTokens.put(next.getValue().getKeyOne(), next.getValue().getKeyTwo());
-                    iterator.remove();
+        final Map<String, Entry> expired = new HashMap<>();
+        Entry head;
+        while ((head = expirationQueue.peek()) != null) {
+            if (byUser.get(head.user) != head) {
+                // superseded or removed entry
+                expirationQueue.poll();
+                continue;
+            }
+            if (!head.token.isExpired()) {
+                break;
+            }
+            synchronized (lock(head.user)) {
+                if (byUser.remove(head.user, head)) {
+                    unindex(head);
+                    logger.finest(String.format("Token %s for user %s expired", head.token.getToken(), head.user));
+                    if (head.token.getRefreshToken() != null) {
+                        expired.put(head.token.getRefreshToken(), head);
+                    }
                 }
             }
+            expirationQueue.poll();
         }
+        expiredTokens = expired;
     }
 
     @Override
@@ -37,79 +73,111 @@ public class TokenCacheImpl implements TokenCache {
         if (authentication == null || authentication.getPrincipal() == null) {
             logger.warning(String.format("Token %s has no corresponding authentication", token.getToken()));
         } else {
-            /*Principal principal = null;
-            if (authentication instanceof AuthenticationWithToken) {
-                principal = ((AuthenticationWithToken) authentication).getLoginContext().getSubject().getPrincipals().stream().findFirst().orElse(null);
-            }
-            final String user = principal != null ? principal.getName() : authentication.getPrincipal().toString();*/
-            cache.put(authentication.getPrincipal().toString(), new Tuple<>(token, authentication));
+            store(new Entry(authentication.getPrincipal().toString(), token, authentication));
         }
     }
 
     @Override
     public void put(Token token, String user) {
-        cache.put(user, new Tuple<>(token, null));
+        store(new Entry(user, token, null));
     }
 
     @Override
     public Token getToken(String user) {
-        final Tuple<Token, Authentication> tuple = cache.get(user);
-        return tuple != null ? tuple.getKeyOne() : null;
+        final Entry entry = byUser.get(user);
+        return entry != null ? entry.token : null;
     }
 
     @Override
     public String getUser(String token) {
-        final Map.Entry<String, Tuple<Token, Authentication>> entry = cache.entrySet().stream().filter(e -> e.getValue().getKeyOne().getToken()
-                                                                                                             .equals(token)).findFirst().orElse(null);
-        return entry != null ? entry.getKey() : null;
+        final Entry entry = token != null ? byToken.get(token) : null;
+        return entry != null ? entry.user : null;
     }
 
     @Override
     public Token getFromRefreshToken(String refreshToken) {
-        return expiredTokens.keySet().stream().filter(t -> t.getRefreshToken().equals(refreshToken)).findFirst().orElse(null);
+        final Entry entry = refreshToken != null ? expiredTokens.get(refreshToken) : null;
+        return entry != null ? entry.token : null;
     }
 
     @Override
     public Token getFullToken(String token) {
-        return cache.values().stream()
-                    .filter(t -> t.getKeyOne().getToken().equals(token) && !t.getKeyOne().isExpired())
-                    .findFirst().map(Tuple::getKeyOne).orElse(null);
+        final Entry entry = token != null ? byToken.get(token) : null;
+        return entry != null && !entry.token.isExpired() ? entry.token : null;
     }
 
     @Override
     public Authentication getAuthentication(String token) {
-        Authentication authentication = null;
-        for (Map.Entry<String, Tuple<Token, Authentication>> entry : cache.entrySet()) {
-            final Token t = entry.getValue().getKeyOne();
-            if ((!t.isExpired() && t.getToken().equals(token)) ||
-                    (t.getRefreshToken() != null && t.getRefreshToken().equals(token))) {
-                authentication = entry.getValue().getKeyTwo();
-            }
+        if (token == null) {
+            return null;
         }
-        /*if (authentication == null) {
-            // maybe it was a just expired token
-            final Map.Entry<Token, Authentication> entry = expiredTokens.entrySet().stream().filter(e -> e.getKey().getRefreshToken().equals(token)).findFirst().orElse(null);
-            return entry != null ? entry.getValue() : null;
-        }*/
-        return authentication;
+        Entry entry = byRefreshToken.get(token);
+        if (entry != null) {
+            return entry.authentication;
+        }
+        entry = byToken.get(token);
+        return entry != null && !entry.token.isExpired() ? entry.authentication : null;
     }
 
     @Override
     public Authentication getPreviousAuthentication(String token) {
-        final Map.Entry<String, Tuple<Token, Authentication>> tuple = cache.entrySet().stream().filter(e -> e.getValue().getKeyOne().getRefreshToken().equals(token)).findFirst().orElse(null);
-        if (tuple != null) {
-            return tuple.getValue().getKeyTwo();
-        } else {
+        if (token == null) {
+            return null;
+        }
+        Entry entry = byRefreshToken.get(token);
+        if (entry == null) {
             // maybe it was a just expired token
-            final Map.Entry<Token, Authentication> entry = expiredTokens.entrySet().stream().filter(e -> e.getKey().getRefreshToken().equals(token)).findFirst().orElse(null);
-            return entry != null ? entry.getValue() : null;
+            entry = expiredTokens.get(token);
         }
+        return entry != null ? entry.authentication : null;
     }
 
     @Override
     public void remove(String user) {
         if (user != null) {
-            cache.entrySet().removeIf(e -> user.equals(e.getKey()));
+            synchronized (lock(user)) {
+                final Entry entry = byUser.remove(user);
+                if (entry != null) {
+                    unindex(entry);
+                }
+            }
+        }
+    }
+
+    private void store(Entry entry) {
+        synchronized (lock(entry.user)) {
+            final Entry previous = byUser.put(entry.user, entry);
+            if (previous != null) {
+                unindex(previous);
+            }
+            byToken.put(entry.token.getToken(), entry);
+            if (entry.token.getRefreshToken() != null) {
+                byRefreshToken.put(entry.token.getRefreshToken(), entry);
+            }
+        }
+        expirationQueue.offer(entry);
+    }
+
+    private void unindex(Entry entry) {
+        byToken.remove(entry.token.getToken(), entry);
+        if (entry.token.getRefreshToken() != null) {
+            byRefreshToken.remove(entry.token.getRefreshToken(), entry);
+        }
+    }
+
+    private Object lock(String user) {
+        return locks[(user.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    private static class Entry {
+        private final String user;
+        private final Token token;
+        private final Authentication authentication;
+
+        private Entry(String user, Token token, Authentication authentication) {
+            this.user = user;
+            this.token = token;
+            this.authentication = authentication;
         }
     }
-}
\ No newline at end of file
+}
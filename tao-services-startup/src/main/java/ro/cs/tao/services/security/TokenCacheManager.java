@@ -1,9 +1,46 @@
 package ro.cs.tao.services.security;
 
+import ro.cs.tao.configuration.ConfigurationManager;
 import ro.cs.tao.security.TokenCache;
 
+import java.util.logging.Logger;
+
+/**
+ * Provides the token cache of this node.
+ * By default, the tokens are kept only in memory, which requires that all the requests of a session reach
+ * the same node. When several nodes serve the requests, the <code>token.store</code> key should be set to
+ * <code>database</code> (or to the class name of a {@link TokenStore} implementation), so that the tokens
+ * issued by a node are validated by the others.
+ */
 public class TokenCacheManager {
-    private static final TokenCache instance = new TokenCacheImpl();
+    private static final String TOKEN_STORE_KEY = "token.store";
+    private static final String TOKEN_STORE_RETENTION_KEY = "token.store.retention.seconds";
+    private static final TokenCache instance = createCache();
 
     public static TokenCache getCache() { return instance; }
+
+    private static TokenCache createCache() {
+        final ConfigurationManager configuration = ConfigurationManager.getInstance();
+        final String storeType = configuration.getValue(TOKEN_STORE_KEY, "memory");
+        final int retention = Integer.parseInt(configuration.getValue(TOKEN_STORE_RETENTION_KEY, "300"));
+        final TokenStore store;
+        switch (storeType) {
+            case "memory":
+                return new TokenCacheImpl();
+            case "database":
+                store = new DatabaseTokenStore();
+                break;
+            default:
+                try {
+                    store = (TokenStore) Class.forName(storeType).getDeclaredConstructor().newInstance();
+                } catch (ReflectiveOperationException | ClassCastException e) {
+                    Logger.getLogger(TokenCacheManager.class.getName())
+                          .severe(String.format("Cannot instantiate token store %s [%s]. Tokens will be kept in memory",
+                                                storeType, e.getMessage()));
+                    return new TokenCacheImpl();
+                }
+                break;
+        }
+        return new SharedTokenCache(store, retention);
+    }
 }
@@ -0,0 +1,56 @@
+package ro.cs.tao.services.security;
+
+import ro.cs.tao.security.Token;
+
+/**
+ * Persistent store of the issued tokens, shared by all the service nodes.
+ * Implementations are expected to be used behind a near-cache (see {@link SharedTokenCache}),
+ * hence they are only queried when a token is not known locally.
+ */
+public interface TokenStore {
+
+    /**
+     * Saves a token of the given user. A user may have several tokens (for example, one per device).
+     */
+    void save(String user, Token token);
+
+    /**
+     * Returns the token having the given access token value, or <code>null</code> if none (or if expired).
+     * The refresh token of the result may be unknown (<code>null</code>).
+     */
+    StoredToken findByToken(String token);
+
+    /**
+     * Returns the token having the given refresh token value, or <code>null</code> if none.
+     * Tokens are retained after their expiration (see {@link #deleteExpired(int)}), so that they can be refreshed.
+     * The access token of the result may be unknown (<code>null</code>).
+     */
+    StoredToken findByRefreshToken(String refreshToken);
+
+    /**
+     * Removes all the tokens of the given user.
+     */
+    void delete(String user);
+
+    /**
+     * Removes the tokens that expired more than <code>retentionSeconds</code> ago.
+     */
+    void deleteExpired(int retentionSeconds);
+
+    /**
+     * A token together with the user it was issued for.
+     */
+    final class StoredToken {
+        private final String user;
+        private final Token token;
+
+        public StoredToken(String user, Token token) {
+            this.user = user;
+            this.token = token;
+        }
+
+        public String getUser() { return user; }
+
+        public Token getToken() { return token; }
+    }
+}
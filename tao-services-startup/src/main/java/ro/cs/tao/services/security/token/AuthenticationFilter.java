@@ -59,10 +59,14 @@ public class AuthenticationFilter extends GenericFilterBean {
     private final AuthenticationManager authenticationManager;
     private final SystemMessageReceiver receiver;
     private final HashSet<String> excludedEndpoints;
+    // thread-safe once configured, shared by all requests
+    private final UrlPathHelper urlPathHelper;
+    private volatile EndpointMatcher endpointMatcher;
 
     public AuthenticationFilter(AuthenticationManager authenticationManager) {
         this.authenticationManager = authenticationManager;
-        this.receiver = new SystemMessageReceiver();
+        this.urlPathHelper = new UrlPathHelper();
+        this.receiver = new SystemMessageReceiver(this::refreshEndpoints);
         this.excludedEndpoints = new HashSet<>();
         this.excludedEndpoints.add(Endpoints.DOWNLOAD_ENDPOINT);
         this.excludedEndpoints.add(Endpoints.TUNNEL_ENDPOINT);
@@ -76,7 +80,7 @@ public class AuthenticationFilter extends GenericFilterBean {
             httpResponse.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "The system is not able yet to serve http requests");
         }
         Optional<String> token = Optional.ofNullable(httpRequest.getHeader("X-Auth-Token"));
-        final String resourcePath = new UrlPathHelper().getPathWithinApplication(httpRequest);
+        final String resourcePath = this.urlPathHelper.getPathWithinApplication(httpRequest);
 
         try {
             ServletRequest request = servletRequest;
@@ -143,6 +147,16 @@ public class AuthenticationFilter extends GenericFilterBean {
 
     }
 
+    /**
+     * Compiles the endpoints that require authentication. It is invoked when the controllers are registered
+     * (i.e., at the end of the startup), or at the first request that needs the endpoints.
+     */
+    public void refreshEndpoints() {
+        final EndpointMatcher matcher = new EndpointMatcher(Endpoints.endpoints("ro.cs.tao"));
+        this.endpointMatcher = matcher;
+        logger.fine(String.format("%d protected endpoints registered", matcher.size()));
+    }
+
     private void processTokenAuthentication(String token, ServletRequest request) {
         final PreAuthenticatedAuthenticationToken requestAuthentication = new PreAuthenticatedAuthenticationToken(token, null);
         final Authentication responseAuthentication = authenticationManager.authenticate(requestAuthentication);
@@ -160,9 +174,10 @@ public class AuthenticationFilter extends GenericFilterBean {
     }
 
     private boolean requiresToken(String resourcePath) {
-        return Endpoints.endpoints("ro.cs.tao").stream().anyMatch(e -> e.indexOf('*') > 0
-                ? resourcePath.startsWith(e.substring(0, e.indexOf('*')))
-                : resourcePath.startsWith(e));
+        if (this.endpointMatcher == null) {
+            refreshEndpoints();
+        }
+        return this.endpointMatcher.matches(resourcePath);
     }
 
     private boolean isExcludedResource(HttpServletRequest httpRequest, String resourcePath){
@@ -171,14 +186,17 @@ public class AuthenticationFilter extends GenericFilterBean {
     }
 
     private static class SystemMessageReceiver extends Notifiable {
+        private final Runnable onStartupCompleted;
 
-        SystemMessageReceiver() {
+        SystemMessageReceiver(Runnable onStartupCompleted) {
+            this.onStartupCompleted = onStartupCompleted;
             subscribe(Topic.SYSTEM.value());
         }
 
         @Override
         protected void onMessageReceived(Message message) {
             if (message instanceof StartupCompletedMessage) {
+                onStartupCompleted.run();
                 systemInitialised = true;
             }
         }
@@ -0,0 +1,99 @@
+package ro.cs.tao.services.security.token;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable prefix tree of endpoint patterns.
+ * A pattern matches all the paths that start with its part preceding the first <code>*</code>
+ * (or with the whole pattern, if it has no wildcard). Hence a path is matched in a single pass over its
+ * characters, regardless of the number of patterns.
+ */
+final class EndpointMatcher {
+    private final Node root;
+    private final int size;
+
+    EndpointMatcher(Collection<String> patterns) {
+        final Builder builder = new Builder();
+        for (String pattern : patterns) {
+            final int idx = pattern.indexOf('*');
+            builder.add(idx > 0 ? pattern.substring(0, idx) : pattern);
+        }
+        this.root = builder.build();
+        this.size = patterns.size();
+    }
+
+    /**
+     * Checks if the given path starts with the prefix of any of the patterns.
+     */
+    boolean matches(String path) {
+        Node node = this.root;
+        final int length = path.length();
+        for (int i = 0; ; i++) {
+            if (node.terminal) {
+                return true;
+            }
+            if (i == length) {
+                return false;
+            }
+            node = node.child(path.charAt(i));
+            if (node == null) {
+                return false;
+            }
+        }
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    private static final class Node {
+        private static final char[] NO_KEYS = new char[0];
+        private static final Node[] NO_CHILDREN = new Node[0];
+        // sorted, for binary search
+        private final char[] keys;
+        private final Node[] children;
+        private final boolean terminal;
+
+        private Node(char[] keys, Node[] children, boolean terminal) {
+            this.keys = keys;
+            this.children = children;
+            this.terminal = terminal;
+        }
+
+        private Node child(char c) {
+            final int idx = Arrays.binarySearch(this.keys, c);
+            return idx >= 0 ? this.children[idx] : null;
+        }
+    }
+
+    private static final class Builder {
+        private final Map<Character, Builder> children = new TreeMap<>();
+        private boolean terminal;
+
+        private void add(String prefix) {
+            Builder current = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                current = current.children.computeIfAbsent(prefix.charAt(i), k -> new Builder());
+            }
+            current.terminal = true;
+        }
+
+        private Node build() {
+            if (this.terminal || this.children.isEmpty()) {
+                // the descendants of a terminal node are never reached
+                return new Node(Node.NO_KEYS, Node.NO_CHILDREN, this.terminal);
+            }
+            final char[] keys = new char[this.children.size()];
+            final Node[] nodes = new Node[keys.length];
+            int i = 0;
+            for (Map.Entry<Character, Builder> entry : this.children.entrySet()) {
+                keys[i] = entry.getKey();
+                nodes[i++] = entry.getValue().build();
+            }
+            return new Node(keys, nodes, false);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package ro.cs.tao.services.startup;
 
+import ro.cs.eo.gdal.service.TileSeedingJobListener;
 import ro.cs.tao.configuration.ConfigurationManager;
 import ro.cs.tao.eodata.naming.NameExpressionParser;
 import ro.cs.tao.eodata.naming.TokenResolver;
@@ -22,6 +23,8 @@ public class OrchestratorInitializer extends BaseLifeCycle {
         NodeManager.getInstance().setApplicationId(orchestrator.getId());
         // add the job listener to upload the files to the remote repository
         orchestrator.addJobListener(new JobFilesUpload());
+        // add the job listener to pre-render the tiles of the job outputs
+        orchestrator.addJobListener(new TileSeedingJobListener());
         final ServiceRegistry<TokenResolver> registry = ServiceRegistryManager.getInstance().getServiceRegistry(TokenResolver.class);
         NameExpressionParser.setResolvers(registry.getServices());
         orchestrator.start();
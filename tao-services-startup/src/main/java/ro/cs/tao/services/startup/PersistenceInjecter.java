@@ -21,6 +21,7 @@ import ro.cs.tao.services.commons.ContainerTunnelFilter;
 import ro.cs.tao.services.factory.StorageServiceFactory;
 import ro.cs.tao.services.model.ItemAction;
 import ro.cs.tao.services.security.CustomAuthenticationProvider;
+import ro.cs.tao.services.security.SharedTokenCache;
 import ro.cs.tao.services.security.SpringSessionProvider;
 import ro.cs.tao.spi.ServiceRegistry;
 import ro.cs.tao.spi.ServiceRegistryManager;
@@ -123,6 +124,7 @@ public class PersistenceInjecter extends BaseLifeCycle {
             }
         }
         CustomAuthenticationProvider.setPersistenceManager(this.persistenceManager);
+        SharedTokenCache.setUserProvider(this.persistenceManager.users());
         StorageServiceFactory.setProductProvider(this.persistenceManager.rasterData());
         StorageServiceFactory.setVectorDataProvider(this.persistenceManager.vectorData());
         StorageServiceFactory.setAuxiliaryDataProvider(this.persistenceManager.auxiliaryData());
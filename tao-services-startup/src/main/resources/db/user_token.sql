@@ -0,0 +1,14 @@
+-- Tokens shared by the service nodes when token.store=database (see ro.cs.tao.services.security.DatabaseTokenStore).
+-- The script is run by DatabaseTokenStore when the table does not exist.
+-- Only the SHA-256 hashes (hex) of the access and refresh tokens are stored; a user has one row per session.
+CREATE TABLE IF NOT EXISTS usr.user_token
+(
+    token_hash      character(64) NOT NULL PRIMARY KEY,
+    user_id         character varying(255) NOT NULL,
+    refresh_hash    character(64),
+    expires_at      timestamp without time zone NOT NULL
+);
+
+CREATE INDEX IF NOT EXISTS ix_user_token_user ON usr.user_token (user_id);
+CREATE INDEX IF NOT EXISTS ix_user_token_refresh ON usr.user_token (refresh_hash);
+CREATE INDEX IF NOT EXISTS ix_user_token_expires ON usr.user_token (expires_at);
@@ -0,0 +1,115 @@
+package ro.cs.tao.services.security.token;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ro.cs.tao.services.commons.Endpoints;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-request overhead of the {@link AuthenticationFilter} for requests without a token,
+ * and the endpoint matching alone (compared with the former linear scan of the endpoint patterns).
+ * Run with: <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=ro.cs.tao.services.security.token.AuthenticationFilterBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthenticationFilterBenchmark {
+    private AuthenticationFilter filter;
+    private EndpointMatcher matcher;
+    private Set<String> endpoints;
+    private HttpServletRequest protectedRequest;
+    private HttpServletRequest publicRequest;
+    private HttpServletResponse response;
+    private FilterChain chain;
+
+    @Param({ "/workflow/list", "/ui/index.html" })
+    public String path;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        this.filter = new AuthenticationFilter(authentication -> authentication);
+        final Field initialised = AuthenticationFilter.class.getDeclaredField("systemInitialised");
+        initialised.setAccessible(true);
+        initialised.set(null, true);
+        this.filter.refreshEndpoints();
+        this.endpoints = Endpoints.endpoints("ro.cs.tao");
+        this.matcher = new EndpointMatcher(this.endpoints);
+        this.protectedRequest = request("/workflow/list");
+        this.publicRequest = request("/ui/index.html");
+        this.response = stub(HttpServletResponse.class, new HashMap<>());
+        this.chain = (request, response) -> { };
+    }
+
+    @Benchmark
+    public void filterProtectedResource() throws IOException, ServletException {
+        this.filter.doFilter(this.protectedRequest, this.response, this.chain);
+    }
+
+    @Benchmark
+    public void filterPublicResource() throws IOException, ServletException {
+        this.filter.doFilter(this.publicRequest, this.response, this.chain);
+    }
+
+    @Benchmark
+    public boolean matchEndpoint() {
+        return this.matcher.matches(this.path);
+    }
+
+    @Benchmark
+    public boolean scanEndpoints() {
+        return this.endpoints.stream().anyMatch(e -> e.indexOf('*') > 0
+                ? this.path.startsWith(e.substring(0, e.indexOf('*')))
+                : this.path.startsWith(e));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        final Options options = new OptionsBuilder().include(AuthenticationFilterBenchmark.class.getSimpleName()).build();
+        new Runner(options).run();
+    }
+
+    private static HttpServletRequest request(String uri) {
+        final Map<String, Object> values = new HashMap<>();
+        values.put("getRequestURI", uri);
+        values.put("getContextPath", "");
+        values.put("getServletPath", uri);
+        values.put("getMethod", "GET");
+        values.put("getRemoteAddr", "127.0.0.1");
+        return stub(HttpServletRequest.class, values);
+    }
+
+    private static <T> T stub(Class<T> type, Map<String, Object> values) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+            final Object value = values.get(method.getName());
+            if (value != null) {
+                return value;
+            }
+            final Class<?> returnType = method.getReturnType();
+            if (returnType == boolean.class) {
+                return false;
+            } else if (returnType == int.class) {
+                return 0;
+            } else if (returnType == long.class) {
+                return 0L;
+            }
+            return null;
+        }));
+    }
+}
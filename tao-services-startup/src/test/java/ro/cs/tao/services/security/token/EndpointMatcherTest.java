@@ -0,0 +1,63 @@
+package ro.cs.tao.services.security.token;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EndpointMatcherTest {
+
+    @Test
+    public void noPatternMatchesNothing() {
+        final EndpointMatcher matcher = new EndpointMatcher(Collections.emptyList());
+        assertEquals(0, matcher.size());
+        assertFalse(matcher.matches("/workflow/"));
+        assertFalse(matcher.matches(""));
+    }
+
+    @Test
+    public void wildcardPatternMatchesItsPrefix() {
+        final EndpointMatcher matcher = new EndpointMatcher(Arrays.asList("/workflow/**", "/files/*/download"));
+        assertTrue(matcher.matches("/workflow/"));
+        assertTrue(matcher.matches("/workflow/12/nodes"));
+        // the part after the first wildcard is ignored
+        assertTrue(matcher.matches("/files/"));
+        assertTrue(matcher.matches("/files/a/upload"));
+        assertFalse(matcher.matches("/workflow"));
+        assertFalse(matcher.matches("/file"));
+        assertFalse(matcher.matches("/orchestrator/"));
+    }
+
+    @Test
+    public void patternWithoutWildcardMatchesThePathsStartingWithIt() {
+        final EndpointMatcher matcher = new EndpointMatcher(Collections.singletonList("/monitor"));
+        assertTrue(matcher.matches("/monitor"));
+        assertTrue(matcher.matches("/monitor/notification"));
+        assertTrue(matcher.matches("/monitoring"));
+        assertFalse(matcher.matches("/moni"));
+        assertFalse(matcher.matches("monitor"));
+    }
+
+    @Test
+    public void sharedAndNestedPrefixes() {
+        final EndpointMatcher matcher = new EndpointMatcher(Arrays.asList("/data/query/*", "/data/*", "/datasource/**"));
+        assertEquals(3, matcher.size());
+        assertTrue(matcher.matches("/data/"));
+        assertTrue(matcher.matches("/data/query/x"));
+        assertTrue(matcher.matches("/datasource/"));
+        assertFalse(matcher.matches("/data"));
+        assertFalse(matcher.matches("/dataset/"));
+    }
+
+    @Test
+    public void leadingWildcardIsMatchedLiterally() {
+        // a pattern starting with a wildcard is kept whole, hence it is matched literally
+        final EndpointMatcher matcher = new EndpointMatcher(Collections.singletonList("*"));
+        assertTrue(matcher.matches("*"));
+        assertFalse(matcher.matches("/workflow/"));
+    }
+}
@@ -0,0 +1,164 @@
+package ro.cs.eo.gdal.reader;
+
+import ro.cs.eo.gdal.dataio.drivers.Dataset;
+import ro.cs.eo.gdal.dataio.drivers.GDAL;
+import ro.cs.eo.gdal.dataio.drivers.GDALConst;
+
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Pool of read-only GDAL dataset handles, keyed by file.
+ * Opening large (JP2, SAFE) products is expensive, so the handles are kept open after use and lent again
+ * to subsequent tile computations. Since a GDAL dataset must not be used concurrently, a handle is lent
+ * exclusively to one thread until it is released; concurrent readers of the same file get distinct handles.
+ * At most <code>maxIdle</code> idle handles are retained (the least recently used are closed first),
+ * and handles that were not used for <code>maxIdleMillis</code> are closed by a background timer.
+ */
+final class DatasetPool {
+    private final int maxIdle;
+    private final long maxIdleMillis;
+    // idle handles per file, the most recently released first
+    private final Map<Path, Deque<Handle>> idle;
+    // handles lent at the moment, with their file
+    private final Map<Dataset, Path> lent;
+    // lent handles whose file was invalidated, to be closed when released
+    private final Set<Dataset> stale;
+    private int idleCount;
+
+    DatasetPool(int maxIdle, long maxIdleMillis) {
+        this.maxIdle = Math.max(0, maxIdle);
+        this.maxIdleMillis = maxIdleMillis;
+        this.idle = new HashMap<>();
+        this.lent = new IdentityHashMap<>();
+        this.stale = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Timer evictor = new Timer("dataset-pool-evictor", true);
+        evictor.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                evictIdle(System.currentTimeMillis() - DatasetPool.this.maxIdleMillis);
+            }
+        }, maxIdleMillis, maxIdleMillis);
+    }
+
+    /**
+     * Returns an open dataset for the given file, which must be given back with {@link #release(Path, Dataset)}.
+     */
+    Dataset borrow(Path file) {
+        synchronized (this) {
+            final Deque<Handle> handles = this.idle.get(file);
+            if (handles != null && !handles.isEmpty()) {
+                final Handle handle = handles.pollFirst();
+                this.idleCount--;
+                if (handles.isEmpty()) {
+                    this.idle.remove(file);
+                }
+                this.lent.put(handle.dataset, file);
+                return handle.dataset;
+            }
+        }
+        final Dataset dataset = GDAL.open(file.toAbsolutePath().toString(), GDALConst.gaReadonly());
+        if (dataset == null) {
+            throw new IllegalStateException("Fail to open Dataset for file: " + file + ". " + GDAL.getLastErrorMsg());
+        }
+        synchronized (this) {
+            this.lent.put(dataset, file);
+        }
+        return dataset;
+    }
+
+    /**
+     * Gives back a dataset obtained with {@link #borrow(Path)}.
+     */
+    void release(Path file, Dataset dataset) {
+        if (dataset == null) {
+            return;
+        }
+        final List<Dataset> toClose = new ArrayList<>();
+        synchronized (this) {
+            this.lent.remove(dataset);
+            if (this.stale.remove(dataset) || this.maxIdle == 0) {
+                toClose.add(dataset);
+            } else {
+                this.idle.computeIfAbsent(file, k -> new ArrayDeque<>()).addFirst(new Handle(dataset, System.currentTimeMillis()));
+                this.idleCount++;
+                while (this.idleCount > this.maxIdle) {
+                    toClose.add(removeOldest());
+                }
+            }
+        }
+        toClose.forEach(Dataset::delete);
+    }
+
+    /**
+     * Closes all the idle handles of the given file (or of the files under it, if it is a folder).
+     * The handles that are lent at that moment are closed when they are released.
+     */
+    void invalidate(Path path) {
+        final List<Dataset> toClose = new ArrayList<>();
+        synchronized (this) {
+            final Iterator<Map.Entry<Path, Deque<Handle>>> iterator = this.idle.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<Path, Deque<Handle>> entry = iterator.next();
+                if (entry.getKey().startsWith(path)) {
+                    entry.getValue().forEach(h -> toClose.add(h.dataset));
+                    this.idleCount -= entry.getValue().size();
+                    iterator.remove();
+                }
+            }
+            this.lent.forEach((dataset, file) -> {
+                if (file.startsWith(path)) {
+                    this.stale.add(dataset);
+                }
+            });
+        }
+        toClose.forEach(Dataset::delete);
+    }
+
+    private void evictIdle(long before) {
+        final List<Dataset> toClose = new ArrayList<>();
+        synchronized (this) {
+            final Iterator<Deque<Handle>> iterator = this.idle.values().iterator();
+            while (iterator.hasNext()) {
+                final Deque<Handle> handles = iterator.next();
+                while (!handles.isEmpty() && handles.peekLast().lastUsed < before) {
+                    toClose.add(handles.pollLast().dataset);
+                    this.idleCount--;
+                }
+                if (handles.isEmpty()) {
+                    iterator.remove();
+                }
+            }
+        }
+        toClose.forEach(Dataset::delete);
+    }
+
+    private Dataset removeOldest() {
+        Path oldestFile = null;
+        long oldest = Long.MAX_VALUE;
+        for (Map.Entry<Path, Deque<Handle>> entry : this.idle.entrySet()) {
+            final Handle last = entry.getValue().peekLast();
+            if (last != null && last.lastUsed < oldest) {
+                oldest = last.lastUsed;
+                oldestFile = entry.getKey();
+            }
+        }
+        final Deque<Handle> handles = this.idle.get(oldestFile);
+        final Handle handle = handles.pollLast();
+        if (handles.isEmpty()) {
+            this.idle.remove(oldestFile);
+        }
+        this.idleCount--;
+        return handle.dataset;
+    }
+
+    private static class Handle {
+        private final Dataset dataset;
+        private final long lastUsed;
+
+        private Handle(Dataset dataset, long lastUsed) {
+            this.dataset = dataset;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package ro.cs.eo.gdal.reader;
+
+import ro.cs.eo.gdal.dataio.drivers.Dataset;
+
+import java.lang.reflect.Method;
+
+/**
+ * Access to the GDAL /vsimem virtual file system.
+ * The driver wrappers do not expose the VSI functions, hence they are invoked on the native GDAL class,
+ * resolved through the class loader that loaded the native dataset.
+ */
+final class MemoryFiles {
+    static final String PREFIX = "/vsimem/";
+    private static final String GDAL_CLASS = "org.gdal.gdal.gdal";
+    private static volatile Method getBufferMethod;
+    private static volatile Method unlinkMethod;
+
+    private MemoryFiles() { }
+
+    /**
+     * Returns the contents of the given in-memory file and removes it (and its auxiliary file, if any).
+     *
+     * @param anyDataset    A dataset opened by the same GDAL library (used only to locate the native classes)
+     * @param memFileName   The /vsimem path
+     */
+    static byte[] readAndUnlink(Dataset anyDataset, String memFileName) {
+        if (!memFileName.startsWith(PREFIX)) {
+            throw new IllegalArgumentException("Not an in-memory file: " + memFileName);
+        }
+        resolve(anyDataset);
+        try {
+            final byte[] data = (byte[]) getBufferMethod.invoke(null, memFileName);
+            if (data == null) {
+                throw new IllegalStateException("In-memory file " + memFileName + " not found");
+            }
+            return data;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot read in-memory file " + memFileName, e);
+        } finally {
+            unlink(memFileName);
+            unlink(memFileName + ".aux.xml");
+        }
+    }
+
+    private static void unlink(String memFileName) {
+        try {
+            unlinkMethod.invoke(null, memFileName);
+        } catch (ReflectiveOperationException ignored) {
+            // the file may not exist
+        }
+    }
+
+    private static void resolve(Dataset anyDataset) {
+        if (getBufferMethod == null) {
+            synchronized (MemoryFiles.class) {
+                if (getBufferMethod == null) {
+                    try {
+                        final ClassLoader loader = anyDataset.getJniDatasetInstance().getClass().getClassLoader();
+                        final Class<?> gdalClass = Class.forName(GDAL_CLASS, true, loader);
+                        unlinkMethod = gdalClass.getMethod("Unlink", String.class);
+                        getBufferMethod = gdalClass.getMethod("GetMemFileBuffer", String.class);
+                    } catch (ReflectiveOperationException e) {
+                        throw new IllegalStateException("GDAL in-memory file functions are not available", e);
+                    }
+                }
+            }
+        }
+    }
+}
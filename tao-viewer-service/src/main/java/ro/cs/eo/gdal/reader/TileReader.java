@@ -4,6 +4,8 @@ import ro.cs.eo.gdal.dataio.GDALTileCache;
 import ro.cs.eo.gdal.dataio.drivers.*;
 import ro.cs.eo.gdal.reader.info.FormatDescriptor;
 import ro.cs.eo.gdal.reader.info.ProductDescriptor;
+import ro.cs.tao.configuration.ConfigurationManager;
+import ro.cs.tao.configuration.ConfigurationProvider;
 import ro.cs.tao.utils.Triple;
 
 import java.io.IOException;
@@ -11,16 +13,29 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class TileReader {
-    private static SpatialReference destReference;
+    /**
+     * The deepest zoom level supported by the viewer
+     */
+    public static final byte MAX_ZOOM = 20;
+    private static volatile SpatialReference destReference;
     private static final Config config;
     private static final Map<Path, Triple<Extent, double[], LocalDateTime>> scaleCache;
     private static final Timer evictor;
+    private static final DatasetPool datasetPool;
+    // source projection (WKT) to web mercator transformations
+    private static final Map<String, CoordinateTransformation> transformations;
+    private static volatile int warpThreads = 1;
     private final GDALTileCache gdalTileCache;
 
     static {
         config = Config.getWebMercatorConfig();
+        final ConfigurationProvider configuration = ConfigurationManager.getInstance();
+        datasetPool = new DatasetPool(Integer.parseInt(configuration.getValue("viewer.dataset.pool.size", "32")),
+                                      Long.parseLong(configuration.getValue("viewer.dataset.pool.idle.minutes", "5")) * 60000L);
+        transformations = new ConcurrentHashMap<>();
         scaleCache = Collections.synchronizedMap(new HashMap<>());
         evictor = new Timer();
         evictor.schedule(new TimerTask() {
@@ -44,49 +59,151 @@ public class TileReader {
         return triple != null ? triple.getKeyTwo() : null;
     }
 
+    /**
+     * Closes the pooled dataset handles of the bands of the given product, so that the next tiles are read
+     * from the current files (for example, after the product was regenerated).
+     */
+    public static void invalidate(ProductDescriptor productDescriptor) {
+        for (Path bandPath : productDescriptor.getBandPaths()) {
+            datasetPool.invalidate(bandPath);
+        }
+    }
+
+    /**
+     * Sets the number of threads used by GDAL for warping a tile.
+     */
+    public static void setWarpThreads(int threads) {
+        warpThreads = Math.max(1, threads);
+    }
+
+    /**
+     * Tells if the tile row index increases northwards (i.e. the upper half of a tile (x,y,z)
+     * is covered by the tiles (2x,2y+1,z+1) and (2x+1,2y+1,z+1)).
+     */
+    public static boolean isYAxisUp() {
+        return !config.reverseY;
+    }
+
     public TileReader(GDALTileCache gdalTileCache) {
         this.gdalTileCache = gdalTileCache;
     }
 
     public void computeTile(ProductDescriptor productDescriptor, Path tileFilePath, int x, int y, byte z) throws IOException {
-        Dataset[] gdalDatasets = null;
+        Files.createDirectories(tileFilePath.getParent());
+        render(productDescriptor, tileFilePath.toString(), x, y, z);
+        if (this.gdalTileCache.isCacheEnabled()){
+            final long tileSize = Files.size(tileFilePath);
+            this.gdalTileCache.putTile(tileFilePath, tileSize);
+        }
+    }
+
+    /**
+     * Computes the tile entirely in the GDAL virtual memory file system and returns the PNG bytes.
+     * Nothing is written on the local disk.
+     */
+    public byte[] renderTile(ProductDescriptor productDescriptor, int x, int y, byte z) {
+        final String memFileName = MemoryFiles.PREFIX + UUID.randomUUID() + ".png";
+        return render(productDescriptor, memFileName, x, y, z);
+    }
+
+    /**
+     * Renders the tile into the given target. If the target is a /vsimem file, its contents are returned
+     * (and the in-memory file released), otherwise the method returns <code>null</code>.
+     */
+    private byte[] render(ProductDescriptor productDescriptor, String target, int x, int y, byte z) {
+        Map<Path, Dataset> gdalDatasets = null;
         Dataset vrtDataset = null;
         Dataset warpDataset = null;
         Dataset translateDataset = null;
+        final boolean inMemory = target.startsWith(MemoryFiles.PREFIX);
         try {
             GDAL.useExceptions();
-            //if (!Files.exists(tileFilePath)) {
-            Files.createDirectories(tileFilePath.getParent());
             if (config.reverseY) {
                 y = (1 << z) - 1 - y;
             }
             final Extent tileExtent = config.tileGrid.tileExtent(x, y, z);
             gdalDatasets = prepareDatasets(productDescriptor, tileExtent);
-            vrtDataset = buildVRTDataset(productDescriptor, gdalDatasets);
-            final String tmpFileName = "/vsimem/" + System.currentTimeMillis() + ".tif";
+            vrtDataset = buildVRTDataset(productDescriptor, gdalDatasets.values().toArray(new Dataset[0]));
+            final String tmpFileName = MemoryFiles.PREFIX + UUID.randomUUID() + ".tif";
             warpDataset = buildWarpedDataset(productDescriptor, tileExtent, vrtDataset, tmpFileName);
-            translateDataset = buildTranslatedDataset(productDescriptor, warpDataset, tileFilePath.toString());
-            if (this.gdalTileCache.isCacheEnabled()){
-                final long tileSize = Files.size(tileFilePath);
-                this.gdalTileCache.putTile(tileFilePath, tileSize);
+            translateDataset = buildTranslatedDataset(productDescriptor, warpDataset, target);
+            if (inMemory) {
+                // closing the dataset flushes the PNG into the memory file
+                translateDataset.delete();
+                translateDataset = null;
+                return MemoryFiles.readAndUnlink(warpDataset, target);
             }
-            //}
+            return null;
         } finally {
-            if (gdalDatasets != null) {
-                for (Dataset gdalDataset : gdalDatasets) {
-                    deleteDataset(gdalDataset, false);
-                }
+            if (translateDataset != null) {
+                deleteDataset(translateDataset, false);
+            }
+            if (warpDataset != null) {
+                deleteDataset(warpDataset, false);
             }
             if (vrtDataset != null) {
                 deleteDataset(vrtDataset, false);
             }
-            if (warpDataset != null) {
-                deleteDataset(warpDataset, false);
+            if (gdalDatasets != null) {
+                gdalDatasets.forEach(datasetPool::release);
             }
-            if (translateDataset != null) {
-                deleteDataset(translateDataset, false);
+        }
+    }
+
+    /**
+     * Returns the range of tiles of the given zoom level that cover the product, as [minX, minY, maxX, maxY].
+     */
+    public int[] tileRange(ProductDescriptor productDescriptor, byte z) {
+        final Path productPath = productDescriptor.getProductPath();
+        Triple<Extent, double[], LocalDateTime> triple = scaleCache.get(productPath);
+        final Extent imageExtent;
+        if (triple != null) {
+            imageExtent = triple.getKeyOne();
+        } else {
+            final Path bandPath = productDescriptor.getBandPaths()[0];
+            final Dataset gdalDataset = datasetPool.borrow(bandPath);
+            try {
+                imageExtent = computeImageExtent(gdalDataset);
+            } finally {
+                datasetPool.release(bandPath, gdalDataset);
             }
         }
+        final Extent gridExtent = config.tileGrid.extent;
+        final int tiles = 1 << z;
+        final double tileW = (gridExtent.xmax - gridExtent.xmin) / tiles;
+        final double tileH = (gridExtent.ymax - gridExtent.ymin) / tiles;
+        final int minX = Math.max(0, (int) Math.floor((imageExtent.xmin - gridExtent.xmin) / tileW));
+        final int maxX = Math.min(tiles - 1, (int) Math.floor((imageExtent.xmax - gridExtent.xmin) / tileW));
+        int minY = Math.max(0, (int) Math.floor((imageExtent.ymin - gridExtent.ymin) / tileH));
+        int maxY = Math.min(tiles - 1, (int) Math.floor((imageExtent.ymax - gridExtent.ymin) / tileH));
+        if (config.reverseY) {
+            final int tmp = minY;
+            minY = tiles - 1 - maxY;
+            maxY = tiles - 1 - tmp;
+        }
+        return new int[] { minX, minY, maxX, maxY };
+    }
+
+    /**
+     * Returns the zoom level whose resolution is the closest to the native resolution of the product
+     * (the deepest level that still brings new pixels), at most {@link #MAX_ZOOM}.
+     */
+    public byte nativeZoom(ProductDescriptor productDescriptor) {
+        final Path bandPath = productDescriptor.getBandPaths()[0];
+        final Dataset gdalDataset = datasetPool.borrow(bandPath);
+        final double pixelSize;
+        try {
+            final Extent imageExtent = computeImageExtent(gdalDataset);
+            pixelSize = (imageExtent.xmax - imageExtent.xmin) / gdalDataset.getRasterXSize();
+        } finally {
+            datasetPool.release(bandPath, gdalDataset);
+        }
+        if (!(pixelSize > 0)) {
+            return MAX_ZOOM;
+        }
+        final double levelZeroPixelSize = (config.tileGrid.extent.xmax - config.tileGrid.extent.xmin) / config.tileWidth;
+        final long zoom = Math.round(Math.log(levelZeroPixelSize / pixelSize) / Math.log(2));
+        return (byte) Math.max(0, Math.min(MAX_ZOOM, zoom));
     }
 
     public ImageInfo getInfo(ProductDescriptor productDescriptor) {
@@ -107,34 +224,46 @@ public class TileReader {
             resolutions.append(resolution);
         }
         resolutions.append("]");
-        String path = productDescriptor.getBandPaths()[0].toAbsolutePath().toString();
-        final Dataset gdalDataset = GDAL.open(path, GDALConst.gaReadonly());
-        if (gdalDataset == null) {
-            throw new IllegalStateException("Fail to open Dataset for file: " + productFilePath + ". " + GDAL.getLastErrorMsg());
+        final Path bandPath = productDescriptor.getBandPaths()[0];
+        final Dataset gdalDataset = datasetPool.borrow(bandPath);
+        final Extent imageExtent;
+        try {
+            imageExtent = computeImageExtent(gdalDataset);
+        } finally {
+            datasetPool.release(bandPath, gdalDataset);
         }
-        final Extent imageExtent = computeImageExtent(gdalDataset);
-        deleteDataset(gdalDataset, false);
         final String projectionExtent = "[" + imageExtent.xmin + ", " + imageExtent.ymin + ", " + imageExtent.xmax + ", " + imageExtent.ymax + "]";
         final String center = "[" + (imageExtent.xmin + (imageExtent.xmax - imageExtent.xmin) / 2) + "," + (imageExtent.ymin + (imageExtent.ymax - imageExtent.ymin) / 2) + "]";
         return new ImageInfo(name, projectionCode, projectionUnit, projectionExtent, tileGrid, extent, resolutions.toString(), "0", String.valueOf(z), center);
     }
 
     private static double[] translateImagePointToMercatorPoint(Dataset imageDataset, double x, double y) {
-        final SpatialReference sourceSpatialReference = new SpatialReference();
-        String projectionRef = imageDataset.getProjectionRef();
+        final String projectionRef = imageDataset.getProjectionRef();
         if (projectionRef.isEmpty()) {
             throw new IllegalArgumentException("Missing Geo-localisation data from dataset.");
         }
+        final CoordinateTransformation coordinateTransformation = transformations.computeIfAbsent(projectionRef, TileReader::createTransformation);
+        // a transformation object is not safe to be used concurrently
+        synchronized (coordinateTransformation) {
+            return coordinateTransformation.transformPoint(x, y);
+        }
+    }
+
+    private static CoordinateTransformation createTransformation(String projectionRef) {
+        final SpatialReference sourceSpatialReference = new SpatialReference();
         if (!GDALConstConstants.ceNone().equals(sourceSpatialReference.importFromWkt(projectionRef))) {
             throw new IllegalStateException("Unable to import Spatial Reference " + projectionRef + " from WKT. " + GDAL.getLastErrorMsg());
         }
         sourceSpatialReference.setAxisMappingStrategy(0);
         if (destReference == null) {
             synchronized (TileReader.class) {
-                destReference = new SpatialReference();
-                final int statusCode = destReference.importFromEPSG(3857);
-                if (!GDALConstConstants.ceNone().equals(statusCode) || destReference.getJniSpatialReferenceInstance().toString().isEmpty()) {
-                    throw new IllegalStateException("Unable to import Spatial Reference from EPSG:3857! " + GDAL.getLastErrorMsg());
+                if (destReference == null) {
+                    final SpatialReference reference = new SpatialReference();
+                    final int statusCode = reference.importFromEPSG(3857);
+                    if (!GDALConstConstants.ceNone().equals(statusCode) || reference.getJniSpatialReferenceInstance().toString().isEmpty()) {
+                        throw new IllegalStateException("Unable to import Spatial Reference from EPSG:3857! " + GDAL.getLastErrorMsg());
+                    }
+                    destReference = reference;
                 }
             }
         }
@@ -142,7 +271,7 @@ public class TileReader {
         if (coordinateTransformation == null) {
             throw new RuntimeException("Cannot obtain coordinateTransformation");
         }
-        return coordinateTransformation.transformPoint(x, y);
+        return coordinateTransformation;
     }
 
     private static Extent computeImageExtent(Dataset gdalDataset) {
@@ -178,30 +307,31 @@ public class TileReader {
         }
     }
 
-    private static Dataset[] prepareDatasets(ProductDescriptor productDescriptor, Extent tileExtent) {
-        final List<Dataset> gdalDatasets = new ArrayList<>();
+    private static Map<Path, Dataset> prepareDatasets(ProductDescriptor productDescriptor, Extent tileExtent) {
+        final Map<Path, Dataset> gdalDatasets = new LinkedHashMap<>();
         final Path[] productBandsPaths = productDescriptor.getBandPaths();
         final Path productPath = productDescriptor.getProductPath();
-        for (Path productBandsPath : productBandsPaths) {
-            final Dataset gdalDataset = GDAL.open(productBandsPath.toAbsolutePath().toString(), GDALConst.gaReadonly());
-            if (gdalDataset == null) {
-                throw new IllegalStateException("Fail to open Dataset for file: " + productBandsPath + ". " + GDAL.getLastErrorMsg());
-            }
-            if (!scaleCache.containsKey(productPath)) {
-                scaleCache.put(productPath, new Triple<>(computeImageExtent(gdalDataset), new double[0], LocalDateTime.now()));
-            }
-            final Triple<Extent, double[], LocalDateTime> triple = scaleCache.get(productPath);
-            if (tileInsideImage(triple.getKeyOne(), tileExtent)) {
-                gdalDatasets.add(gdalDataset);
-            } else {
-                deleteDataset(gdalDataset, false);
+        try {
+            for (Path productBandsPath : productBandsPaths) {
+                final Dataset gdalDataset = datasetPool.borrow(productBandsPath);
+                gdalDatasets.put(productBandsPath, gdalDataset);
+                if (!scaleCache.containsKey(productPath)) {
+                    scaleCache.put(productPath, new Triple<>(computeImageExtent(gdalDataset), new double[0], LocalDateTime.now()));
+                }
+                final Triple<Extent, double[], LocalDateTime> triple = scaleCache.get(productPath);
+                if (!tileInsideImage(triple.getKeyOne(), tileExtent)) {
+                    gdalDatasets.remove(productBandsPath);
+                    datasetPool.release(productBandsPath, gdalDataset);
+                }
             }
+        } catch (RuntimeException e) {
+            gdalDatasets.forEach(datasetPool::release);
+            throw e;
         }
         if (gdalDatasets.size() < 1) {
             throw new IndexOutOfBoundsException("Tile out of bounds.");
         }
-
-        return gdalDatasets.toArray(new Dataset[0]);
+        return gdalDatasets;
     }
 
     private static Dataset buildVRTDataset(ProductDescriptor productDescriptor, Dataset[] gdalDatasets) {
@@ -217,7 +347,7 @@ public class TileReader {
         if (gdalDatasets.length > 1 && formatDescriptor.multiRaster()) {
             vrtOptions.add("-separate");
         }
-        final String tempVrtFileName = "/vsimem/" + System.currentTimeMillis() + ".vrt";
+        final String tempVrtFileName = MemoryFiles.PREFIX + UUID.randomUUID() + ".vrt";
         Dataset vrtDataset = GDAL.buildVRT(tempVrtFileName, gdalDatasets, new BuildVRTOptions(vrtOptions));
         if (vrtDataset == null) {
             throw new IllegalStateException("Fail to build VRT dataset. " + GDAL.getLastErrorMsg());
@@ -244,9 +374,11 @@ public class TileReader {
             warpOptions.add("-dstnodata");
             warpOptions.add("0");
         }
-        warpOptions.add("-multi");
-        warpOptions.add("-wo");
-        warpOptions.add("NUM_THREADS=ALL_CPUS");
+        if (warpThreads > 1) {
+            warpOptions.add("-multi");
+            warpOptions.add("-wo");
+            warpOptions.add("NUM_THREADS=" + warpThreads);
+        }
         if (gdalDataset.getRasterCount() == 1 || gdalDataset.getRasterCount() == 3) {
             warpOptions.add("-dstalpha");
         }
@@ -1,5 +1,7 @@
 package ro.cs.eo.gdal.service;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
 import org.springframework.stereotype.Service;
 import ro.cs.eo.gdal.dataio.GDALTileCache;
 import ro.cs.eo.gdal.dataio.Keys;
@@ -11,17 +13,61 @@ import ro.cs.tao.configuration.ConfigurationProvider;
 import ro.cs.tao.utils.executors.MemoryUnit;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 @Service("TileMap")
 public class GDALTileMapService {
 
+    /**
+     * Tile rendering mode: "disk" (the tile is rendered into the cache directory and then read back)
+     * or "memory" (the tile is rendered in /vsimem and, if the cache is enabled, persisted in background)
+     */
+    private static final String CONFIG_RENDER_MODE_KEY = "viewer.tile.render.mode";
+    /**
+     * Size (in MB) of the in-heap tile cache. 0 disables it.
+     */
+    private static final String CONFIG_MEMORY_CACHE_SIZE_KEY = "viewer.tile.memory.cache.size";
+    /**
+     * Number of threads rendering tiles (default: half of the processors)
+     */
+    private static final String CONFIG_RENDER_THREADS_KEY = "viewer.render.threads";
+    /**
+     * Maximum number of tiles waiting to be rendered, above which requests are rejected
+     */
+    private static final String CONFIG_RENDER_QUEUE_KEY = "viewer.render.queue.size";
+    /**
+     * Maximum number of rendered tiles waiting to be persisted in the cache, above which new tiles are not persisted
+     */
+    private static final String CONFIG_CACHE_WRITER_QUEUE_KEY = "viewer.cache.writer.queue.size";
     private static final String regEx = "^(.*?)\\..*$";
+    private final Logger logger = Logger.getLogger(GDALTileMapService.class.getName());
     private final TileReader tileReader;
 
     private final GDALTileCache gdalTileCache;
+    private final TileMemoryCache memoryCache;
+    // tiles being computed, so that concurrent requests for the same tile wait for a single computation
+    private final ConcurrentHashMap<TileKey, CompletableFuture<byte[]>> inFlight;
+    private final Counter coalesced;
+    private final TileRenderExecutor renderExecutor;
+    private final boolean renderInMemory;
+    private final ExecutorService cacheWriter;
+    // last modification time of the products seen, to detect the products that were regenerated
+    private final ConcurrentHashMap<Path, FileTime> productTimes;
 
     public GDALTileMapService() {
         ConfigurationProvider config = ConfigurationManager.getInstance();
@@ -31,32 +77,69 @@ public class GDALTileMapService {
         final boolean cacheClearAtStartup = Boolean.parseBoolean(config.getValue(Keys.CONFIG_CACHE_CLEAR_AT_STARTUP_KEY, "false"));
         this.gdalTileCache = new GDALTileCache(cacheEnabled, path, size, cacheClearAtStartup);
         this.tileReader = new TileReader(this.gdalTileCache);
+        this.memoryCache = new TileMemoryCache(Long.parseLong(config.getValue(CONFIG_MEMORY_CACHE_SIZE_KEY, "128")) * MemoryUnit.MB.value());
+        this.inFlight = new ConcurrentHashMap<>();
+        this.productTimes = new ConcurrentHashMap<>();
+        this.coalesced = Metrics.counter("viewer.tile.coalesced");
+        final int processors = Runtime.getRuntime().availableProcessors();
+        this.renderExecutor = new TileRenderExecutor(Integer.parseInt(config.getValue(CONFIG_RENDER_THREADS_KEY, String.valueOf(Math.max(1, processors / 2)))),
+                                                     Integer.parseInt(config.getValue(CONFIG_RENDER_QUEUE_KEY, "256")));
+        // each warp gets its share of the processors, instead of all of them
+        TileReader.setWarpThreads(Math.max(1, processors / this.renderExecutor.getThreads()));
+        this.renderInMemory = "memory".equalsIgnoreCase(config.getValue(CONFIG_RENDER_MODE_KEY, "disk"));
+        this.cacheWriter = this.renderInMemory && cacheEnabled
+                           ? createCacheWriter(Integer.parseInt(config.getValue(CONFIG_CACHE_WRITER_QUEUE_KEY, "1024")))
+                           : null;
     }
 
     public void setCacheDirPath(Path cacheDirPath) {
         this.gdalTileCache.setCacheDirPath(cacheDirPath);
+        this.memoryCache.clear();
     }
 
-    public byte[] getGDALTile(ProductDescriptor productDescriptor, byte z, int x, int y) throws FileNotFoundException {
+    /**
+     * Discards the in-memory tiles and the open dataset handles of the given product
+     * (for example, after its pixel scale was changed or after it was regenerated).
+     */
+    public void invalidate(ProductDescriptor productDescriptor) {
+        this.memoryCache.invalidate(productDescriptor.getProductPath());
+        TileReader.invalidate(productDescriptor);
+    }
+
+    /**
+     * Returns the PNG image of the given tile, rendering it if needed.
+     *
+     * @param user  The user on behalf of which the tile is rendered (tiles are scheduled fairly among users)
+     * @throws RejectedExecutionException if too many tiles are waiting to be rendered
+     */
+    public byte[] getGDALTile(ProductDescriptor productDescriptor, byte z, int x, int y, String user) throws FileNotFoundException {
         try {
             final Path sourceLocalFilePath = productDescriptor.getProductPath();
             if (Files.exists(sourceLocalFilePath)) {
-                final String imageFileName = sourceLocalFilePath.getFileName().toString().replaceAll(regEx, "$1");
-                Path tileFilePath = this.gdalTileCache.getTilePath(imageFileName, x, y, z, productDescriptor.getPixelMinScale(), productDescriptor.getPixelMaxScale());
-                if (Files.notExists(tileFilePath)) {
-                    this.tileReader.computeTile(productDescriptor, tileFilePath, x, y, z);
-                }
-                return Files.readAllBytes(tileFilePath);
+                invalidateIfModified(productDescriptor);
+                final TileKey key = new TileKey(sourceLocalFilePath, z, x, y, productDescriptor.getPixelMinScale(), productDescriptor.getPixelMaxScale());
+                final byte[] data = this.memoryCache.get(key);
+                return data != null ? data : computeOnce(productDescriptor, key, user);
             } else {
                 throw new FileNotFoundException("Product path not exists.");
             }
-        } catch (FileNotFoundException | IndexOutOfBoundsException e) {
+        } catch (FileNotFoundException | IndexOutOfBoundsException | RejectedExecutionException e) {
             throw e;
         } catch (Exception ex) {
             throw new IllegalStateException("Failed to compute the tile for level " + z + " and (X,Y) (" + x + "," + y + ").", ex);
         }
     }
 
+    private void invalidateIfModified(ProductDescriptor productDescriptor) throws IOException {
+        final Path productPath = productDescriptor.getProductPath();
+        final FileTime modified = Files.getLastModifiedTime(productPath);
+        final FileTime previous = this.productTimes.put(productPath, modified);
+        if (previous != null && !previous.equals(modified)) {
+            logger.fine(String.format("Product %s was modified, its cached tiles are discarded", productPath));
+            invalidate(productDescriptor);
+        }
+    }
+
     public synchronized ImageInfo getGDALImageInfo(ProductDescriptor productDescriptor) throws FileNotFoundException {
         try {
             final Path sourceLocalFilePath = productDescriptor.getProductPath();
@@ -71,5 +154,167 @@ public class GDALTileMapService {
         }
     }
 
+    /**
+     * Returns the range of tiles of the given zoom level that cover the product, as [minX, minY, maxX, maxY].
+     */
+    public int[] getTileRange(ProductDescriptor productDescriptor, byte z) {
+        return this.tileReader.tileRange(productDescriptor, z);
+    }
+
+    /**
+     * Returns the zoom level whose resolution is the closest to the native resolution of the product.
+     */
+    public byte getNativeZoom(ProductDescriptor productDescriptor) {
+        return this.tileReader.nativeZoom(productDescriptor);
+    }
+
+    /**
+     * Returns the location of the given tile in the tile cache layout.
+     */
+    public Path getTilePath(ProductDescriptor productDescriptor, byte z, int x, int y) {
+        final String imageFileName = productDescriptor.getProductPath().getFileName().toString().replaceAll(regEx, "$1");
+        return this.gdalTileCache.getTilePath(imageFileName, x, y, z, productDescriptor.getPixelMinScale(), productDescriptor.getPixelMaxScale());
+    }
+
+    /**
+     * Renders (on the tile rendering executor) the given tile into the tile cache layout, if not already there.
+     * The returned future completes with the tile location, or with <code>null</code> if the tile does not
+     * intersect the product.
+     *
+     * @throws RejectedExecutionException if too many tiles are waiting to be rendered
+     */
+    public CompletableFuture<Path> seedTile(ProductDescriptor productDescriptor, byte z, int x, int y, String user) {
+        final CompletableFuture<Path> future = new CompletableFuture<>();
+        final Path tileFilePath = getTilePath(productDescriptor, z, x, y);
+        if (Files.exists(tileFilePath)) {
+            future.complete(tileFilePath);
+            return future;
+        }
+        this.renderExecutor.submit(user, () -> {
+            if (future.isCancelled()) {
+                return;
+            }
+            try {
+                if (Files.notExists(tileFilePath)) {
+                    if (this.renderInMemory) {
+                        persistTile(tileFilePath, this.tileReader.renderTile(productDescriptor, x, y, z));
+                    } else {
+                        this.tileReader.computeTile(productDescriptor, tileFilePath, x, y, z);
+                    }
+                }
+                future.complete(tileFilePath);
+            } catch (IndexOutOfBoundsException e) {
+                future.complete(null);
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Writes an externally computed tile (for example, composed from its children) into the tile cache layout.
+     */
+    public void storeTile(ProductDescriptor productDescriptor, byte z, int x, int y, byte[] data) {
+        persistTile(getTilePath(productDescriptor, z, x, y), data);
+    }
+
+    public int getRenderThreads() {
+        return this.renderExecutor.getThreads();
+    }
+
+    private byte[] computeOnce(ProductDescriptor productDescriptor, TileKey key, String user) throws Exception {
+        CompletableFuture<byte[]> future = this.inFlight.get(key);
+        if (future == null) {
+            final CompletableFuture<byte[]> created = new CompletableFuture<>();
+            future = this.inFlight.putIfAbsent(key, created);
+            if (future == null) {
+                future = created;
+                try {
+                    this.renderExecutor.submit(user, () -> render(productDescriptor, key, created));
+                } catch (RejectedExecutionException e) {
+                    this.inFlight.remove(key, created);
+                    throw e;
+                }
+            } else {
+                this.coalesced.increment();
+            }
+        } else {
+            this.coalesced.increment();
+        }
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    private void render(ProductDescriptor productDescriptor, TileKey key, CompletableFuture<byte[]> future) {
+        try {
+            // the tile may have been completed between the cache lookup and the registration
+            byte[] data = this.memoryCache.peek(key);
+            if (data == null) {
+                data = computeTile(productDescriptor, key);
+                this.memoryCache.put(key, data);
+            }
+            future.complete(data);
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+        } finally {
+            this.inFlight.remove(key, future);
+        }
+    }
 
+    private byte[] computeTile(ProductDescriptor productDescriptor, TileKey key) throws IOException {
+        final Path tileFilePath = getTilePath(productDescriptor, key.getZ(), key.getX(), key.getY());
+        if (this.renderInMemory) {
+            // the tile may have been persisted previously, or pre-rendered by the seeder
+            if (Files.exists(tileFilePath)) {
+                return Files.readAllBytes(tileFilePath);
+            }
+            final byte[] data = this.tileReader.renderTile(productDescriptor, key.getX(), key.getY(), key.getZ());
+            if (this.cacheWriter != null) {
+                this.cacheWriter.submit(() -> persistTile(tileFilePath, data));
+            }
+            return data;
+        }
+        if (Files.notExists(tileFilePath)) {
+            this.tileReader.computeTile(productDescriptor, tileFilePath, key.getX(), key.getY(), key.getZ());
+        }
+        return Files.readAllBytes(tileFilePath);
+    }
+
+    /**
+     * Creates the single thread persisting the tiles rendered in memory. Its queue is bounded, since each queued tile
+     * holds its bytes: when the disk cannot keep up, the new tiles are not persisted (they are rendered again if
+     * requested after being evicted from the memory cache).
+     */
+    private static ExecutorService createCacheWriter(int queueSize) {
+        final Counter dropped = Metrics.counter("viewer.cache.writer.dropped");
+        return new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                                      new ArrayBlockingQueue<>(Math.max(1, queueSize)),
+                                      r -> {
+                                          final Thread thread = new Thread(r, "viewer-cache-writer");
+                                          thread.setDaemon(true);
+                                          return thread;
+                                      },
+                                      (r, executor) -> dropped.increment());
+    }
+
+    private void persistTile(Path tileFilePath, byte[] data) {
+        try {
+            if (Files.exists(tileFilePath)) {
+                return;
+            }
+            Files.createDirectories(tileFilePath.getParent());
+            // write to a temporary file first so that concurrent readers never see a partial tile
+            final Path tmpFile = Files.createTempFile(tileFilePath.getParent(), tileFilePath.getFileName().toString(), ".tmp");
+            Files.write(tmpFile, data);
+            Files.move(tmpFile, tileFilePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.gdalTileCache.putTile(tileFilePath, data.length);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot persist tile " + tileFilePath, e);
+        }
+    }
 }
@@ -0,0 +1,59 @@
+package ro.cs.eo.gdal.service;
+
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ * Identifies a rendered tile of a product (including the pixel scale it was rendered with).
+ */
+public final class TileKey {
+    private final Path product;
+    private final byte z;
+    private final int x;
+    private final int y;
+    private final Integer minScale;
+    private final Integer maxScale;
+    private final int hash;
+
+    public TileKey(Path product, byte z, int x, int y, Integer minScale, Integer maxScale) {
+        this.product = product;
+        this.z = z;
+        this.x = x;
+        this.y = y;
+        this.minScale = minScale;
+        this.maxScale = maxScale;
+        this.hash = Objects.hash(product, z, x, y, minScale, maxScale);
+    }
+
+    public Path getProduct() { return product; }
+
+    public byte getZ() { return z; }
+
+    public int getX() { return x; }
+
+    public int getY() { return y; }
+
+    public Integer getMinScale() { return minScale; }
+
+    public Integer getMaxScale() { return maxScale; }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        final TileKey other = (TileKey) o;
+        return z == other.z && x == other.x && y == other.y &&
+                product.equals(other.product) &&
+                Objects.equals(minScale, other.minScale) && Objects.equals(maxScale, other.maxScale);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return product.getFileName() + "[" + z + "/" + x + "/" + y + "," + minScale + "-" + maxScale + "]";
+    }
+}
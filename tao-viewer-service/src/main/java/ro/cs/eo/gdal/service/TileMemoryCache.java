@@ -0,0 +1,108 @@
+package ro.cs.eo.gdal.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-heap LRU cache of rendered tiles, bounded by the total size (in bytes) of the cached tiles.
+ * It sits in front of the on-disk tile cache, so that frequently requested tiles (low zoom levels,
+ * products viewed by several users) are served without touching the disk.
+ * Hits, misses and evictions are published as metrics (<code>viewer.tile.memory.*</code>).
+ */
+public class TileMemoryCache {
+    private final long capacity;
+    private final LinkedHashMap<TileKey, byte[]> tiles;
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+    private long size;
+
+    /**
+     * @param capacity  The maximum number of bytes held by the cache. If 0, the cache is disabled.
+     */
+    public TileMemoryCache(long capacity) {
+        this.capacity = Math.max(0, capacity);
+        this.tiles = new LinkedHashMap<>(256, 0.75f, true);
+        this.hits = Metrics.counter("viewer.tile.memory.hits");
+        this.misses = Metrics.counter("viewer.tile.memory.misses");
+        this.evictions = Metrics.counter("viewer.tile.memory.evictions");
+        Gauge.builder("viewer.tile.memory.bytes", this, TileMemoryCache::size).register(Metrics.globalRegistry);
+        Gauge.builder("viewer.tile.memory.count", this, TileMemoryCache::count).register(Metrics.globalRegistry);
+    }
+
+    public boolean isEnabled() {
+        return this.capacity > 0;
+    }
+
+    public synchronized byte[] get(TileKey key) {
+        if (!isEnabled()) {
+            return null;
+        }
+        final byte[] data = this.tiles.get(key);
+        if (data != null) {
+            this.hits.increment();
+        } else {
+            this.misses.increment();
+        }
+        return data;
+    }
+
+    /**
+     * Same as {@link #get(TileKey)}, but without affecting the hit/miss statistics.
+     */
+    public synchronized byte[] peek(TileKey key) {
+        return isEnabled() ? this.tiles.get(key) : null;
+    }
+
+    public synchronized void put(TileKey key, byte[] data) {
+        // a tile larger than the whole budget would only flush the cache
+        if (!isEnabled() || data == null || data.length > this.capacity) {
+            return;
+        }
+        final byte[] previous = this.tiles.put(key, data);
+        if (previous != null) {
+            this.size -= previous.length;
+        }
+        this.size += data.length;
+        final Iterator<Map.Entry<TileKey, byte[]>> iterator = this.tiles.entrySet().iterator();
+        while (this.size > this.capacity && iterator.hasNext()) {
+            final Map.Entry<TileKey, byte[]> eldest = iterator.next();
+            this.size -= eldest.getValue().length;
+            iterator.remove();
+            this.evictions.increment();
+        }
+    }
+
+    /**
+     * Removes all the cached tiles of the given product.
+     */
+    public synchronized void invalidate(Path product) {
+        final Iterator<Map.Entry<TileKey, byte[]>> iterator = this.tiles.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<TileKey, byte[]> entry = iterator.next();
+            if (entry.getKey().getProduct().equals(product)) {
+                this.size -= entry.getValue().length;
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        this.tiles.clear();
+        this.size = 0;
+    }
+
+    public synchronized long size() {
+        return this.size;
+    }
+
+    public synchronized int count() {
+        return this.tiles.size();
+    }
+}
@@ -0,0 +1,105 @@
+package ro.cs.eo.gdal.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Dedicated, bounded pool of threads for rendering tiles, isolated from the servlet threads.
+ * Tasks are queued per user and the workers take them in a round-robin fashion across users,
+ * so that a user panning a large map does not starve the others.
+ * When the total number of queued tasks reaches the queue capacity, new tasks are rejected
+ * with a {@link RejectedExecutionException}, which callers should translate into a "try later" response.
+ */
+public class TileRenderExecutor {
+    private final Logger logger = Logger.getLogger(TileRenderExecutor.class.getName());
+    private final int threads;
+    private final int queueCapacity;
+    private final Map<String, Deque<Runnable>> userQueues;
+    // users having pending tasks, in the order they are served
+    private final Deque<String> turns;
+    private final Counter rejected;
+    private int queued;
+
+    public TileRenderExecutor(int threads, int queueCapacity) {
+        this.threads = Math.max(1, threads);
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.userQueues = new HashMap<>();
+        this.turns = new ArrayDeque<>();
+        this.rejected = Metrics.counter("viewer.render.rejected");
+        Gauge.builder("viewer.render.queued", this, TileRenderExecutor::queued).register(Metrics.globalRegistry);
+        for (int i = 0; i < this.threads; i++) {
+            final Thread worker = new Thread(this::work, "viewer-render-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Queues a rendering task on behalf of the given user.
+     *
+     * @throws RejectedExecutionException if the queue is full
+     */
+    public void submit(String user, Runnable task) {
+        final String owner = user != null ? user : "";
+        synchronized (this) {
+            if (this.queued >= this.queueCapacity) {
+                this.rejected.increment();
+                throw new RejectedExecutionException("Tile rendering queue is full");
+            }
+            final Deque<Runnable> queue = this.userQueues.computeIfAbsent(owner, k -> new ArrayDeque<>());
+            if (queue.isEmpty()) {
+                this.turns.addLast(owner);
+            }
+            queue.addLast(task);
+            this.queued++;
+            notify();
+        }
+    }
+
+    public synchronized int queued() {
+        return this.queued;
+    }
+
+    private Runnable next() throws InterruptedException {
+        synchronized (this) {
+            while (this.turns.isEmpty()) {
+                wait();
+            }
+            final String user = this.turns.pollFirst();
+            final Deque<Runnable> queue = this.userQueues.get(user);
+            final Runnable task = queue.pollFirst();
+            if (queue.isEmpty()) {
+                this.userQueues.remove(user);
+            } else {
+                this.turns.addLast(user);
+            }
+            this.queued--;
+            return task;
+        }
+    }
+
+    private void work() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                next().run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable t) {
+                logger.log(Level.WARNING, "Tile rendering task failed", t);
+            }
+        }
+    }
+}
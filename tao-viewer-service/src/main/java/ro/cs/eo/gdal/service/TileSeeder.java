@@ -0,0 +1,244 @@
+package ro.cs.eo.gdal.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import ro.cs.eo.gdal.reader.TileReader;
+import ro.cs.eo.gdal.reader.info.ProductDescriptor;
+import ro.cs.tao.configuration.ConfigurationManager;
+import ro.cs.tao.messaging.Messaging;
+import ro.cs.tao.messaging.ProgressNotifier;
+import ro.cs.tao.messaging.Topic;
+import ro.cs.tao.utils.executors.NamedThreadPoolExecutor;
+import ro.cs.tao.utils.executors.monitoring.ProgressListener;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.Principal;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pre-renders the tiles of a product for the zoom levels 0..N into the tile cache layout.
+ * Only the deepest level is rendered with GDAL (in parallel, on the tile rendering executor);
+ * the upper levels of the pyramid are composed from their four children, so that the whole product
+ * is warped only once. The progress is reported as {@link Topic#PROGRESS} messages.
+ */
+@Service("TileSeeder")
+public class TileSeeder {
+    /**
+     * The deepest zoom level rendered when not specified
+     */
+    private static final String CONFIG_SEED_MAX_ZOOM_KEY = "viewer.seed.max.zoom";
+    private static final long REJECTED_BACKOFF_MILLIS = 500;
+    private static final long PROGRESS_INTERVAL_MILLIS = 1000;
+    private final Logger logger = Logger.getLogger(TileSeeder.class.getName());
+    private final ExecutorService executor;
+    private final Set<Path> inProgress;
+
+    @Autowired
+    private GDALTileMapService tileMapService;
+
+    public TileSeeder() {
+        this.executor = new NamedThreadPoolExecutor("viewer-seeder", 1);
+        this.inProgress = ConcurrentHashMap.newKeySet();
+    }
+
+    public byte getDefaultMaxZoom() {
+        return Byte.parseByte(ConfigurationManager.getInstance().getValue(CONFIG_SEED_MAX_ZOOM_KEY, "12"));
+    }
+
+    /**
+     * Schedules the seeding of the given product.
+     *
+     * @param productDescriptor The product
+     * @param maxZoom           The deepest zoom level to render
+     * @param principal         The user on behalf of which the tiles are rendered (and who receives the progress)
+     * @return <code>false</code> if the product is already being seeded
+     */
+    public boolean seed(ProductDescriptor productDescriptor, byte maxZoom, Principal principal) {
+        final Path productPath = productDescriptor.getProductPath();
+        if (!this.inProgress.add(productPath)) {
+            return false;
+        }
+        this.executor.submit(() -> {
+            try {
+                doSeed(productDescriptor, maxZoom, principal);
+            } finally {
+                this.inProgress.remove(productPath);
+            }
+        });
+        return true;
+    }
+
+    private void doSeed(ProductDescriptor productDescriptor, byte maxZoom, Principal principal) {
+        final String taskName = "Rendering tiles of " + productDescriptor.getProductPath().getFileName();
+        final ProgressListener notifier = new ProgressNotifier(principal, taskName, Topic.PROGRESS, new HashMap<>() {{
+            put("Product", productDescriptor.getProductPath().toString());
+        }});
+        notifier.started(taskName);
+        boolean failed = false;
+        try {
+            // deeper levels than the native resolution would only interpolate the pixels
+            final byte deepest = (byte) Math.min(maxZoom, this.tileMapService.getNativeZoom(productDescriptor));
+            if (deepest < maxZoom) {
+                logger.fine(String.format("Seeding of %s limited to the native zoom level %d",
+                                          productDescriptor.getProductPath(), deepest));
+            }
+            final int[][] ranges = new int[deepest + 1][];
+            long total = 0;
+            for (byte z = 0; z <= deepest; z++) {
+                ranges[z] = this.tileMapService.getTileRange(productDescriptor, z);
+                total += (long) (ranges[z][2] - ranges[z][0] + 1) * (ranges[z][3] - ranges[z][1] + 1);
+            }
+            final Progress progress = new Progress(notifier, total);
+            renderLevel(productDescriptor, deepest, ranges[deepest], principal.getName(), progress);
+            for (int z = deepest - 1; z >= 0; z--) {
+                composeLevel(productDescriptor, (byte) z, ranges[z], progress);
+            }
+        } catch (Exception e) {
+            failed = true;
+            final Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+            logger.log(Level.WARNING, "Tile seeding failed for " + productDescriptor.getProductPath(), cause);
+            Messaging.send(principal, Topic.ERROR.value(), this,
+                           taskName + " failed: " + cause.getMessage());
+        } finally {
+            notifier.ended(failed);
+        }
+    }
+
+    private void renderLevel(ProductDescriptor productDescriptor, byte z, int[] range, String user,
+                             Progress progress) throws InterruptedException, ExecutionException {
+        // keep the rendering executor busy, but do not flood its queue
+        final int window = 2 * this.tileMapService.getRenderThreads();
+        final Deque<CompletableFuture<Path>> pending = new ArrayDeque<>();
+        try {
+            for (int x = range[0]; x <= range[2]; x++) {
+                for (int y = range[1]; y <= range[3]; y++) {
+                    while (pending.size() >= window) {
+                        pending.pollFirst().get();
+                        progress.increment();
+                    }
+                    pending.addLast(submit(productDescriptor, z, x, y, user));
+                }
+            }
+            while (!pending.isEmpty()) {
+                pending.pollFirst().get();
+                progress.increment();
+            }
+        } finally {
+            // on failure, the tiles still waiting in the render queue are skipped
+            pending.forEach(f -> f.cancel(false));
+        }
+    }
+
+    private CompletableFuture<Path> submit(ProductDescriptor productDescriptor, byte z, int x, int y, String user) throws InterruptedException {
+        while (true) {
+            try {
+                return this.tileMapService.seedTile(productDescriptor, z, x, y, user);
+            } catch (RejectedExecutionException e) {
+                // interactive requests have priority, wait for the queue to drain
+                Thread.sleep(REJECTED_BACKOFF_MILLIS);
+            }
+        }
+    }
+
+    private void composeLevel(ProductDescriptor productDescriptor, byte z, int[] range,
+                              Progress progress) throws IOException {
+        final boolean yAxisUp = TileReader.isYAxisUp();
+        for (int x = range[0]; x <= range[2]; x++) {
+            for (int y = range[1]; y <= range[3]; y++) {
+                if (Files.notExists(this.tileMapService.getTilePath(productDescriptor, z, x, y))) {
+                    // children in image order: upper-left, upper-right, lower-left, lower-right
+                    final int upperY = yAxisUp ? 2 * y + 1 : 2 * y;
+                    final int lowerY = yAxisUp ? 2 * y : 2 * y + 1;
+                    final BufferedImage[] children = new BufferedImage[] {
+                            readTile(productDescriptor, (byte) (z + 1), 2 * x, upperY),
+                            readTile(productDescriptor, (byte) (z + 1), 2 * x + 1, upperY),
+                            readTile(productDescriptor, (byte) (z + 1), 2 * x, lowerY),
+                            readTile(productDescriptor, (byte) (z + 1), 2 * x + 1, lowerY)
+                    };
+                    final byte[] data = compose(children);
+                    if (data != null) {
+                        this.tileMapService.storeTile(productDescriptor, z, x, y, data);
+                    }
+                }
+                progress.increment();
+            }
+        }
+    }
+
+    private BufferedImage readTile(ProductDescriptor productDescriptor, byte z, int x, int y) throws IOException {
+        final Path tilePath = this.tileMapService.getTilePath(productDescriptor, z, x, y);
+        return Files.exists(tilePath) ? ImageIO.read(tilePath.toFile()) : null;
+    }
+
+    private static byte[] compose(BufferedImage[] children) throws IOException {
+        int size = 0;
+        for (BufferedImage child : children) {
+            if (child != null) {
+                size = child.getWidth();
+                break;
+            }
+        }
+        if (size == 0) {
+            return null;
+        }
+        final int half = size / 2;
+        final BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            for (int i = 0; i < children.length; i++) {
+                if (children[i] != null) {
+                    graphics.drawImage(children[i], (i % 2) * half, (i / 2) * half, half, half, null);
+                }
+            }
+        } finally {
+            graphics.dispose();
+        }
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", outputStream);
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Counts the processed tiles and reports the progress at most once per percent or per second.
+     */
+    private static class Progress {
+        private final ProgressListener notifier;
+        private final long total;
+        private long done;
+        private int lastPercent;
+        private long lastReported;
+
+        private Progress(ProgressListener notifier, long total) {
+            this.notifier = notifier;
+            this.total = total;
+        }
+
+        private void increment() {
+            this.done++;
+            final int percent = (int) (100 * this.done / this.total);
+            final long now = System.currentTimeMillis();
+            if (percent > this.lastPercent || now - this.lastReported >= PROGRESS_INTERVAL_MILLIS) {
+                this.lastPercent = percent;
+                this.lastReported = now;
+                this.notifier.notifyProgress((double) this.done / this.total);
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package ro.cs.eo.gdal.service;
+
+import ro.cs.eo.gdal.reader.info.ProductDescriptor;
+import ro.cs.eo.gdal.reader.info.ProductDescriptorFactory;
+import ro.cs.tao.configuration.ConfigurationManager;
+import ro.cs.tao.execution.JobCompletedListener;
+import ro.cs.tao.execution.model.ExecutionJob;
+import ro.cs.tao.execution.model.ExecutionStatus;
+import ro.cs.tao.security.UserPrincipal;
+import ro.cs.tao.services.bridge.spring.SpringContextBridge;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Schedules the tile seeding of the raster products produced by a successfully completed job.
+ */
+public class TileSeedingJobListener implements JobCompletedListener {
+    /** Key for enabling the seeding of job outputs (disabled by default). */
+    private static final String SEED_JOB_OUTPUTS_KEY = "viewer.seed.job.outputs";
+    /** How deep the job output folder is searched for products. */
+    private static final int MAX_DEPTH = 3;
+    private final Logger logger = Logger.getLogger(TileSeedingJobListener.class.getName());
+
+    @Override
+    public void onCompleted(ExecutionJob job) {
+        if (job.getExecutionStatus() != ExecutionStatus.DONE || job.getJobOutputPath() == null ||
+                !Boolean.parseBoolean(ConfigurationManager.getInstance().getValue(SEED_JOB_OUTPUTS_KEY, "false"))) {
+            return;
+        }
+        final Path outputPath = Paths.get(job.getJobOutputPath());
+        if (!Files.isDirectory(outputPath)) {
+            return;
+        }
+        final TileSeeder seeder = SpringContextBridge.services().getService(TileSeeder.class);
+        final List<Path> files;
+        try (Stream<Path> stream = Files.walk(outputPath, MAX_DEPTH)) {
+            files = stream.filter(Files::isRegularFile).collect(Collectors.toList());
+        } catch (IOException e) {
+            logger.warning("Cannot list the outputs of job " + job.getId() + ". Reason: " + e.getMessage());
+            return;
+        }
+        final UserPrincipal principal = new UserPrincipal(job.getUserId());
+        for (Path file : files) {
+            final ProductDescriptor descriptor;
+            try {
+                descriptor = ProductDescriptorFactory.getDescriptor(file);
+            } catch (Exception e) {
+                // not a format supported by the viewer
+                continue;
+            }
+            seeder.seed(descriptor, seeder.getDefaultMaxZoom(), principal);
+        }
+    }
+}
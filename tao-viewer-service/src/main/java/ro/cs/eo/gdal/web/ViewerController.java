@@ -2,7 +2,6 @@ package ro.cs.eo.gdal.web;
 
 import org.apache.commons.compress.utils.IOUtils;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.context.annotation.AnnotationConfigApplicationContext;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -17,7 +16,9 @@ import ro.cs.eo.gdal.reader.info.FormatDescriptor;
 import ro.cs.eo.gdal.reader.info.ProductDescriptor;
 import ro.cs.eo.gdal.reader.info.ProductDescriptorFactory;
 import ro.cs.eo.gdal.service.GDALTileMapService;
+import ro.cs.eo.gdal.service.TileSeeder;
 import ro.cs.tao.persistence.RepositoryProvider;
+import ro.cs.tao.security.UserPrincipal;
 import ro.cs.tao.services.commons.ControllerBase;
 import ro.cs.tao.services.commons.ResponseStatus;
 import ro.cs.tao.services.commons.ServiceResponse;
@@ -28,21 +29,22 @@ import java.io.FileNotFoundException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.RejectedExecutionException;
 
 @RestController
 @RequestMapping("/view")
 public class ViewerController extends ControllerBase {
 
-    private final AnnotationConfigApplicationContext context;
+    private static final String RETRY_AFTER_SECONDS = "2";
 
     @Autowired
     private RepositoryProvider repositoryProvider;
 
-    public ViewerController() {
-        this.context = new AnnotationConfigApplicationContext();
-        this.context.scan("ro.cs.eo.gdal.service");
-        this.context.refresh();
-    }
+    @Autowired
+    private GDALTileMapService gdalTileMapService;
+
+    @Autowired
+    private TileSeeder tileSeeder;
 
     @RequestMapping(value = "/scale", method = RequestMethod.GET, produces = "application/json")
     public ResponseEntity<ServiceResponse<?>> getScale(@RequestParam("file") String relativePath) {
@@ -58,6 +60,7 @@ public class ViewerController extends ControllerBase {
         final Repository localRepository = getLocalRepository();
         final String path = localRepository.resolve(relativePath);
         TileReader.setScale(Paths.get(path), new double[] { min, max });
+        gdalTileMapService.invalidate(getDescriptor(Paths.get(path)));
         return prepareResult("New scale set", ResponseStatus.SUCCEEDED);
     }
 
@@ -66,24 +69,19 @@ public class ViewerController extends ControllerBase {
                                                @RequestParam("z") byte z,
                                                @RequestParam("x") int x,
                                                @RequestParam("y") int y) {
-        GDALTileMapService gdalTileMapService = (GDALTileMapService) context.getBean("TileMap");
         HttpHeaders headers = new HttpHeaders();
         try {
             final Repository localRepository = getLocalRepository();
             final String path = localRepository.resolve(relativePath);
-            ProductDescriptor productDescriptor = ProductDescriptorFactory.getDescriptor(Paths.get(path));
-            double[] scale = TileReader.getScale(Paths.get(path));
-            if (scale != null && scale.length == 2) {
-                FormatDescriptor formatDescriptor = productDescriptor.getFormatDescriptor();
-                formatDescriptor.setPixelMinScale((int) scale[0]);
-                formatDescriptor.setPixelMaxScale((int) scale[1]);
-                //formatDescriptor.setNoDataValue(override.getKeyThree());
-                formatDescriptor.setPriority(1);
-            }
-            byte[] data = gdalTileMapService.getGDALTile(productDescriptor, z, x, y);
+            ProductDescriptor productDescriptor = getDescriptor(Paths.get(path));
+            byte[] data = gdalTileMapService.getGDALTile(productDescriptor, z, x, y, currentUser());
             headers.add(HttpHeaders.CONTENT_TYPE, MediaType.IMAGE_PNG_VALUE);
             headers.add(HttpHeaders.CACHE_CONTROL, "max-age=60");
             return new ResponseEntity<>(data, headers, HttpStatus.OK);
+        } catch (RejectedExecutionException e) {
+            headers.add(HttpHeaders.CONTENT_TYPE, MediaType.TEXT_HTML_VALUE);
+            headers.add(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS);
+            return new ResponseEntity<>(("<html><body><h1>" + e.getMessage() + "</h1><br/><h3>Try again later.</h3></body></html>").getBytes(), headers, HttpStatus.SERVICE_UNAVAILABLE);
         } catch (IndexOutOfBoundsException e) {
             headers.add(HttpHeaders.CONTENT_TYPE, MediaType.TEXT_HTML_VALUE);
             return new ResponseEntity<>(("<html><body><h1>" + e.getMessage() + "</h1><br/><h3>Try again.</h3></body></html>").getBytes(), headers, HttpStatus.NOT_FOUND);
@@ -100,9 +98,30 @@ public class ViewerController extends ControllerBase {
         }
     }
 
+    @RequestMapping(value = "/seed", method = RequestMethod.POST, produces = "application/json")
+    public ResponseEntity<ServiceResponse<?>> seedTiles(@RequestParam("file") String relativePath,
+                                                        @RequestParam(name = "maxZoom", required = false) Byte maxZoom) {
+        try {
+            final Repository localRepository = getLocalRepository();
+            final String path = localRepository.resolve(relativePath);
+            if (!Files.exists(Paths.get(path))) {
+                throw new FileNotFoundException("Product path not exists.");
+            }
+            final ProductDescriptor productDescriptor = getDescriptor(Paths.get(path));
+            final byte zoom = maxZoom != null ? maxZoom : tileSeeder.getDefaultMaxZoom();
+            if (zoom < 0 || zoom > TileReader.MAX_ZOOM) {
+                throw new IllegalArgumentException("Invalid zoom level");
+            }
+            return tileSeeder.seed(productDescriptor, zoom, new UserPrincipal(currentUser()))
+                    ? prepareResult("Tile rendering started", ResponseStatus.SUCCEEDED)
+                    : prepareResult("Tile rendering already in progress", ResponseStatus.FAILED);
+        } catch (Exception e) {
+            return handleException(e);
+        }
+    }
+
     @RequestMapping(value = "info", method = RequestMethod.GET)
     public ResponseEntity<String> viewTileInfo(@RequestParam("relativePath") String relativePath) {
-        GDALTileMapService gdalTileMapService = (GDALTileMapService) context.getBean("TileMap");
         HttpHeaders headers = new HttpHeaders();
         headers.add(HttpHeaders.CONTENT_TYPE, MediaType.TEXT_HTML_VALUE);
 
@@ -115,15 +134,7 @@ public class ViewerController extends ControllerBase {
             final Repository localRepository = getLocalRepository();
             final String path = localRepository.resolve(relativePath);
             final String name = relativePath.substring(relativePath.lastIndexOf('/') + 1);
-            ProductDescriptor productDescriptor = ProductDescriptorFactory.getDescriptor(Paths.get(path));
-            double[] scale = TileReader.getScale(Paths.get(path));
-            if (scale != null && scale.length == 2) {
-                FormatDescriptor formatDescriptor = productDescriptor.getFormatDescriptor();
-                formatDescriptor.setPixelMinScale((int) scale[0]);
-                formatDescriptor.setPixelMaxScale((int) scale[1]);
-                //formatDescriptor.setNoDataValue(override.getKeyThree());
-                formatDescriptor.setPriority(1);
-            }
+            ProductDescriptor productDescriptor = getDescriptor(Paths.get(path));
             ImageInfo imageInfo = gdalTileMapService.getGDALImageInfo(productDescriptor);
             headers.add(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE);
             return new ResponseEntity<>(imageInfo.toJson(), headers, HttpStatus.OK);
@@ -157,7 +168,6 @@ public class ViewerController extends ControllerBase {
         HttpHeaders headers = new HttpHeaders();
         headers.add(HttpHeaders.CONTENT_TYPE, MediaType.TEXT_HTML_VALUE);
         try {
-            GDALTileMapService gdalTileMapService = (GDALTileMapService) context.getBean("TileMap");
             Path cacheDirpath = Paths.get(newCacheDir);
             if (Files.exists(cacheDirpath)) {
                 gdalTileMapService.setCacheDirPath(cacheDirpath);
@@ -170,6 +180,19 @@ public class ViewerController extends ControllerBase {
         }
     }
 
+    private ProductDescriptor getDescriptor(Path path) {
+        final ProductDescriptor productDescriptor = ProductDescriptorFactory.getDescriptor(path);
+        final double[] scale = TileReader.getScale(path);
+        if (scale != null && scale.length == 2) {
+            FormatDescriptor formatDescriptor = productDescriptor.getFormatDescriptor();
+            formatDescriptor.setPixelMinScale((int) scale[0]);
+            formatDescriptor.setPixelMaxScale((int) scale[1]);
+            //formatDescriptor.setNoDataValue(override.getKeyThree());
+            formatDescriptor.setPriority(1);
+        }
+        return productDescriptor;
+    }
+
     private Repository getLocalRepository() {
         return repositoryProvider.getByUser(currentUser()).stream().filter(w -> w.getType() == RepositoryType.LOCAL).findFirst().get();
     }
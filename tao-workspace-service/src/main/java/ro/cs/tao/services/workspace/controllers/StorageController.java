@@ -6,7 +6,6 @@ import org.apache.commons.lang3.StringUtils;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.FileSystemResource;
-import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -28,11 +27,13 @@ import ro.cs.tao.security.UserPrincipal;
 import ro.cs.tao.services.commons.ResponseStatus;
 import ro.cs.tao.services.commons.ServiceResponse;
 import ro.cs.tao.services.entity.controllers.DataEntityController;
+import ro.cs.tao.services.entity.impl.FileStorageService;
 import ro.cs.tao.services.factory.StorageServiceFactory;
 import ro.cs.tao.services.interfaces.ProductService;
 import ro.cs.tao.services.interfaces.StorageService;
 import ro.cs.tao.services.model.FileObject;
 import ro.cs.tao.services.model.ItemAction;
+import ro.cs.tao.services.workspace.impl.ParallelZipStreamer;
 import ro.cs.tao.services.workspace.impl.TransferService;
 import ro.cs.tao.services.workspace.model.SubscriptionBean;
 import ro.cs.tao.services.workspace.model.TransferRequest;
@@ -40,20 +41,24 @@ import ro.cs.tao.services.workspace.model.TransferableItem;
 import ro.cs.tao.subscription.DataSubscription;
 import ro.cs.tao.utils.*;
 import ro.cs.tao.utils.executors.BlockingQueueWorker;
-import ro.cs.tao.utils.executors.MemoryUnit;
 import ro.cs.tao.utils.executors.monitoring.ProgressListener;
 import ro.cs.tao.workspaces.Repository;
 import ro.cs.tao.workspaces.RepositoryType;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.AccessDeniedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.Principal;
 import java.time.LocalDateTime;
 import java.util.*;
@@ -73,6 +78,11 @@ public class StorageController extends DataEntityController<EOProduct, String, P
     private static final Pattern maliciousPathRegEx = Pattern.compile("\\.\\.\\/|\\.\\.|\\/\\/|\\\\\\\\|\\/\\.\\/|\\\\\\.\\\\|%|;");
 
     private static final Map<String, Integer> maliciousAttempts = new HashMap<>();
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_NAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+    private static final ParallelZipStreamer zipStreamer;
 
     @Autowired
     private EOProductProvider productProvider;
@@ -92,6 +102,7 @@ public class StorageController extends DataEntityController<EOProduct, String, P
     private static final BlockingQueue<Tuple<Repository, String>> deletionQueue;
 
     static {
+        zipStreamer = createZipStreamer();
         deletionQueue = new HashedBlockingQueue<>(Tuple::getKeyTwo);
         BlockingQueueWorker<Tuple<Repository, String>> queueWorker = new BlockingQueueWorker<>(deletionQueue, new DeleteOperation(), 1, "delete-worker", 2000);
         queueWorker.start();
@@ -402,12 +413,17 @@ public class StorageController extends DataEntityController<EOProduct, String, P
     }
     /**
      * Downloads a file or folder (as a zip) from a repository.
+     * For files of local repositories, a single byte range can be requested (to resume a download).
      *
      * @param token         The coded request
+     * @param range         [Optional] The requested byte range (<code>bytes=start-end</code>)
+     * @param request       The servlet request
      * @param response      The servlet response to write to
      */
     @GetMapping(value = "/get", produces = "application/octet-stream")
-    public void download(@RequestParam("token") String token, HttpServletResponse response) {
+    public void download(@RequestParam("token") String token,
+                         @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+                         HttpServletRequest request, HttpServletResponse response) {
         try {
             final String decrypted = Crypto.decrypt(token, SystemPrincipal.instance().getName());
             final HashMap<String, String> values = new ObjectMapper().reader(HashMap.class).readValue(decrypted);
@@ -427,18 +443,7 @@ public class StorageController extends DataEntityController<EOProduct, String, P
                     //asyncExecute(() -> {
                         try {
                             if (isFile) {
-                                Resource file = loadAsResource(user, fileName);
-                                response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
-                                response.setContentLengthLong(file.contentLength());
-                                response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + file.getFilename());
-                                response.setStatus(HttpStatus.OK.value());
-                                byte[] buffer = new byte[MemoryUnit.MB.value().intValue()];
-                                try (InputStream in = file.getInputStream()) {
-                                    int read;
-                                    while ((read = in.read(buffer)) > 0) {
-                                        response.getOutputStream().write(buffer, 0, read);
-                                    }
-                                }
+                                sendFile(loadAsResource(user, fileName).getFile().toPath(), range, request, response);
                             } else {
                                 final Path path = Paths.get(repository.resolve(folder));
                                 if (Files.exists(path) && Files.isDirectory(path)) {
@@ -446,10 +451,17 @@ public class StorageController extends DataEntityController<EOProduct, String, P
                                         response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
                                         response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + path.getFileName().toString() + ".zip");
                                         response.setStatus(HttpServletResponse.SC_OK);
-                                        try (ZipOutputStream zipOutputStream = new ZipOutputStream(response.getOutputStream())) {
-                                            getLocalRepositoryService(user).streamToZip(path.toString(), zipOutputStream);
-                                            zipOutputStream.finish();
+                                        final StorageService service = getRepositoryService(repository);
+                                        if (service instanceof FileStorageService) {
+                                            // plain file system, the files are read (and deflated) directly
+                                            zipStreamer.write(path, response.getOutputStream());
+                                        } else {
+                                            try (ZipOutputStream zipOutputStream = new ZipOutputStream(response.getOutputStream())) {
+                                                service.streamToZip(path.toString(), zipOutputStream);
+                                                zipOutputStream.finish();
+                                            }
                                         }
+                                        response.flushBuffer();
                                     } catch (IOException ex) {
                                         try {
                                             warn(ex.getMessage());
@@ -943,6 +955,94 @@ public class StorageController extends DataEntityController<EOProduct, String, P
         transferService.request(items);
     }
 
+    /**
+     * Sends a local file, or the requested range of it. The file is sent by Tomcat (sendfile) when the connector
+     * supports it, otherwise it is transferred directly from the file channel.
+     */
+    private void sendFile(Path file, String range, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        final long length = Files.size(file);
+        long start = 0, end = length - 1;
+        boolean partial = false;
+        if (range != null && range.startsWith("bytes=") && range.indexOf(',') < 0) {
+            // only single ranges are supported, otherwise the whole file is sent
+            final String spec = range.substring(6).trim();
+            final int idx = spec.indexOf('-');
+            try {
+                if (idx == 0) {
+                    start = Math.max(0, length - Long.parseLong(spec.substring(1)));
+                    partial = true;
+                } else if (idx > 0) {
+                    start = Long.parseLong(spec.substring(0, idx));
+                    if (idx < spec.length() - 1) {
+                        end = Math.min(Long.parseLong(spec.substring(idx + 1)), length - 1);
+                    }
+                    partial = true;
+                }
+            } catch (NumberFormatException e) {
+                start = 0;
+                end = length - 1;
+            }
+            if (partial && (start >= length || start > end)) {
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                response.sendError(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+                return;
+            }
+        }
+        final long count = end - start + 1;
+        response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + file.getFileName());
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setContentLengthLong(count);
+        if (partial) {
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+            response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+        } else {
+            response.setStatus(HttpStatus.OK.value());
+        }
+        if (count <= 0) {
+            return;
+        }
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            request.setAttribute(SENDFILE_NAME, file.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, end + 1);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final WritableByteChannel target = Channels.newChannel(response.getOutputStream());
+            long position = start, remaining = count;
+            while (remaining > 0) {
+                final long transferred = channel.transferTo(position, remaining, target);
+                if (transferred <= 0) {
+                    // the file was truncated in the meantime
+                    break;
+                }
+                position += transferred;
+                remaining -= transferred;
+            }
+        }
+        response.flushBuffer();
+    }
+
+    private static ParallelZipStreamer createZipStreamer() {
+        final ConfigurationManager configurationManager = ConfigurationManager.getInstance();
+        // files in these (already compressed) formats are not deflated again
+        final Set<String> storedExtensions = extensions(configurationManager.getValue("download.zip.stored.extensions",
+                                                                                      "jp2,j2k,zip,gz,tgz,bz2,xz,7z,zst,rar,jpg,jpeg,png,gif,webp"));
+        // files in these formats may or may not be compressed internally (e.g. GeoTIFF), their first block is tested
+        final Set<String> probedExtensions = extensions(configurationManager.getValue("download.zip.probed.extensions",
+                                                                                      "tif,tiff"));
+        final int level = Integer.parseInt(configurationManager.getValue("download.zip.level", "6"));
+        return new ParallelZipStreamer(level, storedExtensions, probedExtensions);
+    }
+
+    private static Set<String> extensions(String value) {
+        return Arrays.stream(value.split(","))
+                     .map(e -> e.trim().toLowerCase())
+                     .filter(e -> !e.isEmpty())
+                     .collect(Collectors.toSet());
+    }
+
     private FileSystemResource loadAsResource(String user, String fileName) throws IOException {
         if (fileName == null || fileName.isEmpty()) {
             throw new IOException("[fileName] cannot be null or empty");
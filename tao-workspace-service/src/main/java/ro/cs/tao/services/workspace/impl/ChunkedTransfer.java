@@ -0,0 +1,275 @@
+package ro.cs.tao.services.workspace.impl;
+
+import org.springframework.core.io.FileSystemResource;
+import ro.cs.tao.configuration.ConfigurationManager;
+import ro.cs.tao.services.interfaces.StorageService;
+import ro.cs.tao.services.workspace.model.TransferableItem;
+import ro.cs.tao.utils.executors.MemoryUnit;
+import ro.cs.tao.utils.executors.NamedThreadPoolExecutor;
+import ro.cs.tao.workspaces.Repository;
+import ro.cs.tao.workspaces.RepositoryType;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Transfers a large file as a sequence of chunks.
+ * Each chunk is stored at the destination as a separate part file, which is verified (using the hash computed by
+ * the destination service) against the hash of the bytes read from the source. The verified chunks are recorded
+ * in the transfer item, so that, after a failure or a restart, only the missing chunks are transferred again.
+ * When all the chunks are present, the parts are assembled into the destination file.
+ * Chunks are read in parallel when the source is a local file; otherwise they are read in sequence from the same
+ * stream (the already transferred chunks being skipped).
+ * Since the parts are assembled in place, only local destinations are supported.
+ */
+final class ChunkedTransfer {
+    private static final Logger logger = Logger.getLogger(ChunkedTransfer.class.getName());
+    private static final String PART_FORMAT = "%s.part%05d";
+    private static final ExecutorService chunkWorkers;
+    private static final long threshold;
+    private static final long chunkSize;
+
+    static {
+        final ConfigurationManager configurationManager = ConfigurationManager.getInstance();
+        threshold = Long.parseLong(configurationManager.getValue("transfer.chunk.threshold.mb", "512")) * MemoryUnit.MB.value();
+        chunkSize = Long.parseLong(configurationManager.getValue("transfer.chunk.size.mb", "64")) * MemoryUnit.MB.value();
+        chunkWorkers = new NamedThreadPoolExecutor("transfer-chunk",
+                                                   Integer.parseInt(configurationManager.getValue("transfer.chunk.parallelism", "4")));
+    }
+
+    private ChunkedTransfer() { }
+
+    /**
+     * Checks if the given item should be transferred in chunks.
+     */
+    static boolean accepts(TransferableItem item) {
+        return item.getSource().getSize() >= threshold && chunkSize > 0 &&
+                item.getDestinationRepository().getType() == RepositoryType.LOCAL;
+    }
+
+    /**
+     * Transfers the given item.
+     *
+     * @param item                  The item to transfer
+     * @param source                The source, as returned by the source service (a local resource or a stream)
+     * @param destinationService    The service of the destination repository
+     * @param description           The description of the stored parts
+     * @param onChunk               Called after each verified chunk (the progress of the item has changed)
+     */
+    static void transfer(TransferableItem item, Object source, StorageService destinationService,
+                         String description, Runnable onChunk) throws Exception {
+        final long size = item.getSource().getSize();
+        if (item.getChunkSize() <= 0) {
+            // the chunk size is kept with the item, so that a resumed transfer uses the same chunks
+            item.setChunkSize(chunkSize);
+        }
+        final long length = item.getChunkSize();
+        final int count = Math.toIntExact((size + length - 1) / length);
+        final Map<Integer, String> completed = item.getCompletedChunks();
+        final List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (!completed.containsKey(i) || !destinationService.exists(partPath(item, i))) {
+                missing.add(i);
+            }
+        }
+        if (!missing.isEmpty()) {
+            logger.fine(String.format("Transferring %d of %d chunks of %s", missing.size(), count, description));
+            if (source instanceof FileSystemResource) {
+                transferParallel(item, ((FileSystemResource) source).getFile().toPath(), missing, destinationService,
+                                 description, onChunk);
+            } else {
+                transferSequential(item, (InputStream) source, missing, destinationService, description, onChunk);
+            }
+        }
+        assemble(item, count, destinationService);
+        completed.clear();
+        item.setChunkSize(0);
+        onChunk.run();
+    }
+
+    private static void transferParallel(TransferableItem item, Path file, List<Integer> chunks,
+                                         StorageService destinationService, String description, Runnable onChunk) throws Exception {
+        final List<Future<?>> futures = new ArrayList<>();
+        for (Integer chunk : chunks) {
+            futures.add(chunkWorkers.submit(() -> {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    channel.position(chunk * item.getChunkSize());
+                    storeChunk(item, chunk, Channels.newInputStream(channel), destinationService, description);
+                }
+                onChunk.run();
+                return null;
+            }));
+        }
+        Exception failure = null;
+        // wait for all the chunks, so that the successful ones are recorded
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static void transferSequential(TransferableItem item, InputStream stream, List<Integer> chunks,
+                                           StorageService destinationService, String description, Runnable onChunk) throws Exception {
+        long position = 0;
+        for (Integer chunk : chunks) {
+            final long offset = chunk * item.getChunkSize();
+            skipFully(stream, offset - position);
+            storeChunk(item, chunk, stream, destinationService, description);
+            position = Math.min(offset + item.getChunkSize(), item.getSource().getSize());
+            onChunk.run();
+        }
+    }
+
+    private static void storeChunk(TransferableItem item, int chunk, InputStream stream,
+                                   StorageService destinationService, String description) throws Exception {
+        final long length = Math.min(item.getChunkSize(), item.getSource().getSize() - chunk * item.getChunkSize());
+        final String partPath = partPath(item, chunk);
+        final ChunkInputStream chunkStream = new ChunkInputStream(stream, length);
+        destinationService.storeFile(chunkStream, length, partPath, description);
+        if (chunkStream.remaining > 0) {
+            throw new IOException(String.format("Chunk %d of %s is incomplete (%d bytes missing)",
+                                                chunk, description, chunkStream.remaining));
+        }
+        final byte[] digest = chunkStream.digest.digest();
+        final String hash = destinationService.computeHash(item.getDestinationRepository().resolve(partPath));
+        if (!matches(digest, hash)) {
+            destinationService.remove(partPath);
+            throw new IOException(String.format("Chunk %d of %s is corrupted", chunk, description));
+        }
+        item.getCompletedChunks().put(chunk, hash);
+    }
+
+    private static void assemble(TransferableItem item, int count, StorageService destinationService) throws Exception {
+        final Repository repository = item.getDestinationRepository();
+        final Path target = Paths.get(repository.resolve(item.getDestinationPath()));
+        Files.createDirectories(target.getParent());
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (int i = 0; i < count; i++) {
+                try (FileChannel in = FileChannel.open(Paths.get(repository.resolve(partPath(item, i))), StandardOpenOption.READ)) {
+                    long position = 0;
+                    final long size = in.size();
+                    while (position < size) {
+                        position += in.transferTo(position, size - position, out);
+                    }
+                }
+            }
+            out.force(true);
+        }
+        for (int i = 0; i < count; i++) {
+            destinationService.remove(partPath(item, i));
+        }
+    }
+
+    private static String partPath(TransferableItem item, int chunk) {
+        return String.format(PART_FORMAT, item.getDestinationPath(), chunk);
+    }
+
+    /**
+     * Compares a digest with the hash returned by a storage service (hexadecimal or Base64 encoded).
+     */
+    private static boolean matches(byte[] digest, String hash) {
+        return hash != null &&
+                (hash.equalsIgnoreCase(String.format("%0" + (digest.length * 2) + "x", new BigInteger(1, digest))) ||
+                        hash.equals(Base64.getEncoder().encodeToString(digest)));
+    }
+
+    private static void skipFully(InputStream stream, long count) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            final long skipped = stream.skip(remaining);
+            if (skipped <= 0) {
+                if (stream.read() < 0) {
+                    throw new IOException("Unexpected end of stream");
+                }
+                remaining--;
+            } else {
+                remaining -= skipped;
+            }
+        }
+    }
+
+    /**
+     * Exposes a limited number of bytes of a stream, computing their hash.
+     * Closing it does not close the underlying stream (which may hold further chunks).
+     */
+    private static final class ChunkInputStream extends FilterInputStream {
+        private final MessageDigest digest;
+        private long remaining;
+
+        private ChunkInputStream(InputStream in, long length) throws NoSuchAlgorithmException {
+            super(in);
+            this.digest = MessageDigest.getInstance("MD5");
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            final int value = super.read();
+            if (value >= 0) {
+                this.digest.update((byte) value);
+                this.remaining--;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            final int read = super.read(b, off, (int) Math.min(len, this.remaining));
+            if (read > 0) {
+                this.digest.update(b, off, read);
+                this.remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            // skipped bytes would not be hashed
+            return 0;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), this.remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package ro.cs.tao.services.workspace.impl;
+
+import ro.cs.tao.messaging.Message;
+import ro.cs.tao.messaging.Messaging;
+import ro.cs.tao.security.SystemPrincipal;
+import ro.cs.tao.services.commons.WorkspaceEvents;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Publishes (on {@link WorkspaceEvents#DELETED_TOPIC}) the paths deleted from the workspaces.
+ * The paths are gathered and sent together at most once per interval, so that the deletion of a folder results
+ * in a single message. A path below another gathered path is not sent.
+ */
+final class DeletedPathsPublisher {
+    private final Logger logger = Logger.getLogger(DeletedPathsPublisher.class.getName());
+    private final Set<Path> pending;
+    private final Timer timer;
+
+    DeletedPathsPublisher(long intervalMillis) {
+        this.pending = ConcurrentHashMap.newKeySet();
+        this.timer = new Timer("workspace-deletions", true);
+        this.timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, intervalMillis, intervalMillis);
+    }
+
+    void deleted(Path path) {
+        this.pending.add(path.toAbsolutePath().normalize());
+    }
+
+    void stop() {
+        this.timer.cancel();
+        flush();
+    }
+
+    private void flush() {
+        if (this.pending.isEmpty()) {
+            return;
+        }
+        final TreeSet<Path> paths = new TreeSet<>();
+        for (Path path : this.pending) {
+            if (this.pending.remove(path)) {
+                paths.add(path);
+            }
+        }
+        // sorted paths: the paths below another one follow it
+        final List<String> roots = new ArrayList<>();
+        Path last = null;
+        for (Path path : paths) {
+            if (last == null || !path.startsWith(last)) {
+                roots.add(path.toString());
+                last = path;
+            }
+        }
+        try {
+            final Message message = new Message();
+            message.setTopic(WorkspaceEvents.DELETED_TOPIC);
+            message.setPersistent(false);
+            message.addItem(WorkspaceEvents.PATHS_KEY, String.join("\n", roots));
+            Messaging.send(SystemPrincipal.instance(), WorkspaceEvents.DELETED_TOPIC, message, false);
+        } catch (Exception e) {
+            logger.warning(String.format("Cannot publish %d deleted paths. Reason: %s", roots.size(), e.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package ro.cs.tao.services.workspace.impl;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Workspace watcher based on the file system {@link WatchService}.
+ * In the recursive mode, every directory of a workspace is watched.
+ * In the lazy mode, only the directories up to a given depth of each workspace are permanently watched.
+ * Deeper directories are watched while they are active (i.e., when they are created in a watched directory
+ * or when a change is detected in them), and stop being watched after they were idle for a while. Idle directories
+ * (including the deeper directories that already exist when a workspace is registered) are then polled:
+ * when their modification time changes, they are watched again and reported as changed.
+ * Since the modification time of a directory only reflects the addition or removal of entries, changes to the
+ * existing files of an idle directory are only caught by the periodic reconciliation of the workspace usage.
+ */
+final class NioWorkspaceWatcher implements WorkspaceWatcher {
+    private static final Logger logger = Logger.getLogger(NioWorkspaceWatcher.class.getName());
+    private final Path root;
+    private final WatchService watchService;
+    private final Map<WatchKey, Watched> byKey;
+    // reverse index, sorted so that the directories of a subtree can be found without scanning all the keys
+    private final NavigableMap<Path, Watched> byPath;
+    // directories that are no longer watched, with their last known modification time
+    private final Map<Path, Long> dormant;
+    private final int eagerDepth;
+    private final long idleMillis;
+    private final Timer timer;
+    private volatile Listener listener;
+
+    /**
+     * Creates a watcher that watches all the directories of the workspaces.
+     */
+    static NioWorkspaceWatcher recursive(Path root) throws IOException {
+        return new NioWorkspaceWatcher(root, Integer.MAX_VALUE, 0, 0);
+    }
+
+    /**
+     * Creates a watcher that permanently watches only the first <code>depth</code> levels of a workspace.
+     *
+     * @param idleMillis    After how long a deeper directory without changes stops being watched
+     * @param pollMillis    The interval at which the directories that are not watched are checked
+     */
+    static NioWorkspaceWatcher lazy(Path root, int depth, long idleMillis, long pollMillis) throws IOException {
+        return new NioWorkspaceWatcher(root, Math.max(0, depth), idleMillis, pollMillis);
+    }
+
+    private NioWorkspaceWatcher(Path root, int eagerDepth, long idleMillis, long pollMillis) throws IOException {
+        this.root = root;
+        this.watchService = root.getFileSystem().newWatchService();
+        this.byKey = new ConcurrentHashMap<>();
+        this.byPath = new ConcurrentSkipListMap<>();
+        this.dormant = new ConcurrentHashMap<>();
+        this.eagerDepth = eagerDepth;
+        this.idleMillis = idleMillis;
+        this.timer = new Timer("workspace-watcher", true);
+        if (idleMillis > 0) {
+            this.timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    expireIdle();
+                }
+            }, idleMillis, Math.max(1000, idleMillis / 2));
+            this.timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    pollDormant();
+                }
+            }, pollMillis, pollMillis);
+        }
+        register(root);
+    }
+
+    @Override
+    public void watchTree(Path workspace) throws IOException {
+        registerTree(workspace);
+    }
+
+    @Override
+    public void unwatchTree(Path workspace) {
+        final String prefix = workspace.toString();
+        for (Watched watched : this.byPath.tailMap(workspace, true).values()) {
+            if (!watched.path.toString().startsWith(prefix)) {
+                break;
+            }
+            if (watched.path.startsWith(workspace)) {
+                unregister(watched);
+            }
+        }
+        this.dormant.keySet().removeIf(path -> path.startsWith(workspace));
+    }
+
+    @Override
+    public void start(Listener listener) {
+        this.listener = listener;
+        final Thread monitor = new Thread(this::run, "WatcherMonitor");
+        monitor.setDaemon(true);
+        monitor.start();
+    }
+
+    @Override
+    public void stop() {
+        this.timer.cancel();
+        try {
+            this.watchService.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void run() {
+        while (true) {
+            WatchKey key;
+            try { // wait for key to be signalled
+                key = this.watchService.take();
+            } catch (InterruptedException x) {
+                logger.finest("Workspace watcher interrupted");
+                return;
+            } catch (ClosedWatchServiceException e) {
+                logger.fine("Workspace watcher closed");
+                return;
+            }
+            final Watched watched = this.byKey.get(key);
+            if (watched == null) {
+                continue;
+            }
+            watched.lastActive = System.currentTimeMillis();
+            final Path directory = watched.path;
+            final boolean isRoot = directory.equals(this.root);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                final WatchEvent.Kind<?> kind = event.kind();
+                if (kind == OVERFLOW) {
+                    this.listener.eventsLost(directory);
+                    continue;
+                }
+                final Path child = directory.resolve((Path) event.context());
+                if (kind == ENTRY_CREATE) {
+                    try {
+                        if (isRoot) {
+                            if (Files.isRegularFile(child)) {
+                                logger.warning(String.format("File %s created outside users folders", child));
+                            }
+                        } else if (!Files.isSymbolicLink(child) && Files.isDirectory(child)) {
+                            // if directory is created, then register it and its sub-directories
+                            registerTree(child);
+                            this.listener.createdOrDeleted(child);
+                        }
+                    } catch (NoSuchFileException | NotDirectoryException ignored) {
+                        // a file may throw this exception if it's not fully "created"
+                    } catch (IOException e) {
+                        logger.severe(String.format("Cannot register directory %s. Reason: %s",
+                                                    child, ExceptionUtils.getStackTrace(e)));
+                    }
+                } else if (kind == ENTRY_DELETE && !isRoot) {
+                    unwatchTree(child);
+                    this.listener.createdOrDeleted(child);
+                }
+            }
+            if (!isRoot) {
+                this.listener.changed(directory);
+            }
+            // reset key and remove it if directory no longer accessible
+            if (!key.reset()) {
+                unregister(watched);
+            }
+        }
+    }
+
+    private void registerTree(Path start) throws IOException {
+        // the directories below these levels are not watched, but polled
+        final int levels = this.eagerDepth == Integer.MAX_VALUE ? Integer.MAX_VALUE : this.eagerDepth + 1;
+        final int startCount = start.getNameCount();
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (dir.getNameCount() - startCount <= levels) {
+                    register(dir);
+                } else if (!byPath.containsKey(dir)) {
+                    dormant.put(dir, attrs.lastModifiedTime().toMillis());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                // deleted in the meantime
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void register(Path directory) throws IOException {
+        if (this.byPath.containsKey(directory)) {
+            return;
+        }
+        final WatchKey key = directory.register(this.watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        // the workspaces root is at depth -1
+        final boolean pinned = directory.getNameCount() - this.root.getNameCount() - 1 <= this.eagerDepth;
+        final Watched watched = new Watched(directory, key, pinned);
+        this.byKey.put(key, watched);
+        this.byPath.put(directory, watched);
+        this.dormant.remove(directory);
+    }
+
+    private void unregister(Watched watched) {
+        watched.key.cancel();
+        this.byKey.remove(watched.key);
+        this.byPath.remove(watched.path, watched);
+    }
+
+    private void expireIdle() {
+        final long threshold = System.currentTimeMillis() - this.idleMillis;
+        for (Watched watched : this.byKey.values()) {
+            if (!watched.pinned && watched.lastActive < threshold) {
+                try {
+                    this.dormant.put(watched.path, Files.getLastModifiedTime(watched.path).toMillis());
+                } catch (IOException e) {
+                    // deleted, the watcher will report it
+                    continue;
+                }
+                unregister(watched);
+            }
+        }
+    }
+
+    private void pollDormant() {
+        final Listener listener = this.listener;
+        if (listener == null) {
+            return;
+        }
+        for (Map.Entry<Path, Long> entry : this.dormant.entrySet()) {
+            final Path directory = entry.getKey();
+            try {
+                final long lastModified = Files.getLastModifiedTime(directory).toMillis();
+                if (lastModified != entry.getValue()) {
+                    register(directory);
+                    listener.changed(directory);
+                }
+            } catch (NoSuchFileException e) {
+                this.dormant.remove(directory);
+                listener.createdOrDeleted(directory);
+            } catch (IOException e) {
+                logger.warning(String.format("Cannot check directory %s. Reason: %s", directory, e.getMessage()));
+            }
+        }
+    }
+
+    private static final class Watched {
+        private final Path path;
+        private final WatchKey key;
+        private final boolean pinned;
+        private volatile long lastActive;
+
+        private Watched(Path path, WatchKey key, boolean pinned) {
+            this.path = path;
+            this.key = key;
+            this.pinned = pinned;
+            this.lastActive = System.currentTimeMillis();
+        }
+    }
+}
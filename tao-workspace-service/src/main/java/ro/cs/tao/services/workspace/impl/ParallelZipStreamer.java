@@ -0,0 +1,451 @@
+package ro.cs.tao.services.workspace.impl;
+
+import ro.cs.tao.utils.executors.NamedThreadPoolExecutor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a folder as a zip archive to a stream.
+ * The entries are written while the folder is walked (there is no prior listing of the folder).
+ * Files having an already compressed format (see the constructor) are stored as they are. Files having a format
+ * that may or may not be compressed (such as GeoTIFF) are stored only if their first block does not shrink when
+ * deflated. The other files are split into blocks that are deflated in parallel; each block is flushed to a byte boundary and is compressed
+ * using the end of the previous block as dictionary, so that the concatenated blocks form a single deflate stream.
+ * Since the sizes and the checksum of an entry are only known after it is written, they follow the entry data
+ * (in a data descriptor). Zip64 extensions are used for large files and archives.
+ */
+public class ParallelZipStreamer {
+    private static final Logger logger = Logger.getLogger(ParallelZipStreamer.class.getName());
+    private static final int BLOCK_SIZE = 1 << 20;
+    private static final int DICTIONARY_SIZE = 32768;
+    // a probed file is deflated only if its first block shrinks below this ratio
+    private static final double MAX_DEFLATE_RATIO = 0.9;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    // entries above this size may exceed 4GB when deflated (incompressible data grows slightly)
+    private static final long ZIP64_ENTRY_THRESHOLD = ZIP64_MAGIC - (ZIP64_MAGIC >> 6);
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    // bit 3: sizes and crc in data descriptor, bit 11: UTF-8 names
+    private static final int DESCRIPTOR_FLAGS = 0x0808;
+    private static final int UTF8_FLAG = 0x0800;
+    private static final int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final ExecutorService compressors = new NamedThreadPoolExecutor("zip-deflate", threads);
+    // idle deflaters (their native memory is released by end(), not by the garbage collector)
+    private static final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final int level;
+    private final Set<String> storedExtensions;
+    private final Set<String> probedExtensions;
+
+    /**
+     * @param level             The deflate level
+     * @param storedExtensions  The extensions (lower case, without dot) of the files that are not compressed
+     * @param probedExtensions  The extensions (lower case, without dot) of the files that are compressed only if
+     *                          their first block is compressible
+     */
+    public ParallelZipStreamer(int level, Set<String> storedExtensions, Set<String> probedExtensions) {
+        this.level = level;
+        this.storedExtensions = storedExtensions;
+        this.probedExtensions = probedExtensions;
+    }
+
+    /**
+     * Writes the given folder (without the folder itself) as a zip archive to the given stream.
+     * The stream is not closed.
+     */
+    public void write(Path folder, OutputStream stream) throws IOException {
+        final Archive archive = new Archive(stream, 2 * threads);
+        try {
+            Files.walkFileTree(folder, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    if (!dir.equals(folder)) {
+                        archive.addDirectory(entryName(folder, dir) + "/", attrs.lastModifiedTime());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (attrs.isRegularFile()) {
+                        archive.addFile(entryName(folder, file), file, attrs, isStored(file));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    logger.warning(String.format("Cannot add %s to archive. Reason: %s", file, exc.getMessage()));
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            archive.finish();
+        } catch (IOException e) {
+            archive.abort();
+            throw e;
+        }
+    }
+
+    private boolean isStored(Path file) throws IOException {
+        final String name = file.getFileName().toString();
+        final int idx = name.lastIndexOf('.');
+        if (idx <= 0) {
+            return false;
+        }
+        final String extension = name.substring(idx + 1).toLowerCase();
+        if (this.storedExtensions.contains(extension)) {
+            return true;
+        }
+        if (this.probedExtensions.contains(extension)) {
+            final byte[] sample;
+            try (InputStream in = Files.newInputStream(file)) {
+                sample = in.readNBytes(BLOCK_SIZE);
+            }
+            return sample.length > 0 && deflate(sample, null, true).length > MAX_DEFLATE_RATIO * sample.length;
+        }
+        return false;
+    }
+
+    private static String entryName(Path folder, Path path) {
+        return folder.relativize(path).toString().replace('\\', '/');
+    }
+
+    private byte[] deflate(byte[] data, byte[] dictionary, boolean last) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(this.level, true);
+        }
+        try {
+            deflater.setLevel(this.level);
+            if (dictionary != null) {
+                final int length = Math.min(DICTIONARY_SIZE, dictionary.length);
+                deflater.setDictionary(dictionary, dictionary.length - length, length);
+            }
+            deflater.setInput(data);
+            final ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 2 + 64);
+            final byte[] buffer = new byte[65536];
+            int count;
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    count = deflater.deflate(buffer);
+                    output.write(buffer, 0, count);
+                }
+            } else {
+                // flush to a byte boundary, without ending the deflate stream
+                do {
+                    count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    output.write(buffer, 0, count);
+                } while (count == buffer.length);
+            }
+            return output.toByteArray();
+        } finally {
+            release(deflater);
+        }
+    }
+
+    private static void release(Deflater deflater) {
+        // the deflaters beyond the pool size free their native memory at once
+        if (deflaters.size() < 2 * threads) {
+            deflater.reset();
+            deflaters.offer(deflater);
+        } else {
+            deflater.end();
+        }
+    }
+
+    private static int dosTime(FileTime time) {
+        final LocalDateTime dateTime = LocalDateTime.ofInstant(time.toInstant(), ZoneId.systemDefault());
+        if (dateTime.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (dateTime.getYear() - 1980) << 25 | dateTime.getMonthValue() << 21 | dateTime.getDayOfMonth() << 16 |
+                dateTime.getHour() << 11 | dateTime.getMinute() << 5 | dateTime.getSecond() >> 1;
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * A piece of the archive, written in order.
+     */
+    private interface Part {
+        void write() throws IOException;
+    }
+
+    private static final class Entry {
+        private final byte[] name;
+        private final int method;
+        private final int time;
+        private final boolean directory;
+        private final boolean zip64;
+        private long offset;
+        private long dataStart;
+        private long crc;
+        private long size;
+        private long compressedSize;
+
+        private Entry(String name, int method, int time, boolean directory, boolean zip64) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.method = method;
+            this.time = time;
+            this.directory = directory;
+            this.zip64 = zip64;
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            this.count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            this.count += len;
+        }
+    }
+
+    private final class Archive {
+        private final CountingOutputStream out;
+        private final int window;
+        // pieces not yet written, in archive order
+        private final Deque<Part> pending;
+        private final Deque<Future<byte[]>> compressing;
+        private final List<Entry> entries;
+
+        private Archive(OutputStream stream, int window) {
+            this.out = new CountingOutputStream(stream);
+            this.window = window;
+            this.pending = new ArrayDeque<>();
+            this.compressing = new ArrayDeque<>();
+            this.entries = new ArrayList<>();
+        }
+
+        void addDirectory(String name, FileTime time) throws IOException {
+            final Entry entry = new Entry(name, STORED, dosTime(time), true, false);
+            enqueue(() -> writeLocalHeader(entry));
+        }
+
+        void addFile(String name, Path file, BasicFileAttributes attributes, boolean store) throws IOException {
+            final Entry entry = new Entry(name, store ? STORED : DEFLATED, dosTime(attributes.lastModifiedTime()),
+                                          false, attributes.size() >= ZIP64_ENTRY_THRESHOLD);
+            enqueue(() -> writeLocalHeader(entry));
+            final CRC32 crc = new CRC32();
+            long size = 0;
+            try (InputStream in = Files.newInputStream(file)) {
+                byte[] previous = null;
+                byte[] block = readBlock(in);
+                if (block == null && !store) {
+                    // an empty deflate stream still needs a final block
+                    block = new byte[0];
+                }
+                while (block != null) {
+                    final byte[] next = readBlock(in);
+                    crc.update(block);
+                    size += block.length;
+                    final byte[] data = block;
+                    if (store) {
+                        enqueue(() -> this.out.write(data));
+                    } else {
+                        final byte[] dictionary = previous;
+                        final boolean last = next == null;
+                        final Future<byte[]> compressed = compressors.submit(() -> deflate(data, dictionary, last));
+                        this.compressing.add(compressed);
+                        enqueue(() -> this.out.write(take(compressed)));
+                    }
+                    previous = block;
+                    block = next;
+                }
+            }
+            entry.crc = crc.getValue();
+            entry.size = size;
+            enqueue(() -> writeDescriptor(entry));
+        }
+
+        void finish() throws IOException {
+            while (!this.pending.isEmpty()) {
+                this.pending.poll().write();
+            }
+            writeCentralDirectory();
+            this.out.flush();
+        }
+
+        void abort() {
+            this.pending.clear();
+            this.compressing.forEach(f -> f.cancel(true));
+            this.compressing.clear();
+        }
+
+        private void enqueue(Part part) throws IOException {
+            this.pending.add(part);
+            while (this.pending.size() > this.window) {
+                this.pending.poll().write();
+            }
+        }
+
+        private byte[] take(Future<byte[]> compressed) throws IOException {
+            try {
+                return compressed.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while compressing");
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            } finally {
+                this.compressing.remove(compressed);
+            }
+        }
+
+        private byte[] readBlock(InputStream in) throws IOException {
+            final byte[] block = in.readNBytes(BLOCK_SIZE);
+            return block.length > 0 ? block : null;
+        }
+
+        private void writeLocalHeader(Entry entry) throws IOException {
+            entry.offset = this.out.count;
+            final int extraLength = entry.zip64 ? 20 : 0;
+            final ByteBuffer header = buffer(30 + entry.name.length + extraLength);
+            header.putInt(0x04034b50);
+            header.putShort((short) (entry.zip64 ? 45 : 20));
+            header.putShort((short) (entry.directory ? UTF8_FLAG : DESCRIPTOR_FLAGS));
+            header.putShort((short) entry.method);
+            header.putInt(entry.time);
+            header.putInt(0);
+            header.putInt(entry.zip64 ? (int) ZIP64_MAGIC : 0);
+            header.putInt(entry.zip64 ? (int) ZIP64_MAGIC : 0);
+            header.putShort((short) entry.name.length);
+            header.putShort((short) extraLength);
+            header.put(entry.name);
+            if (entry.zip64) {
+                header.putShort((short) 0x0001);
+                header.putShort((short) 16);
+                header.putLong(0);
+                header.putLong(0);
+            }
+            this.out.write(header.array());
+            entry.dataStart = this.out.count;
+            this.entries.add(entry);
+        }
+
+        private void writeDescriptor(Entry entry) throws IOException {
+            entry.compressedSize = this.out.count - entry.dataStart;
+            final ByteBuffer descriptor = buffer(entry.zip64 ? 24 : 16);
+            descriptor.putInt(0x08074b50);
+            descriptor.putInt((int) entry.crc);
+            if (entry.zip64) {
+                descriptor.putLong(entry.compressedSize);
+                descriptor.putLong(entry.size);
+            } else {
+                descriptor.putInt((int) entry.compressedSize);
+                descriptor.putInt((int) entry.size);
+            }
+            this.out.write(descriptor.array());
+        }
+
+        private void writeCentralDirectory() throws IOException {
+            final long start = this.out.count;
+            for (Entry entry : this.entries) {
+                final boolean largeSize = entry.size >= ZIP64_MAGIC;
+                final boolean largeCompressedSize = entry.compressedSize >= ZIP64_MAGIC;
+                final boolean largeOffset = entry.offset >= ZIP64_MAGIC;
+                final int extraDataLength = (largeSize ? 8 : 0) + (largeCompressedSize ? 8 : 0) + (largeOffset ? 8 : 0);
+                final int extraLength = extraDataLength > 0 ? extraDataLength + 4 : 0;
+                final short version = (short) (entry.zip64 || extraLength > 0 ? 45 : 20);
+                final ByteBuffer header = buffer(46 + entry.name.length + extraLength);
+                header.putInt(0x02014b50);
+                header.putShort(version);
+                header.putShort(version);
+                header.putShort((short) (entry.directory ? UTF8_FLAG : DESCRIPTOR_FLAGS));
+                header.putShort((short) entry.method);
+                header.putInt(entry.time);
+                header.putInt((int) entry.crc);
+                header.putInt(largeCompressedSize ? (int) ZIP64_MAGIC : (int) entry.compressedSize);
+                header.putInt(largeSize ? (int) ZIP64_MAGIC : (int) entry.size);
+                header.putShort((short) entry.name.length);
+                header.putShort((short) extraLength);
+                header.putShort((short) 0);
+                header.putShort((short) 0);
+                header.putShort((short) 0);
+                header.putInt(entry.directory ? 0x10 : 0);
+                header.putInt(largeOffset ? (int) ZIP64_MAGIC : (int) entry.offset);
+                header.put(entry.name);
+                if (extraLength > 0) {
+                    header.putShort((short) 0x0001);
+                    header.putShort((short) extraDataLength);
+                    if (largeSize) {
+                        header.putLong(entry.size);
+                    }
+                    if (largeCompressedSize) {
+                        header.putLong(entry.compressedSize);
+                    }
+                    if (largeOffset) {
+                        header.putLong(entry.offset);
+                    }
+                }
+                this.out.write(header.array());
+            }
+            final long end = this.out.count;
+            final long size = end - start;
+            final int count = this.entries.size();
+            final boolean zip64 = count >= 0xFFFF || start >= ZIP64_MAGIC || size >= ZIP64_MAGIC;
+            if (zip64) {
+                final ByteBuffer record = buffer(56 + 20);
+                record.putInt(0x06064b50);
+                record.putLong(44);
+                record.putShort((short) 45);
+                record.putShort((short) 45);
+                record.putInt(0);
+                record.putInt(0);
+                record.putLong(count);
+                record.putLong(count);
+                record.putLong(size);
+                record.putLong(start);
+                // locator
+                record.putInt(0x07064b50);
+                record.putInt(0);
+                record.putLong(end);
+                record.putInt(1);
+                this.out.write(record.array());
+            }
+            final ByteBuffer record = buffer(22);
+            record.putInt(0x06054b50);
+            record.putShort((short) 0);
+            record.putShort((short) 0);
+            record.putShort((short) (zip64 ? 0xFFFF : count));
+            record.putShort((short) (zip64 ? 0xFFFF : count));
+            record.putInt(zip64 ? (int) ZIP64_MAGIC : (int) size);
+            record.putInt(zip64 ? (int) ZIP64_MAGIC : (int) start);
+            record.putShort((short) 0);
+            this.out.write(record.array());
+        }
+    }
+}
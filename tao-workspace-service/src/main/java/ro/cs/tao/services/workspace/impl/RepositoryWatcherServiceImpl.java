@@ -4,85 +4,144 @@ import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import ro.cs.tao.component.SystemVariable;
+import ro.cs.tao.configuration.ConfigurationManager;
 import ro.cs.tao.persistence.PersistenceException;
 import ro.cs.tao.persistence.UserProvider;
 import ro.cs.tao.security.SystemPrincipal;
+import ro.cs.tao.services.entity.impl.DirectoryListingCache;
 import ro.cs.tao.services.interfaces.RepositoryWatcherService;
 import ro.cs.tao.user.User;
 import ro.cs.tao.user.UserStatus;
 import ro.cs.tao.utils.FileUtilities;
-import ro.cs.tao.utils.executors.MemoryUnit;
+import ro.cs.tao.utils.executors.NamedThreadPoolExecutor;
 
 import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.util.*;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Logger;
 
-import static java.nio.file.StandardWatchEventKinds.*;
-
 @Service("repositoryWatcherService")
 public class RepositoryWatcherServiceImpl implements RepositoryWatcherService {
 
     private static final Logger logger = Logger.getLogger(RepositoryWatcherServiceImpl.class.getName());
-    private static final int BOUND = 10;
-    private static final String WORKSPACE_DIR;
+    /**
+     * Interval (in seconds) at which the workspace changes are accounted for and the quotas are written
+     */
+    private static final String QUOTA_FLUSH_INTERVAL_KEY = "workspace.quota.flush.seconds";
+    /**
+     * Interval (in minutes) at which the workspaces are completely walked to correct the tracked usage
+     */
+    private static final String QUOTA_RECONCILE_INTERVAL_KEY = "workspace.quota.reconcile.minutes";
+    /**
+     * Which directories are watched: "recursive" (all) or "lazy" (see {@link NioWorkspaceWatcher})
+     */
+    private static final String WATCH_MODE_KEY = "workspace.watch.mode";
+    /**
+     * In lazy mode, the number of levels of a workspace that are always watched
+     */
+    private static final String WATCH_DEPTH_KEY = "workspace.watch.depth";
+    /**
+     * In lazy mode, after how many minutes without changes a deeper directory stops being watched
+     */
+    private static final String WATCH_IDLE_KEY = "workspace.watch.idle.minutes";
+    /**
+     * In lazy mode, the interval (in seconds) at which the directories that are no longer watched are checked
+     */
+    private static final String WATCH_POLL_KEY = "workspace.watch.poll.seconds";
+    /**
+     * Number of user workspaces registered in parallel at startup
+     */
+    private static final String REGISTRATION_THREADS_KEY = "workspace.watch.registration.threads";
+    /**
+     * Interval (in seconds) at which the deleted paths are published (see {@link DeletedPathsPublisher})
+     */
+    private static final String DELETIONS_PUBLISH_INTERVAL_KEY = "workspace.deletions.publish.seconds";
     private static final String ROOT;
 
-    private BlockingQueue<String> eventsQueue;
-    private WatchService watcher;
-    private Map<WatchKey, Path> keys;
+    private WorkspaceWatcher watcher;
+    private final WorkspaceUsageTracker usageTracker;
+    private final DeletedPathsPublisher deletedPathsPublisher;
 
     static {
         ROOT = SystemVariable.ROOT.value().replace("\\", "/");
-        WORKSPACE_DIR = ROOT.substring(ROOT.lastIndexOf('/') + 1);
     }
 
     @Autowired
     private UserProvider userProvider;
 
     public RepositoryWatcherServiceImpl() {
+        final ConfigurationManager configuration = ConfigurationManager.getInstance();
+        final Path rootPath = Paths.get(ROOT);
         try {
-            this.watcher = FileSystems.getDefault().newWatchService();
-            this.keys = new HashMap<>();
-            this.eventsQueue = new LinkedBlockingDeque<>(BOUND);
+            if ("recursive".equalsIgnoreCase(configuration.getValue(WATCH_MODE_KEY, "lazy"))) {
+                this.watcher = NioWorkspaceWatcher.recursive(rootPath);
+            } else {
+                this.watcher = NioWorkspaceWatcher.lazy(rootPath,
+                                                        Integer.parseInt(configuration.getValue(WATCH_DEPTH_KEY, "2")),
+                                                        Long.parseLong(configuration.getValue(WATCH_IDLE_KEY, "30")) * 60000L,
+                                                        Long.parseLong(configuration.getValue(WATCH_POLL_KEY, "300")) * 1000L);
+            }
         } catch (IOException e) {
             logger.severe(String.format("Cannot create new watcher service. Reason: %s",
                     ExceptionUtils.getStackTrace(e)));
         }
+        this.usageTracker = new WorkspaceUsageTracker(rootPath, this::updateUserInputQuota,
+                                                      Long.parseLong(configuration.getValue(QUOTA_FLUSH_INTERVAL_KEY, "10")) * 1000L,
+                                                      Long.parseLong(configuration.getValue(QUOTA_RECONCILE_INTERVAL_KEY, "360")) * 60000L);
+        this.deletedPathsPublisher = new DeletedPathsPublisher(Long.parseLong(configuration.getValue(DELETIONS_PUBLISH_INTERVAL_KEY, "2")) * 1000L);
     }
 
     @Override
     public void startWatching() {
-        List<User> activeUsers = userProvider.list(UserStatus.ACTIVE);
-        if (activeUsers != null) {
+        final DirectoryListingCache listingCache = DirectoryListingCache.getInstance();
+        this.watcher.start(new WorkspaceWatcher.Listener() {
+            @Override
+            public void changed(Path directory) {
+                // the changes are accounted for (and the quota written) periodically
+                usageTracker.changed(directory);
+                listingCache.invalidate(directory);
+            }
+
+            @Override
+            public void createdOrDeleted(Path path) {
+                usageTracker.changed(path);
+                listingCache.invalidate(path.getParent());
+                if (Files.notExists(path)) {
+                    // the entities (e.g. products) located there have to be checked
+                    deletedPathsPublisher.deleted(path);
+                }
+            }
+
+            @Override
+            public void eventsLost(Path directory) {
+                // the usage has to be computed again
+                usageTracker.requestReconcile(usageTracker.userOf(directory));
+                listingCache.invalidate(directory);
+                // deletions may have been missed
+                deletedPathsPublisher.deleted(directory);
+            }
+        });
+        // walking the workspaces may take a while, hence it is done in background
+        final List<User> activeUsers = userProvider.list(UserStatus.ACTIVE);
+        if (activeUsers != null && !activeUsers.isEmpty()) {
+            final ExecutorService executor = new NamedThreadPoolExecutor("workspace-registration",
+                                                                         Integer.parseInt(ConfigurationManager.getInstance().getValue(REGISTRATION_THREADS_KEY, "4")));
             for (User user : activeUsers) {
-                registerUser(user.getId());
+                executor.submit(() -> registerUser(user.getId()));
             }
+            executor.shutdown();
         }
-        try {
-            registerDirectory(Paths.get(SystemVariable.ROOT.value()));
-        } catch (IOException e) {
-            logger.warning(e.getMessage());
-        }
-        final WatcherMonitor watcherMonitor = new WatcherMonitor();
-        watcherMonitor.setName("WatcherMonitor");
-        watcherMonitor.start();
-        final QueueMonitor monitor = new QueueMonitor();
-        monitor.setName("QueueMonitor");
-        monitor.start();
         logger.finest("Workspace service initialization completed");
     }
 
     @Override
     public void stopWatching() {
-        try {
-            this.watcher.close();
-        } catch (IOException ignored) {
-        }
+        this.usageTracker.stop();
+        this.deletedPathsPublisher.stop();
+        this.watcher.stop();
     }
 
     @Override
@@ -91,9 +150,8 @@ public class RepositoryWatcherServiceImpl implements RepositoryWatcherService {
             final Path rootPath = Paths.get(ROOT);
             try {
                 Path userWorkspace = FileUtilities.ensureExists(rootPath.resolve(userId));
-                walkAndRegisterDirectories(userWorkspace);
-                int usedSpace = getUsedSpace(userId);
-                updateUserInputQuota(userId, usedSpace);
+                watcher.watchTree(userWorkspace);
+                usageTracker.track(userId);
             } catch (IOException e) {
                 logger.severe(String.format("Failed to watch user workspace [user=%s, reason=%s]%n", userId, e.getMessage()));
             }
@@ -106,7 +164,8 @@ public class RepositoryWatcherServiceImpl implements RepositoryWatcherService {
             final Path rootPath = Paths.get(ROOT);
             try {
                 Path userWorkspace = FileUtilities.ensureExists(rootPath.resolve(userId));
-                walkAndUnregisterDirectories(userWorkspace);
+                watcher.unwatchTree(userWorkspace);
+                usageTracker.untrack(userId);
             } catch (IOException e) {
                 logger.severe(String.format("Failed to watch user workspace [user=%s, reason=%s]%n", userId, e.getMessage()));
             }
@@ -127,196 +186,4 @@ public class RepositoryWatcherServiceImpl implements RepositoryWatcherService {
             }
         }
     }
-
-    /**
-     * Register the given directory with the WatchService
-     * @param dir - directory to be registered
-     */
-    private void registerDirectory(Path dir) throws IOException {
-        final WatchKey key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
-        keys.put(key, dir);
-    }
-
-    /**
-     * Unregister the given directory from the WatchService
-     * @param dir - directory to be unregistered
-     */
-    private void unregisterDirectory(Path dir) throws IOException {
-        final Iterator<Map.Entry<WatchKey, Path>> iterator = keys.entrySet().iterator();
-        while (iterator.hasNext()) {
-            final Map.Entry<WatchKey, Path> next = iterator.next();
-            if (next.getValue().equals(dir)) {
-                next.getKey().cancel();
-                iterator.remove();
-                break;
-            }
-        }
-    }
-
-    /**
-     * Register the given directory, and all its sub-directories, with the WatchService.
-     * @param start - the path to the root directory
-     */
-    private void walkAndRegisterDirectories(final Path start) throws IOException {
-        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
-            @Override
-            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                registerDirectory(dir);
-                return FileVisitResult.CONTINUE;
-            }
-        });
-    }
-
-    /**
-     * Unregister the given directory, and all its sub-directories, from the WatchService.
-     * @param start - the path to the root directory
-     */
-    private void walkAndUnregisterDirectories(final Path start) throws IOException {
-        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
-            @Override
-            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                unregisterDirectory(dir);
-                return FileVisitResult.CONTINUE;
-            }
-        });
-    }
-
-    /**
-     * Get the user id from the path
-     * e.g.: mnt\tao\working_dir\simple should return simple
-     * @param path - current given path
-     * @return username
-     */
-    private String getUserId(String path) {
-        final StringTokenizer dirTokenizer = new StringTokenizer(path.replace("\\", "/"), "/");
-        while (dirTokenizer.hasMoreElements()) {
-            String nextDirectory = dirTokenizer.nextToken();
-            if (nextDirectory.equalsIgnoreCase(WORKSPACE_DIR)) {
-                try {
-                    return dirTokenizer.nextToken();
-                } catch (NoSuchElementException e) {
-                    logger.warning(e.getMessage());
-                }
-            }
-        }
-        return null;
-    }
-
-    /**
-     * Get the used space for a given user workspace
-     * @param userId - id of the user
-     * @return memory in MB taken up by the current user
-     * @throws IOException if the folder is not found
-     */
-    private int getUsedSpace(String userId) throws IOException {
-        if (SystemPrincipal.instance().getName().equals(userId)) {
-            return -1;
-        }
-        final Path userWorkspace = Paths.get(ROOT).resolve(userId);
-        if (!Files.exists(userWorkspace)) {
-            return -1;
-        }
-        final long usedSpace = FileUtilities.folderSize(userWorkspace) / MemoryUnit.MB.value();
-        return Math.toIntExact(usedSpace);
-    }
-
-    private class WatcherMonitor extends Thread {
-        /**
-         * Watch for any changes in any registered directories.
-         * If no change has occurred yet, wait.
-         */
-        @Override
-        public void run() {
-            while(true) {
-                WatchKey key;
-                try { // wait for key to be signalled
-                    key = watcher.take();
-                    Thread.sleep(5000);
-                } catch (InterruptedException x) {
-                    logger.finest("Workspace service interrupted");
-                    return;
-                } catch (ClosedWatchServiceException e) {
-                    logger.fine("Workspace service closed");
-                    return;
-                }
-                Path directory = keys.get(key);
-                if (directory == null) {
-                    continue;
-                }
-
-                for (WatchEvent<?> event : key.pollEvents()) {
-                    WatchEvent.Kind<?> kind = event.kind();
-                    Path name = ((WatchEvent<Path>) event).context();
-                    Path child = directory.resolve(name);
-
-                    //logger.finest(String.format("Filesystem event %s: %s\n", event.kind().name(), child));
-
-                    if (kind == ENTRY_CREATE) { // if directory is created, and watching recursively, then register it and its sub-directories
-                        try {
-                            if (directory.equals(Paths.get(ROOT))) {
-                                final BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class);
-                                if (attributes.isRegularFile() || Files.isRegularFile(child)) {
-                                    logger.warning(String.format("File %s created outside users folders", child));
-                                }
-                            } else {
-
-                                if (!Files.isSymbolicLink(child)) {
-                                    final BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class);
-                                    if (attributes.isDirectory() || Files.isDirectory(child)) {
-                                        walkAndRegisterDirectories(child);
-                                    }
-                                }
-                            }
-                        } catch (NoSuchFileException | NotDirectoryException ignored) {
-                        // a file may throw this exception if it's not fully "created"
-                        } catch (IOException e) {
-                            logger.severe(String.format("Cannot register directory %s. Reason: %s",
-                                                        child, ExceptionUtils.getStackTrace(e)));
-                        }
-                    }
-                }
-
-                try {
-                    eventsQueue.put(directory.toString());
-                } catch (InterruptedException e) {
-                    logger.severe(String.format("The thread %s has been interrupted. Reason: %s",
-                            this.getName(), ExceptionUtils.getStackTrace(e)));
-                }
-
-                // reset key and remove from set if directory no longer accessible
-                boolean valid = key.reset();
-                if (!valid) {
-                    keys.remove(key);
-                    // all directories are inaccessible
-                    if (keys.isEmpty()) {
-                        break;
-                    }
-                }
-            }
-        }
-    }
-
-    private class QueueMonitor extends Thread {
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    String entry = eventsQueue.take();
-                    final String userId = getUserId(entry);
-                    if (userId != null) {
-                        final int usedSpace = getUsedSpace(userId);
-                        updateUserInputQuota(userId, usedSpace);
-                    }/* else {
-                        logger.warning("Cannot determine user from entry '" + entry + "'");
-                    }*/
-                } catch (InterruptedException e) {
-                    logger.severe(String.format("The thread %s has been interrupted. Reason: %s",
-                            this.getName(), ExceptionUtils.getStackTrace(e)));
-                } catch (IOException | UncheckedIOException e) {
-                    logger.warning(e.getMessage());
-                }
-            }
-        }
-    }
-
 }
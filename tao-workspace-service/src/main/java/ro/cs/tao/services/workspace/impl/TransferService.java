@@ -1,6 +1,7 @@
 package ro.cs.tao.services.workspace.impl;
 
 import org.springframework.stereotype.Service;
+import ro.cs.tao.configuration.ConfigurationManager;
 import ro.cs.tao.services.workspace.model.TransferableItem;
 
 import java.security.Principal;
@@ -9,10 +10,14 @@ import java.util.Map;
 
 @Service("transferService")
 public class TransferService {
-    private final Map<Principal, UserTransferService> serviceMap;
+    private final Map<String, UserTransferService> serviceMap;
+    private final TransferSlots slots;
 
     private TransferService() {
         this.serviceMap = new HashMap<>();
+        final ConfigurationManager configurationManager = ConfigurationManager.getInstance();
+        this.slots = new TransferSlots(Integer.parseInt(configurationManager.getValue("transfer.global.concurrency", "16")),
+                                       Integer.parseInt(configurationManager.getValue("transfer.destination.connections", "4")));
     }
 
     /**
@@ -21,11 +26,9 @@ public class TransferService {
      */
     public synchronized void request(TransferableItem... requests) {
         if (requests != null && requests.length > 0) {
-            final Principal user = () -> requests[0].getUser();
-            if (!this.serviceMap.containsKey(user)) {
-                this.serviceMap.put(user, new UserTransferService(user));
-            }
-            this.serviceMap.get(user).request(requests);
+            final String userId = requests[0].getUser();
+            final Principal user = () -> userId;
+            this.serviceMap.computeIfAbsent(userId, u -> new UserTransferService(user, this.slots)).request(requests);
         }
     }
 
@@ -0,0 +1,58 @@
+package ro.cs.tao.services.workspace.impl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the transfers running at the same time, for all the users, and towards each destination repository
+ * (so that a remote repository is not opened more connections than it accepts).
+ */
+final class TransferSlots {
+    private final Semaphore global;
+    private final Map<String, Semaphore> destinations;
+    private final int perDestination;
+
+    /**
+     * @param global            The maximum number of transfers (of all users)
+     * @param perDestination    The maximum number of transfers towards the same repository
+     */
+    TransferSlots(int global, int perDestination) {
+        this.global = new Semaphore(Math.max(1, global));
+        this.destinations = new ConcurrentHashMap<>();
+        this.perDestination = Math.max(1, perDestination);
+    }
+
+    /**
+     * Tries to obtain a slot for a transfer towards the given repository, waiting at most the given time.
+     *
+     * @return <code>true</code> if the slot was obtained (it has to be released afterwards)
+     */
+    boolean acquire(String destination, long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        // the destination slot is taken first, so that a transfer waiting for a busy destination
+        // does not hold a global slot that a transfer towards another destination could use
+        final Semaphore semaphore = this.destinations.computeIfAbsent(destination, d -> new Semaphore(this.perDestination));
+        if (!semaphore.tryAcquire(timeout, unit)) {
+            return false;
+        }
+        boolean acquired = false;
+        try {
+            acquired = this.global.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } finally {
+            if (!acquired) {
+                semaphore.release();
+            }
+        }
+        return acquired;
+    }
+
+    void release(String destination) {
+        final Semaphore semaphore = this.destinations.get(destination);
+        if (semaphore != null) {
+            semaphore.release();
+        }
+        this.global.release();
+    }
+}
@@ -16,7 +16,7 @@ import ro.cs.tao.services.model.FileObject;
 import ro.cs.tao.services.workspace.model.TransferableItem;
 import ro.cs.tao.utils.ExceptionUtils;
 import ro.cs.tao.utils.FileUtilities;
-import ro.cs.tao.utils.executors.BlockingQueueWorker;
+import ro.cs.tao.utils.executors.NamedThreadPoolExecutor;
 import ro.cs.tao.utils.executors.monitoring.ProgressListener;
 import ro.cs.tao.workspaces.Repository;
 
@@ -28,35 +28,69 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.Principal;
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
+/**
+ * Transfers the files requested by a user.
+ * Several files are transferred in parallel, within the limits of the shared {@link TransferSlots}.
+ * A failed transfer is retried (after an exponentially increasing delay) without holding the other transfers.
+ */
 public class UserTransferService {
-
-    private final BlockingQueue<TransferableItem> queue;
+    private static final long MAX_RETRY_DELAY = 300 * 1000;
+    private final BlockingDeque<TransferableItem> queue;
+    // the items not yet completed (queued, in progress or waiting to be retried)
+    private final Set<TransferableItem> pending;
+    private final Map<TransferableItem, Integer> attempts;
     private final Path stateFile;
     private final Principal principal;
-    private Timer retryTimer;
-    private final BlockingQueueWorker<TransferableItem> queueWorker;
-
-    private final Map<String, Integer> batches;
+    private final TransferSlots slots;
+    private final ExecutorService workers;
+    private final Timer timer;
+    private final Map<String, Batch> batches;
     private final boolean saveState;
-    private ProgressListener progressListener;
+    private final int maxAttempts;
+    private final long retryDelay;
+    private volatile boolean stateChanged;
     private final Logger logger;
 
-
-    UserTransferService(Principal user) {
+    UserTransferService(Principal user, TransferSlots slots) {
+        final ConfigurationManager configurationManager = ConfigurationManager.getInstance();
         this.logger = Logger.getLogger(TransferService.class.getName());
         this.queue = new LinkedBlockingDeque<>();
-        this.queueWorker = new BlockingQueueWorker<>(this.queue, this::processRequest, 1, "transfer-worker", 250);
+        this.pending = Collections.synchronizedSet(new LinkedHashSet<>());
+        this.attempts = new ConcurrentHashMap<>();
         this.principal = user;
+        this.slots = slots;
         this.stateFile = Paths.get(SystemVariable.ROOT.value()).resolve("transfer").resolve(user.getName()).resolve("transfer_queue.json");
+        this.batches = new ConcurrentHashMap<>();
+        this.saveState = Boolean.parseBoolean(configurationManager.getValue("allow.resumable.transfers", "false"));
+        this.maxAttempts = Integer.parseInt(configurationManager.getValue("transfer.retry.attempts", "5"));
+        this.retryDelay = Long.parseLong(configurationManager.getValue("transfer.retry.delay.seconds", "5")) * 1000;
+        final int concurrency = Math.max(1, Integer.parseInt(configurationManager.getValue("transfer.user.concurrency", "4")));
+        this.workers = new NamedThreadPoolExecutor("transfer-worker", concurrency);
+        this.timer = new Timer("transfer-timer", true);
         restoreState();
-        this.queueWorker.setStatePersister(this::saveState);
-        this.batches = new HashMap<>();
-        this.saveState = Boolean.parseBoolean(ConfigurationManager.getInstance().getValue("allow.resumable.transfers", "false"));
-        queueWorker.start();
+        for (int i = 0; i < concurrency; i++) {
+            this.workers.submit(this::work);
+        }
+        if (this.saveState) {
+            // the state is saved periodically, not after each file
+            this.timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    if (stateChanged) {
+                        stateChanged = false;
+                        saveState();
+                    }
+                }
+            }, 5000, 5000);
+        }
     }
 
     /**
@@ -65,79 +99,134 @@ public class UserTransferService {
      */
     public void request(TransferableItem... requests) {
         for (TransferableItem request : requests) {
-            final Integer value = this.batches.get(request.getBatch());
-            this.batches.put(request.getBatch(), value != null ? value + 1 : 1);
+            this.batches.computeIfAbsent(request.getBatch(), b -> new Batch(request)).total.incrementAndGet();
         }
+        this.pending.addAll(Arrays.asList(requests));
         this.queue.addAll(Arrays.asList(requests));
+        this.stateChanged = true;
     }
 
-    private double getBatchProgress(String batch) {
-        double value;
-        synchronized (this.batches) {
-            Integer iCount = this.batches.get(batch);
-            if (iCount == null) {
-                value = 0.0;
-            } else {
-                value = 1.0 - ((double) this.queue.stream().map(TransferableItem::getBatch).count() / iCount.doubleValue());
+    private void work() {
+        while (!Thread.currentThread().isInterrupted()) {
+            final TransferableItem item;
+            try {
+                item = this.queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            final String destination = item.getDestinationRepository().getId();
+            try {
+                if (!this.slots.acquire(destination, 1, TimeUnit.SECONDS)) {
+                    // the destination (or the service) is busy, let the other items go first
+                    this.queue.offerLast(item);
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                this.queue.offerFirst(item);
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                process(item);
+            } finally {
+                this.slots.release(destination);
             }
         }
-        return value;
     }
 
-    private Void processRequest(TransferableItem item) {
-        //this.asyncCallbackWorker.execute(() -> {
+    private void process(TransferableItem item) {
+        final Batch batch = this.batches.computeIfAbsent(item.getBatch(), b -> new Batch(item));
         try {
-            if (this.progressListener == null) {
-                this.progressListener = new ProgressNotifier(this.principal, item.getBatch(),
-                        Topic.TRANSFER_PROGRESS, new HashMap<>() {{
-                    put("Repository", item.getDestinationRepository().getId());
-                }});
-                this.progressListener.started(item.getBatch());
-            }
-            final Repository srcWorkspace = item.getSourceRepository();
-            final StorageService sourceService = StorageServiceFactory.getInstance(srcWorkspace);
-            ProgressListener listener = this.progressListener.subProgressListener() != null
-                                        ? this.progressListener.subProgressListener()
-                                        : this.progressListener;
-            sourceService.setProgressListener(listener);
-            final Repository dstWorkspace = item.getDestinationRepository();
-            final StorageService destinationService = StorageServiceFactory.getInstance(dstWorkspace);
-            //destinationService.setProgressListener(this.progressListener);
-            final FileObject fileObject = item.getSource();
-            final Map<String, String> attributes = fileObject.getAttributes();
-            String srcPath;
-            if (attributes != null && (srcPath = attributes.get("remotePath")) != null) {
-                if (!srcPath.startsWith("http")) {
-                    srcPath = srcWorkspace.resolve(fileObject.getRelativePath());
-                }
+            completed(item, batch, transfer(item, batch));
+        } catch (Exception e) {
+            final int attempt = this.attempts.merge(item, 1, Integer::sum);
+            if (attempt < this.maxAttempts) {
+                final long delay = Math.min(MAX_RETRY_DELAY, this.retryDelay << Math.min(attempt - 1, 16));
+                logger.warning(String.format("Transfer of %s failed (attempt %d of %d), it will be retried in %ds. Reason: %s",
+                                             item.getSource().getRelativePath(), attempt, this.maxAttempts, delay / 1000, e.getMessage()));
+                this.timer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        queue.offerLast(item);
+                    }
+                }, delay);
             } else {
-                srcPath = srcWorkspace.resolve(fileObject.getRelativePath());
+                logger.severe(ExceptionUtils.getStackTrace(logger, e));
+                Messaging.send(new UserPrincipal(item.getUser()), Topic.WARNING.value(), this,
+                               "File '" + item.getSource().getRelativePath() + "' was not transferred after " + attempt +
+                                       " attempts [reason: " + e.getMessage() + "]");
+                completed(item, batch, true);
             }
-            if (this.progressListener != null) {
-            	this.progressListener.subActivityStarted(srcPath);
+        }
+    }
+
+    /**
+     * Transfers an item.
+     *
+     * @return  <code>true</code> if the item could not be transferred and should not be retried
+     */
+    private boolean transfer(TransferableItem item, Batch batch) throws Exception {
+        final ProgressListener progressListener = batch.listener();
+        final Repository srcWorkspace = item.getSourceRepository();
+        // StorageServiceFactory returns a new instance at each call (the instances are associated with a repository,
+        // as the controllers do concurrently for different users), hence the listener set below is not shared with
+        // the other workers
+        final StorageService sourceService = StorageServiceFactory.getInstance(srcWorkspace);
+        ProgressListener listener = progressListener.subProgressListener() != null
+                                    ? progressListener.subProgressListener()
+                                    : progressListener;
+        sourceService.setProgressListener(listener);
+        final Repository dstWorkspace = item.getDestinationRepository();
+        final StorageService destinationService = StorageServiceFactory.getInstance(dstWorkspace);
+        final FileObject fileObject = item.getSource();
+        final Map<String, String> attributes = fileObject.getAttributes();
+        String srcPath;
+        if (attributes != null && (srcPath = attributes.get("remotePath")) != null) {
+            if (!srcPath.startsWith("http")) {
+                srcPath = srcWorkspace.resolve(fileObject.getRelativePath());
             }
-            boolean hasException = false;
+        } else {
+            srcPath = srcWorkspace.resolve(fileObject.getRelativePath());
+        }
+        synchronized (batch) {
+            progressListener.subActivityStarted(srcPath);
+        }
+        // a previous attempt may have left a partial file at the destination
+        final boolean retry = this.attempts.containsKey(item);
+        boolean hasException = false;
+        boolean skipped = false;
+        try {
             if (srcWorkspace.getId().equals(dstWorkspace.getId())) {
                 destinationService.move(srcPath, item.getDestinationPath());
             } else {
                 InputStream sourceStream = null;
                 try {
                     final Object source = sourceService.download(srcPath);
-                    if (source instanceof FileSystemResource) {
-                        sourceStream = ((FileSystemResource) source).getInputStream();
-                    } else {
+                    if (source instanceof InputStream) {
                         sourceStream = (InputStream) source;
                     }
                     logger.finest("Begin transferring file " + srcPath);
-                    if (fileObject.getSize() > 0) {
-                        sourceStream = new ListenableInputStream(sourceStream,
-                                                                 fileObject.getSize(),
-                                                                 listener);
-                    }
-                    if (item.isForce() || !destinationService.exists(item.getDestinationPath())) {
-                        destinationService.storeFile(sourceStream, fileObject.getSize(), item.getDestinationPath(), srcPath);
-                    } else {
+                    // an item having a chunk size is a chunked transfer that was interrupted
+                    if (item.getChunkSize() <= 0 && !item.isForce() && !retry && destinationService.exists(item.getDestinationPath())) {
                         logger.fine(String.format("File %s exists at the destination and no overwrite flag is set", srcPath));
+                        skipped = true;
+                    } else if (item.getChunkSize() > 0 || ChunkedTransfer.accepts(item)) {
+                        // large files are transferred in chunks, resumed from the last verified chunk
+                        ChunkedTransfer.transfer(item, source, destinationService, srcPath, () -> this.stateChanged = true);
+                    } else {
+                        if (source instanceof FileSystemResource) {
+                            sourceStream = ((FileSystemResource) source).getInputStream();
+                        }
+                        if (fileObject.getSize() > 0) {
+                            sourceStream = new ListenableInputStream(sourceStream,
+                                                                     fileObject.getSize(),
+                                                                     listener);
+                        }
+                        if (retry && destinationService.exists(item.getDestinationPath())) {
+                            destinationService.remove(item.getDestinationPath());
+                        }
+                        destinationService.storeFile(sourceStream, fileObject.getSize(), item.getDestinationPath(), srcPath);
                     }
                 } catch (FileNotFoundException fnfex) {
                     final String msg = "File '" + srcPath + "' was not found in the [" + srcWorkspace.getName() + "] repository";
@@ -154,63 +243,58 @@ public class UserTransferService {
                     }
                 }
                 logger.finest("End transferring file " + srcPath);
-                if (item.isMove()) {
+                // the source of a skipped file is kept, since the destination file is not its copy
+                if (item.isMove() && !hasException && !skipped) {
                     sourceService.remove(fileObject.getRelativePath());
                     logger.finest("Removed file " + srcPath);
                 }
             }
-            if (this.progressListener != null) {
-            	this.progressListener.subActivityEnded(srcPath, hasException);
-            }
-            //decrement(item.getBatch());
-            if (this.progressListener != null) {
-                this.progressListener.notifyProgress(getBatchProgress(item.getBatch()));
-            }
-            final TransferableItem next = this.queue.peek();
-            if (next == null || !item.getBatch().equals(next.getBatch())) {
-                if (this.progressListener != null) {
-                    this.progressListener.ended(hasException);
-                    this.progressListener = null;
-                }
-                final String msg = "Transfer batch [" + item.getBatch() + "] completed" + (hasException ? " with errors" : "");
-                Messaging.send(new UserPrincipal(item.getUser()),
-                               hasException ? Topic.WARNING.value() : Topic.INFORMATION.value(),
-                               this, msg);
-                logger.finest(msg);
-            }
         } catch (Exception e) {
-            logger.severe(ExceptionUtils.getStackTrace(logger, e));
-            if (this.progressListener != null) {
-                this.progressListener.ended(false);
+            synchronized (batch) {
+                progressListener.subActivityEnded(srcPath, true);
             }
-            this.queueWorker.setPaused(true);
-            initRetryTimer();
+            throw e;
+        }
+        synchronized (batch) {
+            progressListener.subActivityEnded(srcPath, hasException);
         }
-        //});
-        return null;
+        return hasException;
     }
 
-    private void initRetryTimer() {
-        if (this.retryTimer != null) {
-            this.retryTimer.cancel();
-        }
-        this.retryTimer = new Timer();
-        this.retryTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                UserTransferService.this.queueWorker.setPaused(false);
+    private void completed(TransferableItem item, Batch batch, boolean hasException) {
+        this.pending.remove(item);
+        this.attempts.remove(item);
+        this.stateChanged = true;
+        if (hasException) {
+            batch.hasErrors = true;
+        }
+        final int done = batch.done.incrementAndGet();
+        synchronized (batch) {
+            batch.listener().notifyProgress(batch.progress());
+        }
+        if (done >= batch.total.get() && this.batches.remove(item.getBatch(), batch)) {
+            synchronized (batch) {
+                batch.listener().ended(batch.hasErrors);
             }
-        }, 300 * 1000);
+            final String msg = "Transfer batch [" + item.getBatch() + "] completed" + (batch.hasErrors ? " with errors" : "");
+            Messaging.send(new UserPrincipal(item.getUser()),
+                           batch.hasErrors ? Topic.WARNING.value() : Topic.INFORMATION.value(),
+                           this, msg);
+            logger.finest(msg);
+        }
     }
 
-    private void saveState(BlockingQueue<TransferableItem> queue) {
+    private void saveState() {
         if (this.saveState) {
             try {
                 FileUtilities.createDirectories(this.stateFile.getParent());
                 if (Files.notExists(this.stateFile)) {
                     Files.createFile(this.stateFile);
                 }
-                final TransferableItem[] requests = queue.toArray(new TransferableItem[0]);
+                final TransferableItem[] requests;
+                synchronized (this.pending) {
+                    requests = this.pending.toArray(new TransferableItem[0]);
+                }
                 try (OutputStream stream = Files.newOutputStream(this.stateFile)) {
                     final ObjectMapper mapper = new ObjectMapper();
                     mapper.registerModule(new JavaTimeModule());
@@ -236,7 +320,7 @@ public class UserTransferService {
                         final List<TransferableItem> requests = mapper.readerForListOf(TransferableItem.class)
                                 .readValue(stream);
                         if (requests != null) {
-                            this.queue.addAll(requests);
+                            request(requests.toArray(new TransferableItem[0]));
                             logger.finest(String.format("Transfer queue state restored (%d items)", requests.size()));
                         }
                     }
@@ -246,4 +330,37 @@ public class UserTransferService {
             }
         }
     }
+
+    /**
+     * Progress of a batch of transfers.
+     */
+    private final class Batch {
+        private final TransferableItem first;
+        private final AtomicInteger total;
+        private final AtomicInteger done;
+        private volatile boolean hasErrors;
+        private ProgressListener listener;
+
+        private Batch(TransferableItem first) {
+            this.first = first;
+            this.total = new AtomicInteger();
+            this.done = new AtomicInteger();
+        }
+
+        synchronized ProgressListener listener() {
+            if (this.listener == null) {
+                this.listener = new ProgressNotifier(principal, this.first.getBatch(),
+                                                     Topic.TRANSFER_PROGRESS, new HashMap<>() {{
+                    put("Repository", first.getDestinationRepository().getId());
+                }});
+                this.listener.started(this.first.getBatch());
+            }
+            return this.listener;
+        }
+
+        double progress() {
+            final int count = this.total.get();
+            return count > 0 ? Math.min(1.0, (double) this.done.get() / count) : 0.0;
+        }
+    }
 }
@@ -0,0 +1,296 @@
+package ro.cs.tao.services.workspace.impl;
+
+import ro.cs.tao.utils.executors.MemoryUnit;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of the space used by the user workspaces, without walking a workspace at each change.
+ * For each directory of a workspace, the total size of the files it directly contains is kept in memory.
+ * The watcher only reports the directories in which something changed; these are collected and, periodically,
+ * only their direct content is listed again (a newly created directory is walked, a deleted one is dropped
+ * together with its sub-directories). The usage of a user is the sum of its directory aggregates, and it is
+ * written (through the given callback) only when its value in MB has changed.
+ * Since some changes may be missed (watcher overflows, unwatched directories), the workspaces are completely
+ * walked again at a (much larger) reconciliation interval.
+ */
+final class WorkspaceUsageTracker {
+    private static final Logger logger = Logger.getLogger(WorkspaceUsageTracker.class.getName());
+    private final Path root;
+    private final BiConsumer<String, Integer> quotaWriter;
+    private final Map<String, UserUsage> users;
+    private final Set<Path> dirtyDirectories;
+    private final Set<String> dirtyUsers;
+    private final Timer timer;
+
+    /**
+     * @param root                  The root folder of the workspaces
+     * @param quotaWriter           Called with the user and the used space (in MB) when the latter changes
+     * @param flushMillis           The interval at which the changes are accounted for and the quotas written
+     * @param reconcileMillis       The interval at which the workspaces are completely walked again
+     */
+    WorkspaceUsageTracker(Path root, BiConsumer<String, Integer> quotaWriter, long flushMillis, long reconcileMillis) {
+        this.root = root;
+        this.quotaWriter = quotaWriter;
+        this.users = new ConcurrentHashMap<>();
+        this.dirtyDirectories = ConcurrentHashMap.newKeySet();
+        this.dirtyUsers = ConcurrentHashMap.newKeySet();
+        this.timer = new Timer("workspace-usage", true);
+        this.timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, flushMillis, flushMillis);
+        this.timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                for (String user : users.keySet()) {
+                    requestReconcile(user);
+                }
+            }
+        }, reconcileMillis, reconcileMillis);
+    }
+
+    /**
+     * Walks the workspace of the given user and writes its usage. Subsequent changes are tracked incrementally.
+     */
+    void track(String userId) {
+        final UserUsage usage = this.users.computeIfAbsent(userId, UserUsage::new);
+        usage.reconcile(this.root.resolve(userId));
+        writeQuota(usage);
+    }
+
+    /**
+     * Stops tracking the workspace of the given user.
+     */
+    void untrack(String userId) {
+        this.users.remove(userId);
+        this.dirtyUsers.remove(userId);
+    }
+
+    /**
+     * Records that the content of the given directory (or the directory itself) changed.
+     */
+    void changed(Path directory) {
+        if (userOf(directory) != null) {
+            this.dirtyDirectories.add(directory);
+        }
+    }
+
+    /**
+     * Requests a complete walk of the workspace of the given user at the next flush (e.g., after lost events).
+     */
+    void requestReconcile(String userId) {
+        if (userId != null && this.users.containsKey(userId)) {
+            this.dirtyUsers.add(userId);
+        }
+    }
+
+    /**
+     * Returns the tracked usage (in MB) of the given user, or -1 if the user is not tracked.
+     */
+    int usedSpace(String userId) {
+        final UserUsage usage = this.users.get(userId);
+        return usage != null ? usage.megabytes() : -1;
+    }
+
+    String userOf(Path path) {
+        if (!path.startsWith(this.root) || path.getNameCount() <= this.root.getNameCount()) {
+            return null;
+        }
+        return path.getName(this.root.getNameCount()).toString();
+    }
+
+    void stop() {
+        this.timer.cancel();
+    }
+
+    private void flush() {
+        try {
+            final Set<UserUsage> reconciled = new HashSet<>();
+            final Set<UserUsage> changed = new HashSet<>();
+            for (String userId : drain(this.dirtyUsers)) {
+                final UserUsage usage = this.users.get(userId);
+                if (usage != null) {
+                    usage.reconcile(this.root.resolve(userId));
+                    reconciled.add(usage);
+                }
+            }
+            for (Path directory : drain(this.dirtyDirectories)) {
+                final UserUsage usage = this.users.get(userOf(directory));
+                // a reconciled workspace is already up-to-date
+                if (usage != null && !reconciled.contains(usage)) {
+                    usage.refresh(directory);
+                    changed.add(usage);
+                }
+            }
+            changed.addAll(reconciled);
+            changed.forEach(this::writeQuota);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Cannot update workspace usage", e);
+        }
+    }
+
+    private void writeQuota(UserUsage usage) {
+        synchronized (usage) {
+            final int megabytes = usage.megabytes();
+            if (megabytes != usage.written) {
+                usage.written = megabytes;
+                this.quotaWriter.accept(usage.userId, megabytes);
+            }
+        }
+    }
+
+    private static <T> List<T> drain(Set<T> set) {
+        final List<T> items = new ArrayList<>();
+        final Iterator<T> iterator = set.iterator();
+        while (iterator.hasNext()) {
+            items.add(iterator.next());
+            iterator.remove();
+        }
+        return items;
+    }
+
+    private static final class UserUsage {
+        private final String userId;
+        // total size of the files directly contained, by directory
+        private final NavigableMap<Path, Long> directories;
+        private long total;
+        private int written;
+
+        private UserUsage(String userId) {
+            this.userId = userId;
+            this.directories = new TreeMap<>();
+            this.written = Integer.MIN_VALUE;
+        }
+
+        synchronized int megabytes() {
+            return Math.toIntExact(this.total / MemoryUnit.MB.value());
+        }
+
+        synchronized void reconcile(Path workspace) {
+            this.directories.clear();
+            this.total = 0;
+            walk(workspace);
+        }
+
+        synchronized void refresh(Path directory) {
+            if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)) {
+                // deleted directory (or a file event reported as a directory change)
+                removeTree(directory);
+            } else if (this.directories.containsKey(directory)) {
+                try {
+                    final Set<Path> subDirectories = new HashSet<>();
+                    final long size = listDirectory(directory, subDirectories);
+                    this.total += size - this.directories.put(directory, size);
+                    // sub-directories may have been added or removed while the directory was not watched
+                    for (Path child : childrenOf(directory)) {
+                        if (!subDirectories.remove(child)) {
+                            removeTree(child);
+                        }
+                    }
+                    subDirectories.forEach(this::walk);
+                } catch (IOException e) {
+                    removeTree(directory);
+                }
+            } else {
+                walk(directory);
+            }
+        }
+
+        private void walk(Path start) {
+            if (!Files.isDirectory(start, LinkOption.NOFOLLOW_LINKS)) {
+                return;
+            }
+            try {
+                Files.walkFileTree(start, new SimpleFileVisitor<>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                        final Long previous = directories.put(dir, 0L);
+                        if (previous != null) {
+                            total -= previous;
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        if (attrs.isRegularFile()) {
+                            directories.merge(file.getParent(), attrs.size(), Long::sum);
+                            total += attrs.size();
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                        // the file may have been deleted in the meantime
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                logger.warning(String.format("Cannot compute the size of %s. Reason: %s", start, e.getMessage()));
+            }
+        }
+
+        private void removeTree(Path directory) {
+            // the sub-directories are among the (contiguous) paths having the same string prefix
+            final String prefix = directory.toString();
+            final Iterator<Map.Entry<Path, Long>> iterator = this.directories.tailMap(directory, true).entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<Path, Long> entry = iterator.next();
+                if (!entry.getKey().toString().startsWith(prefix)) {
+                    break;
+                }
+                if (entry.getKey().startsWith(directory)) {
+                    this.total -= entry.getValue();
+                    iterator.remove();
+                }
+            }
+        }
+
+        private List<Path> childrenOf(Path directory) {
+            final List<Path> children = new ArrayList<>();
+            final String prefix = directory.toString();
+            for (Path path : this.directories.tailMap(directory, false).keySet()) {
+                if (!path.toString().startsWith(prefix)) {
+                    break;
+                }
+                if (directory.equals(path.getParent())) {
+                    children.add(path);
+                }
+            }
+            return children;
+        }
+
+        /**
+         * Returns the total size of the files directly contained in the given directory, and collects its sub-directories.
+         */
+        private static long listDirectory(Path directory, Set<Path> subDirectories) throws IOException {
+            long size = 0;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path entry : stream) {
+                    try {
+                        final BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        if (attributes.isRegularFile()) {
+                            size += attributes.size();
+                        } else if (attributes.isDirectory()) {
+                            subDirectories.add(entry);
+                        }
+                    } catch (NoSuchFileException ignored) {
+                        // deleted in the meantime
+                    }
+                }
+            }
+            return size;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package ro.cs.tao.services.workspace.impl;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Watches the user workspaces for changes.
+ * Implementations decide which directories are actually watched; they only guarantee that the listener
+ * is notified (possibly with some delay) about the directories in which something changed.
+ */
+interface WorkspaceWatcher {
+
+    /**
+     * Receives the changes detected by a watcher. The methods are invoked from the watcher thread.
+     */
+    interface Listener {
+        /**
+         * The content of the given directory changed.
+         */
+        void changed(Path directory);
+
+        /**
+         * The given path (file or directory) was created or deleted.
+         */
+        void createdOrDeleted(Path path);
+
+        /**
+         * Some events of the given directory (and maybe of its sub-directories) were lost.
+         */
+        void eventsLost(Path directory);
+    }
+
+    /**
+     * Watches the given workspace (a user folder) and, depending on the implementation, its sub-directories.
+     */
+    void watchTree(Path workspace) throws IOException;
+
+    /**
+     * Stops watching the given workspace and its sub-directories.
+     */
+    void unwatchTree(Path workspace);
+
+    /**
+     * Starts delivering the changes to the given listener.
+     */
+    void start(Listener listener);
+
+    void stop();
+}
@@ -3,7 +3,9 @@ package ro.cs.tao.services.workspace.model;
 import ro.cs.tao.services.model.FileObject;
 import ro.cs.tao.workspaces.Repository;
 
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 public class TransferableItem {
     private String user;
@@ -14,6 +16,8 @@ public class TransferableItem {
     private String destinationPath;
     private boolean move;
     private boolean force;
+    private long chunkSize;
+    private Map<Integer, String> completedChunks = new ConcurrentSkipListMap<>();
 
     public TransferableItem() {
     }
@@ -61,6 +65,28 @@ public class TransferableItem {
         return force;
     }
 
+    /**
+     * The size of the chunks in which the item is transferred, or 0 if the item is not transferred in chunks.
+     */
+    public long getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(long chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * The chunks already transferred (and verified), with their hash.
+     */
+    public Map<Integer, String> getCompletedChunks() {
+        return completedChunks;
+    }
+
+    public void setCompletedChunks(Map<Integer, String> completedChunks) {
+        this.completedChunks = completedChunks != null ? new ConcurrentSkipListMap<>(completedChunks) : new ConcurrentSkipListMap<>();
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;